@@ -46,6 +46,7 @@ import uk.ac.susx.mlcl.byblo.commands.ExternalCountCommand;
 import uk.ac.susx.mlcl.byblo.commands.ExternalKnnSimsCommand;
 import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
 import uk.ac.susx.mlcl.byblo.commands.IndexingCommands;
+import uk.ac.susx.mlcl.byblo.commands.PackNeighboursCommand;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.measures.CrMi;
 import uk.ac.susx.mlcl.byblo.measures.Lee;
@@ -203,6 +204,11 @@ public final class FullBuild extends AbstractCommand {
     description = "The maximum number of neighbours to produce per word.")
     private int k = ExternalKnnSimsCommand.DEFAULT_K;
 
+    @Parameter(names = {"--fused-knn"},
+    description = "Find the k nearest neighbours during all-pairs, rather "
+    + "than writing every similarity to disk and sorting them afterwards.")
+    private boolean fusedKnn = false;
+
     /**
      * Should only be instantiated through the main method.
      */
@@ -269,7 +275,7 @@ public final class FullBuild extends AbstractCommand {
 
 
         if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 1 of 6: Enumerating Strings ===\n");
+            LOG.info("\n=== Stage 1 of 7: Enumerating Strings ===\n");
 
         System.gc();
         runIndex(instancesEnumeratedFile, featureEnumeratorFile, entryEnumeratorFile);
@@ -283,7 +289,7 @@ public final class FullBuild extends AbstractCommand {
                                    instancesFile.getName() + ".events");
 
         if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 2 of 6: Counting ===\n");
+            LOG.info("\n=== Stage 2 of 7: Counting ===\n");
         System.gc();
         runCount(instancesEnumeratedFile, entriesFile, featuresFile, eventsFile);
         System.gc();
@@ -292,7 +298,7 @@ public final class FullBuild extends AbstractCommand {
         File featuresFilteredFile = suffixed(featuresFile, ".filtered");
         File eventsFilteredFile = suffixed(eventsFile, ".filtered");
         if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 3 of 6: Filtering ===\n");
+            LOG.info("\n=== Stage 3 of 7: Filtering ===\n");
 
         System.gc();
         runFilter(entriesFile, featuresFile, eventsFile, entriesFilteredFile,
@@ -300,29 +306,58 @@ public final class FullBuild extends AbstractCommand {
                   featureEnumeratorFile);
         System.gc();
 
-        if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 4 of 6: All-Pairs ===\n");
         File simsFile = new File(outputDir, instancesFile.getName() + ".sims");
+        File neighboursFile = suffixed(simsFile, ".neighbours");
 
-        System.gc();
-        runAllPairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
-        System.gc();
+        if (fusedKnn) {
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 4 of 7: All-Pairs (K-Nearest-Neighbours) ===\n");
+
+            System.gc();
+            runAllPairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, neighboursFile, k);
+            System.gc();
+
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 5 of 7: K-Nearest-Neighbours (performed during All-Pairs) ===\n");
+        } else {
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 4 of 7: All-Pairs ===\n");
+
+            System.gc();
+            runAllPairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile, 0);
+            System.gc();
+
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 5 of 7: K-Nearest-Neighbours ===\n");
+
+            System.gc();
+            runKNN(simsFile, neighboursFile);
+            System.gc();
+        }
+
+        File neighboursStringsFile = suffixed(neighboursFile, ".strings");
 
-        File neighboursFile = suffixed(simsFile, ".neighbours");
         if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n");
+            LOG.info("\n=== Stage 6 of 7: Un-Enumerating ===\n");
 
         System.gc();
-        runKNN(simsFile, neighboursFile);
+        runUnindexSim(neighboursFile, neighboursStringsFile, entryEnumeratorFile);
         System.gc();
 
-        File neighboursStringsFile = suffixed(neighboursFile, ".strings");
+        File neighboursBinaryFile = suffixed(neighboursFile, ".bin");
 
         if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 6 of 6: Un-Enumerating ===\n");
+            LOG.info("\n=== Stage 7 of 7: Packing Binary Thesaurus ===\n");
 
+        // The binary thesaurus is an extra output; the build is complete
+        // without it, so failing to write it is not fatal.
         System.gc();
-        runUnindexSim(neighboursFile, neighboursStringsFile, entryEnumeratorFile);
+        try {
+            runPackNeighbours(neighboursFile, neighboursBinaryFile);
+        } catch (Exception ex) {
+            LOG.error(format("Failed to write binary thesaurus file {0}; "
+                    + "the other outputs are complete.", neighboursBinaryFile), ex);
+        }
         System.gc();
 
 
@@ -561,12 +596,13 @@ public final class FullBuild extends AbstractCommand {
     }
 
     private void runAllPairs(File entriesFilteredFile, File featuresFilteredFile,
-                             File eventsFilteredFile, File simsFile)
+                             File eventsFilteredFile, File simsFile, int k)
             throws Exception {
+        final String simsName = k > 0 ? "Neighbours file" : "Sims file";
         checkValidInputFile("Filtered entries file", entriesFilteredFile);
         checkValidInputFile("Filtered features file", featuresFilteredFile);
         checkValidInputFile("Filtered events file", eventsFilteredFile);
-        checkValidOutputFile("Sims file", simsFile);
+        checkValidOutputFile(simsName, simsFile);
 
         final long startTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
@@ -575,7 +611,9 @@ public final class FullBuild extends AbstractCommand {
             sb.append(MessageFormat.format(" * Input entries file: {0}\n", entriesFilteredFile));
             sb.append(MessageFormat.format(" * Input features file: {0}\n", featuresFilteredFile));
             sb.append(MessageFormat.format(" * Input events file: {0}\n", eventsFilteredFile));
-            sb.append(MessageFormat.format(" * Output sims file: {0}\n", simsFile));
+            sb.append(MessageFormat.format(" * Output {0}: {1}\n", simsName.toLowerCase(), simsFile));
+            if (k > 0)
+                sb.append(MessageFormat.format(" * K: {0}\n", k));
             sb.append(MessageFormat.format(" * Measure: {0}{1}\n", measureName,
                                            measureReversed ? "(reversed)" : ""));
             sb.append(MessageFormat.format(" * Accept sims range: {0} to {1}\n",
@@ -600,6 +638,7 @@ public final class FullBuild extends AbstractCommand {
         allPairsCmd.setMinSimilarity(minSimilarity);
         allPairsCmd.setMaxSimilarity(maxSimilarity);
         allPairsCmd.setOutputIdentityPairs(outputIdentityPairs);
+        allPairsCmd.setK(k);
 
         allPairsCmd.setMeasureName(measureName);
         allPairsCmd.setCrmiBeta(crmiBeta);
@@ -614,7 +653,7 @@ public final class FullBuild extends AbstractCommand {
 
 
         allPairsCmd.runCommand();
-        checkValidInputFile("Sims file", simsFile);
+        checkValidInputFile(simsName, simsFile);
 
         final long endTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
@@ -728,6 +767,50 @@ public final class FullBuild extends AbstractCommand {
 
     }
 
+    private void runPackNeighbours(File neighboursFile,
+                                   File neighboursBinaryFile)
+            throws Exception {
+
+        checkValidInputFile("Neighbours file", neighboursFile);
+        checkValidOutputFile("Neighbours binary file", neighboursBinaryFile);
+
+        final long startTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\nConfiguration:\n");
+            sb.append(MessageFormat.format(" * Input enumerated neighbours file: {0}\n", neighboursFile));
+            sb.append(MessageFormat.format(" * Output binary thesaurus file: {0}\n", neighboursBinaryFile));
+            sb.append(MessageFormat.format(" * Start time: {0,time,full} {0,date,full}\n", startTime));
+            sb.append(MessageFormat.format(" * {0}\n", MiscUtil.memoryInfoString()));
+            sb.append("\n");
+            LOG.info(sb.toString());
+        }
+
+        PackNeighboursCommand packCmd = new PackNeighboursCommand();
+        packCmd.setSourceFile(neighboursFile);
+        packCmd.setDestinationFile(neighboursBinaryFile);
+        packCmd.setCharset(getCharset());
+
+        packCmd.getIndexDelegate().setEnumeratedEntries(true);
+        packCmd.getIndexDelegate().setEnumeratedFeatures(true);
+        packCmd.getIndexDelegate().setEnumeratorType(enumeratorType);
+
+        packCmd.runCommand();
+
+        checkValidInputFile("Neighbours binary file", neighboursBinaryFile);
+
+        final long endTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\nStats:\n");
+            sb.append(MessageFormat.format(" * End time: {0,time,full} {0,date,full}\n", endTime));
+            sb.append(MessageFormat.format(" * Elapsed time: {0}\n", formatElapsedTime(endTime - startTime)));
+            sb.append(MessageFormat.format(" * {0}\n", MiscUtil.memoryInfoString()));
+            sb.append("\n");
+            LOG.info(sb.toString());
+        }
+    }
+
     private static File createTempSubdirDir(File base) throws IOException {
         checkValidOutputDir("Temporary base directory", base);
         FileFactory tmp = new TempFileFactory(base);
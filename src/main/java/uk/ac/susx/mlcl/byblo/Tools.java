@@ -43,6 +43,9 @@ import uk.ac.susx.mlcl.byblo.commands.IndexingCommands;
 import uk.ac.susx.mlcl.byblo.commands.MergeEntriesCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeEventsCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeInstancesCommand;
+import uk.ac.susx.mlcl.byblo.commands.MergeShardsCommand;
+import uk.ac.susx.mlcl.byblo.commands.PackNeighboursCommand;
+import uk.ac.susx.mlcl.byblo.commands.ServeCommand;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
 import uk.ac.susx.mlcl.lib.commands.Command;
 
@@ -69,10 +72,13 @@ public final class Tools extends AbstractCommand {
         tmp.put("merge-ents", MergeEventsCommand.class);
         tmp.put("merge-feats", MergeEntriesCommand.class);
         tmp.put("merge-events", MergeEntriesCommand.class);
+        tmp.put("merge-shards", MergeShardsCommand.class);
         tmp.put("knn-sims", ExternalKnnSimsCommand.class);
         tmp.put("allpairs", AllPairsCommand.class);
         tmp.put("count", ExternalCountCommand.class);
         tmp.put("filter", FilterCommand.class);
+        tmp.put("serve", ServeCommand.class);
+        tmp.put("pack-neighbours", PackNeighboursCommand.class);
         tmp.put("index", IndexingCommands.IndexInstances.class);
         tmp.put("index-instances", IndexingCommands.IndexInstances.class);
         tmp.put("index-entries", IndexingCommands.IndexEntries.class);
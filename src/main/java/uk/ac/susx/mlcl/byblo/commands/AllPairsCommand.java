@@ -48,8 +48,13 @@ import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource.WTStatsSource;
 import uk.ac.susx.mlcl.byblo.measures.*;
+import uk.ac.susx.mlcl.byblo.tasks.IncrementalApssTask;
 import uk.ac.susx.mlcl.byblo.tasks.InvertedApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.LshApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.MatrixProductApssTask;
 import uk.ac.susx.mlcl.byblo.tasks.NaiveApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.PrefixFilterApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.RecallEstimate;
 import uk.ac.susx.mlcl.byblo.tasks.ThreadedApssTask;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.commands.*;
@@ -67,6 +72,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.zip.CRC32;
 
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -161,19 +167,27 @@ public class AllPairsCommand extends AbstractCommand {
     public enum Algorithm {
 
         Naive(NaiveApssTask.class),
-        Inverted(InvertedApssTask.class);
+        Inverted(InvertedApssTask.class),
+        PrefixFilter(PrefixFilterApssTask.class),
+        Lsh(LshApssTask.class),
+        MatrixProduct(MatrixProductApssTask.class);
 
+        // Class literals are necessarily raw
+        @SuppressWarnings("rawtypes")
         private Class<? extends NaiveApssTask> implementation;
 
+        @SuppressWarnings("rawtypes")
         private Algorithm(Class<? extends NaiveApssTask> imp) {
             this.implementation = imp;
         }
 
+        @SuppressWarnings("rawtypes")
         public Class<? extends NaiveApssTask> getImplementation() {
             return implementation;
         }
 
-        public NaiveApssTask newInstance() throws InstantiationException, IllegalAccessException {
+        @SuppressWarnings("unchecked")
+        public <P> NaiveApssTask<P> newInstance() throws InstantiationException, IllegalAccessException {
             return getImplementation().newInstance();
         }
 
@@ -184,6 +198,94 @@ public class AllPairsCommand extends AbstractCommand {
             description = "APPS algorithm to use.")
     private Algorithm algorithm = Algorithm.Inverted;
 
+    @Parameter(names = {"--half-grid"},
+            description = "When the measure is symmetric, only compare each unordered pair of entries once, "
+                    + "and output the resultant similarity in both directions.")
+    private boolean halfGridEnabled = false;
+
+    @Parameter(names = {"-k", "--nearest-neighbours"},
+            description = "When greater than zero, only retain the k nearest neighbours of each entry, "
+                    + "and write them to the output file instead of every similarity.")
+    private int k = 0;
+
+    @Parameter(names = {"--lsh-bands"},
+            description = "Number of signature bands used by the approximate Lsh algorithm. "
+                    + "More bands find more similar pairs, at the cost of more comparisons.")
+    private int lshBands = LshApssTask.DEFAULT_BANDS;
+
+    @Parameter(names = {"--lsh-rows"},
+            description = "Number of hashes in each signature band used by the approximate Lsh algorithm. "
+                    + "More rows reduce the number of comparisons, at the cost of finding fewer pairs.")
+    private int lshRows = LshApssTask.DEFAULT_ROWS;
+
+    @Parameter(names = {"--lsh-recall-sample"},
+            description = "Proportion of entries that are also compared exactly by the approximate Lsh "
+                    + "algorithm, in order to estimate recall.",
+            converter = DoubleConverter.class)
+    private double lshRecallSampleRate = LshApssTask.DEFAULT_RECALL_SAMPLE_RATE;
+
+    @Parameter(names = {"--max-document-frequency"},
+            description = "Proportion of the entries in each unit of work that a feature may occur with, and "
+                    + "still be used by the Inverted algorithm to find candidate pairs; 1 to use every feature. "
+                    + "Similarities are still calculated over every feature, but pairs that share only more "
+                    + "frequent features are not found.",
+            converter = DoubleConverter.class)
+    private double maxDocumentFrequency = InvertedApssTask.DEFAULT_MAX_DOCUMENT_FREQUENCY;
+
+    @Parameter(names = {"--df-recall-sample"},
+            description = "Proportion of entries that are also compared exactly by the Inverted algorithm, when "
+                    + "the maximum document frequency is less than 1, in order to estimate recall.",
+            converter = DoubleConverter.class)
+    private double dfRecallSampleRate = InvertedApssTask.DEFAULT_RECALL_SAMPLE_RATE;
+
+    @Parameter(names = {"--product-block-size"},
+            description = "Number of entries in each block of the sparse matrices multiplied by the "
+                    + "MatrixProduct algorithm.")
+    private int productBlockSize = MatrixProductApssTask.DEFAULT_BLOCK_SIZE;
+
+    @Parameter(names = {"--checkpoint-dir"},
+            description = "Directory in which to record completed work as it progresses, so an "
+                    + "interrupted run can be continued with --resume. Deleted once the run completes.")
+    private File checkpointDir = null;
+
+    @Parameter(names = {"--resume"},
+            description = "Continue an interrupted run from the checkpoint directory, skipping the work "
+                    + "already completed. The events file and measure settings must be unchanged.")
+    private boolean resumeEnabled = false;
+
+    @Parameter(names = {"--chunk-size"},
+            description = "Number of entries in each unit of work, or -1 to estimate it from the memory "
+                    + "available. Must be set when sharding, to the same value for every shard.")
+    private int chunkSize = -1;
+
+    @Parameter(names = {"--chunk-non-zeros"},
+            description = "Maximum number of non-zero feature values in each unit of work, or -1 to derive it "
+                    + "from the chunk size and the mean entry size in the events statistics.")
+    private long chunkNonZeros = -1;
+
+    @Parameter(names = {"--shard"},
+            description = "Only perform the part i/n of the search, so it can be spread over n separate "
+                    + "processes; where i is from 1 to n. The outputs of every shard can be combined "
+                    + "with merge-shards.")
+    private String shard = null;
+
+    private int shardIndex = 0;
+
+    private int shardCount = 1;
+
+    @Parameter(names = {"--added-events"},
+            description = "Event frequency vectors of the entries added, or changed, since the previous output "
+                    + "was produced from the input events file. Only the pairs involving these entries are "
+                    + "compared, and merged with the previous output. Requires --previous-output.",
+            validateWith = InputFileValidator.class)
+    private File addedEventsFile = null;
+
+    @Parameter(names = {"--previous-output"},
+            description = "Output of an earlier run over the input events file, with the same settings, to be "
+                    + "updated with the added entries. Must not be the output file.",
+            validateWith = InputFileValidator.class)
+    private File previousOutputFile = null;
+
     public AllPairsCommand(File entriesFile, File featuresFile,
                            File eventsFile, File outputFile,
                            Charset charset, DoubleEnumerating indexDelegate) {
@@ -206,50 +308,32 @@ public class AllPairsCommand extends AbstractCommand {
             LOG.info("Running all-pairs similarity.");
         }
 
-        // Instantiate the denote proximity measure
-        Proximity proximity = getMeasureClass().newInstance();
-
-        // Parameterise those measures that require them
-        if (proximity instanceof Lp) {
-            ((Lp) proximity).setP(getMinkP());
-        } else if (proximity instanceof Lee) {
-            ((Lee) proximity).setAlpha(getLeeAlpha());
-        } else if (proximity instanceof CrMi) {
-            ((CrMi) proximity).setBeta(getCrmiBeta());
-            ((CrMi) proximity).setGamma(getCrmiGamma());
+        if (isResumeEnabled() && getCheckpointDir() == null) {
+            throw new IllegalStateException("resume requires a checkpoint directory");
         }
-
-        // Mutual Information based proximity measures require the frequencies
-        // of each feature, and other associate values
-        if (proximity instanceof AbstractMIProximity) {
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Loading features file " + getFeaturesFile());
+        if (shard != null) {
+            setShard(shard);
+        }
+        if (getShardCount() > 1 && getChunkSize() == -1) {
+            throw new IllegalStateException("sharding requires the chunk size to be set");
+        }
+        if ((getAddedEventsFile() == null) != (getPreviousOutputFile() == null)) {
+            throw new IllegalStateException(
+                    "added events and previous output must be given together");
+        }
+        if (isIncremental()) {
+            if (getCheckpointDir() != null || getShardCount() > 1) {
+                throw new IllegalStateException(
+                        "an incremental run can not be checkpointed or sharded");
             }
-
-            WTStatsSource features = new WTStatsSource(openFeaturesSource());
-
-            AbstractMIProximity bmip = ((AbstractMIProximity) proximity);
-            bmip.setFeatureFrequencies(readAllAsArray(features));
-            bmip.setFeatureFrequencySum(features.getWeightSum());
-            bmip.setOccurringFeatureCount(features.getMaxId() + 1);
-
-        } else if (proximity instanceof KendallTau) {
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Loading entries file for KendalTau.numFeatures: " + getFeaturesFile());
+            if (getPreviousOutputFile().getCanonicalFile().equals(
+                    getOutputFile().getCanonicalFile())) {
+                throw new IllegalStateException(
+                        "the previous output file must not be the output file");
             }
-
-            WTStatsSource features = new WTStatsSource(openFeaturesSource());
-            ObjectIO.copy(features, ObjectIO.<Weighted<Token>>nullSink());
-            ((KendallTau) proximity).setNumFeatures(features.getMaxId() + 1);
         }
-        //XXX This needs to be sorted out --- filter id must be read from the
-        // stored enumeration, for optimal robustness
-        proximity.setFilteredFeatureId(FilterCommand.FILTERED_ID);
 
-        // Swap the proximity measure inputs if required
-        if (isMeasureReversed()) {
-            proximity = new ReversedProximity(proximity);
-        }
+        final Proximity proximity = newProximity();
 
 
         // Instantiate two vector source objects than can scan and read the
@@ -262,11 +346,32 @@ public class AllPairsCommand extends AbstractCommand {
 
 
         // Create a sink object that will act as a recipient for all pairs that
-        // are produced by the algorithm.
-
-        final ObjectSink<Weighted<TokenPair>> sink = openSimsSink();
+        // are produced by the algorithm. When only the nearest neighbours are
+        // required, they are selected as the pairs are produced. Otherwise,
+        // when there are several worker threads, the pairs are written by a
+        // dedicated thread so the workers do not queue for the sink.
+
+        final ObjectSink<Weighted<TokenPair>> sink;
+        if (getK() > 0) {
+            sink = new NearestNeighboursSink(openNeighboursSink(), getK());
+        } else if (getNumThreads() > 1) {
+            sink = new AsyncObjectSink<Weighted<TokenPair>>(openSimsSink());
+        } else {
+            sink = openSimsSink();
+        }
 
-        final NaiveApssTask apss = newAlgorithmInstance();
+        final NaiveApssTask<Tell> apss = isIncremental()
+                ? newIncrementalInstance()
+                : newAlgorithmInstance();
+        InvertedApssTask.CutoffReport cutoffReport = null;
+        RecallEstimate recallEstimate = null;
+        if (getAlgorithm() == Algorithm.Lsh) {
+            recallEstimate = getLshSettings(apss).getRecallEstimate();
+        } else if (getAlgorithm() == Algorithm.Inverted && getMaxDocumentFrequency() < 1) {
+            final InvertedApssTask<?> inverted = (InvertedApssTask<?>) getAlgorithmSettings(apss);
+            cutoffReport = inverted.getCutoffReport();
+            recallEstimate = inverted.getRecallEstimate();
+        }
 
 
         // Parameterise the all-pairs algorithm
@@ -275,6 +380,20 @@ public class AllPairsCommand extends AbstractCommand {
         apss.setSink(sink);
         apss.setMeasure(proximity);
         apss.setProducatePair(getProductionFilter());
+        apss.setMinSimilarity(getMinSimilarity());
+
+        // Both sources read the same events file, so for symmetric measures
+        // only half of the comparisons need to be performed.
+        if (isHalfGridEnabled() && proximity.isSymmetric()) {
+            if (apss instanceof ThreadedApssTask) {
+                ((ThreadedApssTask<Tell>) apss).setHalfGridEnabled(true);
+            } else if (apss instanceof IncrementalApssTask) {
+                ((IncrementalApssTask<Tell>) apss).setHalfGridEnabled(true);
+            } else {
+                apss.setSourcesIdentical(true);
+                apss.setOutputReversedPairs(true);
+            }
+        }
 
 
         apss.addProgressListener(new ProgressListener() {
@@ -300,9 +419,41 @@ public class AllPairsCommand extends AbstractCommand {
         if (sourceB instanceof Closeable)
             ((Closeable) sourceB).close();
 
+        if (apss instanceof IncrementalApssTask) {
+            final IncrementalApssTask<Tell> incremental = (IncrementalApssTask<Tell>) apss;
+            for (Object input : Arrays.asList(
+                    incremental.getAddedSourceA(), incremental.getAddedSourceB(),
+                    incremental.getPreviousPairs())) {
+                if (input instanceof Closeable)
+                    ((Closeable) input).close();
+            }
+        }
+
         if (apss.isExceptionTrapped())
             apss.throwTrappedException();
 
+        // The output has been written, so the checkpoint is no longer needed.
+        if (apss instanceof ThreadedApssTask)
+            ((ThreadedApssTask) apss).deleteCheckpoint();
+
+        if (cutoffReport != null && LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Document frequency cutoff skipped {0,number,#.####} of the postings "
+                    + "({1,number} of {2,number})",
+                    cutoffReport.getSkippedFraction(),
+                    cutoffReport.getSkippedPostingCount(),
+                    cutoffReport.getSkippedPostingCount()
+                    + cutoffReport.getWalkedPostingCount()));
+        }
+        if (recallEstimate != null && LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Estimated recall of approximate all-pairs: {0,number,#.####} "
+                    + "({1,number} of {2,number} sampled pairs found)",
+                    recallEstimate.getRecall(),
+                    recallEstimate.getRecalledCount(),
+                    recallEstimate.getRelevantCount()));
+        }
+
         if (indexDelegate.isEnumeratorOpen()) {
             indexDelegate.saveEnumerator();
             indexDelegate.closeEnumerator();
@@ -313,6 +464,63 @@ public class AllPairsCommand extends AbstractCommand {
         }
     }
 
+    /**
+     * Instantiate and parameterise the chosen proximity measure, loading the
+     * feature frequencies if the measure requires them.
+     *
+     * @return the measure
+     */
+    Proximity newProximity() throws ClassNotFoundException,
+            InstantiationException, IllegalAccessException, IOException {
+
+        // Instantiate the denote proximity measure
+        Proximity proximity = getMeasureClass().newInstance();
+
+        // Parameterise those measures that require them
+        if (proximity instanceof Lp) {
+            ((Lp) proximity).setP(getMinkP());
+        } else if (proximity instanceof Lee) {
+            ((Lee) proximity).setAlpha(getLeeAlpha());
+        } else if (proximity instanceof CrMi) {
+            ((CrMi) proximity).setBeta(getCrmiBeta());
+            ((CrMi) proximity).setGamma(getCrmiGamma());
+        }
+
+        // Mutual Information based proximity measures require the frequencies
+        // of each feature, and other associate values
+        if (proximity instanceof AbstractMIProximity) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Loading features file " + getFeaturesFile());
+            }
+
+            WTStatsSource features = new WTStatsSource(openFeaturesSource());
+
+            AbstractMIProximity bmip = ((AbstractMIProximity) proximity);
+            bmip.setFeatureFrequencies(readAllAsArray(features));
+            bmip.setFeatureFrequencySum(features.getWeightSum());
+            bmip.setOccurringFeatureCount(features.getMaxId() + 1);
+
+        } else if (proximity instanceof KendallTau) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Loading entries file for KendalTau.numFeatures: " + getFeaturesFile());
+            }
+
+            WTStatsSource features = new WTStatsSource(openFeaturesSource());
+            ObjectIO.copy(features, ObjectIO.<Weighted<Token>>nullSink());
+            ((KendallTau) proximity).setNumFeatures(features.getMaxId() + 1);
+        }
+        //XXX This needs to be sorted out --- filter id must be read from the
+        // stored enumeration, for optimal robustness
+        proximity.setFilteredFeatureId(FilterCommand.FILTERED_ID);
+
+        // Swap the proximity measure inputs if required
+        if (isMeasureReversed()) {
+            proximity = new ReversedProximity(proximity);
+        }
+
+        return proximity;
+    }
+
     public static double[] readAllAsArray(ObjectSource<Weighted<Token>> src) throws IOException {
 
         Int2DoubleMap entityFrequenciesMap = new Int2DoubleOpenHashMap();
@@ -352,18 +560,138 @@ public class AllPairsCommand extends AbstractCommand {
         return entryFreqs;
     }
 
-    private NaiveApssTask newAlgorithmInstance()
-            throws InstantiationException, IllegalAccessException {
+    private NaiveApssTask<Tell> newAlgorithmInstance()
+            throws InstantiationException, IllegalAccessException, IOException {
+
+        final VectorStats stats = readEventsStats();
+        final NaiveApssTask<Tell> algorithmInstance = getAlgorithm().newInstance();
+        if (algorithmInstance instanceof LshApssTask) {
+            final LshApssTask<Tell> lsh = (LshApssTask<Tell>) algorithmInstance;
+            lsh.setBands(getLshBands());
+            lsh.setRows(getLshRows());
+            lsh.setRecallSampleRate(getLshRecallSampleRate());
+        } else if (algorithmInstance instanceof InvertedApssTask) {
+            final InvertedApssTask<Tell> inverted = (InvertedApssTask<Tell>) algorithmInstance;
+            inverted.setMaxDocumentFrequency(getMaxDocumentFrequency());
+            inverted.setRecallSampleRate(getDfRecallSampleRate());
+            // The document frequencies are taken from the statistics when
+            // there are some, rather than counted from the events again.
+            if (getMaxDocumentFrequency() < 1 && stats != null) {
+                inverted.setExcludedFeatures(InvertedApssTask.findFrequentFeatures(
+                        stats, getMaxDocumentFrequency()));
+            }
+        } else if (algorithmInstance instanceof MatrixProductApssTask) {
+            ((MatrixProductApssTask<Tell>) algorithmInstance).setBlockSize(getProductBlockSize());
+        }
 
-        if (getNumThreads() == 1) {
-            return getAlgorithm().newInstance();
+        // Checkpointing, sharding, and fixed chunk limits are implemented by the
+        // threaded task, so it is used even with a single thread when any of
+        // them are required.
+        if (getNumThreads() == 1 && getCheckpointDir() == null
+                && getShardCount() == 1 && getChunkSize() == -1
+                && getChunkNonZeros() == -1) {
+            return algorithmInstance;
         } else {
             ThreadedApssTask<Tell> tapss = new ThreadedApssTask<Tell>();
             tapss.setInnerAlgorithm(getAlgorithm().getImplementation());
+            tapss.setInnerSettings(algorithmInstance);
             tapss.setNumThreads(getNumThreads());
+            tapss.setVectorStats(stats);
+            tapss.setChunkSize(getChunkSize());
+            tapss.setChunkNonZeros(getChunkNonZeros());
+            tapss.setShard(getShardIndex(), getShardCount());
+            // Both sources read the events file, so source A need not be
+            // scanned for its chunks.
+            tapss.setSameSources(true);
+            if (getCheckpointDir() != null) {
+                tapss.setCheckpointDir(getCheckpointDir());
+                tapss.setResumeEnabled(isResumeEnabled());
+                tapss.setCheckpointFingerprint(checkpointFingerprint());
+            }
             return tapss;
         }
+    }
+
+    /**
+     * Wrap the search in a task that only compares the pairs involving the
+     * added entries, and merges them with the previous output.
+     */
+    private IncrementalApssTask<Tell> newIncrementalInstance()
+            throws InstantiationException, IllegalAccessException, IOException {
+        final NaiveApssTask<Tell> search = newAlgorithmInstance();
+        final IncrementalApssTask<Tell> incremental = new IncrementalApssTask<Tell>();
+        incremental.setInnerAlgorithm(search.getClass());
+        incremental.setInnerSettings(search);
+        incremental.setAddedSources(openAddedEventsSource(), openAddedEventsSource());
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Reading previous output file " + getPreviousOutputFile());
+        }
+        incremental.setPreviousPairs(getK() > 0
+                ? BybloIO.openNeighboursSource(getPreviousOutputFile(), getCharset(), getIndexDelegate())
+                : BybloIO.openSimsSource(getPreviousOutputFile(), getCharset(), getIndexDelegate()));
+        return incremental;
+    }
 
+    /**
+     * Identify the input data, and those settings that affect the similarities
+     * produced, so that a checkpoint is only resumed by an equivalent run. The
+     * events file is identified by its length and CRC-32 checksum.
+     */
+    private String checkpointFingerprint() throws IOException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Calculating checksum of events file " + getEventsFile());
+        }
+        final long checksum = com.google.common.io.Files.getChecksum(
+                getEventsFile(), new CRC32());
+        final String settings = Arrays.asList(
+                getMeasureName(), isMeasureReversed(),
+                getMinSimilarity(), getMaxSimilarity(), isOutputIdentityPairs(),
+                getLeeAlpha(), getCrmiBeta(), getCrmiGamma(), getMinkP(),
+                getAlgorithm(), getLshBands(), getLshRows(),
+                getMaxDocumentFrequency(),
+                getShardIndex(), getShardCount()).toString();
+        return getEventsFile().length() + "-" + Long.toHexString(checksum)
+                + "-" + Integer.toHexString(settings.hashCode());
+    }
+
+    /**
+     * @return statistics of the events vectors, read from the sidecar file
+     *         produced by filtering, or null if there is no such file
+     */
+    private VectorStats readEventsStats() {
+        final File statsFile = VectorStats.sidecarFor(getEventsFile());
+        if (!statsFile.exists())
+            return null;
+        if (statsFile.lastModified() < getEventsFile().lastModified()) {
+            LOG.warn("Ignoring events statistics file " + statsFile
+                    + " because it is older than the events file.");
+            return null;
+        }
+        try {
+            final VectorStats stats = VectorStats.read(statsFile);
+            if (LOG.isInfoEnabled())
+                LOG.info("Read events statistics from " + statsFile);
+            return stats;
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable events statistics file " + statsFile, e);
+            return null;
+        }
+    }
+
+    private static LshApssTask<?> getLshSettings(NaiveApssTask<?> apss) {
+        return (LshApssTask<?>) getAlgorithmSettings(apss);
+    }
+
+    /**
+     * @return the instance holding the settings of the algorithm; which is
+     *         the inner settings of a threaded or incremental task
+     */
+    private static NaiveApssTask<?> getAlgorithmSettings(NaiveApssTask<?> apss) {
+        if (apss instanceof IncrementalApssTask)
+            apss = ((IncrementalApssTask<?>) apss).getInnerSettings();
+        return apss instanceof ThreadedApssTask
+               ? ((ThreadedApssTask<?>) apss).getInnerSettings()
+               : apss;
     }
 
     private WeightedTokenSource openFeaturesSource() throws IOException {
@@ -378,6 +706,12 @@ public class AllPairsCommand extends AbstractCommand {
                 getIndexDelegate());
     }
 
+    private FastWeightedTokenPairVectorSource openAddedEventsSource() throws IOException {
+        return BybloIO.openEventsVectorSource(
+                getAddedEventsFile(), getCharset(),
+                getIndexDelegate());
+    }
+
     private WeightedTokenPairSink openSimsSink() throws IOException {
         return BybloIO.openSimsSink(
                 getOutputFile(), getCharset(),
@@ -385,6 +719,12 @@ public class AllPairsCommand extends AbstractCommand {
 
     }
 
+    private WeightedTokenPairSink openNeighboursSink() throws IOException {
+        return BybloIO.openNeighboursSink(
+                getOutputFile(), getCharset(),
+                EnumeratingDelegates.toSingleEntries(getIndexDelegate()));
+    }
+
     private Predicate<Weighted<TokenPair>> getProductionFilter() {
         List<Predicate<Weighted<TokenPair>>> pairFilters =
                 new ArrayList<Predicate<Weighted<TokenPair>>>();
@@ -466,7 +806,207 @@ public class AllPairsCommand extends AbstractCommand {
                 add("leeAlpha", getLeeAlpha()).
                 add("crmiBeta", getCrmiBeta()).
                 add("crmiGamma", getCrmiGamma()).
-                add("minkP", getMinkP());
+                add("minkP", getMinkP()).
+                add("halfGrid", isHalfGridEnabled()).
+                add("k", getK()).
+                add("algorithm", getAlgorithm()).
+                add("lshBands", getLshBands()).
+                add("lshRows", getLshRows()).
+                add("lshRecallSampleRate", getLshRecallSampleRate()).
+                add("maxDocumentFrequency", getMaxDocumentFrequency()).
+                add("dfRecallSampleRate", getDfRecallSampleRate()).
+                add("productBlockSize", getProductBlockSize()).
+                add("checkpointDir", getCheckpointDir()).
+                add("resume", isResumeEnabled()).
+                add("chunkSize", getChunkSize()).
+                add("chunkNonZeros", getChunkNonZeros()).
+                add("shardIndex", getShardIndex()).
+                add("shardCount", getShardCount()).
+                add("addedEventsIn", getAddedEventsFile()).
+                add("previousOutputIn", getPreviousOutputFile());
+    }
+
+    public final int getLshBands() {
+        return lshBands;
+    }
+
+    public final void setLshBands(int lshBands) {
+        if (lshBands < 1)
+            throw new IllegalArgumentException("lshBands < 1");
+        this.lshBands = lshBands;
+    }
+
+    public final int getLshRows() {
+        return lshRows;
+    }
+
+    public final void setLshRows(int lshRows) {
+        if (lshRows < 1)
+            throw new IllegalArgumentException("lshRows < 1");
+        this.lshRows = lshRows;
+    }
+
+    public final double getLshRecallSampleRate() {
+        return lshRecallSampleRate;
+    }
+
+    public final void setLshRecallSampleRate(double lshRecallSampleRate) {
+        if (!(lshRecallSampleRate >= 0 && lshRecallSampleRate <= 1))
+            throw new IllegalArgumentException(
+                    "lshRecallSampleRate not in range [0,1]: " + lshRecallSampleRate);
+        this.lshRecallSampleRate = lshRecallSampleRate;
+    }
+
+    public final double getMaxDocumentFrequency() {
+        return maxDocumentFrequency;
+    }
+
+    public final void setMaxDocumentFrequency(double maxDocumentFrequency) {
+        if (!(maxDocumentFrequency > 0 && maxDocumentFrequency <= 1))
+            throw new IllegalArgumentException(
+                    "maxDocumentFrequency not in range (0,1]: " + maxDocumentFrequency);
+        this.maxDocumentFrequency = maxDocumentFrequency;
+    }
+
+    public final double getDfRecallSampleRate() {
+        return dfRecallSampleRate;
+    }
+
+    public final void setDfRecallSampleRate(double dfRecallSampleRate) {
+        if (!(dfRecallSampleRate >= 0 && dfRecallSampleRate <= 1))
+            throw new IllegalArgumentException(
+                    "dfRecallSampleRate not in range [0,1]: " + dfRecallSampleRate);
+        this.dfRecallSampleRate = dfRecallSampleRate;
+    }
+
+    public final int getProductBlockSize() {
+        return productBlockSize;
+    }
+
+    public final void setProductBlockSize(int productBlockSize) {
+        if (productBlockSize < 1)
+            throw new IllegalArgumentException("productBlockSize < 1");
+        this.productBlockSize = productBlockSize;
+    }
+
+    public final File getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    public final void setCheckpointDir(File checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    public final boolean isResumeEnabled() {
+        return resumeEnabled;
+    }
+
+    public final void setResumeEnabled(boolean resumeEnabled) {
+        this.resumeEnabled = resumeEnabled;
+    }
+
+    public final int getChunkSize() {
+        return chunkSize;
+    }
+
+    public final void setChunkSize(int chunkSize) {
+        if (chunkSize < 1 && chunkSize != -1)
+            throw new IllegalArgumentException("chunkSize < 1 and not -1");
+        this.chunkSize = chunkSize;
+    }
+
+    public final long getChunkNonZeros() {
+        return chunkNonZeros;
+    }
+
+    public final void setChunkNonZeros(long chunkNonZeros) {
+        if (chunkNonZeros < 1 && chunkNonZeros != -1)
+            throw new IllegalArgumentException("chunkNonZeros < 1 and not -1");
+        this.chunkNonZeros = chunkNonZeros;
+    }
+
+    public final int getShardIndex() {
+        return shardIndex;
+    }
+
+    public final int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @param shardIndex index of the shard to process, from 0 to
+     *                   shardCount - 1
+     * @param shardCount number of shards the search is partitioned into
+     */
+    public final void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shardCount < 1");
+        if (shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException(
+                    "shardIndex not in range [0, shardCount): " + shardIndex);
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.shard = null;
+    }
+
+    /**
+     * @param shard shard specification of the form "i/n", where i is the
+     *              one-based index of the shard, and n is the number of shards
+     */
+    public final void setShard(String shard) {
+        Checks.checkNotNull("shard", shard);
+        final int slash = shard.indexOf('/');
+        if (slash == -1)
+            throw new IllegalArgumentException("shard is not of the form i/n: " + shard);
+        try {
+            setShard(Integer.parseInt(shard.substring(0, slash).trim()) - 1,
+                     Integer.parseInt(shard.substring(slash + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("shard is not of the form i/n: " + shard, e);
+        }
+        this.shard = shard;
+    }
+
+    public final File getAddedEventsFile() {
+        return addedEventsFile;
+    }
+
+    public final void setAddedEventsFile(File addedEventsFile) {
+        this.addedEventsFile = addedEventsFile;
+    }
+
+    public final File getPreviousOutputFile() {
+        return previousOutputFile;
+    }
+
+    public final void setPreviousOutputFile(File previousOutputFile) {
+        this.previousOutputFile = previousOutputFile;
+    }
+
+    /**
+     * @return true if the previous output is to be updated with the added
+     *         entries, rather than searching over every entry
+     */
+    public final boolean isIncremental() {
+        return addedEventsFile != null && previousOutputFile != null;
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        this.k = k;
+    }
+
+    public final boolean isHalfGridEnabled() {
+        return halfGridEnabled;
+    }
+
+    public final void setHalfGridEnabled(boolean halfGridEnabled) {
+        this.halfGridEnabled = halfGridEnabled;
     }
 
     public Algorithm getAlgorithm() {
@@ -358,6 +358,7 @@ public class FilterCommand extends AbstractCommand implements
         progress.endAdjusting();
 
         finaliseFile(inputEventsFile, activeEventsFile, outputEventsFile);
+        writeEventsStats();
         ++opCount;
 
         progress.startAdjusting();
@@ -420,6 +421,24 @@ public class FilterCommand extends AbstractCommand implements
         assert outputFile.exists() : "outputFile does not exist";
     }
 
+    /**
+     * Summarise the final events vectors into a statistics sidecar file, so
+     * that the all-pairs stage can size its work units from the actual data.
+     */
+    private void writeEventsStats() throws IOException {
+        final File statsFile = VectorStats.sidecarFor(outputEventsFile);
+        if (LOG.isInfoEnabled())
+            LOG.info(format("Writing events statistics to {0}", statsFile));
+
+        final VectorStats stats = VectorStats.of(
+                BybloIO.openEventsVectorSource(
+                        outputEventsFile, getCharset(), indexDelegate));
+        stats.write(statsFile);
+
+        if (LOG.isDebugEnabled())
+            LOG.debug(stats);
+    }
+
     // Read the entries file, passing it thought the filter. accepted entries
     // are written out to the output file while rejected entries are stored
     // for filtering the AllPairsTask.
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.NearestNeighboursSink;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDelegate;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+/**
+ * Combines the outputs of the shards of a sharded all-pairs search (see
+ * {@link AllPairsCommand#setShard(String)}) into a single file.
+ *
+ * Every pair of entries is compared by exactly one shard, so the sims shards
+ * are simply concatenated. When the shards hold nearest neighbours, each only
+ * knows the best neighbours among the pairs it compared, so the k nearest
+ * neighbours of each entry are re-selected over all of the shards.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Combine the outputs of a sharded all-pairs search into a single file.")
+public final class MergeShardsCommand extends AbstractCommand {
+
+    private static final Log LOG = LogFactory.getLog(MergeShardsCommand.class);
+
+    @ParametersDelegate
+    private SingleEnumerating indexDelegate = new SingleEnumeratingDelegate();
+
+    @ParametersDelegate
+    private FileDelegate fileDelegate = new FileDelegate();
+
+    @Parameter(names = {"-i", "--input"},
+            description = "Output file of an all-pairs shard. May be given several times, "
+                    + "or as a comma separated list.",
+            required = true)
+    private List<String> shardFiles = new ArrayList<String>();
+
+    @Parameter(names = {"-o", "--output"},
+            description = "Combined output file.",
+            required = true,
+            validateWith = OutputFileValidator.class)
+    private File outputFile;
+
+    @Parameter(names = {"-k", "--nearest-neighbours"},
+            description = "When greater than zero, the shards are neighbours files, and only the k nearest "
+                    + "neighbours of each entry over all shards are retained. Otherwise the shards are "
+                    + "sims files, which are concatenated.")
+    private int k = 0;
+
+    public MergeShardsCommand(List<File> shardFiles, File outputFile, int k,
+                              Charset charset, SingleEnumerating indexDelegate) {
+        setShardFiles(shardFiles);
+        setOutputFile(outputFile);
+        setK(k);
+        setCharset(charset);
+        setIndexDelegate(indexDelegate);
+    }
+
+    public MergeShardsCommand() {
+    }
+
+    @Override
+    public void runCommand() throws Exception {
+        if (shardFiles.isEmpty())
+            throw new IllegalStateException("no shard files");
+        for (File file : getShardFiles()) {
+            if (!file.isFile())
+                throw new FileNotFoundException("Shard file does not exist: " + file);
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Merging " + shardFiles.size() + " shards to \"" + outputFile + "\".");
+
+        final ObjectSink<Weighted<TokenPair>> sink = k > 0
+                ? new NearestNeighboursSink(
+                BybloIO.openNeighboursSink(outputFile, getCharset(), indexDelegate), k)
+                : BybloIO.openSimsSink(outputFile, getCharset(), indexDelegate);
+
+        for (File file : getShardFiles()) {
+            if (LOG.isInfoEnabled())
+                LOG.info("Reading shard \"" + file + "\".");
+            final ObjectSource<Weighted<TokenPair>> source = k > 0
+                    ? BybloIO.openNeighboursSource(file, getCharset(), indexDelegate)
+                    : BybloIO.openSimsSource(file, getCharset(), indexDelegate);
+            ObjectIO.copy(source, sink);
+            if (source instanceof Closeable)
+                ((Closeable) source).close();
+        }
+
+        if (sink instanceof Flushable)
+            ((Flushable) sink).flush();
+        if (sink instanceof Closeable)
+            ((Closeable) sink).close();
+
+        indexDelegate.saveEnumerator();
+        indexDelegate.closeEnumerator();
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Completed merging shards.");
+    }
+
+    public final List<File> getShardFiles() {
+        final List<File> files = new ArrayList<File>(shardFiles.size());
+        for (String name : shardFiles)
+            files.add(new File(name));
+        return files;
+    }
+
+    public final void setShardFiles(List<File> shardFiles) {
+        Checks.checkNotNull("shardFiles", shardFiles);
+        this.shardFiles = new ArrayList<String>(shardFiles.size());
+        for (File file : shardFiles)
+            this.shardFiles.add(file.getPath());
+    }
+
+    public final File getOutputFile() {
+        return outputFile;
+    }
+
+    public final void setOutputFile(File outputFile) {
+        Checks.checkNotNull("outputFile", outputFile);
+        this.outputFile = outputFile;
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        this.k = k;
+    }
+
+    public final Charset getCharset() {
+        return fileDelegate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        fileDelegate.setCharset(charset);
+    }
+
+    public final SingleEnumerating getIndexDelegate() {
+        return indexDelegate;
+    }
+
+    public final void setIndexDelegate(SingleEnumerating indexDelegate) {
+        Checks.checkNotNull("indexDelegate", indexDelegate);
+        this.indexDelegate = indexDelegate;
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("shards", shardFiles).
+                add("output", outputFile).
+                add("k", k).
+                add("files", fileDelegate).
+                add("indexing", indexDelegate);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MergeShardsCommand().runCommand(args);
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects;
+import java.io.File;
+import java.nio.charset.Charset;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.MappedThesaurus;
+import uk.ac.susx.mlcl.byblo.io.NeighboursTable;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDelegate;
+import uk.ac.susx.mlcl.lib.commands.InputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+
+/**
+ * Convert a nearest neighbours file into the binary thesaurus format read by
+ * {@link MappedThesaurus}, which gives constant time random access to the
+ * neighbours of any entry, without reading the file.
+ *
+ * <p>The binary file holds entry ids only; so if the neighbours file is not
+ * enumerated the entry enumerator must be saved, and is used to look up the
+ * strings.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Convert a neighbours file to a random-access binary thesaurus.")
+public final class PackNeighboursCommand extends AbstractCommand {
+
+    private static final Log LOG = LogFactory.getLog(PackNeighboursCommand.class);
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDelegate = new DoubleEnumeratingDelegate();
+
+    @ParametersDelegate
+    private FileDelegate fileDelegate = new FileDelegate();
+
+    @Parameter(names = {"-i", "--input"},
+            description = "Input nearest neighbours file.",
+            required = true,
+            validateWith = InputFileValidator.class)
+    private File sourceFile;
+
+    @Parameter(names = {"-o", "--output"},
+            description = "Output binary thesaurus file.",
+            required = true,
+            validateWith = OutputFileValidator.class)
+    private File destinationFile;
+
+    public PackNeighboursCommand(File sourceFile, File destinationFile,
+                                 Charset charset,
+                                 DoubleEnumerating indexDelegate) {
+        setSourceFile(sourceFile);
+        setDestinationFile(destinationFile);
+        setCharset(charset);
+        setIndexDelegate(indexDelegate);
+    }
+
+    public PackNeighboursCommand() {
+    }
+
+    @Override
+    public void runCommand() throws Exception {
+        if (LOG.isInfoEnabled())
+            LOG.info("Reading neighbours file " + getSourceFile());
+
+        final WeightedTokenPairSource source = BybloIO.openNeighboursSource(
+                getSourceFile(), getCharset(), getIndexDelegate());
+        final NeighboursTable table;
+        try {
+            table = NeighboursTable.read(source);
+        } finally {
+            source.close();
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Writing binary thesaurus file " + getDestinationFile());
+
+        MappedThesaurus.write(table, getDestinationFile());
+
+        if (getIndexDelegate().isEnumeratorOpen()) {
+            getIndexDelegate().saveEnumerator();
+            getIndexDelegate().closeEnumerator();
+        }
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Packed " + table);
+    }
+
+    public final File getSourceFile() {
+        return sourceFile;
+    }
+
+    public final void setSourceFile(File sourceFile) {
+        Checks.checkNotNull("sourceFile", sourceFile);
+        this.sourceFile = sourceFile;
+    }
+
+    public final File getDestinationFile() {
+        return destinationFile;
+    }
+
+    public final void setDestinationFile(File destinationFile) {
+        Checks.checkNotNull("destinationFile", destinationFile);
+        this.destinationFile = destinationFile;
+    }
+
+    public final Charset getCharset() {
+        return fileDelegate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        Checks.checkNotNull("charset", charset);
+        this.fileDelegate.setCharset(charset);
+    }
+
+    public final DoubleEnumerating getIndexDelegate() {
+        return indexDelegate;
+    }
+
+    public final void setIndexDelegate(DoubleEnumerating indexDelegate) {
+        Checks.checkNotNull("indexDelegate", indexDelegate);
+        this.indexDelegate = indexDelegate;
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("in", getSourceFile()).
+                add("out", getDestinationFile()).
+                add("charset", getCharset());
+    }
+
+}
@@ -0,0 +1,884 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.collect.BiMap;
+import com.google.common.cache.CacheBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.BiMapEnumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.JDBMStringEnumerator;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.FastWeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.io.MappedThesaurus;
+import uk.ac.susx.mlcl.byblo.io.NeighboursTable;
+import uk.ac.susx.mlcl.byblo.io.Thesaurus;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.tasks.VectorQueryIndex;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDelegate;
+import uk.ac.susx.mlcl.lib.commands.InputFileValidator;
+
+/**
+ * Long running command that loads a built thesaurus once, and answers queries
+ * against it over HTTP, until it is stopped. The neighbours are read into a
+ * {@link NeighboursTable}; or, if the neighbours file is a binary thesaurus
+ * (see {@link PackNeighboursCommand}), mapped as a {@link MappedThesaurus}.
+ * Entry and feature strings are looked up in the enumerators (which, for the
+ * JDBM type, stay on disk), so no strings are held for the neighbour lists.
+ *
+ * <p>Responses are UTF-8 tab separated text. The following requests are
+ * answered:</p>
+ *
+ * <dl>
+ * <dt>{@code GET /neighbours?entry=X&k=N}</dt>
+ * <dd>The first N neighbours of X; as "X, neighbour, weight" lines.</dd>
+ * <dt>{@code GET /similarity?entry=X&other=Y}</dt>
+ * <dd>The similarity of Y to X; taken from the neighbours of X, or otherwise
+ * calculated from the events vectors if they were loaded.</dd>
+ * <dt>{@code GET /query?feature=F&feature=G&k=N}, or {@code POST /query?k=N}</dt>
+ * <dd>The N entries nearest to an ad-hoc feature vector, scored by the measure
+ * over the events vectors; as "neighbour, weight" lines. Each feature
+ * parameter adds 1 to the weight of the feature, and a posted body may hold
+ * further "feature, weight" lines. Features that are not enumerated are
+ * ignored. Requires the events vectors.</dd>
+ * <dt>{@code GET /stats}</dt>
+ * <dd>Request, cache hit and error counts, mean and maximum latency, and
+ * throughput, of each end point.</dd>
+ * </dl>
+ *
+ * <p>Unknown entries produce a 404 response, and malformed requests a 400.
+ * Requests are answered concurrently by a fixed pool of threads, and the
+ * answers are held in a shared least-recently-used cache.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Answer nearest-neighbour queries over a built thesaurus, using HTTP.")
+public final class ServeCommand extends AbstractCommand {
+
+    private static final Log LOG = LogFactory.getLog(ServeCommand.class);
+
+    public static final String DEFAULT_HOST = "localhost";
+
+    public static final int DEFAULT_PORT = 8080;
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * System property that disables Nagle's algorithm in the JDK HTTP server.
+     * It is JVM wide, and read when the first server is created. Responses
+     * are written as two packets (headers then body), so with Nagle's
+     * algorithm each one stalls for the client's delayed ACK.
+     */
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDelegate = new DoubleEnumeratingDelegate();
+
+    @ParametersDelegate
+    private FileDelegate fileDelegate = new FileDelegate();
+
+    @Parameter(names = {"-n", "--neighbours"},
+            description = "Nearest neighbours file, or binary thesaurus file, to serve.",
+            required = true,
+            validateWith = InputFileValidator.class)
+    private File neighboursFile;
+
+    @Parameter(names = {"-i", "--input"},
+            description = "Event frequency vectors file; required to score feature vector queries, "
+                    + "and the similarity of entries that are not neighbours.",
+            validateWith = InputFileValidator.class)
+    private File eventsFile = null;
+
+    @Parameter(names = {"-if", "--input-features"},
+            description = "Feature frequencies file; required by some measures.",
+            validateWith = InputFileValidator.class)
+    private File featuresFile = null;
+
+    @Parameter(names = {"-m", "--measure"},
+            description = "Similarity measure used to score queries over the events vectors.")
+    private String measureName = AllPairsCommand.DEFAULT_MEASURE;
+
+    @Parameter(names = {"--measure-reversed"},
+            description = "Swap similarity measure inputs.")
+    private boolean measureReversed = false;
+
+    @Parameter(names = {"--host"},
+            description = "Host name or address to listen on.")
+    private String host = DEFAULT_HOST;
+
+    @Parameter(names = {"-p", "--port"},
+            description = "Port to listen on, or 0 for any free port.")
+    private int port = DEFAULT_PORT;
+
+    @Parameter(names = {"-t", "--threads"},
+            description = "Number of threads answering requests.")
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--cache-size"},
+            description = "Maximum number of answers to cache, or 0 for no cache.")
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    @Parameter(names = {"--no-tcp-nodelay"},
+            description = "Leave Nagle's algorithm enabled. Otherwise the command sets the JVM wide "
+                    + "system property " + NODELAY_PROPERTY + "=true (unless it is already set), "
+                    + "without which every response waits for the client's delayed ACK.")
+    private boolean nagleEnabled = false;
+
+    @Parameter(names = {"-k"},
+            description = "The number of neighbours to return when none is requested.")
+    private int k = ExternalKnnSimsCommand.DEFAULT_K;
+
+    private Thesaurus neighbours = null;
+
+    private VectorQueryIndex vectors = null;
+
+    private StringLookup entries = null;
+
+    private StringLookup features = null;
+
+    private Cache<String, Response> cache = null;
+
+    private final Map<String, EndpointStats> stats =
+            new LinkedHashMap<String, EndpointStats>();
+
+    private HttpServer server = null;
+
+    private ExecutorService executor = null;
+
+    private CountDownLatch stopped = null;
+
+    private long startTime = 0;
+
+    public ServeCommand(File neighboursFile, File eventsFile,
+                        Charset charset, DoubleEnumerating indexDelegate) {
+        setNeighboursFile(neighboursFile);
+        this.eventsFile = eventsFile;
+        setCharset(charset);
+        setIndexDelegate(indexDelegate);
+    }
+
+    public ServeCommand() {
+    }
+
+    /**
+     * Start serving, and block until the server is stopped; either by
+     * {@link #stop() }, or when the JVM shuts down. Unless
+     * {@link #isNagleEnabled() }, the JVM wide {@value #NODELAY_PROPERTY}
+     * system property is set first.
+     */
+    @Override
+    public void runCommand() throws Exception {
+        if (!isNagleEnabled() && System.getProperty(NODELAY_PROPERTY) == null)
+            System.setProperty(NODELAY_PROPERTY, "true");
+        start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    ServeCommand.this.stop();
+                } catch (IOException ex) {
+                    LOG.error("Failed to stop the server cleanly.", ex);
+                }
+            }
+
+        });
+        stopped.await();
+    }
+
+    /**
+     * Load the thesaurus, and start answering requests in the background.
+     * No system properties are changed; callers that want low latency should
+     * set {@value #NODELAY_PROPERTY} to true before the first server is
+     * created, as {@link #runCommand() } does.
+     */
+    public void start() throws Exception {
+        if (server != null)
+            throw new IllegalStateException("server is already running");
+        load();
+        listen();
+    }
+
+    private void load() throws Exception {
+        if (LOG.isInfoEnabled())
+            LOG.info("Loading neighbours file " + getNeighboursFile());
+        if (MappedThesaurus.isBinaryThesaurus(getNeighboursFile())) {
+            neighbours = MappedThesaurus.open(getNeighboursFile());
+        } else {
+            final WeightedTokenPairSource neighboursSource =
+                    BybloIO.openNeighboursSource(
+                    getNeighboursFile(), getCharset(), getIndexDelegate());
+            neighbours = NeighboursTable.read(neighboursSource);
+            neighboursSource.close();
+        }
+        entries = new StringLookup(getIndexDelegate().getEntryEnumerator());
+        if (LOG.isInfoEnabled())
+            LOG.info("Loaded " + neighbours);
+
+        if (getEventsFile() != null) {
+            final AllPairsCommand measureSettings = new AllPairsCommand();
+            measureSettings.setIndexDelegate(getIndexDelegate());
+            measureSettings.setCharset(getCharset());
+            measureSettings.setMeasureName(getMeasureName());
+            measureSettings.setMeasureReversed(isMeasureReversed());
+            if (getFeaturesFile() != null)
+                measureSettings.setFeaturesFile(getFeaturesFile());
+
+            if (LOG.isInfoEnabled())
+                LOG.info("Loading events file " + getEventsFile());
+            final FastWeightedTokenPairVectorSource eventsSource =
+                    BybloIO.openEventsVectorSource(
+                    getEventsFile(), getCharset(), getIndexDelegate());
+            vectors = VectorQueryIndex.build(
+                    eventsSource, measureSettings.newProximity());
+            if (eventsSource instanceof Closeable)
+                ((Closeable) eventsSource).close();
+            features = new StringLookup(getIndexDelegate().getFeatureEnumerator());
+            if (LOG.isInfoEnabled())
+                LOG.info("Loaded " + vectors);
+        }
+    }
+
+    private void listen() throws IOException {
+        cache = CacheBuilder.newBuilder().
+                maximumSize(getCacheSize()).
+                concurrencyLevel(getNumThreads()).
+                build();
+
+        server = HttpServer.create(new InetSocketAddress(getHost(), getPort()), 0);
+        addEndpoint("/neighbours", true, new Endpoint() {
+
+            @Override
+            public Response answer(Map<String, List<String>> params, String body) {
+                return answerNeighbours(params);
+            }
+
+        });
+        addEndpoint("/similarity", true, new Endpoint() {
+
+            @Override
+            public Response answer(Map<String, List<String>> params, String body) {
+                return answerSimilarity(params);
+            }
+
+        });
+        addEndpoint("/query", true, new Endpoint() {
+
+            @Override
+            public Response answer(Map<String, List<String>> params, String body) {
+                return answerQuery(params, body);
+            }
+
+        });
+        addEndpoint("/stats", false, new Endpoint() {
+
+            @Override
+            public Response answer(Map<String, List<String>> params, String body) {
+                return answerStats();
+            }
+
+        });
+        executor = Executors.newFixedThreadPool(getNumThreads());
+        server.setExecutor(executor);
+        stopped = new CountDownLatch(1);
+        startTime = System.nanoTime();
+        server.start();
+
+        if (LOG.isInfoEnabled())
+            LOG.info(MessageFormat.format(
+                    "Serving neighbours at http://{0}:{1,number,#}/",
+                    getHost(), getBoundPort()));
+    }
+
+    /**
+     * Stop answering requests, and release the enumerators. Does nothing if
+     * the server is not running.
+     */
+    public void stop() throws IOException {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        server = null;
+        executor = null;
+        if (getIndexDelegate().isEnumeratorOpen())
+            getIndexDelegate().closeEnumerator();
+        if (neighbours instanceof Closeable)
+            ((Closeable) neighbours).close();
+        neighbours = null;
+        vectors = null;
+        cache = null;
+        stopped.countDown();
+        if (LOG.isInfoEnabled())
+            LOG.info("Stopped serving neighbours.");
+    }
+
+    /**
+     * @return the port the server is listening on; which is chosen by the
+     *         system when the port is set to 0
+     */
+    public int getBoundPort() {
+        if (server == null)
+            throw new IllegalStateException("server is not running");
+        return server.getAddress().getPort();
+    }
+
+    private void addEndpoint(String path, boolean cached, Endpoint endpoint) {
+        final EndpointStats endpointStats = new EndpointStats();
+        stats.put(path, endpointStats);
+        server.createContext(path, new EndpointHandler(endpoint, endpointStats, cached));
+    }
+
+    private Response answerNeighbours(Map<String, List<String>> params) {
+        final String entry = getParameter(params, "entry");
+        final int n = getK(params);
+        final int entryId = entries.indexOf(entry);
+        if (entryId == -1 || !neighbours.contains(entryId))
+            return Response.notFound("Unknown entry: " + entry);
+
+        final StringBuilder sb = new StringBuilder();
+        for (Weighted<Token> neighbour : neighbours.getNeighbours(entryId, n)) {
+            sb.append(entry).append('\t').
+                    append(entries.valueOf(neighbour.record().id())).append('\t').
+                    append(neighbour.weight()).append('\n');
+        }
+        return Response.ok(sb.toString());
+    }
+
+    private Response answerSimilarity(Map<String, List<String>> params) {
+        final String entry = getParameter(params, "entry");
+        final String other = getParameter(params, "other");
+        final int entryId = entries.indexOf(entry);
+        if (entryId == -1)
+            return Response.notFound("Unknown entry: " + entry);
+        final int otherId = entries.indexOf(other);
+        if (otherId == -1)
+            return Response.notFound("Unknown entry: " + other);
+
+        double weight = neighbours.getSimilarity(entryId, otherId);
+        if (Double.isNaN(weight) && vectors != null)
+            weight = vectors.getSimilarity(entryId, otherId);
+        if (Double.isNaN(weight))
+            return Response.notFound(MessageFormat.format(
+                    "No similarity is known for {0} and {1}", entry, other));
+        return Response.ok(entry + '\t' + other + '\t' + weight + '\n');
+    }
+
+    private Response answerQuery(Map<String, List<String>> params, String body) {
+        if (vectors == null)
+            throw new IllegalArgumentException(
+                    "Feature vector queries require the events file to be loaded.");
+        final int n = getK(params);
+
+        final Int2DoubleMap weights = new Int2DoubleOpenHashMap();
+        if (params.containsKey("feature")) {
+            for (String feature : params.get("feature"))
+                addFeature(weights, feature, 1);
+        }
+        for (String line : body.split("\n")) {
+            if (line.trim().isEmpty())
+                continue;
+            final String[] fields = line.split("\t");
+            if (fields.length > 2)
+                throw new IllegalArgumentException("Malformed feature line: " + line);
+            try {
+                addFeature(weights, fields[0],
+                           fields.length == 2 ? Double.parseDouble(fields[1].trim()) : 1);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Malformed feature weight: " + line);
+            }
+        }
+
+        final int[] keys = weights.keySet().toIntArray();
+        Arrays.sort(keys);
+        final double[] values = new double[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            values[i] = weights.get(keys[i]);
+        final SparseDoubleVector query = new SparseDoubleVector(
+                keys, values, vectors.getCardinality(), keys.length);
+
+        final StringBuilder sb = new StringBuilder();
+        for (Weighted<Token> neighbour : vectors.getNeighbours(query, n)) {
+            sb.append(entries.valueOf(neighbour.record().id())).append('\t').
+                    append(neighbour.weight()).append('\n');
+        }
+        return Response.ok(sb.toString());
+    }
+
+    private void addFeature(Int2DoubleMap weights, String feature, double weight) {
+        final int featureId = features.indexOf(feature);
+        if (featureId != -1)
+            weights.put(featureId, weights.get(featureId) + weight);
+    }
+
+    private Response answerStats() {
+        final double uptime = (System.nanoTime() - startTime) * 1e-9;
+        final StringBuilder sb = new StringBuilder();
+        sb.append("uptime_seconds\t").append(uptime).append('\n');
+        sb.append("endpoint\trequests\tcache_hits\terrors\tmean_millis\tmax_millis\tthroughput_per_second\n");
+        for (Map.Entry<String, EndpointStats> e : stats.entrySet()) {
+            final EndpointStats s = e.getValue();
+            final long requests = s.requests.get();
+            sb.append(e.getKey()).append('\t').
+                    append(requests).append('\t').
+                    append(s.cacheHits.get()).append('\t').
+                    append(s.errors.get()).append('\t').
+                    append(requests == 0 ? 0 : s.totalNanos.get() * 1e-6 / requests).append('\t').
+                    append(s.maxNanos.get() * 1e-6).append('\t').
+                    append(requests / uptime).append('\n');
+        }
+        return Response.ok(sb.toString());
+    }
+
+    private int getK(Map<String, List<String>> params) {
+        if (!params.containsKey("k"))
+            return getK();
+        final String value = getParameter(params, "k");
+        final int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Malformed parameter k: " + value);
+        }
+        if (n < 1)
+            throw new IllegalArgumentException("Parameter k must be at least 1");
+        return n;
+    }
+
+    private static String getParameter(Map<String, List<String>> params, String name) {
+        final List<String> values = params.get(name);
+        if (values == null || values.size() != 1)
+            throw new IllegalArgumentException(
+                    "Exactly one value is required for parameter " + name);
+        return values.get(0);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query)
+            throws IOException {
+        if (query == null || query.isEmpty())
+            return Collections.emptyMap();
+        final Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+        for (String field : query.split("&")) {
+            if (field.isEmpty())
+                continue;
+            final int eq = field.indexOf('=');
+            final String name = URLDecoder.decode(
+                    eq == -1 ? field : field.substring(0, eq), UTF8.name());
+            final String value = eq == -1 ? ""
+                                 : URLDecoder.decode(field.substring(eq + 1), UTF8.name());
+            if (!params.containsKey(name))
+                params.put(name, new ArrayList<String>(1));
+            params.get(name).add(value);
+        }
+        return params;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    /**
+     * Computes the answer to a request of one end point.
+     */
+    private interface Endpoint {
+
+        /**
+         * @param params decoded query parameters
+         * @param body   request body, which is empty for GET requests
+         * @return the answer
+         * @throws IllegalArgumentException if the request is malformed
+         */
+        Response answer(Map<String, List<String>> params, String body);
+
+    }
+
+    /**
+     * Adapts an end point to the HTTP server: decoding the request, checking
+     * the cache, writing the response, and recording the statistics.
+     */
+    private final class EndpointHandler implements HttpHandler {
+
+        private final Endpoint endpoint;
+
+        private final EndpointStats endpointStats;
+
+        private final boolean cached;
+
+        EndpointHandler(Endpoint endpoint, EndpointStats endpointStats,
+                        boolean cached) {
+            this.endpoint = endpoint;
+            this.endpointStats = endpointStats;
+            this.cached = cached;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            final long start = System.nanoTime();
+            Response response;
+            try {
+                final String method = exchange.getRequestMethod();
+                if (!method.equals("GET") && !method.equals("POST")) {
+                    response = new Response(405, "Unsupported method: " + method + "\n");
+                } else {
+                    final String query = exchange.getRequestURI().getRawQuery();
+                    final String body = readBody(exchange.getRequestBody());
+                    final String key = exchange.getRequestURI().getPath()
+                            + '?' + query + '\n' + body;
+                    response = cached && cacheSize > 0 ? cache.getIfPresent(key) : null;
+                    if (response != null) {
+                        endpointStats.cacheHits.incrementAndGet();
+                    } else {
+                        response = endpoint.answer(parseQuery(query), body);
+                        if (cached && cacheSize > 0 && response.status == 200)
+                            cache.put(key, response);
+                    }
+                }
+            } catch (IllegalArgumentException ex) {
+                response = new Response(400, ex.getMessage() + "\n");
+            } catch (RuntimeException ex) {
+                LOG.error("Failed to answer request " + exchange.getRequestURI(), ex);
+                response = new Response(500, "Internal error\n");
+            }
+
+            try {
+                exchange.getResponseHeaders().set(
+                        "Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(response.status, response.body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(response.body);
+                out.close();
+            } finally {
+                exchange.close();
+                endpointStats.record(System.nanoTime() - start, response.status);
+            }
+        }
+
+    }
+
+    /**
+     * Immutable, encoded, answer to a request.
+     */
+    private static final class Response {
+
+        private final int status;
+
+        private final byte[] body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body.getBytes(UTF8);
+        }
+
+        static Response ok(String body) {
+            return new Response(200, body);
+        }
+
+        static Response notFound(String message) {
+            return new Response(404, message + "\n");
+        }
+
+    }
+
+    /**
+     * Thread safe tally of the requests to one end point.
+     */
+    private static final class EndpointStats {
+
+        private final AtomicLong requests = new AtomicLong(0);
+
+        private final AtomicLong cacheHits = new AtomicLong(0);
+
+        private final AtomicLong errors = new AtomicLong(0);
+
+        private final AtomicLong totalNanos = new AtomicLong(0);
+
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        void record(long nanos, int status) {
+            requests.incrementAndGet();
+            if (status >= 400)
+                errors.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+                max = maxNanos.get();
+        }
+
+    }
+
+    /**
+     * Read-only view of an enumerator, that never enumerates unknown strings.
+     * The maps of a memory based enumerator are not modified while serving,
+     * so are read by every request thread without a lock. A JDBM enumerator
+     * updates its record cache on every read, so its reads are serialised;
+     * though answers that are cached never reach it.
+     */
+    private static final class StringLookup {
+
+        private final Enumerator<String> enumerator;
+
+        private final Map<Integer, String> values;
+
+        private final Map<String, Integer> ids;
+
+        private final Object lock;
+
+        StringLookup(Enumerator<String> enumerator) {
+            this.enumerator = enumerator;
+            if (enumerator instanceof BiMapEnumerator) {
+                final BiMap<Integer, String> map =
+                        ((BiMapEnumerator<String>) enumerator).getMap();
+                values = map;
+                ids = map.inverse();
+            } else {
+                values = null;
+                ids = null;
+            }
+            lock = enumerator instanceof JDBMStringEnumerator ? enumerator : null;
+        }
+
+        /**
+         * @return the id of the string, or -1 if it has not been enumerated
+         */
+        int indexOf(String value) {
+            if (lock == null)
+                return find(value);
+            synchronized (lock) {
+                return find(value);
+            }
+        }
+
+        String valueOf(int id) {
+            if (lock == null)
+                return name(id);
+            synchronized (lock) {
+                return name(id);
+            }
+        }
+
+        private int find(String value) {
+            if (ids == null)
+                return enumerator.indexOf(value);
+            final Integer id = ids.get(value);
+            return id == null ? -1 : id;
+        }
+
+        private String name(int id) {
+            return values == null ? enumerator.valueOf(id) : values.get(id);
+        }
+
+    }
+
+    public final File getNeighboursFile() {
+        return neighboursFile;
+    }
+
+    public final void setNeighboursFile(File neighboursFile) {
+        Checks.checkNotNull("neighboursFile", neighboursFile);
+        this.neighboursFile = neighboursFile;
+    }
+
+    public final File getEventsFile() {
+        return eventsFile;
+    }
+
+    public final void setEventsFile(File eventsFile) {
+        Checks.checkNotNull("eventsFile", eventsFile);
+        this.eventsFile = eventsFile;
+    }
+
+    public final File getFeaturesFile() {
+        return featuresFile;
+    }
+
+    public final void setFeaturesFile(File featuresFile) {
+        Checks.checkNotNull("featuresFile", featuresFile);
+        this.featuresFile = featuresFile;
+    }
+
+    public final String getMeasureName() {
+        return measureName;
+    }
+
+    public final void setMeasureName(String measureName) {
+        Checks.checkNotNull("measureName", measureName);
+        this.measureName = measureName;
+    }
+
+    public final boolean isMeasureReversed() {
+        return measureReversed;
+    }
+
+    public final void setMeasureReversed(boolean measureReversed) {
+        this.measureReversed = measureReversed;
+    }
+
+    public final String getHost() {
+        return host;
+    }
+
+    public final void setHost(String host) {
+        Checks.checkNotNull("host", host);
+        this.host = host;
+    }
+
+    public final int getPort() {
+        return port;
+    }
+
+    public final void setPort(int port) {
+        Checks.checkRangeIncl("port", port, 0, 65535);
+        this.port = port;
+    }
+
+    public final int getNumThreads() {
+        return numThreads;
+    }
+
+    public final void setNumThreads(int nThreads) {
+        Checks.checkRangeIncl("nThreads", nThreads, 1, Integer.MAX_VALUE);
+        this.numThreads = nThreads;
+    }
+
+    public final int getCacheSize() {
+        return cacheSize;
+    }
+
+    public final void setCacheSize(int cacheSize) {
+        Checks.checkRangeIncl("cacheSize", cacheSize, 0, Integer.MAX_VALUE);
+        this.cacheSize = cacheSize;
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k < 1");
+        this.k = k;
+    }
+
+    public final boolean isNagleEnabled() {
+        return nagleEnabled;
+    }
+
+    public final void setNagleEnabled(boolean nagleEnabled) {
+        this.nagleEnabled = nagleEnabled;
+    }
+
+    public final Charset getCharset() {
+        return fileDelegate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        Checks.checkNotNull("charset", charset);
+        this.fileDelegate.setCharset(charset);
+    }
+
+    public final DoubleEnumerating getIndexDelegate() {
+        return indexDelegate;
+    }
+
+    public final void setIndexDelegate(DoubleEnumerating indexDelegate) {
+        Checks.checkNotNull("indexDelegate", indexDelegate);
+        this.indexDelegate = indexDelegate;
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("neighboursIn", getNeighboursFile()).
+                add("eventsIn", getEventsFile()).
+                add("featuresIn", getFeaturesFile()).
+                add("charset", getCharset()).
+                add("measure", getMeasureName()).
+                add("measureReversed", isMeasureReversed()).
+                add("host", getHost()).
+                add("port", getPort()).
+                add("threads", getNumThreads()).
+                add("cacheSize", getCacheSize()).
+                add("k", getK()).
+                add("nagleEnabled", isNagleEnabled());
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.ForwardingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Sink that hands objects over to a dedicated writer thread, which writes them
+ * to the inner sink. Producers only contend for a short hand-over, rather than
+ * for the whole cost of formatting and writing their output, so many threads
+ * can share one sink without serialising on it.
+ *
+ * <p>Objects are passed to the writer in batches: either whole lists, from
+ * {@link #writeAll(List) }, or runs of single objects accumulated by
+ * {@link #write(Object) }. The order of objects within a batch is preserved.
+ * Only a bounded number of batches may be waiting at any time, after which
+ * producers block until the writer catches up.</p>
+ *
+ * <p>When the inner sink is a {@link BatchFormatter}, each batch is also
+ * formatted as text by the producer that hands it over, so formatting is done
+ * by the producers in parallel and the writer thread only writes the text.
+ * Otherwise the writer thread does all of the formatting and writing.</p>
+ *
+ * <p>Any failure of the inner sink is rethrown to the next producer that
+ * writes, flushes, or closes this sink.</p>
+ *
+ * @param <T> type of object being written
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class AsyncObjectSink<T> extends ForwardingObjectSink<ObjectSink<T>, T> {
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    /**
+     * Inner sink that can format batches of objects independently of each
+     * other, so that they can be formatted by several producers at once.
+     *
+     * @param <T> type of object being written
+     */
+    public interface BatchFormatter<T> extends ObjectSink<T> {
+
+        /**
+         * Format the objects as they would be written by
+         * {@link #write(Object) }. The result must not depend on any
+         * other batch, and this method may be called by several threads at
+         * once.
+         *
+         * @param batch objects to format
+         * @return the formatted objects
+         * @throws IOException if the objects can not be formatted
+         */
+        CharSequence format(List<? extends T> batch) throws IOException;
+
+        /**
+         * Write text produced by {@link #format(List) }. Only called by one
+         * thread at a time.
+         *
+         * @param text formatted objects
+         * @throws IOException if the text can not be written
+         */
+        void writeFormatted(CharSequence text) throws IOException;
+
+    }
+
+    /**
+     * Marker placed on the queue to stop the writer thread.
+     */
+    private final Batch<T> endOfQueue = new Batch<T>(Collections.<T>emptyList(), null);
+
+    private final int batchSize;
+
+    /**
+     * The inner sink, if it formats batches; otherwise null.
+     */
+    private final BatchFormatter<T> formatter;
+
+    private final BlockingQueue<Batch<T>> queue;
+
+    private final Thread writer;
+
+    /**
+     * Single objects that have been written, but not yet handed to the writer.
+     * Guarded by this.
+     */
+    private List<T> pending;
+
+    /**
+     * Number of batches handed to the writer that it has not yet finished
+     * writing. Guarded by queue.
+     */
+    private int outstanding = 0;
+
+    private volatile boolean closed = false;
+
+    private volatile Throwable failure = null;
+
+    public AsyncObjectSink(ObjectSink<T> inner, int batchSize, int queueCapacity) {
+        super(inner);
+        Checks.checkNotNull("inner", inner);
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize < 1");
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity < 1");
+        this.batchSize = batchSize;
+        this.formatter = inner instanceof BatchFormatter
+                         ? (BatchFormatter<T>) inner : null;
+        this.queue = new ArrayBlockingQueue<Batch<T>>(queueCapacity);
+        this.pending = new ArrayList<T>();
+        this.writer = new Thread(new Writer(), "AsyncObjectSink-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public AsyncObjectSink(ObjectSink<T> inner) {
+        this(inner, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public void write(T o) throws IOException {
+        List<T> batch = null;
+        synchronized (this) {
+            checkOpen();
+            pending.add(o);
+            if (pending.size() >= batchSize) {
+                batch = pending;
+                pending = new ArrayList<T>();
+            }
+        }
+        if (batch != null)
+            enqueue(batch);
+    }
+
+    /**
+     * Hand a whole list of objects to the writer, to be written consecutively.
+     * The list is copied, so the caller is free to reuse it on return.
+     *
+     * @param objects objects to write
+     * @throws IOException if the inner sink has previously failed
+     */
+    public void writeAll(List<? extends T> objects) throws IOException {
+        Checks.checkNotNull("objects", objects);
+        checkOpen();
+        if (!objects.isEmpty())
+            enqueue(new ArrayList<T>(objects));
+    }
+
+    /**
+     * Wait until every object written so far has been written to the inner
+     * sink, then flush it.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        flushPending();
+        awaitWriter();
+        super.flush();
+    }
+
+    /**
+     * Write out all outstanding objects, stop the writer thread, and close the
+     * inner sink.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        flushPending();
+        awaitWriter();
+        closed = true;
+        try {
+            queue.put(endOfQueue);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+        super.flush();
+        super.close();
+    }
+
+    private void flushPending() throws IOException {
+        final List<T> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<T>();
+        }
+        if (!batch.isEmpty())
+            enqueue(batch);
+    }
+
+    private void enqueue(List<T> objects) throws IOException {
+        checkFailure();
+        // Formatting is done by the producer, before the batch is queued
+        final Batch<T> batch = formatter != null
+                               ? new Batch<T>(null, formatter.format(objects))
+                               : new Batch<T>(objects, null);
+        synchronized (queue) {
+            ++outstanding;
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException ex) {
+            synchronized (queue) {
+                --outstanding;
+                queue.notifyAll();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    private void awaitWriter() throws IOException {
+        synchronized (queue) {
+            while (outstanding > 0) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(ex.getMessage());
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IllegalStateException("sink is closed");
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable t = failure;
+        if (t == null)
+            return;
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        throw new IOException(t);
+    }
+
+    private final class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                final Batch<T> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException ex) {
+                    failure = ex;
+                    continue;
+                }
+                if (batch == endOfQueue)
+                    return;
+                try {
+                    // Once the inner sink has failed, remaining batches are
+                    // discarded so that producers are not blocked.
+                    if (failure == null) {
+                        if (batch.text != null) {
+                            formatter.writeFormatted(batch.text);
+                        } else {
+                            for (T o : batch.objects)
+                                getInner().write(o);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    synchronized (queue) {
+                        --outstanding;
+                        queue.notifyAll();
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Objects handed to the writer; either the objects themselves, or their
+     * formatted text.
+     */
+    private static final class Batch<T> {
+
+        final List<T> objects;
+
+        final CharSequence text;
+
+        Batch(List<T> objects, CharSequence text) {
+            this.objects = objects;
+            this.text = text;
+        }
+
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * Read-only thesaurus held in a compact binary file, which is memory-mapped
+ * rather than read; so opening one costs next to nothing, however large it
+ * is, and the pages holding an entry are only loaded when it is looked up.
+ *
+ * <p>The file (big-endian throughout) holds a fixed header, then an offset
+ * index with one int for every entry id, then a block for each entry that
+ * has neighbours. The block of entry e starts {@code offset[e]} bytes into
+ * the blocks, and ends where that of entry e + 1 starts; so finding it is a
+ * constant time lookup. Each block holds the smallest finite weight of the
+ * entry, and the difference between quantisation levels (8 bytes each), then
+ * the neighbour ids (4 bytes each), then the quantised weights (2 bytes
+ * each).</p>
+ *
+ * <p>Weights are quantised linearly over the range of finite weights of each
+ * entry, so one very large weight only coarsens the weights of its own
+ * entry. Quantisation keeps the order of the weights, and the error is no
+ * more than half of {@link #getWeightResolution(int) }. The top three levels
+ * are reserved for positive and negative infinity, and NaN, which are stored
+ * exactly.</p>
+ *
+ * <p>Only ids are stored; strings are looked up in the entry enumerator of
+ * the thesaurus. The file is mapped as a single buffer, so it can be no
+ * larger than 2GB.</p>
+ *
+ * <p>Instances may be shared between threads.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MappedThesaurus implements Thesaurus, Closeable {
+
+    /**
+     * First four bytes of every file; "BYNB" in ASCII.
+     */
+    public static final int MAGIC = 0x42594E42;
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+
+    private static final int BLOCK_HEADER_BYTES = 16;
+
+    private static final int BYTES_PER_NEIGHBOUR = 6;
+
+    private static final int POSITIVE_INFINITY_LEVEL = 0xFFFF;
+
+    private static final int NEGATIVE_INFINITY_LEVEL = 0xFFFE;
+
+    private static final int NAN_LEVEL = 0xFFFD;
+
+    /**
+     * Greatest level used for finite weights.
+     */
+    private static final int MAX_FINITE_LEVEL = 0xFFFC;
+
+    private RandomAccessFile file;
+
+    private final ByteBuffer buffer;
+
+    private final int idLimit;
+
+    private final int entryCount;
+
+    private final long neighbourCount;
+
+    private final int dataStart;
+
+    private MappedThesaurus(RandomAccessFile file, ByteBuffer buffer)
+            throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a binary thesaurus file.");
+        final int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(MessageFormat.format(
+                    "Unsupported binary thesaurus version {0}; expecting {1}.",
+                    version, VERSION));
+        }
+        idLimit = buffer.getInt(8);
+        entryCount = buffer.getInt(12);
+        neighbourCount = buffer.getLong(16);
+        dataStart = HEADER_BYTES + 4 * (idLimit + 1);
+        if (idLimit < 0 || (long) dataStart
+                + (long) BLOCK_HEADER_BYTES * entryCount
+                + BYTES_PER_NEIGHBOUR * neighbourCount != buffer.capacity())
+            throw new IOException("Binary thesaurus file is truncated or corrupt.");
+    }
+
+    /**
+     * Map the given binary thesaurus file into memory.
+     *
+     * @param file binary thesaurus file, written by {@link #write }
+     * @return the mapped thesaurus; which should be closed when done with
+     * @throws IOException if the file could not be mapped, or is not a binary
+     *                     thesaurus file
+     */
+    public static MappedThesaurus open(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(MessageFormat.format(
+                        "Binary thesaurus file {0} is larger than 2GB.", file));
+            }
+            final ByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedThesaurus(raf, buffer);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param file file to check
+     * @return whether the file starts with the binary thesaurus magic number
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isBinaryThesaurus(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        if (file.length() < HEADER_BYTES)
+            return false;
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the given table to a binary thesaurus file.
+     *
+     * @param table neighbours to write
+     * @param file  destination file
+     * @throws IOException if the file could not be written
+     */
+    public static void write(NeighboursTable table, File file)
+            throws IOException {
+        Checks.checkNotNull("table", table);
+        Checks.checkNotNull("file", file);
+        final int idLimit = table.getIdLimit();
+        if ((long) HEADER_BYTES + 4L * (idLimit + 1)
+                + (long) BLOCK_HEADER_BYTES * table.getEntryCount()
+                + BYTES_PER_NEIGHBOUR * table.getNeighbourCount()
+                > Integer.MAX_VALUE)
+            throw new IOException("Thesaurus is too large for a binary thesaurus file.");
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(idLimit);
+            out.writeInt(table.getEntryCount());
+            out.writeLong(table.getNeighbourCount());
+
+            int offset = 0;
+            for (int e = 0; e < idLimit; e++) {
+                out.writeInt(offset);
+                final int count = table.getNeighbourCount(e);
+                if (count > 0)
+                    offset += BLOCK_HEADER_BYTES + BYTES_PER_NEIGHBOUR * count;
+            }
+            out.writeInt(offset);
+
+            for (int e = 0; e < idLimit; e++) {
+                if (table.contains(e))
+                    writeBlock(out, table.getNeighbours(e, Integer.MAX_VALUE));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out,
+                                   List<Weighted<Token>> neighbours)
+            throws IOException {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Weighted<Token> neighbour : neighbours) {
+            if (!Double.isNaN(neighbour.weight())
+                    && !Double.isInfinite(neighbour.weight())) {
+                min = Math.min(min, neighbour.weight());
+                max = Math.max(max, neighbour.weight());
+            }
+        }
+        if (min > max)
+            min = max = 0;
+        final double resolution = (max - min) / MAX_FINITE_LEVEL;
+
+        out.writeDouble(min);
+        out.writeDouble(resolution);
+        for (Weighted<Token> neighbour : neighbours)
+            out.writeInt(neighbour.record().id());
+        for (Weighted<Token> neighbour : neighbours) {
+            final double weight = neighbour.weight();
+            final int level;
+            if (Double.isNaN(weight))
+                level = NAN_LEVEL;
+            else if (weight == Double.POSITIVE_INFINITY)
+                level = POSITIVE_INFINITY_LEVEL;
+            else if (weight == Double.NEGATIVE_INFINITY)
+                level = NEGATIVE_INFINITY_LEVEL;
+            else if (resolution == 0)
+                level = 0;
+            else
+                level = (int) Math.min(MAX_FINITE_LEVEL,
+                                       Math.round((weight - min) / resolution));
+            out.writeShort(level);
+        }
+    }
+
+    /**
+     * @param entryId id of the base entry
+     * @return the difference in weight between consecutive quantisation
+     *         levels of the entry; its finite weights are stored to within
+     *         half of this. Zero if the entry has no neighbours, or all its
+     *         finite weights are equal.
+     */
+    public double getWeightResolution(int entryId) {
+        if (!contains(entryId))
+            return 0;
+        return buffer.getDouble(blockStart(entryId) + 8);
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public long getNeighbourCount() {
+        return neighbourCount;
+    }
+
+    @Override
+    public int getNeighbourCount(int entryId) {
+        if (entryId < 0 || entryId >= idLimit)
+            return 0;
+        final int bytes = offset(entryId + 1) - offset(entryId);
+        return bytes == 0 ? 0 : (bytes - BLOCK_HEADER_BYTES) / BYTES_PER_NEIGHBOUR;
+    }
+
+    @Override
+    public boolean contains(int entryId) {
+        return getNeighbourCount(entryId) > 0;
+    }
+
+    @Override
+    public List<Weighted<Token>> getNeighbours(int entryId, int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        final int count = getNeighbourCount(entryId);
+        final int size = Math.min(k, count);
+        if (size == 0)
+            return Collections.emptyList();
+        final int start = blockStart(entryId);
+        final double min = buffer.getDouble(start);
+        final double resolution = buffer.getDouble(start + 8);
+        final int idsStart = start + BLOCK_HEADER_BYTES;
+        final int levelsStart = idsStart + 4 * count;
+        final List<Weighted<Token>> neighbours =
+                new ArrayList<Weighted<Token>>(size);
+        for (int i = 0; i < size; i++) {
+            neighbours.add(new Weighted<Token>(
+                    new Token(buffer.getInt(idsStart + 4 * i)),
+                    weight(buffer.getShort(levelsStart + 2 * i) & 0xFFFF,
+                           min, resolution)));
+        }
+        return neighbours;
+    }
+
+    @Override
+    public double getSimilarity(int entryId, int otherId) {
+        final int count = getNeighbourCount(entryId);
+        if (count == 0)
+            return Double.NaN;
+        final int start = blockStart(entryId);
+        final int idsStart = start + BLOCK_HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(idsStart + 4 * i) == otherId) {
+                return weight(
+                        buffer.getShort(idsStart + 4 * count + 2 * i) & 0xFFFF,
+                        buffer.getDouble(start), buffer.getDouble(start + 8));
+            }
+        }
+        return Double.NaN;
+    }
+
+    private int offset(int entryId) {
+        return buffer.getInt(HEADER_BYTES + 4 * entryId);
+    }
+
+    private int blockStart(int entryId) {
+        return dataStart + offset(entryId);
+    }
+
+    private static double weight(int level, double min, double resolution) {
+        switch (level) {
+            case POSITIVE_INFINITY_LEVEL:
+                return Double.POSITIVE_INFINITY;
+            case NEGATIVE_INFINITY_LEVEL:
+                return Double.NEGATIVE_INFINITY;
+            case NAN_LEVEL:
+                return Double.NaN;
+            default:
+                return min + resolution * level;
+        }
+    }
+
+    /**
+     * Close the underlying file. The mapping itself is released when this
+     * object is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedThesaurus{entries=" + getEntryCount()
+                + ", neighbours=" + getNeighbourCount() + "}";
+    }
+
+}
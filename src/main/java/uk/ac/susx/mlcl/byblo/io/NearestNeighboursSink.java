@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import uk.ac.susx.mlcl.lib.io.ForwardingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Sink that retains only the k nearest neighbours of each entry, out of all the
+ * pairs written to it. Pairs are held in a bounded min-heap per base entry (the
+ * first token of the pair) until the sink is closed, at which point the
+ * neighbours are written to the inner sink; ordered by base entry, and then by
+ * descending weight. This is the same output as that produced by the k-nearest
+ * neighbours commands, without the need to store and sort every pair.
+ *
+ * <p>Ties in weight are broken in favour of the neighbour with the lowest id, so
+ * the output is independent of the order in which pairs are written.</p>
+ *
+ * <p>Writing is thread safe, so a single instance can collect the output of
+ * several concurrent all-pairs tasks. The current k<sup>th</sup> best weight of
+ * each entry is available from {@link #getThreshold(int) }, and can be used by
+ * producers to avoid writing pairs that will be discarded.</p>
+ *
+ * <p>The heaps are held in an array indexed by entry id, which grows to the
+ * largest id written; entry ids are expected to be dense, as produced by an
+ * enumerator. Thresholds are read without locking, and a write locks only the
+ * heap of its base entry, so concurrent producers rarely wait for each
+ * other.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class NearestNeighboursSink
+        extends ForwardingObjectSink<ObjectSink<Weighted<TokenPair>>, Weighted<TokenPair>> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int k;
+
+    /**
+     * Heap of each entry, indexed by entry id; null for entries that have no
+     * pairs yet. Replaced by a larger copy when an id beyond the end is
+     * written, so it must only be grown or filled while holding
+     * {@link #lock}.
+     */
+    private volatile AtomicReferenceArray<Heap> heaps;
+
+    private final Object lock = new Object();
+
+    private volatile boolean closed = false;
+
+    public NearestNeighboursSink(ObjectSink<Weighted<TokenPair>> inner, int k) {
+        super(inner);
+        if (k < 1)
+            throw new IllegalArgumentException("k < 1");
+        this.k = k;
+        this.heaps = new AtomicReferenceArray<Heap>(0);
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    /**
+     * Get the weight a new pair for the given base entry must equal or exceed
+     * to have any chance of being retained. Until k neighbours have been found this is
+     * negative infinity. The threshold never decreases, so producers may use
+     * a stale value safely.
+     *
+     * @param entryId id of the base entry
+     * @return current k<sup>th</sup> best weight of the entry
+     */
+    public double getThreshold(int entryId) {
+        final Heap heap = getHeap(entryId);
+        return heap == null ? Double.NEGATIVE_INFINITY : heap.threshold;
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> pair) throws IOException {
+        if (closed)
+            throw new IllegalStateException("sink is closed");
+        final int entryId = pair.record().id1();
+        Heap heap = getHeap(entryId);
+        if (heap == null)
+            heap = newHeap(entryId);
+        synchronized (heap) {
+            heap.offer(pair.record().id2(), pair.weight());
+        }
+    }
+
+    /**
+     * @return heap of the entry, or null if it has not been created; may be
+     *         null for a heap created concurrently
+     */
+    private Heap getHeap(int entryId) {
+        final AtomicReferenceArray<Heap> table = heaps;
+        return entryId >= 0 && entryId < table.length()
+               ? table.get(entryId) : null;
+    }
+
+    /**
+     * Create the heap of the entry, growing the table if necessary, unless
+     * another thread has already done so.
+     */
+    private Heap newHeap(int entryId) {
+        if (entryId < 0)
+            throw new IllegalArgumentException("negative entry id: " + entryId);
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("sink is closed");
+            AtomicReferenceArray<Heap> table = heaps;
+            if (entryId >= table.length()) {
+                final int length = (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(entryId + 1L, 2L * table.length()));
+                final AtomicReferenceArray<Heap> grown =
+                        new AtomicReferenceArray<Heap>(length);
+                for (int i = 0; i < table.length(); i++)
+                    grown.set(i, table.get(i));
+                table = grown;
+                heaps = grown;
+            }
+            Heap heap = table.get(entryId);
+            if (heap == null) {
+                heap = new Heap(k);
+                table.set(entryId, heap);
+            }
+            return heap;
+        }
+    }
+
+    /**
+     * Write the retained neighbours of every entry to the inner sink, then
+     * close it. No further pairs may be written.
+     */
+    @Override
+    public void close() throws IOException {
+        final AtomicReferenceArray<Heap> table;
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+            table = heaps;
+        }
+        for (int entryId = 0; entryId < table.length(); entryId++) {
+            final Heap heap = table.get(entryId);
+            if (heap == null)
+                continue;
+            synchronized (heap) {
+                heap.sortDescending();
+                for (int i = 0; i < heap.size; i++) {
+                    super.write(new Weighted<TokenPair>(
+                            new TokenPair(entryId, heap.ids[i]),
+                            heap.weights[i]));
+                }
+            }
+        }
+        heaps = new AtomicReferenceArray<Heap>(0);
+        super.flush();
+        super.close();
+    }
+
+    /**
+     * Bounded binary min-heap of (neighbour id, weight) pairs, ordered such
+     * that the root is the worst retained neighbour.
+     */
+    private static final class Heap {
+
+        private final int capacity;
+
+        private int[] ids;
+
+        private double[] weights;
+
+        private int size;
+
+        /**
+         * Weight of the root when the heap is full; negative infinity
+         * otherwise. Volatile so it can be read without locking.
+         */
+        private volatile double threshold;
+
+        Heap(int capacity) {
+            // Start small, because many entries will have few neighbours
+            this.capacity = capacity;
+            ids = new int[Math.min(capacity, INITIAL_CAPACITY)];
+            weights = new double[ids.length];
+            size = 0;
+            threshold = Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Whether or not neighbour i is worse than neighbour j: it has a lower
+         * weight, or the same weight but a higher id.
+         */
+        private boolean worse(int i, int j) {
+            return weights[i] < weights[j]
+                    || (weights[i] == weights[j] && ids[i] > ids[j]);
+        }
+
+        void offer(int id, double weight) {
+            if (size < capacity) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.min(capacity, 2 * size));
+                    weights = Arrays.copyOf(weights, ids.length);
+                }
+                ids[size] = id;
+                weights[size] = weight;
+                siftUp(size);
+                ++size;
+                if (size == capacity)
+                    threshold = weights[0];
+            } else if (weight > weights[0]
+                    || (weight == weights[0] && id < ids[0])) {
+                ids[0] = id;
+                weights[0] = weight;
+                siftDown(0, size);
+                threshold = weights[0];
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!worse(i, parent))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int n) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= n)
+                    break;
+                int worst = left;
+                if (left + 1 < n && worse(left + 1, left))
+                    worst = left + 1;
+                if (!worse(worst, i))
+                    break;
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            final double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+
+        /**
+         * Heap-sort in place, so the best neighbour comes first. The heap
+         * property is destroyed.
+         */
+        void sortDescending() {
+            for (int n = size - 1; n > 0; n--) {
+                swap(0, n);
+                siftDown(0, n);
+            }
+        }
+
+    }
+
+}
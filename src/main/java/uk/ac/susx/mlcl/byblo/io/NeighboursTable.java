@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+/**
+ * Read-only, in memory, table of the nearest neighbours of every entry in a
+ * thesaurus. The lists are stored in compressed-sparse-row form: the
+ * neighbours of every entry are held contiguously in an int array of ids, and
+ * a double array of weights; so the table costs 12 bytes per neighbour,
+ * rather than the several dozen needed for boxed pairs, or strings.
+ *
+ * <p>Entry ids are assumed to be densely enumerated, so the row offsets are
+ * stored in an array that spans the range of base entry ids. The neighbours
+ * of each entry are kept in the order they were read; which, for the output
+ * of the k-nearest-neighbours commands, is descending weight.</p>
+ *
+ * <p>Instances are immutable once read, and so may be shared between
+ * threads.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class NeighboursTable implements Thesaurus {
+
+    /**
+     * Neighbours of entry e are stored in {@code ids[offsets[e]]} up to (but
+     * not including) {@code ids[offsets[e + 1]]}.
+     */
+    private final int[] offsets;
+
+    private final int[] ids;
+
+    private final double[] weights;
+
+    private final int entryCount;
+
+    private NeighboursTable(int[] offsets, int[] ids, double[] weights,
+                            int entryCount) {
+        this.offsets = offsets;
+        this.ids = ids;
+        this.weights = weights;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Read all the pairs of the given source into a table. The pairs must be
+     * grouped by base entry (the first token of the pair), as they are in a
+     * neighbours file, though the groups may be in any order.
+     *
+     * @param source pairs to read
+     * @return the table
+     * @throws IOException           if the source could not be read
+     * @throws IllegalStateException if the pairs are not grouped by base
+     *                               entry
+     */
+    public static NeighboursTable read(ObjectSource<Weighted<TokenPair>> source)
+            throws IOException {
+        Checks.checkNotNull("source", source);
+
+        // Read the groups in file order, then rearrange them by base id
+        final IntArrayList bases = new IntArrayList();
+        final IntArrayList starts = new IntArrayList();
+        final IntArrayList readIds = new IntArrayList();
+        final DoubleArrayList readWeights = new DoubleArrayList();
+        final BitSet seen = new BitSet();
+        int maxBase = -1;
+        while (source.hasNext()) {
+            final Weighted<TokenPair> pair = source.read();
+            final int base = pair.record().id1();
+            if (bases.isEmpty() || bases.getInt(bases.size() - 1) != base) {
+                if (seen.get(base)) {
+                    throw new IllegalStateException(MessageFormat.format(
+                            "The neighbours of entry {0} are not grouped together.",
+                            base));
+                }
+                seen.set(base);
+                bases.add(base);
+                starts.add(readIds.size());
+                maxBase = Math.max(maxBase, base);
+            }
+            readIds.add(pair.record().id2());
+            readWeights.add(pair.weight());
+        }
+        starts.add(readIds.size());
+
+        final int[] offsets = new int[maxBase + 2];
+        for (int g = 0; g < bases.size(); g++) {
+            offsets[bases.getInt(g) + 1] = starts.getInt(g + 1) - starts.getInt(g);
+        }
+        for (int e = 0; e <= maxBase; e++) {
+            offsets[e + 1] += offsets[e];
+        }
+
+        final int[] ids = new int[readIds.size()];
+        final double[] weights = new double[readIds.size()];
+        for (int g = 0; g < bases.size(); g++) {
+            final int from = starts.getInt(g);
+            final int length = starts.getInt(g + 1) - from;
+            readIds.getElements(from, ids, offsets[bases.getInt(g)], length);
+            readWeights.getElements(from, weights, offsets[bases.getInt(g)], length);
+        }
+        return new NeighboursTable(offsets, ids, weights, bases.size());
+    }
+
+    /**
+     * @return the number of entries that have at least one neighbour
+     */
+    @Override
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the total number of neighbours held by the table
+     */
+    @Override
+    public long getNeighbourCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param entryId id of the base entry
+     * @return the number of neighbours held for the entry
+     */
+    @Override
+    public int getNeighbourCount(int entryId) {
+        if (entryId < 0 || entryId >= offsets.length - 1)
+            return 0;
+        return offsets[entryId + 1] - offsets[entryId];
+    }
+
+    /**
+     * @param entryId id of the base entry
+     * @return whether any neighbours are held for the entry
+     */
+    @Override
+    public boolean contains(int entryId) {
+        return getNeighbourCount(entryId) > 0;
+    }
+
+    /**
+     * Get the first k neighbours of the given entry, in the order they were
+     * read.
+     *
+     * @param entryId id of the base entry
+     * @param k       maximum number of neighbours to return
+     * @return the neighbours of the entry, which is empty if none are held
+     */
+    @Override
+    public List<Weighted<Token>> getNeighbours(int entryId, int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        final int size = Math.min(k, getNeighbourCount(entryId));
+        final List<Weighted<Token>> neighbours =
+                new ArrayList<Weighted<Token>>(size);
+        for (int i = 0; i < size; i++) {
+            final int p = offsets[entryId] + i;
+            neighbours.add(new Weighted<Token>(new Token(ids[p]), weights[p]));
+        }
+        return neighbours;
+    }
+
+    /**
+     * @param entryId id of the base entry
+     * @param otherId id of the neighbour
+     * @return the weight with which the other entry is held as a neighbour of
+     *         the base entry, or NaN if it is not held
+     */
+    @Override
+    public double getSimilarity(int entryId, int otherId) {
+        if (!contains(entryId))
+            return Double.NaN;
+        final int end = offsets[entryId + 1];
+        for (int p = offsets[entryId]; p < end; p++) {
+            if (ids[p] == otherId)
+                return weights[p];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return one more than the greatest base entry id held, or 0 if the
+     *         table is empty
+     */
+    int getIdLimit() {
+        return offsets.length - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "NeighboursTable{entries=" + getEntryCount()
+                + ", neighbours=" + getNeighbourCount() + "}";
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.util.List;
+
+/**
+ * Read-only view of the nearest neighbours of every entry in a thesaurus,
+ * addressed by enumerated entry id. Implementations must be safe for
+ * concurrent readers.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface Thesaurus {
+
+    /**
+     * @return the number of entries that have at least one neighbour
+     */
+    int getEntryCount();
+
+    /**
+     * @return the total number of neighbours held
+     */
+    long getNeighbourCount();
+
+    /**
+     * @param entryId id of the base entry
+     * @return the number of neighbours held for the entry
+     */
+    int getNeighbourCount(int entryId);
+
+    /**
+     * @param entryId id of the base entry
+     * @return whether any neighbours are held for the entry
+     */
+    boolean contains(int entryId);
+
+    /**
+     * Get the first k neighbours of the given entry, in stored order.
+     *
+     * @param entryId id of the base entry
+     * @param k       maximum number of neighbours to return
+     * @return the neighbours of the entry, which is empty if none are held
+     */
+    List<Weighted<Token>> getNeighbours(int entryId, int k);
+
+    /**
+     * @param entryId id of the base entry
+     * @param otherId id of the neighbour
+     * @return the weight with which the other entry is held as a neighbour of
+     *         the base entry, or NaN if it is not held
+     */
+    double getSimilarity(int entryId, int otherId);
+
+}
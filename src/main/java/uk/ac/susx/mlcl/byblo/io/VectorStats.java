@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Summary statistics of a set of feature vectors, such as the filtered events
+ * file. The statistics are stored in a small properties file alongside the
+ * vectors (see {@link #sidecarFor(File)}) so that later stages can size their
+ * work units from the real shape of the data, rather than from a worst-case
+ * guess.
+ * <p/>
+ * The document frequency of every feature (the number of vectors it occurs
+ * in) is also kept. Being one number per feature it is too large for the
+ * properties file, so it is stored in a second, binary, sidecar (see
+ * {@link #documentFrequenciesFor(File)}), which is written and read along with
+ * the first.
+ * <p/>
+ * Instances are immutable; use a {@link Builder} to accumulate statistics
+ * from vectors.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class VectorStats {
+
+    /**
+     * Suffix appended to a vectors file name to produce the name of its
+     * statistics sidecar.
+     */
+    public static final String SIDECAR_SUFFIX = ".stats";
+
+    /**
+     * Suffix appended to a statistics file name to produce the name of the
+     * file holding the per-feature document frequencies.
+     */
+    public static final String DOCUMENT_FREQUENCIES_SUFFIX = ".df";
+
+    private final long vectorCount;
+
+    private final long nonZeroCount;
+
+    private final int maxVectorSize;
+
+    private final int medianVectorSize;
+
+    private final int vectorSizeP90;
+
+    private final int vectorSizeP99;
+
+    private final int featureCount;
+
+    private final int maxFeatureId;
+
+    private final int maxDocumentFrequency;
+
+    private final int medianDocumentFrequency;
+
+    private final int documentFrequencyP90;
+
+    private final int documentFrequencyP99;
+
+    /**
+     * Document frequency of each feature, indexed by feature id; of length
+     * {@code maxFeatureId + 1}.
+     */
+    private final int[] documentFrequencies;
+
+    private VectorStats(long vectorCount, long nonZeroCount,
+                        int maxVectorSize, int medianVectorSize,
+                        int vectorSizeP90, int vectorSizeP99,
+                        int featureCount, int maxFeatureId,
+                        int maxDocumentFrequency, int medianDocumentFrequency,
+                        int documentFrequencyP90, int documentFrequencyP99,
+                        int[] documentFrequencies) {
+        this.vectorCount = vectorCount;
+        this.nonZeroCount = nonZeroCount;
+        this.maxVectorSize = maxVectorSize;
+        this.medianVectorSize = medianVectorSize;
+        this.vectorSizeP90 = vectorSizeP90;
+        this.vectorSizeP99 = vectorSizeP99;
+        this.featureCount = featureCount;
+        this.maxFeatureId = maxFeatureId;
+        this.maxDocumentFrequency = maxDocumentFrequency;
+        this.medianDocumentFrequency = medianDocumentFrequency;
+        this.documentFrequencyP90 = documentFrequencyP90;
+        this.documentFrequencyP99 = documentFrequencyP99;
+        this.documentFrequencies = documentFrequencies;
+    }
+
+    /**
+     * @return number of vectors
+     */
+    public long getVectorCount() {
+        return vectorCount;
+    }
+
+    /**
+     * @return total number of non-zero elements over all vectors
+     */
+    public long getNonZeroCount() {
+        return nonZeroCount;
+    }
+
+    /**
+     * @return mean number of non-zero elements per vector
+     */
+    public double getMeanVectorSize() {
+        return vectorCount == 0 ? 0 : (double) nonZeroCount / vectorCount;
+    }
+
+    /**
+     * @return largest number of non-zero elements in any one vector
+     */
+    public int getMaxVectorSize() {
+        return maxVectorSize;
+    }
+
+    public int getMedianVectorSize() {
+        return medianVectorSize;
+    }
+
+    public int getVectorSizeP90() {
+        return vectorSizeP90;
+    }
+
+    public int getVectorSizeP99() {
+        return vectorSizeP99;
+    }
+
+    /**
+     * @return number of distinct features that occur in at least one vector
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * @return largest feature id that occurs, or -1 if there are no features
+     */
+    public int getMaxFeatureId() {
+        return maxFeatureId;
+    }
+
+    /**
+     * @return largest number of vectors that any one feature occurs in
+     */
+    public int getMaxDocumentFrequency() {
+        return maxDocumentFrequency;
+    }
+
+    public int getMedianDocumentFrequency() {
+        return medianDocumentFrequency;
+    }
+
+    public int getDocumentFrequencyP90() {
+        return documentFrequencyP90;
+    }
+
+    public int getDocumentFrequencyP99() {
+        return documentFrequencyP99;
+    }
+
+    /**
+     * @param featureId id of a feature
+     * @return number of vectors the feature occurs in; 0 for unknown features
+     */
+    public int getDocumentFrequency(int featureId) {
+        return featureId >= 0 && featureId < documentFrequencies.length
+               ? documentFrequencies[featureId] : 0;
+    }
+
+    /**
+     * @param vectorsFile file containing the vectors
+     * @return the statistics sidecar file for the given vectors file
+     */
+    public static File sidecarFor(File vectorsFile) {
+        Checks.checkNotNull("vectorsFile", vectorsFile);
+        return new File(vectorsFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * @param statsFile statistics sidecar file
+     * @return the file holding the document frequencies for the given
+     *         statistics file
+     */
+    public static File documentFrequenciesFor(File statsFile) {
+        Checks.checkNotNull("statsFile", statsFile);
+        return new File(statsFile.getPath() + DOCUMENT_FREQUENCIES_SUFFIX);
+    }
+
+    /**
+     * Read all vectors from the given source, and return their statistics.
+     *
+     * @param source vectors to summarise
+     * @return statistics of every vector in the source
+     * @throws IOException if the source could not be read
+     */
+    public static VectorStats of(
+            ObjectSource<Indexed<SparseDoubleVector>> source)
+            throws IOException {
+        Checks.checkNotNull("source", source);
+        final Builder builder = new Builder();
+        while (source.hasNext()) {
+            builder.add(source.read().value());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Write the statistics to the given file, and the document frequencies to
+     * the file given by {@link #documentFrequenciesFor(File)}.
+     *
+     * @param file statistics sidecar file
+     * @throws IOException if either file could not be written
+     */
+    public void write(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        final Properties props = new Properties();
+        props.setProperty("vectorCount", Long.toString(vectorCount));
+        props.setProperty("nonZeroCount", Long.toString(nonZeroCount));
+        props.setProperty("maxVectorSize", Integer.toString(maxVectorSize));
+        props.setProperty("medianVectorSize", Integer.toString(medianVectorSize));
+        props.setProperty("vectorSizeP90", Integer.toString(vectorSizeP90));
+        props.setProperty("vectorSizeP99", Integer.toString(vectorSizeP99));
+        props.setProperty("featureCount", Integer.toString(featureCount));
+        props.setProperty("maxFeatureId", Integer.toString(maxFeatureId));
+        props.setProperty("maxDocumentFrequency", Integer.toString(maxDocumentFrequency));
+        props.setProperty("medianDocumentFrequency", Integer.toString(medianDocumentFrequency));
+        props.setProperty("documentFrequencyP90", Integer.toString(documentFrequencyP90));
+        props.setProperty("documentFrequencyP99", Integer.toString(documentFrequencyP99));
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            props.store(out, "Byblo vector statistics");
+        } finally {
+            out.close();
+        }
+
+        final DataOutputStream dfOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(
+                        documentFrequenciesFor(file))));
+        try {
+            dfOut.writeInt(documentFrequencies.length);
+            for (int df : documentFrequencies)
+                dfOut.writeInt(df);
+        } finally {
+            dfOut.close();
+        }
+    }
+
+    /**
+     * Read the statistics from the given file, and the document frequencies
+     * from the file given by {@link #documentFrequenciesFor(File)}.
+     *
+     * @param file statistics sidecar file
+     * @return the statistics
+     * @throws IOException if either file is missing or malformed
+     */
+    public static VectorStats read(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        final Properties props = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        final int maxFeatureId = getInt(props, "maxFeatureId");
+        final int[] documentFrequencies = readDocumentFrequencies(
+                documentFrequenciesFor(file), maxFeatureId + 1);
+        return new VectorStats(
+                getLong(props, "vectorCount"),
+                getLong(props, "nonZeroCount"),
+                getInt(props, "maxVectorSize"),
+                getInt(props, "medianVectorSize"),
+                getInt(props, "vectorSizeP90"),
+                getInt(props, "vectorSizeP99"),
+                getInt(props, "featureCount"),
+                maxFeatureId,
+                getInt(props, "maxDocumentFrequency"),
+                getInt(props, "medianDocumentFrequency"),
+                getInt(props, "documentFrequencyP90"),
+                getInt(props, "documentFrequencyP99"),
+                documentFrequencies);
+    }
+
+    private static int[] readDocumentFrequencies(File file, int expectedLength)
+            throws IOException {
+        if (!file.exists())
+            throw new IOException("Missing document frequencies file: " + file);
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final int length = in.readInt();
+            if (length != expectedLength)
+                throw new IOException(
+                        "Document frequencies file " + file + " has " + length
+                        + " features, but the statistics expect " + expectedLength);
+            final int[] dfs = new int[length];
+            for (int i = 0; i < length; i++)
+                dfs[i] = in.readInt();
+            return dfs;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long getLong(Properties props, String key)
+            throws IOException {
+        final String value = props.getProperty(key);
+        if (value == null)
+            throw new IOException("Missing vector statistic: " + key);
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed vector statistic: " + key + "=" + value, e);
+        }
+    }
+
+    private static int getInt(Properties props, String key)
+            throws IOException {
+        final long value = getLong(props, key);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IOException("Vector statistic out of range: " + key + "=" + value);
+        return (int) value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final VectorStats other = (VectorStats) obj;
+        return vectorCount == other.vectorCount
+                && nonZeroCount == other.nonZeroCount
+                && maxVectorSize == other.maxVectorSize
+                && medianVectorSize == other.medianVectorSize
+                && vectorSizeP90 == other.vectorSizeP90
+                && vectorSizeP99 == other.vectorSizeP99
+                && featureCount == other.featureCount
+                && maxFeatureId == other.maxFeatureId
+                && maxDocumentFrequency == other.maxDocumentFrequency
+                && medianDocumentFrequency == other.medianDocumentFrequency
+                && documentFrequencyP90 == other.documentFrequencyP90
+                && documentFrequencyP99 == other.documentFrequencyP99
+                && Arrays.equals(documentFrequencies, other.documentFrequencies);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(vectorCount, nonZeroCount, maxVectorSize,
+                                medianVectorSize, vectorSizeP90, vectorSizeP99,
+                                featureCount, maxFeatureId, maxDocumentFrequency,
+                                medianDocumentFrequency, documentFrequencyP90,
+                                documentFrequencyP99,
+                                Arrays.hashCode(documentFrequencies));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("vectorCount", vectorCount).
+                add("nonZeroCount", nonZeroCount).
+                add("maxVectorSize", maxVectorSize).
+                add("medianVectorSize", medianVectorSize).
+                add("vectorSizeP90", vectorSizeP90).
+                add("vectorSizeP99", vectorSizeP99).
+                add("featureCount", featureCount).
+                add("maxFeatureId", maxFeatureId).
+                add("maxDocumentFrequency", maxDocumentFrequency).
+                add("medianDocumentFrequency", medianDocumentFrequency).
+                add("documentFrequencyP90", documentFrequencyP90).
+                add("documentFrequencyP99", documentFrequencyP99).
+                toString();
+    }
+
+    /**
+     * Accumulates the statistics of vectors one at a time.
+     */
+    public static final class Builder {
+
+        private final IntArrayList vectorSizes = new IntArrayList();
+
+        /**
+         * Document frequency of each feature, indexed by feature id, grown as
+         * larger ids are seen.
+         */
+        private int[] documentFrequencies = new int[0];
+
+        private long nonZeroCount = 0;
+
+        private int maxFeatureId = -1;
+
+        public Builder add(SparseDoubleVector vector) {
+            Checks.checkNotNull("vector", vector);
+            final int size = vector.size;
+            vectorSizes.add(size);
+            nonZeroCount += size;
+            for (int i = 0; i < size; i++) {
+                final int key = vector.keys[i];
+                if (key >= documentFrequencies.length) {
+                    documentFrequencies = Arrays.copyOf(documentFrequencies,
+                            Math.max(key + 1, 2 * documentFrequencies.length));
+                }
+                ++documentFrequencies[key];
+                if (key > maxFeatureId)
+                    maxFeatureId = key;
+            }
+            return this;
+        }
+
+        public VectorStats build() {
+            final int[] sizes = vectorSizes.toIntArray();
+            Arrays.sort(sizes);
+
+            final int[] featureDfs = Arrays.copyOf(
+                    documentFrequencies, maxFeatureId + 1);
+            int featureCount = 0;
+            for (int df : featureDfs) {
+                if (df > 0)
+                    ++featureCount;
+            }
+            final int[] dfs = new int[featureCount];
+            int i = 0;
+            for (int df : featureDfs) {
+                if (df > 0)
+                    dfs[i++] = df;
+            }
+            Arrays.sort(dfs);
+
+            return new VectorStats(
+                    sizes.length, nonZeroCount,
+                    percentile(sizes, 100), percentile(sizes, 50),
+                    percentile(sizes, 90), percentile(sizes, 99),
+                    dfs.length, maxFeatureId,
+                    percentile(dfs, 100), percentile(dfs, 50),
+                    percentile(dfs, 90), percentile(dfs, 99),
+                    featureDfs);
+        }
+
+        /**
+         * Nearest-rank percentile of a sorted array; 0 if the array is empty.
+         */
+        static int percentile(int[] sorted, int p) {
+            if (sorted.length == 0)
+                return 0;
+            final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+    }
+
+}
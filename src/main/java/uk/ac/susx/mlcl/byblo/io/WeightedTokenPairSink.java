@@ -36,7 +36,9 @@ import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.List;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.JDBMStringEnumerator;
 import uk.ac.susx.mlcl.lib.io.Compact;
 import uk.ac.susx.mlcl.lib.io.DataSink;
 import uk.ac.susx.mlcl.lib.io.Deltas;
@@ -77,6 +79,12 @@ import uk.ac.susx.mlcl.lib.io.TSV;
  * <p>Compact mode is the default behavior, since it can reduce file sizes by
  * approximately 50%, with corresponding reductions in I/O overhead.</p>
  *
+ * <p>Unless either index column is delta encoded, the sinks returned by
+ * {@link #open } can also format batches of pairs independently (see
+ * {@link AsyncObjectSink.BatchFormatter}). A compact record is then ended at
+ * the end of each batch, so an entry whose pairs span two batches has two
+ * records; these are read back as the same pairs.</p>
+ *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public class WeightedTokenPairSink
@@ -111,8 +119,18 @@ public class WeightedTokenPairSink
     public static WeightedTokenPairSink open(
             File file, Charset charset, DoubleEnumerating idx, boolean skip1, boolean skip2, boolean compact)
             throws IOException {
-        DataSink tsv = new TSV.Sink(file, charset);
+        final TSV.Sink tsv = new TSV.Sink(file, charset);
+        final DataSink sink = wrap(tsv, idx, skip1, skip2, compact);
+        // Delta encoded values depend on the previous record, so batches
+        // can not be formatted independently.
+        return skip1 || skip2
+               ? new WeightedTokenPairSink(sink)
+               : new Formatting(sink, tsv, idx, compact);
+    }
 
+    private static DataSink wrap(
+            DataSink tsv, DoubleEnumerating idx, boolean skip1, boolean skip2, boolean compact)
+            throws IOException {
 
         if (skip1) {
             tsv = Deltas.deltaInt(tsv, new Predicate<Integer>() {
@@ -163,7 +181,70 @@ public class WeightedTokenPairSink
         if (compact)
             tsv = Compact.compact(tsv, 3);
 
-        return new WeightedTokenPairSink(tsv);
+        return tsv;
+    }
+
+    /**
+     * Sink that formats each batch with a new chain of sinks writing to
+     * memory, and appends the text to the file.
+     */
+    private static final class Formatting extends WeightedTokenPairSink
+            implements AsyncObjectSink.BatchFormatter<Weighted<TokenPair>> {
+
+        private final TSV.Sink tsv;
+
+        private final DoubleEnumerating idx;
+
+        private final boolean compact;
+
+        /**
+         * Held while formatting if the strings are read from a JDBM
+         * enumerator, which is not safe to read concurrently; otherwise null.
+         */
+        private final Object lock;
+
+        Formatting(DataSink inner, TSV.Sink tsv, DoubleEnumerating idx, boolean compact)
+                throws IOException {
+            super(inner);
+            this.tsv = tsv;
+            this.idx = idx;
+            this.compact = compact;
+            final boolean jdbm =
+                    (!idx.isEnumeratedEntries()
+                     && idx.getEntryEnumerator() instanceof JDBMStringEnumerator)
+                    || (!idx.isEnumeratedFeatures()
+                        && idx.getFeatureEnumerator() instanceof JDBMStringEnumerator);
+            this.lock = jdbm ? idx : null;
+        }
+
+        @Override
+        public CharSequence format(List<? extends Weighted<TokenPair>> batch)
+                throws IOException {
+            if (lock == null)
+                return formatBatch(batch);
+            synchronized (lock) {
+                return formatBatch(batch);
+            }
+        }
+
+        private CharSequence formatBatch(List<? extends Weighted<TokenPair>> batch)
+                throws IOException {
+            final StringBuilder text = new StringBuilder(batch.size() * 24);
+            final DataSink sink = wrap(new TSV.Sink(text, tsv.getFile(), tsv.getCharset()),
+                                       idx, false, false, compact);
+            final WeightedTokenPairSink pairs = new WeightedTokenPairSink(sink);
+            for (Weighted<TokenPair> pair : batch)
+                pairs.write(pair);
+            // Ends the last compact record; nothing is closed in memory
+            pairs.close();
+            return text;
+        }
+
+        @Override
+        public void writeFormatted(CharSequence text) throws IOException {
+            tsv.appendRecords(text);
+        }
+
     }
 
 }
@@ -185,4 +185,35 @@ public abstract class AbstractMIProximity extends AbstractProximity {
         return V.values[k] / V.sum;
     }
 
+    /**
+     * @param V vector
+     * @return a copy of the vector whose values are the positive information
+     *         content of each feature, as given by
+     *         {@link #posInf(SparseDoubleVector, int) }
+     */
+    protected final SparseDoubleVector positiveInformation(
+            final SparseDoubleVector V) {
+        final double[] values = new double[V.size];
+        for (int i = 0; i < V.size; i++)
+            values[i] = posInf(V, i);
+        return withValues(V, values);
+    }
+
+    /**
+     * @param V vector
+     * @return a copy of the vector whose values are the natural log of the
+     *         ratio of each feature's probability in V to its prior
+     *         probability, or 0 where that ratio is not greater than 1
+     */
+    protected final SparseDoubleVector positiveLogRatios(
+            final SparseDoubleVector V) {
+        final double[] values = new double[V.size];
+        for (int i = 0; i < V.size; i++) {
+            final double pC = featurePrior(V.keys[i]);
+            final double pV = prob(V, i);
+            values[i] = pV > pC ? Math.log(pV / pC) : 0;
+        }
+        return withValues(V, values);
+    }
+
 }
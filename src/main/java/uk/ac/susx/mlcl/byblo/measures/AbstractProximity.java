@@ -30,12 +30,24 @@
  */
 package uk.ac.susx.mlcl.byblo.measures;
 
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
 /**
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public abstract class AbstractProximity implements Proximity {
 
+    private static final ThreadLocal<ScatterTable> SCATTER_TABLES =
+            new ThreadLocal<ScatterTable>() {
+
+                @Override
+                protected ScatterTable initialValue() {
+                    return new ScatterTable();
+                }
+
+            };
+
     private int filteredFeatureId = -1;
 
     /**
@@ -56,4 +68,133 @@ public abstract class AbstractProximity implements Proximity {
     public boolean isFiltered(int featureId) {
         return filteredFeatureId == featureId;
     }
+
+    /**
+     * Compare the query with each of the other vectors. The shared component
+     * of a {@link DecomposableProximity } is found by loading the query into
+     * a {@link ScatterTable }, then summing the terms of the features found in
+     * a single pass over the keys of each other vector. Vectors at least
+     * {@link Intersection#GALLOP_RATIO } times longer than the query are
+     * instead intersected with it, since that is cheaper than a pass over
+     * their keys. Any other measure is calculated one pair at a time.
+     */
+    @Override
+    public void sharedBatch(SparseDoubleVector query, boolean queryIsA,
+                            SparseDoubleVector[] others, int count,
+                            double[] out) {
+        if (!(this instanceof DecomposableProximity)) {
+            for (int k = 0; k < count; k++) {
+                out[k] = queryIsA ? shared(query, others[k])
+                         : shared(others[k], query);
+            }
+            return;
+        }
+
+        final DecomposableProximity terms = (DecomposableProximity) this;
+        final ScatterTable table = loadScatterTable(query);
+        try {
+            for (int k = 0; k < count; k++) {
+                final SparseDoubleVector other = others[k];
+                if (isLongerThanScatter(query, other)) {
+                    out[k] = queryIsA ? shared(query, other)
+                             : shared(other, query);
+                    continue;
+                }
+                double shared = 0;
+                for (int j = 0; j < other.size; j++) {
+                    final int i = table.offsetOf(other.keys[j]);
+                    if (i >= 0 && other.keys[j] != filteredFeatureId) {
+                        shared += queryIsA
+                                  ? terms.sharedTerm(query, i, other, j)
+                                  : terms.sharedTerm(other, j, query, i);
+                    }
+                }
+                out[k] = shared;
+            }
+        } finally {
+            table.clear();
+        }
+    }
+
+    /**
+     * @param query the query vector
+     * @return this thread's scatter table, loaded with the query; it must be
+     *         cleared when the batch is complete
+     */
+    static ScatterTable loadScatterTable(SparseDoubleVector query) {
+        final ScatterTable table = SCATTER_TABLES.get();
+        table.load(query);
+        return table;
+    }
+
+    /**
+     * @return whether the other vector is so much longer than the query that
+     *         it is better intersected with it than scanned against the
+     *         scatter table
+     */
+    static boolean isLongerThanScatter(SparseDoubleVector query,
+                                                 SparseDoubleVector other) {
+        return (long) query.size * Intersection.GALLOP_RATIO <= other.size;
+    }
+
+    /**
+     * Return positive infinity; no bound is known unless the measure
+     * overrides this method.
+     */
+    @Override
+    public double upperBound(SparseDoubleVector A, SparseDoubleVector B,
+                             double left, double right) {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Return the vector unchanged; measures that work directly on the feature
+     * weights need no preparation.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return vector;
+    }
+
+    /**
+     * Create a copy of the vector with the given values in place of its own.
+     * The keys are shared with the original, and the sum of the original
+     * weights is retained.
+     *
+     * @param vector the original vector
+     * @param values the new values, one for each key of the vector
+     * @return the new vector
+     */
+    protected static SparseDoubleVector withValues(SparseDoubleVector vector,
+                                                   double[] values) {
+        final SparseDoubleVector result = new SparseDoubleVector(
+                vector.keys, values, vector.cardinality, vector.size);
+        result.sum = vector.sum;
+        return result;
+    }
+
+    /**
+     * @param vector the feature vector
+     * @return a copy of the vector whose values are the feature weights
+     *         divided by their sum
+     */
+    protected static SparseDoubleVector probabilities(SparseDoubleVector vector) {
+        final double[] values = new double[vector.size];
+        for (int i = 0; i < vector.size; i++)
+            values[i] = vector.values[i] / vector.sum;
+        return withValues(vector, values);
+    }
+
+    /**
+     * Iterate over the features vectors A and B have in common, excluding the
+     * filtered feature.
+     *
+     * @param A the first feature vector
+     * @param B the second feature vector
+     * @return cursor over the shared features
+     */
+    protected final Intersection intersect(SparseDoubleVector A,
+                                           SparseDoubleVector B) {
+        return new Intersection(A, B, filteredFeatureId);
+    }
 }
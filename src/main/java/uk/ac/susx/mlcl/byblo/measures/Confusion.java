@@ -51,27 +51,22 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 @Beta
 public final class Confusion extends AbstractMIProximity {
 
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return probabilities(vector);
+    }
+
     @Override
     public double shared(final SparseDoubleVector a,
                          final SparseDoubleVector b) {
         double total = 0.0;
 
-        int i = 0, j = 0;
-        while (i < a.size && j < b.size) {
-            if (a.keys[i] < b.keys[j]) {
-                i++;
-            } else if (a.keys[i] > b.keys[j]) {
-                j++;
-            } else if (isFiltered(a.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                total += prob(a, i) * prob(b, j)
-                        / featurePrior(a.keys[i]);
-
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(a, b);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            total += a.values[i] * b.values[j]
+                    / featurePrior(a.keys[i]);
         }
         total *= entryPrior(a);
 
@@ -37,37 +37,75 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Cosine extends AbstractProximity {
+public class Cosine extends AbstractProximity implements DotProductProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return probabilities(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double numerator = 0;
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += (A.values[i] / A.sum) * (B.values[j] / B.sum);
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            numerator += A.values[i] * B.values[j];
         }
 
         return numerator;
     }
 
+    @Override
+    public void sharedBatch(SparseDoubleVector query, boolean queryIsA,
+                            SparseDoubleVector[] others, int count,
+                            double[] out) {
+        final int filtered = getFilteredFeatureId();
+        final ScatterTable table = loadScatterTable(query);
+        try {
+            for (int k = 0; k < count; k++) {
+                final SparseDoubleVector other = others[k];
+                if (isLongerThanScatter(query, other)) {
+                    out[k] = queryIsA ? shared(query, other)
+                             : shared(other, query);
+                    continue;
+                }
+                double numerator = 0;
+                for (int j = 0; j < other.size; j++) {
+                    final int i = table.offsetOf(other.keys[j]);
+                    if (i >= 0 && other.keys[j] != filtered)
+                        numerator += query.values[i] * other.values[j];
+                }
+                out[k] = numerator;
+            }
+        } finally {
+            table.clear();
+        }
+    }
+
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] * B.values[j];
+    }
+
+    @Override
+    public double leftFactor(SparseDoubleVector A, int i) {
+        return A.values[i];
+    }
+
+    @Override
+    public double rightFactor(SparseDoubleVector B, int j) {
+        return B.values[j];
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double normSquared = 0;
         for (int i = 0; i < A.size; i++) {
-            normSquared += (A.values[i] / A.sum) * (A.values[i] / A.sum);
+            normSquared += A.values[i] * A.values[i];
         }
         return normSquared;
     }
@@ -82,6 +120,18 @@ public class Cosine extends AbstractProximity {
         return shared / Math.sqrt(left * right);
     }
 
+    /**
+     * By the Cauchy-Schwarz inequality, the shared component is at most the
+     * product of the norms of the vectors. The bound on the cosine itself is
+     * just 1, but sub-classes, such as {@link Tanimoto}, are bounded by the
+     * ratio of the norms.
+     */
+    @Override
+    public double upperBound(SparseDoubleVector A, SparseDoubleVector B,
+                             double left, double right) {
+        return combine(Math.sqrt(left * right), left, right);
+    }
+
     @Override
     public boolean isSymmetric() {
         return true;
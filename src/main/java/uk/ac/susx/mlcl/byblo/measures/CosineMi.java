@@ -35,39 +35,48 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class CosineMi extends AbstractMIProximity {
+public class CosineMi extends AbstractMIProximity implements DotProductProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return positiveInformation(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double numerator = 0;
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += posInf(A, i) * posInf(B, j);
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            numerator += A.values[i] * B.values[j];
         }
 
         return numerator;
     }
 
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] * B.values[j];
+    }
+
+    @Override
+    public double leftFactor(SparseDoubleVector A, int i) {
+        return A.values[i];
+    }
+
+    @Override
+    public double rightFactor(SparseDoubleVector B, int j) {
+        return B.values[j];
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominatorA = 0;
         for (int i = 0; i < A.size; i++) {
-            final double Qinf = posInf(A, i);
-            if (Qinf > 0) {
-                denominatorA += Qinf * Qinf;
-            }
+            denominatorA += A.values[i] * A.values[i];
         }
         return denominatorA;
     }
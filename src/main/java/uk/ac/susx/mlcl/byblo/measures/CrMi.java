@@ -104,6 +104,11 @@ public class CrMi extends AbstractMIProximity {
         return gamma;
     }
 
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return recallMi.prepare(vector);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         final double recall = recallMi.shared(A, B) / recallMi.left(A);
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A proximity measure whose shared component is a sum of independent terms,
+ * one for each (non-filtered) feature the two vectors have in common. This
+ * allows the shared component to be accumulated term-at-a-time, while walking
+ * the postings of an inverted index, rather than by intersecting the vectors.
+ *
+ * <p>For any vectors A and B, {@link #shared(SparseDoubleVector, SparseDoubleVector) }
+ * must equal the sum of {@link #sharedTerm(SparseDoubleVector, int, SparseDoubleVector, int) }
+ * over every common feature that is not filtered, added in ascending order of
+ * feature id. Sub-classes that override one method must override the other.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface DecomposableProximity extends Proximity {
+
+    /**
+     * Calculate the contribution to the shared component of a single feature
+     * that occurs in both vectors; where {@code A.keys[i] == B.keys[j]}.
+     *
+     * @param A the first feature vector
+     * @param i offset of the feature in A
+     * @param B the second feature vector
+     * @param j offset of the feature in B
+     * @return portion of the shared component due to the feature
+     */
+    double sharedTerm(SparseDoubleVector A, int i, SparseDoubleVector B, int j);
+
+    /**
+     * @param featureId feature id
+     * @return whether the feature should be ignored when calculating the
+     *         shared component
+     */
+    boolean isFiltered(int featureId);
+
+}
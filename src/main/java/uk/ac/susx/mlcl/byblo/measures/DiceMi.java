@@ -35,37 +35,49 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class DiceMi extends AbstractMIProximity {
+public class DiceMi extends AbstractMIProximity implements DotProductProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return positiveInformation(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         int shared = 0;
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (hasPosInf(A, i, B, j))
-                    ++shared;
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            if (A.values[i] > 0 && B.values[j] > 0)
+                ++shared;
         }
 
         return shared;
     }
 
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] > 0 && B.values[j] > 0 ? 1 : 0;
+    }
+
+    @Override
+    public double leftFactor(SparseDoubleVector A, int i) {
+        return A.values[i] > 0 ? 1 : 0;
+    }
+
+    @Override
+    public double rightFactor(SparseDoubleVector B, int j) {
+        return B.values[j] > 0 ? 1 : 0;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double possible = 0;
         for (int i = 0; i < A.size; i++) {
-            if (hasPosInf(A, i))
+            if (A.values[i] > 0)
                 ++possible;
         }
         return possible;
@@ -81,6 +93,16 @@ public class DiceMi extends AbstractMIProximity {
         return 2d * shared / (left + right);
     }
 
+    /**
+     * At most the smaller number of positive features of the two vectors can
+     * be shared, and the measure increases with the number shared.
+     */
+    @Override
+    public double upperBound(SparseDoubleVector A, SparseDoubleVector B,
+                             double left, double right) {
+        return combine(Math.min(left, right), left, right);
+    }
+
     @Override
     public boolean isSymmetric() {
         return true;
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A decomposable proximity measure whose shared component is a weighted dot
+ * product: each term is the product of a weight that depends only on the
+ * first vector, and a weight that depends only on the second. All-pairs over
+ * such a measure is a sparse matrix product, so the weights can be computed
+ * once per vector and multiplied in bulk.
+ *
+ * <p>For every common feature that is not filtered,
+ * {@link #sharedTerm(SparseDoubleVector, int, SparseDoubleVector, int) }
+ * must equal {@code leftFactor(A, i) * rightFactor(B, j)} exactly.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface DotProductProximity extends DecomposableProximity {
+
+    /**
+     * @param A a (prepared) feature vector, taken as the first argument
+     * @param i offset of the feature in A
+     * @return weight of the feature in the first vector of a pair
+     */
+    double leftFactor(SparseDoubleVector A, int i);
+
+    /**
+     * @param B a (prepared) feature vector, taken as the second argument
+     * @param j offset of the feature in B
+     * @return weight of the feature in the second vector of a pair
+     */
+    double rightFactor(SparseDoubleVector B, int j);
+
+}
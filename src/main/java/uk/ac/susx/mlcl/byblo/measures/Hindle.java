@@ -35,39 +35,34 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Hindle extends AbstractMIProximity {
+public class Hindle extends AbstractMIProximity implements DecomposableProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return positiveLogRatios(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double sim = 0;
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                final double pC = featurePrior(A.keys[i]);
-                final double pA = prob(A, i);
-                if (pA > pC) {
-                    final double pB = prob(B, j);
-                    if (pB > pC) {
-                        sim += Math.log(Math.min(pA / pC, pB / pC));
-                    }
-                }
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            if (A.values[i] > 0 && B.values[j] > 0)
+                sim += Math.min(A.values[i], B.values[j]);
         }
         return sim;
     }
 
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] > 0 && B.values[j] > 0
+               ? Math.min(A.values[i], B.values[j]) : 0;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         return 0;
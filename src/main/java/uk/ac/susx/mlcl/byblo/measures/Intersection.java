@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Cursor over the features two sparse vectors have in common, in ascending
+ * order of feature id. Proximity measures use it to find the shared features
+ * in {@link Proximity#shared(SparseDoubleVector, SparseDoubleVector) }:
+ *
+ * <pre>
+ *     final Intersection x = intersect(A, B);
+ *     while (x.next())
+ *         shared += A.values[x.left()] * B.values[x.right()];
+ * </pre>
+ *
+ * <p>When the vectors are of similar length they are merged linearly, in
+ * O(|A| + |B|) time. When one vector is much longer than the other (at least
+ * {@link #GALLOP_RATIO } times), each feature of the shorter vector is instead
+ * found in the longer by galloping (exponential) search, from the position of
+ * the previous match, which takes O(s log(l / s)) time for lengths s &lt; l.
+ * Frequent entries are compared against nearly every other entry, and most of
+ * those are far shorter, so this is the common case for the costliest
+ * comparisons.</p>
+ *
+ * <p>Instances are cheap and intended to be created once per comparison.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class Intersection {
+
+    /**
+     * Minimum ratio of the longer vector's size to the shorter's at which
+     * galloping search is used rather than a linear merge. Chosen from the
+     * crossover measured by {@code IntersectionBenchmark}.
+     */
+    public static final int GALLOP_RATIO = 8;
+
+    /**
+     * Keys of the shorter vector when galloping, otherwise of A.
+     */
+    private final int[] shortKeys;
+
+    private final int shortSize;
+
+    /**
+     * Keys of the longer vector when galloping, otherwise of B.
+     */
+    private final int[] longKeys;
+
+    private final int longSize;
+
+    /**
+     * Whether the shorter vector is B, so offsets must be swapped.
+     */
+    private final boolean swapped;
+
+    private final boolean gallop;
+
+    private final int filteredFeatureId;
+
+    private int nextShort = 0;
+
+    private int nextLong = 0;
+
+    private int left = -1;
+
+    private int right = -1;
+
+    /**
+     * @param A                 the first feature vector
+     * @param B                 the second feature vector
+     * @param filteredFeatureId id of a feature to be skipped, or -1 for none
+     */
+    public Intersection(SparseDoubleVector A, SparseDoubleVector B,
+                        int filteredFeatureId) {
+        this.filteredFeatureId = filteredFeatureId;
+        swapped = B.size < A.size;
+        final SparseDoubleVector s = swapped ? B : A;
+        final SparseDoubleVector l = swapped ? A : B;
+        shortKeys = s.keys;
+        shortSize = s.size;
+        longKeys = l.keys;
+        longSize = l.size;
+        gallop = (long) shortSize * GALLOP_RATIO <= longSize;
+    }
+
+    /**
+     * Advance to the next shared feature.
+     *
+     * @return true if there is another shared feature, false if the
+     *         intersection is exhausted
+     */
+    public boolean next() {
+        int i = nextShort;
+        int j = nextLong;
+        if (gallop) {
+            while (i < shortSize && j < longSize) {
+                final int key = shortKeys[i];
+                j = gallop(longKeys, j, longSize, key);
+                if (j == longSize)
+                    break;
+                if (longKeys[j] == key) {
+                    if (key != filteredFeatureId)
+                        return found(i, j);
+                    ++j;
+                }
+                ++i;
+            }
+        } else {
+            while (i < shortSize && j < longSize) {
+                if (shortKeys[i] < longKeys[j]) {
+                    ++i;
+                } else if (shortKeys[i] > longKeys[j]) {
+                    ++j;
+                } else if (shortKeys[i] == filteredFeatureId) {
+                    ++i;
+                    ++j;
+                } else {
+                    return found(i, j);
+                }
+            }
+        }
+        nextShort = shortSize;
+        nextLong = longSize;
+        return false;
+    }
+
+    private boolean found(int i, int j) {
+        if (swapped) {
+            left = j;
+            right = i;
+        } else {
+            left = i;
+            right = j;
+        }
+        nextShort = i + 1;
+        nextLong = j + 1;
+        return true;
+    }
+
+    /**
+     * @return offset of the current shared feature in A
+     */
+    public int left() {
+        return left;
+    }
+
+    /**
+     * @return offset of the current shared feature in B
+     */
+    public int right() {
+        return right;
+    }
+
+    /**
+     * Find the offset of the first key in the sorted range
+     * {@code keys[from..to)} that is not less than the given key, by doubling
+     * the step from {@code from } until the key is passed, then binary
+     * searching the last step. The cost is logarithmic in the distance moved,
+     * rather than in the length of the range.
+     *
+     * @param keys sorted keys
+     * @param from start of the range (inclusive)
+     * @param to   end of the range (exclusive)
+     * @param key  key to find
+     * @return the offset of the first key &gt;= {@code key}, or {@code to} if
+     *         there is none
+     */
+    public static int gallop(int[] keys, int from, int to, int key) {
+        if (from >= to || keys[from] >= key)
+            return from;
+        // invariant: keys[lo] < key, and hi == to or keys[hi] >= key
+        int lo = from;
+        int step = 1;
+        int hi = from + 1;
+        while (hi < to && keys[hi] < key) {
+            lo = hi;
+            step <<= 1;
+            hi = to - lo > step ? lo + step : to;
+        }
+        while (hi - lo > 1) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return hi;
+    }
+}
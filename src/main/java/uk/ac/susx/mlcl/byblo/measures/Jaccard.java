@@ -38,28 +38,58 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Jaccard extends AbstractProximity {
+public class Jaccard extends AbstractProximity implements DotProductProximity {
 
     @Override
     public double shared(final SparseDoubleVector A, final SparseDoubleVector B) {
         int shared = 0;
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                ++shared;
-                i++;
-                j++;
+        final Intersection x = intersect(A, B);
+        while (x.next())
+            ++shared;
+        return shared;
+    }
+
+    @Override
+    public void sharedBatch(final SparseDoubleVector query, final boolean queryIsA,
+                            final SparseDoubleVector[] others, final int count,
+                            final double[] out) {
+        final int filtered = getFilteredFeatureId();
+        final ScatterTable table = loadScatterTable(query);
+        try {
+            for (int k = 0; k < count; k++) {
+                final SparseDoubleVector other = others[k];
+                if (isLongerThanScatter(query, other)) {
+                    out[k] = queryIsA ? shared(query, other)
+                             : shared(other, query);
+                    continue;
+                }
+                int shared = 0;
+                for (int j = 0; j < other.size; j++) {
+                    if (table.offsetOf(other.keys[j]) >= 0
+                            && other.keys[j] != filtered)
+                        ++shared;
+                }
+                out[k] = shared;
             }
+        } finally {
+            table.clear();
         }
-        return shared;
+    }
+
+    @Override
+    public double sharedTerm(final SparseDoubleVector A, final int i,
+                             final SparseDoubleVector B, final int j) {
+        return 1;
+    }
+
+    @Override
+    public double leftFactor(final SparseDoubleVector A, final int i) {
+        return 1;
+    }
+
+    @Override
+    public double rightFactor(final SparseDoubleVector B, final int j) {
+        return 1;
     }
 
     @Override
@@ -77,6 +107,17 @@ public class Jaccard extends AbstractProximity {
         return shared / (left + right - shared);
     }
 
+    /**
+     * At most the smaller of the two vectors can be shared, and the measure
+     * increases with the number of shared features.
+     */
+    @Override
+    public double upperBound(final SparseDoubleVector A,
+                             final SparseDoubleVector B,
+                             final double left, final double right) {
+        return combine(Math.min(left, right), left, right);
+    }
+
     @Override
     public boolean isSymmetric() {
         return true;
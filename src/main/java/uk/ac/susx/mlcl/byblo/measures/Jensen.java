@@ -53,6 +53,11 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  */
 public class Jensen extends AbstractProximity {
 
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return probabilities(vector);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double divergence = 0;
@@ -60,17 +65,17 @@ public class Jensen extends AbstractProximity {
         int i = 0, j = 0;
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                divergence += A.values[i] / A.sum;
+                divergence += A.values[i];
                 i++;
             } else if (A.keys[i] > B.keys[j]) {
-                divergence += B.values[j] / B.sum;
+                divergence += B.values[j];
                 j++;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
             } else {
-                final double pA = A.values[i] / A.sum;
-                final double pB = B.values[j] / B.sum;
+                final double pA = A.values[i];
+                final double pB = B.values[j];
                 final double lpAvg = log2(pA + pB) - 1.;
                 divergence += pA * (log2(pA) - lpAvg);
                 divergence += pB * (log2(pB) - lpAvg);
@@ -80,12 +85,12 @@ public class Jensen extends AbstractProximity {
         }
 
         while (i < A.size) {
-            divergence += A.values[i] / A.sum;
+            divergence += A.values[i];
             i++;
         }
 
         while (j < B.size) {
-            divergence += B.values[j] / B.sum;
+            divergence += B.values[j];
             j++;
         }
 
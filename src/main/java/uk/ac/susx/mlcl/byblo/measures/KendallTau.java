@@ -30,27 +30,30 @@
  */
 package uk.ac.susx.mlcl.byblo.measures;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 
 /**
  * tau(q,r) = sum_i_j( sign((qi - qj)(ri - rj)) / (2 * |V|)  )
  *
+ * <p>Pairs of features that occur in neither vector are tied in both, and
+ * each feature that occurs in neither vector is concordant with every feature
+ * that occurs in both, so only the union of the two vectors needs to be
+ * ranked. The union is ranked using Knight's merge sort algorithm, which
+ * counts the discordant pairs as the number of swaps needed to sort by the
+ * second vector once sorted by the first. Comparing a pair of vectors is
+ * therefore O(n log n) in the size of their union, rather than quadratic.</p>
+ *
+ * <p>Feature values are assumed to be positive, so that a feature missing
+ * from a vector ranks below every feature that is present.</p>
+ *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public class KendallTau extends AbstractProximity {
 
-    private static final Log LOG = LogFactory.getLog(KendallTau.class);
-
     private int numFeatures;
 
     public KendallTau() {
         this.numFeatures = 0;
-        if (LOG.isWarnEnabled())
-            LOG.warn("The KendallTau proximity measure is extremely inefficient "
-                    + "(quadratic on the number of features). Consider using a "
-                    + "different measure.");
     }
 
     public final int getNumFeatures() {
@@ -74,155 +77,131 @@ public class KendallTau extends AbstractProximity {
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         checkState();
 
-        int sum = 0;
+        // Lay out the union of both vectors, with zeros for missing features
+        final int maxUnionSize = A.size + B.size;
+        final double[] x = new double[maxUnionSize];
+        final double[] y = new double[maxUnionSize];
         int intersectionSize = 0;
         int unionSize = 0;
         int ai = 0;
         int bi = 0;
-
         while (ai < A.size && bi < B.size) {
-            ++unionSize;
             if (A.keys[ai] < B.keys[bi]) {
-                int aj = ai + 1;
-                int bj = bi;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        --sum;
-                        ++bj;
-                    } else {
-                        if (A.values[ai] < A.values[aj])
-                            ++sum;
-                        else if (A.values[ai] > A.values[aj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= B.size - bj;
+                x[unionSize] = A.values[ai];
                 ++ai;
             } else if (A.keys[ai] > B.keys[bi]) {
-                int aj = ai;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        --sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        ++bj;
-                    } else {
-                        if (B.values[bi] < B.values[bj])
-                            ++sum;
-                        else if (B.values[bi] > B.values[bj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= A.size - aj;
+                y[unionSize] = B.values[bi];
                 ++bi;
             } else {
+                x[unionSize] = A.values[ai];
+                y[unionSize] = B.values[bi];
                 ++intersectionSize;
-                int aj = ai + 1;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        if (A.values[ai] < A.values[aj])
-                            --sum;
-                        else if (A.values[ai] > A.values[aj])
-                            ++sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        if (B.values[bi] < B.values[bj])
-                            --sum;
-                        else if (B.values[bi] > B.values[bj])
-                            ++sum;
-                        ++bj;
-                    } else {
-                        final double diff = (A.values[ai] - A.values[aj])
-                                * (B.values[bi] - B.values[bj]);
-                        if (diff < 0)
-                            --sum;
-                        else if (diff > 0)
-                            ++sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                while (aj < A.size) {
-                    if (A.values[ai] < A.values[aj])
-                        --sum;
-                    else if (A.values[ai] > A.values[aj])
-                        ++sum;
-                    ++aj;
-                }
-                while (bj < B.size) {
-                    if (B.values[bi] < B.values[bj])
-                        --sum;
-                    else if (B.values[bi] > B.values[bj])
-                        ++sum;
-                    ++bj;
-                }
                 ++ai;
                 ++bi;
             }
+            ++unionSize;
         }
         while (ai < A.size) {
-            ++unionSize;
-            int aj = ai + 1;
-            int bj = bi;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    --sum;
-                    ++bj;
-                } else {
-                    if (A.values[ai] < A.values[aj])
-                        ++sum;
-                    else if (A.values[ai] > A.values[aj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= B.size - bj;
+            x[unionSize] = A.values[ai];
             ++ai;
+            ++unionSize;
         }
         while (bi < B.size) {
-            ++unionSize;
-            int aj = ai;
-            int bj = bi + 1;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    --sum;
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    ++bj;
-                } else {
-                    if (B.values[bi] < B.values[bj])
-                        ++sum;
-                    else if (B.values[bi] > B.values[bj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= A.size - aj;
+            y[unionSize] = B.values[bi];
             ++bi;
+            ++unionSize;
         }
 
-        // Comparisons are only done in one direction so double the result
-        sum <<= 1;
+        final double[] tmpX = new double[unionSize];
+        final double[] tmpY = new double[unionSize];
+
+        // Order by x, breaking ties by y, using two stable sorts
+        sort(y, x, tmpY, tmpX, 0, unionSize);
+        sort(x, y, tmpX, tmpY, 0, unionSize);
+        final long xTies = tiedPairs(x, null, unionSize);
+        final long jointTies = tiedPairs(x, y, unionSize);
+
+        // Each swap made while re-sorting by y is a discordant pair
+        final long discordant = sort(y, x, tmpY, tmpX, 0, unionSize);
+        final long yTies = tiedPairs(y, null, unionSize);
+
+        final long pairs = (long) unionSize * (unionSize - 1) / 2;
+        long sum = pairs - xTies - yTies + jointTies - 2 * discordant;
 
         // Features that don't occur in either vector are a similarity
-        // between the two sets. For each feature that they both have there
-        // should be an addition +2 to the sum.
-        // The relationship between these and disjoint features
-        sum += 2 * ((numFeatures - unionSize) * intersectionSize);
-        //
-        return (double) (sum) / (double) (numFeatures * (numFeatures - 1));
+        // between the two sets: each is concordant with every feature that
+        // both vectors have.
+        sum += (long) (numFeatures - unionSize) * intersectionSize;
+
+        // Every pair has been counted in one direction only so double it
+        sum <<= 1;
+
+        return (double) sum / ((double) numFeatures * (numFeatures - 1));
+    }
+
+    /**
+     * Stable merge sort of the elements of {@code keys} in range
+     * [{@code from}, {@code to}), permuting {@code others} alongside.
+     *
+     * @return the number of swaps: pairs that were strictly out of order
+     */
+    private static long sort(double[] keys, double[] others,
+                             double[] tmpKeys, double[] tmpOthers,
+                             int from, int to) {
+        if (to - from < 2)
+            return 0;
+        final int mid = (from + to) >>> 1;
+        long swaps = sort(keys, others, tmpKeys, tmpOthers, from, mid)
+                + sort(keys, others, tmpKeys, tmpOthers, mid, to);
+        if (keys[mid - 1] <= keys[mid])
+            return swaps;
+
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (keys[j] < keys[i]) {
+                swaps += mid - i;
+                tmpKeys[k] = keys[j];
+                tmpOthers[k] = others[j];
+                ++j;
+            } else {
+                tmpKeys[k] = keys[i];
+                tmpOthers[k] = others[i];
+                ++i;
+            }
+            ++k;
+        }
+        while (i < mid) {
+            tmpKeys[k] = keys[i];
+            tmpOthers[k] = others[i];
+            ++i;
+            ++k;
+        }
+        // Elements remaining in the upper half are already in place
+        System.arraycopy(tmpKeys, from, keys, from, k - from);
+        System.arraycopy(tmpOthers, from, others, from, k - from);
+        return swaps;
+    }
+
+    /**
+     * Count the pairs of elements that are tied, in a prefix of sorted
+     * elements. When {@code others} is non-null an element must be tied in
+     * both arrays.
+     */
+    private static long tiedPairs(double[] keys, double[] others, int size) {
+        long ties = 0;
+        long run = 1;
+        for (int i = 1; i < size; i++) {
+            if (keys[i] == keys[i - 1]
+                    && (others == null || others[i] == others[i - 1])) {
+                ++run;
+            } else {
+                ties += run * (run - 1) / 2;
+                run = 1;
+            }
+        }
+        return ties + run * (run - 1) / 2;
     }
 
     @Override
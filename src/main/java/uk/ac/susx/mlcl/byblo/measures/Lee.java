@@ -68,27 +68,23 @@ public class Lee extends AbstractProximity {
         this.alpha = alpha;
     }
 
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return probabilities(vector);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double sim = 0;
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double pA = A.values[i] / A.sum;
-                final double pB = (B.values[j] / B.sum);
-                sim += pA * (2 * Math.log(pA)
-                             - Math.log(pB * alpha + pA * (1 - alpha))
-                             + Math.log((1.0 - alpha)));
-                i++;
-                j++;
-            }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            final double pA = A.values[i];
+            final double pB = B.values[j];
+            sim += pA * (2 * Math.log(pA)
+                         - Math.log(pB * alpha + pA * (1 - alpha))
+                         + Math.log((1.0 - alpha)));
         }
         return sim;
     }
@@ -97,7 +93,7 @@ public class Lee extends AbstractProximity {
     public double left(SparseDoubleVector A) {
         double left = 0;
         for (int i = 0; i < A.size; i++) {
-            final double pA = A.values[i] / A.sum;
+            final double pA = A.values[i];
             left += pA * (Math.log(pA)
                           - Math.log(pA * (1.0 - alpha)));
         }
@@ -36,45 +36,83 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lin extends AbstractMIProximity {
+public class Lin extends AbstractMIProximity implements DecomposableProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return positiveInformation(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double numerator = 0.0;
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double infA = posInf(A, i);
-                if (infA > 0) {
-                    final double infB = posInf(B, j);
-                    if (infB > 0) {
-                        numerator += infA + infB;
-                    }
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            final double infA = A.values[i];
+            if (infA > 0) {
+                final double infB = B.values[j];
+                if (infB > 0) {
+                    numerator += infA + infB;
                 }
-
-                ++i;
-                ++j;
             }
         }
 
         return numerator;
     }
 
+    @Override
+    public void sharedBatch(SparseDoubleVector query, boolean queryIsA,
+                            SparseDoubleVector[] others, int count,
+                            double[] out) {
+        final int filtered = getFilteredFeatureId();
+        final ScatterTable table = loadScatterTable(query);
+        try {
+            for (int k = 0; k < count; k++) {
+                final SparseDoubleVector other = others[k];
+                if (isLongerThanScatter(query, other)) {
+                    out[k] = queryIsA ? shared(query, other)
+                             : shared(other, query);
+                    continue;
+                }
+                double numerator = 0.0;
+                for (int j = 0; j < other.size; j++) {
+                    final int i = table.offsetOf(other.keys[j]);
+                    if (i >= 0 && other.keys[j] != filtered) {
+                        final double infQ = query.values[i];
+                        final double infO = other.values[j];
+                        if (infQ > 0 && infO > 0)
+                            numerator += infQ + infO;
+                    }
+                }
+                out[k] = numerator;
+            }
+        } finally {
+            table.clear();
+        }
+    }
+
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        final double infA = A.values[i];
+        if (infA > 0) {
+            final double infB = B.values[j];
+            if (infB > 0) {
+                return infA + infB;
+            }
+        }
+        return 0;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominator = 0.0;
 
         for (int i = 0; i < A.size; i++) {
-            denominator += posInf(A, i);
+            denominator += A.values[i];
         }
 
         return denominator;
@@ -64,117 +64,86 @@ public class Lp extends AbstractProximity {
         this.p = p;
     }
 
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return probabilities(vector);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double shared = 0;
 
         if (p == 0) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.signum(Math.abs(pA - pB))
-                            - Math.signum(pB)
-                            - Math.signum(pA);
-                    i++;
-                    j++;
-                }
+            final Intersection x = intersect(A, B);
+            while (x.next()) {
+                final int i = x.left();
+                final int j = x.right();
+                final double pA = A.values[i];
+                final double pB = B.values[j];
+                shared += Math.signum(Math.abs(pA - pB))
+                        - Math.signum(pB)
+                        - Math.signum(pA);
             }
         } else if (p == 1) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.abs(pA - pB)
-                            - pB
-                            - pA;
-                    i++;
-                    j++;
-                }
+            final Intersection x = intersect(A, B);
+            while (x.next()) {
+                final int i = x.left();
+                final int j = x.right();
+                final double pA = A.values[i];
+                final double pB = B.values[j];
+                shared += Math.abs(pA - pB)
+                        - pB
+                        - pA;
             }
         } else if (p == 2) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += (pA - pB) * (pA - pB)
-                            - pB * pB
-                            - pA * pA;
-                    i++;
-                    j++;
-                }
+            final Intersection x = intersect(A, B);
+            while (x.next()) {
+                final int i = x.left();
+                final int j = x.right();
+                final double pA = A.values[i];
+                final double pB = B.values[j];
+                shared += (pA - pB) * (pA - pB)
+                        - pB * pB
+                        - pA * pA;
             }
         } else if (p == Double.POSITIVE_INFINITY) {
             int i = 0, j = 0;
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
+                    shared = Math.max(shared, A.values[i]);
                     i++;
                 } else if (A.keys[i] > B.keys[j]) {
-                    shared = Math.max(shared, (B.values[j] / B.sum));
+                    shared = Math.max(shared, B.values[j]);
                     j++;
                 } else if (isFiltered(A.keys[i])) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
-                    shared = Math.max(shared, (B.values[j] / B.sum));
+                    shared = Math.max(shared, A.values[i]);
+                    shared = Math.max(shared, B.values[j]);
                     i++;
                     j++;
                 } else {
                     shared = Math.max(shared, Math.abs(
-                            (A.values[i] / A.sum) - (B.values[j] / B.sum)));
+                            A.values[i] - B.values[j]));
                     i++;
                     j++;
                 }
             }
             while (i < A.size) {
-                shared = Math.max(shared, (A.values[i] / A.sum));
+                shared = Math.max(shared, A.values[i]);
                 i++;
             }
             while (j < B.size) {
-                shared = Math.max(shared, (B.values[j] / B.sum));
+                shared = Math.max(shared, B.values[j]);
                 j++;
             }
         } else {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.pow(Math.abs(pA - pB), p)
-                            - (Math.pow(pB, p) + Math.pow(pA, p));
-                    i++;
-                    j++;
-                }
+            final Intersection x = intersect(A, B);
+            while (x.next()) {
+                final int i = x.left();
+                final int j = x.right();
+                final double pA = A.values[i];
+                final double pB = B.values[j];
+                shared += Math.pow(Math.abs(pA - pB), p)
+                        - (Math.pow(pB, p) + Math.pow(pA, p));
             }
         }
         return shared;
@@ -189,7 +158,7 @@ public class Lp extends AbstractProximity {
         } else if (p == 2) {
             double left = 0;
             for (int i = 0; i < A.size; i++) {
-                left += (A.values[i] / A.sum) * (A.values[i] / A.sum);
+                left += A.values[i] * A.values[i];
             }
             return left;
         } else if (p == Double.POSITIVE_INFINITY) {
@@ -197,7 +166,7 @@ public class Lp extends AbstractProximity {
         } else {
             double left = 0;
             for (int i = 0; i < A.size; i++) {
-                left += Math.pow(A.values[i] / A.sum, p);
+                left += Math.pow(A.values[i], p);
             }
             return left;
         }
@@ -224,6 +193,24 @@ public class Lp extends AbstractProximity {
         }
     }
 
+    /**
+     * By the reverse triangle inequality, the distance is at least the
+     * difference between the norms of the vectors, when p is at least 1. For
+     * L0 it is at least the difference between their sizes. No bound is
+     * known for other values of p.
+     */
+    @Override
+    public double upperBound(SparseDoubleVector A, SparseDoubleVector B,
+                             double left, double right) {
+        if (p == 0) {
+            return 1d / Math.abs(left - right);
+        } else if (p >= 1 && p != Double.POSITIVE_INFINITY) {
+            return 1d / Math.abs(Math.pow(left, 1 / p) - Math.pow(right, 1 / p));
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
     @Override
     public boolean isSymmetric() {
         return true;
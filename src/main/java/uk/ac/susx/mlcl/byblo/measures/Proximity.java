@@ -37,10 +37,42 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * implement. It has been expanded from the usual single method interface, to
  * allow for pre-calculation of values that are independent to one vector.
  *
+ * <p>Every vector is passed through {@link #prepare(SparseDoubleVector) }
+ * as it is read, before it is compared with anything, and the remaining
+ * methods are given only prepared vectors. This lets a measure transform the
+ * feature weights once per vector read (into probabilities, or point-wise
+ * mutual information for example), rather than once per comparison.</p>
+ *
+ * <p><b>Compatibility:</b> {@link #prepare(SparseDoubleVector) },
+ * {@link #sharedBatch(SparseDoubleVector, boolean, SparseDoubleVector[], int, double[]) }
+ * and {@link #upperBound(SparseDoubleVector, SparseDoubleVector, double, double) }
+ * were added to this interface after the 2.1.0 release, which breaks
+ * measures that implement it directly. {@link AbstractProximity}
+ * provides default implementations of all three that preserve the previous
+ * behaviour (no preparation, {@code shared} for each vector of a batch, and no
+ * bound), so such measures can be ported by extending it instead; new
+ * measures should extend it too.</p>
+ *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public interface Proximity {
 
+    /**
+     * Transform the given vector into the representation consumed by
+     * {@link #shared(SparseDoubleVector, SparseDoubleVector) },
+     * {@link #left(SparseDoubleVector) } and {@link #right(SparseDoubleVector) }.
+     * The prepared vector must have the same keys, size, cardinality and sum
+     * as the original; only the values may differ. Measures that require no
+     * preparation return the vector itself.
+     *
+     * <p>The given vector must not be modified, and it must only be prepared
+     * once; preparing a prepared vector is not generally meaningful.</p>
+     *
+     * @param vector the feature vector
+     * @return the prepared vector
+     */
+    SparseDoubleVector prepare(SparseDoubleVector vector);
+
     /**
      * Calculate the similarity of the given vectors Q and R. If possible this
      * should based entirely upon shared features, while independent features
@@ -49,18 +81,56 @@ public interface Proximity {
      * If it is not possible to break up the measure in this way, shared should
      * implement the whole measure.
      *
-     * @param A the first feature vector
-     * @param B the second feature vector
+     * @param A the first prepared feature vector
+     * @param B the second prepared feature vector
      * @return portion of similarity measure dependent on both Q and R
      */
     double shared(SparseDoubleVector A, SparseDoubleVector B);
 
+    /**
+     * Calculate the shared component between one query vector and each of a
+     * number of other vectors; equivalent to calling
+     * {@link #shared(SparseDoubleVector, SparseDoubleVector) } for each of
+     * them, but allowing the measure to reuse work done on the query.
+     *
+     * @param query    the prepared query vector
+     * @param queryIsA true if the query is the first argument (A) of each
+     *                 comparison, false if it is the second (B)
+     * @param others   the prepared vectors to compare with the query
+     * @param count    number of vectors at the start of {@code others} to
+     *                 compare
+     * @param out      array to receive the shared component of the query
+     *                 with each of the other vectors, in the same order
+     */
+    void sharedBatch(SparseDoubleVector query, boolean queryIsA,
+                     SparseDoubleVector[] others, int count, double[] out);
+
     double left(SparseDoubleVector A);
 
     double right(SparseDoubleVector B);
 
     double combine(double shared, double left, double right);
 
+    /**
+     * Calculate an upper bound on the similarity of the given vectors, from
+     * their pre-calculated left and right components, and such properties of
+     * the vectors as can be read without intersecting them (their sizes for
+     * example). Pairs whose bound is below the similarity threshold can be
+     * skipped without calculating the shared component.
+     *
+     * <p>The bound must be exact: no less than
+     * {@code combine(shared(A, B), left, right)} for every pair of vectors.
+     * Measures that know no bound return positive infinity.</p>
+     *
+     * @param A     the first prepared feature vector
+     * @param B     the second prepared feature vector
+     * @param left  the left component of A, as given by {@link #left(SparseDoubleVector) }
+     * @param right the right component of B, as given by {@link #right(SparseDoubleVector) }
+     * @return upper bound on the similarity of A and B
+     */
+    double upperBound(SparseDoubleVector A, SparseDoubleVector B,
+                      double left, double right);
+
     boolean isSymmetric();
     
     void setFilteredFeatureId(int key);
@@ -60,41 +60,51 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class RecallMi extends AbstractMIProximity {
+public class RecallMi extends AbstractMIProximity implements DotProductProximity {
+
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector vector) {
+        return positiveInformation(vector);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double numerator = 0.0;
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (posInf(B, j) > 0) {
-                    numerator += posInf(A, i);
-                }
-                
-                ++i;
-                ++j;
+        final Intersection x = intersect(A, B);
+        while (x.next()) {
+            final int i = x.left();
+            final int j = x.right();
+            if (B.values[j] > 0) {
+                numerator += A.values[i];
             }
         }
         
         return numerator;
     }
 
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return B.values[j] > 0 ? A.values[i] : 0;
+    }
+
+    @Override
+    public double leftFactor(SparseDoubleVector A, int i) {
+        return A.values[i];
+    }
+
+    @Override
+    public double rightFactor(SparseDoubleVector B, int j) {
+        return B.values[j] > 0 ? 1 : 0;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominator = 0.0;
         
         for (int i = 0; i < A.size; i++) {
-            denominator += posInf(A, i);
+            denominator += A.values[i];
         }
         
         return denominator;
@@ -46,11 +46,24 @@ public final class ReversedProximity implements Proximity {
         this.inner = inner;
     }
 
+    @Override
+    public SparseDoubleVector prepare(final SparseDoubleVector vector) {
+        return inner.prepare(vector);
+    }
+
     @Override
     public double shared(final SparseDoubleVector A, final SparseDoubleVector B) {
         return inner.shared(B, A);
     }
 
+    @Override
+    public void sharedBatch(final SparseDoubleVector query,
+                            final boolean queryIsA,
+                            final SparseDoubleVector[] others, final int count,
+                            final double[] out) {
+        inner.sharedBatch(query, !queryIsA, others, count, out);
+    }
+
     @Override
     public double left(final SparseDoubleVector A) {
         return inner.right(A);
@@ -67,6 +80,13 @@ public final class ReversedProximity implements Proximity {
         return inner.combine(shared, right, left);
     }
 
+    @Override
+    public double upperBound(final SparseDoubleVector A,
+                             final SparseDoubleVector B,
+                             final double left, final double right) {
+        return inner.upperBound(B, A, right, left);
+    }
+
     @Override
     public boolean isSymmetric() {
         return inner.isSymmetric();
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.util.Arrays;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Lookup table from the feature ids of one (query) vector to their offsets in
+ * that vector. Once loaded, each vector compared against the query can find
+ * the features it shares with it in a single pass over its own keys.
+ *
+ * <p>Feature ids below {@link #DENSE_LIMIT } are held in a plain array, which
+ * grows to the largest id seen and is reused from one query to the next;
+ * larger ids are held in a hash map. Loading and clearing a query are
+ * proportional to its size, not the size of the table.</p>
+ *
+ * <p>Not thread safe; {@link AbstractProximity } keeps one per thread.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ScatterTable {
+
+    /**
+     * Feature ids at or above this are held in the hash map, so a few
+     * enormous ids can not cause an enormous array to be allocated.
+     */
+    static final int DENSE_LIMIT = 1 << 22;
+
+    private int[] dense = new int[0];
+
+    private final Int2IntOpenHashMap sparse = new Int2IntOpenHashMap();
+
+    private SparseDoubleVector query = null;
+
+    ScatterTable() {
+        sparse.defaultReturnValue(-1);
+    }
+
+    /**
+     * Load the offsets of the given vector's features, replacing those of the
+     * previous query.
+     */
+    void load(SparseDoubleVector vector) {
+        clear();
+        if (vector.size > 0) {
+            final int maxKey = Math.min(vector.keys[vector.size - 1], DENSE_LIMIT - 1);
+            if (maxKey >= dense.length) {
+                final int oldLength = dense.length;
+                dense = Arrays.copyOf(dense, Math.max(maxKey + 1, 2 * oldLength));
+                Arrays.fill(dense, oldLength, dense.length, -1);
+            }
+        }
+        for (int i = 0; i < vector.size; i++) {
+            final int key = vector.keys[i];
+            if (key < DENSE_LIMIT)
+                dense[key] = i;
+            else
+                sparse.put(key, i);
+        }
+        query = vector;
+    }
+
+    /**
+     * @param key feature id
+     * @return offset of the feature in the loaded vector, or -1 if it does
+     *         not occur
+     */
+    int offsetOf(int key) {
+        return key < dense.length ? dense[key]
+               : key < DENSE_LIMIT ? -1 : sparse.get(key);
+    }
+
+    void clear() {
+        if (query == null)
+            return;
+        for (int i = 0; i < query.size; i++) {
+            final int key = query.keys[i];
+            if (key < DENSE_LIMIT)
+                dense[key] = -1;
+        }
+        if (!sparse.isEmpty())
+            sparse.clear();
+        query = null;
+    }
+}
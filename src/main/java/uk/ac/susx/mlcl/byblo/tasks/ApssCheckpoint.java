@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Persistent record of the chunk pairs completed by a {@link ThreadedApssTask},
+ * so an interrupted run can be resumed without repeating them.
+ *
+ * <p>The checkpoint is a directory holding a manifest and one run file per
+ * completed chunk pair. The output of each pair is written to its own run
+ * file, which is synced to disk before the pair is appended to the manifest,
+ * so a pair that is listed in the manifest always has its complete output.
+ * The manifest also records the input fingerprint, chunk limits, and grid
+ * shape; chunk boundaries are deterministic given the chunk limits, so a
+ * resumed run reproduces the same grid.</p>
+ *
+ * <p>Once every pair is complete, the runs are replayed into the real sink.
+ * </p>
+ *
+ * <p>Not thread safe, except for writing to a {@link Run}.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ApssCheckpoint implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ApssCheckpoint.class);
+
+    static final String MANIFEST_NAME = "manifest";
+
+    private static final String RUN_SUFFIX = ".run";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Charset MANIFEST_CHARSET = Charset.forName("UTF-8");
+
+    private final File dir;
+
+    private final String fingerprint;
+
+    private final int chunkSize;
+
+    private final long chunkNonZeros;
+
+    private final boolean halfGrid;
+
+    /**
+     * Number of pairs in the run of each completed chunk pair, keyed on the
+     * chunk pair.
+     */
+    private final Map<Long, Long> completed;
+
+    private FileOutputStream manifestStream = null;
+
+    private Writer manifestOut = null;
+
+    private ApssCheckpoint(File dir, String fingerprint, int chunkSize,
+                           long chunkNonZeros, boolean halfGrid,
+                           Map<Long, Long> completed) {
+        this.dir = dir;
+        this.fingerprint = fingerprint;
+        this.chunkSize = chunkSize;
+        this.chunkNonZeros = chunkNonZeros;
+        this.halfGrid = halfGrid;
+        this.completed = completed;
+    }
+
+    /**
+     * Start a new checkpoint in the given directory, discarding any existing
+     * one.
+     */
+    static ApssCheckpoint create(File dir, String fingerprint, int chunkSize,
+                                 long chunkNonZeros, boolean halfGrid)
+            throws IOException {
+        Checks.checkNotNull("dir", dir);
+        Checks.checkNotNull("fingerprint", fingerprint);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create checkpoint directory: " + dir);
+        deleteRuns(dir);
+
+        final ApssCheckpoint checkpoint = new ApssCheckpoint(
+                dir, fingerprint, chunkSize, chunkNonZeros, halfGrid,
+                new TreeMap<Long, Long>());
+        checkpoint.openManifest(false);
+        checkpoint.appendManifest("fingerprint " + fingerprint);
+        checkpoint.appendManifest("chunkSize " + chunkSize);
+        checkpoint.appendManifest("chunkNonZeros " + chunkNonZeros);
+        checkpoint.appendManifest("halfGrid " + halfGrid);
+        return checkpoint;
+    }
+
+    /**
+     * Re-open the existing checkpoint in the given directory.
+     *
+     * @throws FileNotFoundException if there is no manifest in the directory
+     */
+    static ApssCheckpoint resume(File dir) throws IOException {
+        Checks.checkNotNull("dir", dir);
+        final File manifestFile = new File(dir, MANIFEST_NAME);
+        if (!manifestFile.isFile())
+            throw new FileNotFoundException("No checkpoint manifest found: " + manifestFile);
+
+        String fingerprint = null;
+        int chunkSize = -1;
+        long chunkNonZeros = -1;
+        Boolean halfGrid = null;
+        final Map<Long, Long> completed = new TreeMap<Long, Long>();
+
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifestFile), MANIFEST_CHARSET));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                final String[] fields = line.trim().split(" ");
+                try {
+                    if (fields[0].equals("fingerprint") && fields.length == 2) {
+                        fingerprint = fields[1];
+                    } else if (fields[0].equals("chunkSize") && fields.length == 2) {
+                        chunkSize = Integer.parseInt(fields[1]);
+                    } else if (fields[0].equals("chunkNonZeros") && fields.length == 2) {
+                        chunkNonZeros = Long.parseLong(fields[1]);
+                    } else if (fields[0].equals("halfGrid") && fields.length == 2) {
+                        halfGrid = Boolean.valueOf(fields[1]);
+                    } else if (fields[0].equals("pair") && fields.length == 4) {
+                        final int i = Integer.parseInt(fields[1]);
+                        final int j = Integer.parseInt(fields[2]);
+                        completed.put(key(i, j), Long.parseLong(fields[3]));
+                    } else {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    // The last line may have been partially written when the
+                    // previous run was interrupted, in which case the pair
+                    // it describes is simply run again.
+                    LOG.warn("Ignoring malformed checkpoint manifest line: " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (fingerprint == null || chunkSize < 1 || halfGrid == null)
+            throw new IOException("Incomplete checkpoint manifest: " + manifestFile);
+
+        final ApssCheckpoint checkpoint = new ApssCheckpoint(
+                dir, fingerprint, chunkSize, chunkNonZeros, halfGrid, completed);
+        checkpoint.openManifest(true);
+        // Terminate any partially written line.
+        checkpoint.appendManifest("");
+        return checkpoint;
+    }
+
+    private static void deleteRuns(File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Unable to list checkpoint directory: " + dir);
+        for (File file : files) {
+            final String name = file.getName();
+            if ((name.equals(MANIFEST_NAME) || name.endsWith(RUN_SUFFIX)
+                 || name.endsWith(TEMP_SUFFIX)) && !file.delete())
+                throw new IOException("Unable to delete checkpoint file: " + file);
+        }
+    }
+
+    /**
+     * Delete the checkpoint directory and everything in it.
+     */
+    static void delete(File dir) throws IOException {
+        if (!dir.exists())
+            return;
+        deleteRuns(dir);
+        if (!dir.delete())
+            LOG.warn("Unable to delete checkpoint directory: " + dir);
+    }
+
+    private static long key(int i, int j) {
+        return ((long) i << 32) | (j & 0xffffffffL);
+    }
+
+    private File runFile(long key) {
+        return new File(dir, "pair-" + (int) (key >>> 32) + "-" + (int) key + RUN_SUFFIX);
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return maximum number of non-zero elements in each chunk, or -1 if
+     *         chunks were bounded only by the number of vectors
+     */
+    long getChunkNonZeros() {
+        return chunkNonZeros;
+    }
+
+    boolean isHalfGrid() {
+        return halfGrid;
+    }
+
+    int getCompletedCount() {
+        return completed.size();
+    }
+
+    boolean isCompleted(int i, int j) {
+        return completed.containsKey(key(i, j));
+    }
+
+    /**
+     * Open a run to receive the output of the given chunk pair. The pair is
+     * not considered complete until the run is passed to
+     * {@link #complete(Run)}.
+     */
+    Run openRun(int i, int j) throws IOException {
+        final long key = key(i, j);
+        if (completed.containsKey(key))
+            throw new IllegalStateException("Chunk pair already completed: " + i + ", " + j);
+        final File file = runFile(key);
+        return new Run(key, file, new File(file.getPath() + TEMP_SUFFIX));
+    }
+
+    /**
+     * Make the given run durable, and record its chunk pair as complete.
+     */
+    void complete(Run run) throws IOException {
+        run.close();
+        if (run.file.exists() && !run.file.delete())
+            throw new IOException("Unable to delete stale run file: " + run.file);
+        if (!run.tempFile.renameTo(run.file))
+            throw new IOException("Unable to rename run file " + run.tempFile
+                    + " to " + run.file);
+        completed.put(run.key, run.count);
+        appendManifest("pair " + (int) (run.key >>> 32) + " " + (int) run.key
+                + " " + run.count);
+    }
+
+    /**
+     * Write the contents of every completed run to the given sink, in chunk
+     * pair order.
+     *
+     * @return number of pairs written
+     */
+    long replay(ObjectSink<Weighted<TokenPair>> sink) throws IOException {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : completed.entrySet()) {
+            final File file = runFile(e.getKey());
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                for (long n = 0; n < e.getValue(); n++) {
+                    final int id1 = in.readInt();
+                    final int id2 = in.readInt();
+                    final double weight = in.readDouble();
+                    sink.write(new Weighted<TokenPair>(new TokenPair(id1, id2), weight));
+                }
+            } catch (EOFException ex) {
+                throw new IOException("Checkpoint run file is truncated: " + file, ex);
+            } finally {
+                in.close();
+            }
+            total += e.getValue();
+        }
+        return total;
+    }
+
+    private void openManifest(boolean append) throws IOException {
+        manifestStream = new FileOutputStream(new File(dir, MANIFEST_NAME), append);
+        manifestOut = new OutputStreamWriter(manifestStream, MANIFEST_CHARSET);
+    }
+
+    private void appendManifest(String line) throws IOException {
+        manifestOut.write(line);
+        manifestOut.write('\n');
+        manifestOut.flush();
+        manifestStream.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (manifestOut != null) {
+            manifestOut.close();
+            manifestOut = null;
+            manifestStream = null;
+        }
+    }
+
+    /**
+     * Sink that receives the output of a single chunk pair, and stores it in
+     * a temporary file until the pair is complete.
+     */
+    static final class Run implements ObjectSink<Weighted<TokenPair>>, Closeable {
+
+        private final long key;
+
+        private final File file;
+
+        private final File tempFile;
+
+        private final FileOutputStream stream;
+
+        private final DataOutputStream out;
+
+        private long count = 0;
+
+        private boolean closed = false;
+
+        private Run(long key, File file, File tempFile) throws IOException {
+            this.key = key;
+            this.file = file;
+            this.tempFile = tempFile;
+            this.stream = new FileOutputStream(tempFile);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream));
+        }
+
+        @Override
+        public synchronized void write(Weighted<TokenPair> pair) throws IOException {
+            out.writeInt(pair.record().id1());
+            out.writeInt(pair.record().id2());
+            out.writeDouble(pair.weight());
+            ++count;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Least-recently-used cache of decoded chunks of feature vectors, keyed by
+ * chunk number, that holds no more than a fixed budget of bytes. The size of
+ * each chunk is estimated from the lengths of its vectors' arrays.
+ *
+ * <p>Thread safe; every method is synchronized, so the cache can be shared by
+ * the workers that read chunks on demand.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ChunkCache {
+
+    /**
+     * Estimated bytes used by each vector, excluding the contents of its
+     * arrays: the Indexed and SparseDoubleVector objects, and two array
+     * headers.
+     */
+    static final long BYTES_PER_VECTOR = 96;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private long bytes = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    ChunkCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes < 0");
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * @param chunkId chunk number
+     * @return the chunk vectors, or null if the chunk is not cached
+     */
+    synchronized List<Indexed<SparseDoubleVector>> get(int chunkId) {
+        final Entry entry = entries.get(chunkId);
+        if (entry == null) {
+            ++missCount;
+            return null;
+        } else {
+            ++hitCount;
+            return entry.vectors;
+        }
+    }
+
+    /**
+     * As {@link #get(int)}, but without counting the lookup as a hit or a
+     * miss; for a second look at the cache after a miss.
+     *
+     * @param chunkId chunk number
+     * @return the chunk vectors, or null if the chunk is not cached
+     */
+    synchronized List<Indexed<SparseDoubleVector>> peek(int chunkId) {
+        final Entry entry = entries.get(chunkId);
+        return entry == null ? null : entry.vectors;
+    }
+
+    /**
+     * Add a chunk to the cache, evicting the least recently used chunks until
+     * it fits. Chunks that are larger than the whole budget are not cached.
+     *
+     * @param chunkId chunk number
+     * @param vectors the decoded chunk
+     */
+    void put(int chunkId, List<Indexed<SparseDoubleVector>> vectors) {
+        Checks.checkNotNull("vectors", vectors);
+        final long size = estimateBytes(vectors);
+        synchronized (this) {
+            final Entry previous = entries.remove(chunkId);
+            if (previous != null)
+                bytes -= previous.bytes;
+            if (size > maxBytes)
+                return;
+
+            final Iterator<Map.Entry<Integer, Entry>> it =
+                    entries.entrySet().iterator();
+            while (bytes + size > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().bytes;
+                it.remove();
+            }
+            entries.put(chunkId, new Entry(vectors, size));
+            bytes += size;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    static long estimateBytes(List<Indexed<SparseDoubleVector>> vectors) {
+        long size = 0;
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            size += BYTES_PER_VECTOR
+                    + 4L * v.value().keys.length
+                    + 8L * v.value().values.length;
+        }
+        return size;
+    }
+
+    private static final class Entry {
+
+        final List<Indexed<SparseDoubleVector>> vectors;
+
+        final long bytes;
+
+        Entry(List<Indexed<SparseDoubleVector>> vectors, long bytes) {
+            this.vectors = vectors;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Partition of a seekable source of feature vectors into consecutive chunks,
+ * recording where each chunk starts, and how large it is. A chunk is closed
+ * once it holds a maximum number of vectors, or a maximum number of non-zero
+ * elements, whichever comes first. Bounding the non-zeros stops the few very
+ * dense vectors at the head of a Zipfian distribution from being gathered
+ * into one chunk that dominates the run time, and memory, of the search.
+ *
+ * <p>Chunk boundaries depend only on the source and the two limits.</p>
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ChunkTable<S> {
+
+    private final List<S> starts;
+
+    private final IntArrayList vectorCounts;
+
+    private final LongArrayList nonZeroCounts;
+
+    private ChunkTable() {
+        starts = new ArrayList<S>();
+        vectorCounts = new IntArrayList();
+        nonZeroCounts = new LongArrayList();
+    }
+
+    /**
+     * Read the whole of the given source to find its chunk boundaries. Each
+     * chunk is passed to the cache (if any) as it is decoded, so that it need
+     * not be decoded again.
+     *
+     * @param source       vectors to partition
+     * @param maxVectors   maximum number of vectors in each chunk
+     * @param maxNonZeros  maximum number of non-zero elements in each chunk,
+     *                     or -1 for no limit; a single vector with more
+     *                     non-zeros still forms a chunk of its own
+     * @param cache        cache to receive the decoded chunks, or null
+     * @return the chunk table
+     * @throws IOException if the source could not be read
+     */
+    static <S> ChunkTable<S> build(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> source,
+            int maxVectors, long maxNonZeros, ChunkCache cache)
+            throws IOException {
+        Checks.checkNotNull("source", source);
+        if (maxVectors < 1)
+            throw new IllegalArgumentException("maxVectors < 1");
+        if (maxNonZeros < 1 && maxNonZeros != -1)
+            throw new IllegalArgumentException("maxNonZeros < 1 and not -1");
+
+        final ChunkTable<S> table = new ChunkTable<S>();
+        List<Indexed<SparseDoubleVector>> chunk = null;
+        S start = null;
+        long nonZeros = 0;
+        while (source.hasNext()) {
+            final S position = source.position();
+            final Indexed<SparseDoubleVector> v = source.read();
+            final int size = v.value().size;
+            if (chunk != null && (chunk.size() >= maxVectors
+                    || (maxNonZeros != -1 && nonZeros + size > maxNonZeros))) {
+                table.add(start, chunk, nonZeros, cache);
+                chunk = null;
+            }
+            if (chunk == null) {
+                chunk = new ArrayList<Indexed<SparseDoubleVector>>();
+                start = position;
+                nonZeros = 0;
+            }
+            chunk.add(v);
+            nonZeros += size;
+        }
+        if (chunk != null)
+            table.add(start, chunk, nonZeros, cache);
+        return table;
+    }
+
+    private void add(S start, List<Indexed<SparseDoubleVector>> chunk,
+                     long nonZeros, ChunkCache cache) {
+        if (cache != null)
+            cache.put(starts.size(), chunk);
+        starts.add(start);
+        vectorCounts.add(chunk.size());
+        nonZeroCounts.add(nonZeros);
+    }
+
+    /**
+     * @return number of chunks
+     */
+    int size() {
+        return starts.size();
+    }
+
+    int getVectorCount(int chunkId) {
+        return vectorCounts.getInt(chunkId);
+    }
+
+    long getNonZeroCount(int chunkId) {
+        return nonZeroCounts.getLong(chunkId);
+    }
+
+    /**
+     * Decode the vectors of the given chunk, by seeking to its start.
+     */
+    List<Indexed<SparseDoubleVector>> read(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> source,
+            int chunkId) throws IOException {
+        source.position(starts.get(chunkId));
+        final int count = vectorCounts.getInt(chunkId);
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>(count);
+        for (int i = 0; i < count; i++)
+            vectors.add(source.read());
+        return vectors;
+    }
+
+}
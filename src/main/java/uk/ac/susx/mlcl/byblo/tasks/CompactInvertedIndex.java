@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A frozen reverse index from feature ids to the vectors that contain them,
+ * stored in compressed-sparse-row form. Each indexed vector is assigned an
+ * integer slot, and the postings of every feature are stored contiguously in
+ * a pair of int arrays; holding the slot of the vector, and the offset of the
+ * feature within the vector. This costs 8 bytes per posting, rather than the
+ * several dozen bytes required by a map of hash sets.
+ *
+ * <p>The offsets allow the shared component of a
+ * {@link DecomposableProximity} to be accumulated directly from the postings
+ * (see {@link #accumulate}), without intersecting the vectors again.</p>
+ *
+ * <p>Features may be excluded from the index (see
+ * {@link Builder#excludeFeatures }), typically because they occur in so many
+ * vectors that their postings would make nearly every vector a candidate of
+ * every query. The number of indexed vectors containing each excluded feature
+ * is kept, so the cost of the postings that were left out can be
+ * reported.</p>
+ *
+ * <p>Features ids are assumed to be densely enumerated, so the row offsets are
+ * stored in an array that spans the range of indexed feature ids.</p>
+ *
+ * <p>Instances are immutable once built, and so may be shared between
+ * threads. Querying requires a {@link Candidates} object, which holds the
+ * per-thread working state.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class CompactInvertedIndex {
+
+    private final Indexed<SparseDoubleVector>[] vectors;
+
+    /**
+     * The smallest indexed feature id; row r holds the postings of feature
+     * {@code minKey + r}.
+     */
+    private final int minKey;
+
+    /**
+     * Postings of row r are stored in {@code slots[offsets[r]]} up to (but not
+     * including) {@code slots[offsets[r + 1]]}.
+     */
+    private final int[] offsets;
+
+    private final int[] slots;
+
+    /**
+     * Offset of the feature within the vector's keys, for each posting.
+     */
+    private final int[] positions;
+
+    /**
+     * Number of indexed vectors containing each feature that was excluded from
+     * the index; features that occur in none of them are not held.
+     */
+    private final Int2IntMap excludedFeatures;
+
+    private CompactInvertedIndex(Indexed<SparseDoubleVector>[] vectors,
+                                 int minKey, int[] offsets, int[] slots,
+                                 int[] positions, Int2IntMap excludedFeatures) {
+        this.vectors = vectors;
+        this.minKey = minKey;
+        this.offsets = offsets;
+        this.slots = slots;
+        this.positions = positions;
+        this.excludedFeatures = excludedFeatures;
+    }
+
+    /**
+     * @return the number of vectors held by the index
+     */
+    public int getVectorCount() {
+        return vectors.length;
+    }
+
+    /**
+     * @return the total number of postings held by the index
+     */
+    public int getPostingCount() {
+        return slots.length;
+    }
+
+    /**
+     * @param key feature id
+     * @return the number of postings held for the feature
+     */
+    public int getPostingCount(int key) {
+        final long row = (long) key - minKey;
+        if (row < 0 || row >= offsets.length - 1)
+            return 0;
+        return offsets[(int) row + 1] - offsets[(int) row];
+    }
+
+    /**
+     * @return whether any features of the indexed vectors were excluded from
+     *         the index
+     */
+    public boolean hasExcludedFeatures() {
+        return !excludedFeatures.isEmpty();
+    }
+
+    /**
+     * @return the number of features of the indexed vectors that were
+     *         excluded from the index
+     */
+    public int getExcludedFeatureCount() {
+        return excludedFeatures.size();
+    }
+
+    /**
+     * @param key feature id
+     * @return the number of indexed vectors that contain the feature, if it
+     *         was excluded from the index, otherwise 0
+     */
+    public int getExcludedPostingCount(int key) {
+        return excludedFeatures.get(key);
+    }
+
+    /**
+     * @param slot vector slot, as returned by {@link Candidates#get(int) }
+     * @return the vector that was assigned the given slot
+     */
+    public Indexed<SparseDoubleVector> getVector(int slot) {
+        return vectors[slot];
+    }
+
+    /**
+     * Instantiate a new candidate collector, sized for this index.
+     *
+     * @return new candidate collector
+     */
+    public Candidates newCandidates() {
+        return new Candidates(vectors.length, true);
+    }
+
+    /**
+     * Find the slots of all indexed vectors that share at least one indexed
+     * feature with the given keys. Previous contents of {@code candidates} are
+     * discarded.
+     *
+     * @param keys       feature ids to look up
+     * @param candidates collector to store the results in
+     */
+    public void findCandidates(int[] keys, Candidates candidates) {
+        findCandidates(keys, keys.length, candidates);
+    }
+
+    /**
+     * Find the slots of all indexed vectors that share at least one indexed
+     * feature with the first {@code size} keys. Previous contents of
+     * {@code candidates} are discarded.
+     *
+     * @param keys       feature ids to look up
+     * @param size       number of feature ids to read from {@code keys}
+     * @param candidates collector to store the results in
+     */
+    public void findCandidates(int[] keys, int size, Candidates candidates) {
+        candidates.clear();
+        final int nRows = offsets.length - 1;
+        for (int i = 0; i < size; i++) {
+            // Subtraction in long arithmetic so distant keys can't overflow
+            final long row = (long) keys[i] - minKey;
+            if (row < 0 || row >= nRows)
+                continue;
+            final int end = offsets[(int) row + 1];
+            for (int p = offsets[(int) row]; p < end; p++) {
+                candidates.mark(slots[p]);
+            }
+        }
+    }
+
+    /**
+     * Find the slots of all indexed vectors that share at least one indexed
+     * feature with the query vector, and accumulate the shared component of
+     * the measure between each of them and the query, term-at-a-time. The
+     * indexed vector is taken as the first argument of the measure. Previous
+     * contents of {@code candidates} are discarded.
+     *
+     * <p>Terms are added in ascending order of feature id, so when every
+     * feature of the indexed vectors has been indexed, the accumulated values
+     * are exactly those returned by
+     * {@link DecomposableProximity#shared(SparseDoubleVector, SparseDoubleVector) }.</p>
+     *
+     * @param query      vector to look up
+     * @param measure    measure to accumulate
+     * @param candidates collector to store the results in
+     */
+    public void accumulate(SparseDoubleVector query,
+                           DecomposableProximity measure,
+                           Candidates candidates) {
+        if (candidates.values == null)
+            throw new IllegalArgumentException(
+                    "candidates do not hold values; use newCandidates()");
+        candidates.clear();
+        final int nRows = offsets.length - 1;
+        for (int j = 0; j < query.size; j++) {
+            final long row = (long) query.keys[j] - minKey;
+            if (row < 0 || row >= nRows)
+                continue;
+            final int end = offsets[(int) row + 1];
+            if (measure.isFiltered(query.keys[j])) {
+                for (int p = offsets[(int) row]; p < end; p++) {
+                    candidates.mark(slots[p]);
+                }
+            } else {
+                for (int p = offsets[(int) row]; p < end; p++) {
+                    final int slot = slots[p];
+                    candidates.add(slot, measure.sharedTerm(
+                            vectors[slot].value(), positions[p], query, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reusable storage for the result of a candidate look up. A marker array,
+     * holding the query number at which each slot was last seen, is used to
+     * remove duplicates; so clearing the set costs nothing in the common case.
+     *
+     * <p>Other tasks that only need a set of slots, such as
+     * {@link LshApssTask}, use instances without the accumulated values.</p>
+     */
+    public static final class Candidates {
+
+        private final int[] lastSeen;
+
+        private final int[] found;
+
+        /**
+         * Accumulated value of each slot; only valid for slots found by the
+         * current query. Null if the values are not needed.
+         */
+        private final double[] values;
+
+        private int size;
+
+        private int stamp;
+
+        /**
+         * Construct a set of slots, without accumulated values.
+         *
+         * @param capacity number of slots
+         */
+        Candidates(int capacity) {
+            this(capacity, false);
+        }
+
+        private Candidates(int capacity, boolean accumulating) {
+            lastSeen = new int[capacity];
+            found = new int[capacity];
+            values = accumulating ? new double[capacity] : null;
+            size = 0;
+            stamp = 0;
+        }
+
+        void clear() {
+            size = 0;
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(lastSeen, 0);
+                stamp = 1;
+            }
+        }
+
+        /**
+         * @return true if the slot was not already found by the current query
+         */
+        boolean mark(int slot) {
+            if (lastSeen[slot] != stamp) {
+                lastSeen[slot] = stamp;
+                found[size++] = slot;
+                if (values != null)
+                    values[slot] = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private void add(int slot, double value) {
+            mark(slot);
+            values[slot] += value;
+        }
+
+        /**
+         * @return number of candidates found
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param i offset of the candidate, from 0 to {@link #size()}
+         * @return slot of the i<sup>th</sup> candidate
+         */
+        public int get(int i) {
+            return found[i];
+        }
+
+        /**
+         * @param i offset of the candidate, from 0 to {@link #size()}
+         * @return value accumulated for the i<sup>th</sup> candidate by
+         *         {@link CompactInvertedIndex#accumulate}, or 0 if the
+         *         candidates were found by {@code findCandidates} or hold no
+         *         values
+         */
+        public double getValue(int i) {
+            return values == null ? 0 : values[found[i]];
+        }
+
+        /**
+         * @param slot vector slot
+         * @return whether the slot was found by the current query
+         */
+        public boolean contains(int slot) {
+            return lastSeen[slot] == stamp;
+        }
+
+    }
+
+    /**
+     * Mutable accumulator for postings, from which the frozen index is built.
+     */
+    public static final class Builder {
+
+        private final List<Indexed<SparseDoubleVector>> vectors;
+
+        private final IntArrayList keys;
+
+        private final IntArrayList slots;
+
+        private final IntArrayList positions;
+
+        private int minKey = Integer.MAX_VALUE;
+
+        private int maxKey = Integer.MIN_VALUE;
+
+        private IntSet excludedFeatures;
+
+        /**
+         * Number of vectors added that contain each excluded feature.
+         */
+        private final Int2IntMap excludedPostings;
+
+        public Builder() {
+            vectors = new ArrayList<Indexed<SparseDoubleVector>>();
+            keys = new IntArrayList();
+            slots = new IntArrayList();
+            positions = new IntArrayList();
+            excludedFeatures = IntSets.EMPTY_SET;
+            excludedPostings = new Int2IntOpenHashMap();
+        }
+
+        /**
+         * Exclude features from the index; no postings will be added for them
+         * by {@link #addAll}, but the vectors containing each are counted.
+         * This must be called before any vectors are added. The set is not
+         * copied, so may be shared by many builders, but must not be modified.
+         *
+         * @param keys ids of the features to exclude
+         */
+        public void excludeFeatures(IntSet keys) {
+            Checks.checkNotNull("keys", keys);
+            if (!vectors.isEmpty())
+                throw new IllegalStateException("vectors have already been added");
+            excludedFeatures = keys;
+        }
+
+        /**
+         * Add a vector to the index, without indexing any of its features.
+         *
+         * @param vector vector to add
+         * @return slot assigned to the vector
+         */
+        public int addVector(Indexed<SparseDoubleVector> vector) {
+            Checks.checkNotNull("vector", vector);
+            vectors.add(vector);
+            return vectors.size() - 1;
+        }
+
+        /**
+         * Record that the vector in the given slot contains the given feature.
+         * Postings for each vector must only be added once per feature.
+         *
+         * @param key  feature id
+         * @param slot slot of the vector, as returned by {@link #addVector}
+         * @throws IllegalArgumentException if the vector does not contain the
+         *                                  feature
+         */
+        public void addPosting(int key, int slot) {
+            if (slot < 0 || slot >= vectors.size())
+                throw new IndexOutOfBoundsException("slot " + slot);
+            final SparseDoubleVector v = vectors.get(slot).value();
+            final int position = Arrays.binarySearch(v.keys, 0, v.size, key);
+            if (position < 0)
+                throw new IllegalArgumentException(
+                        "Vector in slot " + slot + " does not contain feature " + key);
+            addPosting(key, slot, position);
+        }
+
+        private void addPosting(int key, int slot, int position) {
+            keys.add(key);
+            slots.add(slot);
+            positions.add(position);
+            if (key < minKey)
+                minKey = key;
+            if (key > maxKey)
+                maxKey = key;
+        }
+
+        /**
+         * Add a vector to the index, along with postings for all of its
+         * features that have not been excluded.
+         *
+         * @param vector vector to add
+         * @return slot assigned to the vector
+         */
+        public int addAll(Indexed<SparseDoubleVector> vector) {
+            final int slot = addVector(vector);
+            final SparseDoubleVector v = vector.value();
+            final boolean excluding = !excludedFeatures.isEmpty();
+            for (int i = 0; i < v.size; i++) {
+                final int key = v.keys[i];
+                if (excluding && excludedFeatures.contains(key))
+                    excludedPostings.put(key, excludedPostings.get(key) + 1);
+                else
+                    addPosting(key, slot, i);
+            }
+            return slot;
+        }
+
+        /**
+         * Freeze the accumulated postings into a compact index, using a
+         * counting sort over feature ids.
+         *
+         * @return the new index
+         */
+        @SuppressWarnings("unchecked")
+        public CompactInvertedIndex build() {
+            final Indexed<SparseDoubleVector>[] vectorArray =
+                    (Indexed<SparseDoubleVector>[]) vectors.toArray(new Indexed<?>[vectors.size()]);
+
+            if (keys.isEmpty()) {
+                return new CompactInvertedIndex(
+                        vectorArray, 0, new int[1], new int[0], new int[0],
+                        new Int2IntOpenHashMap(excludedPostings));
+            }
+
+            final long nRowsLong = (long) maxKey - minKey + 1;
+            if (nRowsLong >= Integer.MAX_VALUE)
+                throw new IllegalStateException(
+                        "Feature id range is too large to index: ["
+                        + minKey + ", " + maxKey + "]");
+            final int nRows = (int) nRowsLong;
+
+            final int[] keyArray = keys.elements();
+            final int[] slotArray = slots.elements();
+            final int[] positionArray = positions.elements();
+            final int nPostings = keys.size();
+
+            final int[] offsets = new int[nRows + 1];
+            for (int i = 0; i < nPostings; i++)
+                ++offsets[keyArray[i] - minKey + 1];
+            for (int r = 0; r < nRows; r++)
+                offsets[r + 1] += offsets[r];
+
+            final int[] next = Arrays.copyOf(offsets, nRows);
+            final int[] postings = new int[nPostings];
+            final int[] postingPositions = new int[nPostings];
+            for (int i = 0; i < nPostings; i++) {
+                final int p = next[keyArray[i] - minKey]++;
+                postings[p] = slotArray[i];
+                postingPositions[p] = positionArray[i];
+            }
+
+            return new CompactInvertedIndex(vectorArray, minKey, offsets,
+                                            postings, postingPositions,
+                                            new Int2IntOpenHashMap(excludedPostings));
+        }
+
+    }
+
+}
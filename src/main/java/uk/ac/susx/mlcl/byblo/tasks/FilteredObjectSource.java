@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Predicate;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Seekable source decorator that skips every object rejected by a predicate.
+ * The next accepted object is read ahead, so that the position reported is
+ * always that of the next object to be returned.
+ *
+ * @param <T> type of object being read
+ * @param <P> type of position in the underlying source
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class FilteredObjectSource<T, P> implements SeekableObjectSource<T, P> {
+
+    private final SeekableObjectSource<T, P> inner;
+
+    private final Predicate<? super T> accept;
+
+    private T next = null;
+
+    private P nextPosition = null;
+
+    private boolean readAhead = false;
+
+    FilteredObjectSource(SeekableObjectSource<T, P> inner,
+                         Predicate<? super T> accept) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkNotNull("accept", accept);
+        this.inner = inner;
+        this.accept = accept;
+    }
+
+    private void readAhead() throws IOException {
+        if (readAhead)
+            return;
+        next = null;
+        while (inner.hasNext()) {
+            final P position = inner.position();
+            final T item = inner.read();
+            if (accept.apply(item)) {
+                next = item;
+                nextPosition = position;
+                break;
+            }
+        }
+        if (next == null)
+            nextPosition = inner.position();
+        readAhead = true;
+    }
+
+    @Override
+    public T read() throws IOException {
+        readAhead();
+        if (next == null)
+            throw new NoSuchElementException();
+        final T item = next;
+        next = null;
+        readAhead = false;
+        return item;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        readAhead();
+        return next != null;
+    }
+
+    @Override
+    public P position() throws IOException {
+        readAhead();
+        return nextPosition;
+    }
+
+    @Override
+    public void position(P offset) throws IOException {
+        inner.position(offset);
+        next = null;
+        readAhead = false;
+    }
+
+    @Override
+    public String toString() {
+        return "Filtered{" + inner + "}";
+    }
+
+}
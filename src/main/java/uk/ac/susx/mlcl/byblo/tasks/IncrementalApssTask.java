@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.base.Predicate;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.NearestNeighboursSink;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An all pairs similarity search that brings the output of a previous search
+ * up to date with a set of added entries, rather than repeating the search
+ * over every entry. Sources A and B hold the vectors the previous search was
+ * run over, and the added sources hold the vectors of the new entries, along
+ * with the new vectors of any changed entries; an added vector replaces any
+ * previous vector with the same id.
+ *
+ * <p>The pairs of the previous output that involve no added entry are copied
+ * to the sink, then only those pairs that involve an added entry are
+ * compared: added entries against the remaining previous entries (in both
+ * directions, or once with the pairs output in both directions when the half
+ * grid is enabled and the measure is symmetric), and added entries against
+ * each other. Each comparison is performed by a separate instance of the
+ * inner algorithm.</p>
+ *
+ * <p>When the sink is a {@link NearestNeighboursSink}, the previous output
+ * must hold the neighbours selected with the same k, grouped by base entry.
+ * The neighbours of an unchanged entry are then the best of its previous
+ * neighbours and the added entries, unless its list was full and included a
+ * changed entry; the rest of its k nearest neighbours are then unknown, so
+ * it is compared with every previous entry again.</p>
+ *
+ * <p>Pairs between unchanged entries are not recalculated. Measures that
+ * depend on corpus wide statistics, such as the feature frequencies, use the
+ * statistics they are given for the new pairs only.</p>
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class IncrementalApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(IncrementalApssTask.class);
+
+    // Class literals are necessarily raw
+    @SuppressWarnings("rawtypes")
+    private Class<? extends NaiveApssTask> innerAlgorithm = InvertedApssTask.class;
+
+    /**
+     * Instance of the inner algorithm from which algorithm specific settings
+     * are copied to every inner task, or null to use the defaults.
+     */
+    private NaiveApssTask<?> innerSettings = null;
+
+    /**
+     * Copy of the inner settings used by the current run, in which those
+     * settings that depend on the whole of source B have been resolved.
+     */
+    private NaiveApssTask<?> runSettings = null;
+
+    private SeekableObjectSource<Indexed<SparseDoubleVector>, S> addedSourceA = null;
+
+    private SeekableObjectSource<Indexed<SparseDoubleVector>, S> addedSourceB = null;
+
+    /**
+     * The output of the previous search; either every pair, or the nearest
+     * neighbours of each entry, depending on the sink.
+     */
+    private ObjectSource<Weighted<TokenPair>> previousPairs = null;
+
+    /**
+     * Whether or not the pairs between added and previous entries are only
+     * compared in one direction, and output in both, when the measure is
+     * symmetric.
+     */
+    private boolean halfGridEnabled = false;
+
+    public IncrementalApssTask() {
+    }
+
+    @Override
+    protected void buildPrecalcs() throws IOException {
+        // Each inner task calculates those of the sources it is given.
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Class<? extends NaiveApssTask> getInnerAlgorithm() {
+        return innerAlgorithm;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void setInnerAlgorithm(Class<? extends NaiveApssTask> innerAlgorithm) {
+        Checks.checkNotNull("innerAlgorithm", innerAlgorithm);
+        this.innerAlgorithm = innerAlgorithm;
+    }
+
+    public NaiveApssTask<?> getInnerSettings() {
+        return innerSettings;
+    }
+
+    /**
+     * @param innerSettings instance of the inner algorithm, whose algorithm
+     *                      specific settings will be copied to each inner
+     *                      task; or null to use the defaults
+     */
+    public void setInnerSettings(NaiveApssTask<?> innerSettings) {
+        this.innerSettings = innerSettings;
+    }
+
+    /**
+     * @param A first source of the added vectors
+     * @param B second source of the same added vectors
+     */
+    public final void setAddedSources(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> A,
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> B) {
+        Checks.checkNotNull("A", A);
+        Checks.checkNotNull("B", B);
+        if (A == B)
+            throw new IllegalArgumentException("A == B");
+        this.addedSourceA = A;
+        this.addedSourceB = B;
+    }
+
+    public final SeekableObjectSource<Indexed<SparseDoubleVector>, S> getAddedSourceA() {
+        return addedSourceA;
+    }
+
+    public final SeekableObjectSource<Indexed<SparseDoubleVector>, S> getAddedSourceB() {
+        return addedSourceB;
+    }
+
+    public final ObjectSource<Weighted<TokenPair>> getPreviousPairs() {
+        return previousPairs;
+    }
+
+    public final void setPreviousPairs(ObjectSource<Weighted<TokenPair>> previousPairs) {
+        Checks.checkNotNull("previousPairs", previousPairs);
+        this.previousPairs = previousPairs;
+    }
+
+    public final boolean isHalfGridEnabled() {
+        return halfGridEnabled;
+    }
+
+    public final void setHalfGridEnabled(boolean halfGridEnabled) {
+        this.halfGridEnabled = halfGridEnabled;
+    }
+
+    @Override
+    protected void checkState() throws IOException {
+        super.checkState();
+        if (addedSourceA == null || addedSourceB == null)
+            throw new IllegalStateException("added sources are not set");
+        if (previousPairs == null)
+            throw new IllegalStateException("previous pairs are not set");
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Reading added entries.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final IntSet addedIds = new IntOpenHashSet();
+        final S startAdded = addedSourceA.position();
+        while (addedSourceA.hasNext())
+            addedIds.add(addedSourceA.read().key());
+        addedSourceA.position(startAdded);
+
+        progress.setMessage("Copying previous pairs.");
+        final IntSet repairIds = new IntOpenHashSet();
+        final long retained = getSink() instanceof NearestNeighboursSink
+                ? copyPreviousNeighbours(addedIds, repairIds,
+                                         ((NearestNeighboursSink) getSink()).getK())
+                : copyPreviousPairs(addedIds);
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Updating all-pairs with {0,number} added entries; retained {1,number} previous "
+                    + "pairs, and {2,number} entries will be compared with every previous entry again.",
+                    addedIds.size(), retained, repairIds.size()));
+        }
+
+        final Predicate<Indexed<SparseDoubleVector>> unchanged = new Predicate<Indexed<SparseDoubleVector>>() {
+            @Override
+            public boolean apply(Indexed<SparseDoubleVector> vector) {
+                return !addedIds.contains(vector.key());
+            }
+        };
+        final boolean halfGrid = halfGridEnabled && getMeasure().isSymmetric();
+        // The inner searches are each given part of the sources, so settings
+        // that depend on the whole of source B are resolved once beforehand.
+        runSettings = resolvedCopy(innerSettings, getSourceB());
+        final S startA = getSourceA().position();
+        final S startB = getSourceB().position();
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, S> addedA =
+                isVectorsPrepared() ? addedSourceA
+                : PreparedListSource.read(addedSourceA, getMeasure());
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, S> addedB =
+                isVectorsPrepared() ? addedSourceB
+                : PreparedListSource.read(addedSourceB, getMeasure());
+
+        progress.setMessage("Comparing added entries with previous entries.");
+        search(filter(getSourceA(), startA, unchanged), addedB, false, halfGrid);
+        if (!halfGrid)
+            search(addedA, filter(getSourceB(), startB, unchanged), false, false);
+        progress.setProgressPercent(50);
+
+        progress.setMessage("Comparing added entries with each other.");
+        search(addedA, addedB, halfGrid, halfGrid);
+
+        if (!repairIds.isEmpty()) {
+            progress.setMessage("Comparing entries that lost a neighbour with previous entries.");
+            search(filter(getSourceA(), startA, unchanged),
+                   filter(getSourceB(), startB, new Predicate<Indexed<SparseDoubleVector>>() {
+                       @Override
+                       public boolean apply(Indexed<SparseDoubleVector> vector) {
+                           return repairIds.contains(vector.key());
+                       }
+                   }), false, false);
+        }
+
+        runSettings = null;
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    /**
+     * Copy every previous pair that involves no added entry to the sink.
+     *
+     * @return number of pairs copied
+     */
+    private long copyPreviousPairs(IntSet addedIds) throws IOException {
+        long retained = 0;
+        while (previousPairs.hasNext()) {
+            final Weighted<TokenPair> pair = previousPairs.read();
+            if (!addedIds.contains(pair.record().id1())
+                    && !addedIds.contains(pair.record().id2())) {
+                getSink().write(pair);
+                ++retained;
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Copy the previous neighbours of every unchanged entry to the sink, less
+     * any added entries. An entry whose list was full, and included an added
+     * entry, is not copied, but is added to the repair set instead.
+     *
+     * @return number of pairs copied
+     */
+    private long copyPreviousNeighbours(IntSet addedIds, IntSet repairIds, int k)
+            throws IOException {
+        final IntSet seen = new IntOpenHashSet();
+        final List<Weighted<TokenPair>> kept = new ArrayList<Weighted<TokenPair>>();
+        long retained = 0;
+        int base = 0;
+        int listSize = 0;
+        boolean lostNeighbour = false;
+        while (true) {
+            final Weighted<TokenPair> pair =
+                    previousPairs.hasNext() ? previousPairs.read() : null;
+            if (listSize > 0 && (pair == null || pair.record().id1() != base)) {
+                if (addedIds.contains(base)) {
+                    // Replaced by the neighbours found for the added entry
+                } else if (lostNeighbour && listSize >= k) {
+                    repairIds.add(base);
+                } else {
+                    for (Weighted<TokenPair> neighbour : kept)
+                        getSink().write(neighbour);
+                    retained += kept.size();
+                }
+                kept.clear();
+                listSize = 0;
+                lostNeighbour = false;
+            }
+            if (pair == null)
+                break;
+            base = pair.record().id1();
+            if (listSize == 0 && !seen.add(base))
+                throw new IllegalStateException(
+                        "previous neighbours are not grouped by base entry: " + base);
+            ++listSize;
+            if (addedIds.contains(pair.record().id2()))
+                lostNeighbour = true;
+            else
+                kept.add(pair);
+        }
+        return retained;
+    }
+
+    /**
+     * @return view of the given source from its start, holding only the
+     *         vectors accepted by the predicate
+     */
+    private FilteredObjectSource<Indexed<SparseDoubleVector>, S> filter(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> source, S start,
+            Predicate<Indexed<SparseDoubleVector>> accept) throws IOException {
+        source.position(start);
+        return new FilteredObjectSource<Indexed<SparseDoubleVector>, S>(source, accept);
+    }
+
+    /**
+     * Run the inner algorithm over the given (prepared) sources, writing to
+     * the sink, then return both sources to where they started. Nothing is
+     * done when either source is empty.
+     */
+    private void search(SeekableObjectSource<Indexed<SparseDoubleVector>, S> A,
+                        SeekableObjectSource<Indexed<SparseDoubleVector>, S> B,
+                        boolean identical, boolean reversed) throws Exception {
+        final S startA = A.position();
+        final S startB = B.position();
+        if (!A.hasNext() || !B.hasNext())
+            return;
+
+        @SuppressWarnings("unchecked")
+        final NaiveApssTask<S> task = innerAlgorithm.newInstance();
+        task.setSourceA(A);
+        task.setSourceB(B);
+        task.setMeasure(getMeasure());
+        task.setProducatePair(getProducatePair());
+        task.setProcessRecord(getProcessRecord());
+        task.setMinSimilarity(getMinSimilarity());
+        task.setSink(getSink());
+        task.setStats(getStats());
+        task.setVectorsPrepared(true);
+        task.setSourcesIdentical(identical);
+        task.setOutputReversedPairs(reversed);
+        if (runSettings != null)
+            runSettings.copySettingsTo(task);
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+
+        A.position(startA);
+        B.position(startB);
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("innerAlgorithm", innerAlgorithm).
+                add("halfGridEnabled", halfGridEnabled).
+                add("addedSourceA", addedSourceA).
+                add("addedSourceB", addedSourceB).
+                add("previousPairs", previousPairs);
+    }
+
+}
@@ -30,22 +30,24 @@
  */
 package uk.ac.susx.mlcl.byblo.tasks;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import com.google.common.base.Objects.ToStringHelper;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.VectorStats;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 
 /**
@@ -53,6 +55,29 @@ import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
  * building a reverse index of one of the input sources. This allows candidate
  * pairs to be found relatively quickly given sufficient sparsity
  *
+ * <p>The index is held in a compact primitive form (see
+ * {@link CompactInvertedIndex}), and candidates are collected into a reusable
+ * marker array, so no objects are allocated per query vector.</p>
+ *
+ * <p>When the measure is a {@link DecomposableProximity}, the shared
+ * component of every candidate pair is accumulated while the postings are
+ * walked, so the vectors do not need to be intersected again. Other measures
+ * are calculated in full for each candidate, in batches of candidates for
+ * each query vector.</p>
+ *
+ * <p>A few features (determiners and punctuation contexts, for example) occur
+ * with most entries, so their postings make nearly every indexed vector a
+ * candidate of every query. Features occurring in more than a given
+ * proportion of the vectors of source B can be left out of the index (see
+ * {@link #setMaxDocumentFrequency }). The document frequencies are counted
+ * over the whole of source B, once, so the same features are excluded however
+ * the sources are divided between tasks (see {@link #setExcludedFeatures }).
+ * Candidates are then only found through
+ * the remaining features, but are still compared exactly, over every feature.
+ * Pairs that share only excluded features are lost; the postings skipped are
+ * tallied by a {@link CutoffReport}, and the recall of a sample of the
+ * queries by a {@link RecallEstimate}.</p>
+ *
  * @param <S>
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -60,12 +85,133 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     private static final Log LOG = LogFactory.getLog(InvertedApssTask.class);
 
-    private Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index;
+    /**
+     * Default proportion of indexed vectors a feature may occur in: 1, so
+     * every feature is indexed.
+     */
+    public static final double DEFAULT_MAX_DOCUMENT_FREQUENCY = 1;
+
+    public static final double DEFAULT_RECALL_SAMPLE_RATE = 0.01;
+
+    private CompactInvertedIndex index;
+
+    private double maxDocumentFrequency = DEFAULT_MAX_DOCUMENT_FREQUENCY;
+
+    private double recallSampleRate = DEFAULT_RECALL_SAMPLE_RATE;
+
+    private CutoffReport cutoffReport = new CutoffReport();
+
+    /**
+     * Features left out of the index by the document frequency cutoff, or
+     * null if they have yet to be found.
+     */
+    private IntSet excludedFeatures = null;
+
+    private RecallEstimate recallEstimate = new RecallEstimate();
 
     public InvertedApssTask() {
         index = null;
     }
 
+    public final double getMaxDocumentFrequency() {
+        return maxDocumentFrequency;
+    }
+
+    /**
+     * @param maxDocumentFrequency proportion of the vectors of source B that
+     *                             a feature may occur in, and still be
+     *                             indexed; 1 to index every feature
+     */
+    public final void setMaxDocumentFrequency(double maxDocumentFrequency) {
+        if (!(maxDocumentFrequency > 0 && maxDocumentFrequency <= 1))
+            throw new IllegalArgumentException(
+                    "maxDocumentFrequency not in range (0,1]: " + maxDocumentFrequency);
+        this.maxDocumentFrequency = maxDocumentFrequency;
+    }
+
+    public final double getRecallSampleRate() {
+        return recallSampleRate;
+    }
+
+    /**
+     * @param recallSampleRate proportion of vectors from source B that are
+     *                         also compared with every indexed vector, to
+     *                         estimate the recall lost to the document
+     *                         frequency cutoff; 0 to disable
+     */
+    public final void setRecallSampleRate(double recallSampleRate) {
+        if (!(recallSampleRate >= 0 && recallSampleRate <= 1))
+            throw new IllegalArgumentException(
+                    "recallSampleRate not in range [0,1]: " + recallSampleRate);
+        this.recallSampleRate = recallSampleRate;
+    }
+
+    public final CutoffReport getCutoffReport() {
+        return cutoffReport;
+    }
+
+    public final void setCutoffReport(CutoffReport cutoffReport) {
+        Checks.checkNotNull("cutoffReport", cutoffReport);
+        this.cutoffReport = cutoffReport;
+    }
+
+    public final IntSet getExcludedFeatures() {
+        return excludedFeatures;
+    }
+
+    /**
+     * Set the features left out of the index by the document frequency
+     * cutoff, rather than counting them from source B when the index is
+     * built; see {@link #findFrequentFeatures }. Only used when the maximum
+     * document frequency is less than 1. The set must not be modified.
+     *
+     * @param excludedFeatures ids of the features to leave out of the index
+     */
+    public final void setExcludedFeatures(IntSet excludedFeatures) {
+        Checks.checkNotNull("excludedFeatures", excludedFeatures);
+        this.excludedFeatures = excludedFeatures;
+        cutoffReport.setExcludedFeatureCount(excludedFeatures.size());
+    }
+
+    public final RecallEstimate getRecallEstimate() {
+        return recallEstimate;
+    }
+
+    public final void setRecallEstimate(RecallEstimate recallEstimate) {
+        Checks.checkNotNull("recallEstimate", recallEstimate);
+        this.recallEstimate = recallEstimate;
+    }
+
+    /**
+     * Copy the document frequency cutoff to another instance, along with the
+     * excluded features if they have been found. The report and recall
+     * estimate are shared, so that they accumulate the results of both.
+     */
+    @Override
+    void copySettingsTo(NaiveApssTask<?> other) {
+        if (other instanceof InvertedApssTask) {
+            final InvertedApssTask<?> that = (InvertedApssTask<?>) other;
+            that.setMaxDocumentFrequency(maxDocumentFrequency);
+            that.setRecallSampleRate(recallSampleRate);
+            that.setCutoffReport(cutoffReport);
+            that.setRecallEstimate(recallEstimate);
+            if (excludedFeatures != null)
+                that.setExcludedFeatures(excludedFeatures);
+        }
+    }
+
+    /**
+     * Find the features to be excluded by the document frequency cutoff from
+     * the whole of source B, unless they are already known.
+     */
+    @Override
+    <Q> void resolveSettings(
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, Q> sourceB)
+            throws IOException {
+        if (maxDocumentFrequency < 1 && excludedFeatures == null)
+            setExcludedFeatures(findFrequentFeatures(sourceB, maxDocumentFrequency));
+    }
+
     @Override
     protected void initialiseTask() throws Exception {
         super.initialiseTask();
@@ -86,33 +232,42 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
         final S startB = getSourceB().position();
         List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        // Accumulating the shared component from the postings is only exact
+        // when every feature is indexed.
+        final boolean cutoff = maxDocumentFrequency < 1;
+        final DecomposableProximity decomposable =
+                !index.hasExcludedFeatures() && getMeasure() instanceof DecomposableProximity
+                ? (DecomposableProximity) getMeasure() : null;
 
         while (getSourceB().hasNext()) {
             Indexed<SparseDoubleVector> b = getSourceB().read();
             if (!getProcessRecord().apply(b))
                 continue;
 
-            Set<Indexed<SparseDoubleVector>> candidates = findCandidates(b);
+            if (decomposable != null) {
+                index.accumulate(b.value(), decomposable, candidates);
+            } else {
+                index.findCandidates(b.value().keys, b.value().size, candidates);
+            }
+            if (cutoff) {
+                reportCutoff(b, candidates);
+            }
 
-            for (Indexed<SparseDoubleVector> a : candidates) {
-                if (!getProcessRecord().apply(a))
+            for (int i = 0; i < candidates.size(); i++) {
+                final Indexed<SparseDoubleVector> a =
+                        index.getVector(candidates.get(i));
+                if (!getProcessRecord().apply(a) || isMirroredComparison(a, b))
                     continue;
                 getStats().incrementCandidatesCount();
 
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(b.key(), a.key()), sim);
-                if (getProducatePair().apply(pair)) {
-                    pairs.add(pair);
-                    getStats().incrementProductionCount();
-
-                    if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
-                        writeOutPairs(pairs);
-                    }
-
-
+                if (decomposable != null) {
+                    producePairs(a, b, sim(a, b, candidates.getValue(i)), pairs);
+                } else {
+                    addToBatch(b, false, a, pairs);
                 }
             }
+            compareBatch(b, false, pairs);
         }
 
         writeOutPairs(pairs);
@@ -127,46 +282,143 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     }
 
-    protected Set<Indexed<SparseDoubleVector>> findCandidates(
-            Indexed<SparseDoubleVector> b) {
-
-        final Set<Indexed<SparseDoubleVector>> candidates =
-                new ObjectOpenHashSet<Indexed<SparseDoubleVector>>();
+    /**
+     * Tally the postings walked and skipped to find the candidates of b, and,
+     * if b is sampled, how many of the pairs an exact search would produce
+     * for it were found.
+     */
+    private void reportCutoff(Indexed<SparseDoubleVector> b,
+                              CompactInvertedIndex.Candidates candidates) {
+        final SparseDoubleVector vec = b.value();
+        long walked = 0;
+        long skipped = 0;
+        for (int j = 0; j < vec.size; j++) {
+            walked += index.getPostingCount(vec.keys[j]);
+            skipped += index.getExcludedPostingCount(vec.keys[j]);
+        }
+        cutoffReport.addPostings(walked, skipped);
 
-        for (int k : b.value().keys) {
-            if (index.containsKey(k)) {
-                candidates.addAll(index.get(k));
+        if (!RecallEstimate.isSampled(b.key(), 0, recallSampleRate))
+            return;
+        long relevant = 0;
+        long recalled = 0;
+        for (int slot = 0; slot < index.getVectorCount(); slot++) {
+            final Indexed<SparseDoubleVector> a = index.getVector(slot);
+            if (!getProcessRecord().apply(a) || isMirroredComparison(a, b))
+                continue;
+            final double sim = getMeasure().combine(
+                    getMeasure().shared(a.value(), vec),
+                    getPrecalcA().get(a.key()),
+                    getPrecalcB().get(b.key()));
+            if (getProducatePair().apply(new Weighted<TokenPair>(
+                    new TokenPair(b.key(), a.key()), sim))) {
+                ++relevant;
+                if (candidates.contains(slot))
+                    ++recalled;
             }
         }
-        return candidates;
+        recallEstimate.add(relevant, recalled);
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> buildIndex()
+    protected CompactInvertedIndex buildIndex()
             throws IOException {
         SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
-        final Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> result =
-                new Int2ObjectOpenHashMap<Set<Indexed<SparseDoubleVector>>>();
+        final CompactInvertedIndex.Builder builder =
+                new CompactInvertedIndex.Builder();
         final S startA = src.position();
+        if (maxDocumentFrequency < 1) {
+            resolveSettings(getSourceB());
+            builder.excludeFeatures(excludedFeatures);
+        }
         while (src.hasNext()) {
-            final Indexed<SparseDoubleVector> a = src.read();
-            for (int k : a.value().keys) {
-                if (!result.containsKey(k)) {
-                    result.put(k,
-                               new ObjectOpenHashSet<Indexed<SparseDoubleVector>>());
-                }
-                result.get(k).add(a);
-            }
+            builder.addAll(src.read());
         }
         src.position(startA);
+        final CompactInvertedIndex result = builder.build();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Built index of " + result.getVectorCount()
+                    + " vectors with " + result.getPostingCount()
+                    + " postings, excluding " + result.getExcludedFeatureCount()
+                    + " features.");
+        }
         return result;
     }
 
-    protected void setIndex(Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index) {
+    /**
+     * Count the document frequency of each feature in the source, and find
+     * those that occur in more than the maximum proportion of its vectors. A
+     * feature is never excluded for occurring in only one vector. The source
+     * is returned to where it started.
+     *
+     * @param source               vectors to count the features of
+     * @param maxDocumentFrequency proportion of the vectors that a feature
+     *                             may occur in, and still be indexed
+     * @return ids of the features that occur in too many vectors
+     * @throws IOException if the source could not be read
+     */
+    public static <Q> IntSet findFrequentFeatures(
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, Q> source,
+            double maxDocumentFrequency)
+            throws IOException {
+        Checks.checkNotNull("source", source);
+        final Q start = source.position();
+        final Int2IntMap df = new Int2IntOpenHashMap();
+        int vectorCount = 0;
+        while (source.hasNext()) {
+            final SparseDoubleVector vec = source.read().value();
+            for (int i = 0; i < vec.size; i++) {
+                df.put(vec.keys[i], df.get(vec.keys[i]) + 1);
+            }
+            ++vectorCount;
+        }
+        source.position(start);
+
+        final double limit = Math.max(1, maxDocumentFrequency * vectorCount);
+        final IntSet frequent = new IntOpenHashSet();
+        for (Int2IntMap.Entry e : df.int2IntEntrySet()) {
+            if (e.getIntValue() > limit)
+                frequent.add(e.getIntKey());
+        }
+        return frequent;
+    }
+
+    /**
+     * Find the features that occur in more than the maximum proportion of the
+     * vectors summarised by the statistics, without reading the vectors.
+     *
+     * @param stats                statistics of the vectors of source B
+     * @param maxDocumentFrequency proportion of the vectors that a feature
+     *                             may occur in, and still be indexed
+     * @return ids of the features that occur in too many vectors
+     */
+    public static IntSet findFrequentFeatures(
+            VectorStats stats, double maxDocumentFrequency) {
+        Checks.checkNotNull("stats", stats);
+        final double limit = Math.max(1, maxDocumentFrequency * stats.getVectorCount());
+        final IntSet frequent = new IntOpenHashSet();
+        for (int key = 0; key <= stats.getMaxFeatureId(); key++) {
+            if (stats.getDocumentFrequency(key) > limit)
+                frequent.add(key);
+        }
+        return frequent;
+    }
+
+    @Override
+    CompactInvertedIndex buildSharedIndex() throws IOException {
+        return buildIndex();
+    }
+
+    @Override
+    void setSharedIndex(CompactInvertedIndex index) {
+        setIndex(index);
+    }
+
+    protected void setIndex(CompactInvertedIndex index) {
         Checks.checkNotNull("index is null", index);
         this.index = index;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> getIndex() {
+    protected CompactInvertedIndex getIndex() {
         return index;
     }
 
@@ -175,4 +427,76 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
         return "inverted-allpairs";
     }
 
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("maxDocumentFrequency", maxDocumentFrequency).
+                add("recallSampleRate", recallSampleRate).
+                add("cutoffReport", cutoffReport).
+                add("recallEstimate", recallEstimate);
+    }
+
+    /**
+     * Thread safe tally of the saving made by the document frequency cutoff:
+     * the features excluded, and the postings walked and skipped while
+     * finding candidates. The cost, in pairs lost, is estimated by the
+     * {@link RecallEstimate}.
+     */
+    public static final class CutoffReport {
+
+        private final AtomicLong excludedFeatures = new AtomicLong(0);
+
+        private final AtomicLong walked = new AtomicLong(0);
+
+        private final AtomicLong skipped = new AtomicLong(0);
+
+        void setExcludedFeatureCount(long count) {
+            excludedFeatures.set(count);
+        }
+
+        void addPostings(long walkedDelta, long skippedDelta) {
+            walked.addAndGet(walkedDelta);
+            skipped.addAndGet(skippedDelta);
+        }
+
+        /**
+         * @return number of features excluded from the index
+         */
+        public long getExcludedFeatureCount() {
+            return excludedFeatures.get();
+        }
+
+        /**
+         * @return number of postings walked to find candidates
+         */
+        public long getWalkedPostingCount() {
+            return walked.get();
+        }
+
+        /**
+         * @return number of postings of excluded features that would otherwise
+         *         have been walked
+         */
+        public long getSkippedPostingCount() {
+            return skipped.get();
+        }
+
+        /**
+         * @return proportion of the postings that were skipped, or NaN if no
+         *         postings would have been walked
+         */
+        public double getSkippedFraction() {
+            final long total = walked.get() + skipped.get();
+            return total == 0 ? Double.NaN : (double) skipped.get() / total;
+        }
+
+        @Override
+        public String toString() {
+            return "CutoffReport{excludedFeatures=" + getExcludedFeatureCount()
+                    + ", walked=" + getWalkedPostingCount()
+                    + ", skipped=" + getSkippedPostingCount() + "}";
+        }
+
+    }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Seekable source that reads from a list held in memory, where the position is
+ * simply the offset into the list. Any number of instances can read
+ * concurrently from the same (unmodified) list.
+ *
+ * @param <T> type of object being read
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ListObjectSource<T> implements SeekableObjectSource<T, Integer> {
+
+    private final List<T> items;
+
+    private int offset;
+
+    ListObjectSource(List<T> items) {
+        Checks.checkNotNull("items", items);
+        this.items = items;
+        this.offset = 0;
+    }
+
+    @Override
+    public T read() throws IOException {
+        return items.get(offset++);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return offset < items.size();
+    }
+
+    @Override
+    public Integer position() throws IOException {
+        return offset;
+    }
+
+    @Override
+    public void position(Integer offset) throws IOException {
+        if (offset < 0 || offset > items.size())
+            throw new IndexOutOfBoundsException("offset " + offset);
+        this.offset = offset;
+    }
+
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects.ToStringHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.AbstractProximity;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An approximate all-pairs similarity search implementation, that uses
+ * locality-sensitive hashing to find candidate pairs. Every vector is given a
+ * signature, which is divided into a number of bands; and any two vectors with
+ * an identical band become a candidate pair. Candidates are then scored
+ * exactly using the measure, so the output contains no false positives, but
+ * some similar pairs may be missed.
+ *
+ * <p>Signatures are computed by SimHash (signed random projections) when the
+ * measure is {@link Cosine} or a sub-class, and by MinHash over the sets of
+ * features otherwise. MinHash approximates {@link Jaccard} similarity, and so
+ * suits Jaccard, Dice, Overlap, and the other set based measures.</p>
+ *
+ * <p>The probability that a pair is found rises steeply with its
+ * similarity; the steepness and position of the rise are set by the number of
+ * bands, and the number of rows in each band. More bands find more pairs, at
+ * the cost of more candidates.</p>
+ *
+ * <p>To measure the loss, a sample of the vectors from source B are also
+ * compared exactly, using an inverted index of source A, and the proportion of
+ * the pairs produced that were also found by hashing is recorded in a
+ * {@link RecallEstimate}.</p>
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class LshApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(LshApssTask.class);
+
+    public static final int DEFAULT_BANDS = 20;
+
+    public static final int DEFAULT_ROWS = 5;
+
+    public static final long DEFAULT_SEED = 0;
+
+    public static final double DEFAULT_RECALL_SAMPLE_RATE = 0.01;
+
+    /**
+     * The family of hash functions used to build signatures.
+     */
+    enum Scheme {
+
+        /**
+         * Signed random projections, which collide with probability
+         * 1 - angle / pi.
+         */
+        SIMHASH,
+        /**
+         * Minimum hash over the feature set, which collides with probability
+         * equal to the Jaccard similarity of the sets.
+         */
+        MINHASH
+    }
+
+    private int bands = DEFAULT_BANDS;
+
+    private int rows = DEFAULT_ROWS;
+
+    private long seed = DEFAULT_SEED;
+
+    private double recallSampleRate = DEFAULT_RECALL_SAMPLE_RATE;
+
+    private RecallEstimate recallEstimate = new RecallEstimate();
+
+    private Scheme scheme;
+
+    /**
+     * Seed of each hash function; there are {@code bands * rows} of them.
+     */
+    private long[] hashSeeds;
+
+    /**
+     * Vectors of source A, indexed by slot.
+     */
+    private List<Indexed<SparseDoubleVector>> vectorsA;
+
+    /**
+     * For each band, the band hash of every vector in source A in the upper 32
+     * bits, and its slot in the lower 32 bits; sorted so that colliding vectors
+     * are adjacent.
+     */
+    private long[][] tables;
+
+    public LshApssTask() {
+    }
+
+    public final int getBands() {
+        return bands;
+    }
+
+    public final void setBands(int bands) {
+        if (bands < 1)
+            throw new IllegalArgumentException("bands < 1");
+        this.bands = bands;
+    }
+
+    public final int getRows() {
+        return rows;
+    }
+
+    public final void setRows(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("rows < 1");
+        this.rows = rows;
+    }
+
+    public final long getSeed() {
+        return seed;
+    }
+
+    public final void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public final double getRecallSampleRate() {
+        return recallSampleRate;
+    }
+
+    /**
+     * @param recallSampleRate proportion of vectors from source B that are
+     *                         also compared exactly, to estimate recall; 0
+     *                         disables the estimate
+     */
+    public final void setRecallSampleRate(double recallSampleRate) {
+        if (!(recallSampleRate >= 0 && recallSampleRate <= 1))
+            throw new IllegalArgumentException(
+                    "recallSampleRate not in range [0,1]: " + recallSampleRate);
+        this.recallSampleRate = recallSampleRate;
+    }
+
+    public final RecallEstimate getRecallEstimate() {
+        return recallEstimate;
+    }
+
+    public final void setRecallEstimate(RecallEstimate recallEstimate) {
+        Checks.checkNotNull("recallEstimate", recallEstimate);
+        this.recallEstimate = recallEstimate;
+    }
+
+    /**
+     * Copy the hashing parameters to another instance. The recall estimate is
+     * shared, so that it accumulates the results of both.
+     */
+    @Override
+    void copySettingsTo(NaiveApssTask<?> other) {
+        if (other instanceof LshApssTask) {
+            final LshApssTask<?> that = (LshApssTask<?>) other;
+            that.setBands(bands);
+            that.setRows(rows);
+            that.setSeed(seed);
+            that.setRecallSampleRate(recallSampleRate);
+            that.setRecallEstimate(recallEstimate);
+        }
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        scheme = getMeasure() instanceof Cosine ? Scheme.SIMHASH : Scheme.MINHASH;
+        if (scheme == Scheme.MINHASH && !(getMeasure() instanceof Jaccard)
+                && LOG.isWarnEnabled()) {
+            LOG.warn("MinHash signatures approximate Jaccard similarity, and "
+                    + "may give poor recall for measure " + getMeasure());
+        }
+
+        hashSeeds = new long[bands * rows];
+        for (int t = 0; t < hashSeeds.length; t++)
+            hashSeeds[t] = mix(seed + (t + 1) * 0x9E3779B97F4A7C15L);
+
+        buildTables();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        vectorsA = null;
+        tables = null;
+        super.finaliseTask();
+    }
+
+    @Override
+    protected void runTask() throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running locality-sensitive hashing all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final CompactInvertedIndex.Candidates candidates =
+                new CompactInvertedIndex.Candidates(vectorsA.size());
+        final int[] bandHashes = new int[bands];
+
+        // The exact index is only built if some vector is sampled
+        CompactInvertedIndex exactIndex = null;
+        CompactInvertedIndex.Candidates exactCandidates = null;
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b) || !signature(b.value(), bandHashes))
+                continue;
+
+            findCandidates(bandHashes, candidates);
+
+            for (int i = 0; i < candidates.size(); i++) {
+                final Indexed<SparseDoubleVector> a = vectorsA.get(candidates.get(i));
+                if (!getProcessRecord().apply(a) || isMirroredComparison(a, b))
+                    continue;
+                getStats().incrementCandidatesCount();
+
+                addToBatch(b, false, a, pairs);
+            }
+            compareBatch(b, false, pairs);
+
+            if (RecallEstimate.isSampled(b.key(), seed, recallSampleRate)) {
+                if (exactIndex == null) {
+                    exactIndex = buildExactIndex();
+                    exactCandidates = exactIndex.newCandidates();
+                }
+                estimateRecall(b, candidates, exactIndex, exactCandidates);
+            }
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    /**
+     * Read source A into memory, and build a hash table of the vectors for
+     * each band.
+     */
+    private void buildTables() throws IOException {
+        final SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        final S startA = src.position();
+        vectorsA = new ArrayList<Indexed<SparseDoubleVector>>();
+        final List<int[]> signatures = new ArrayList<int[]>();
+        while (src.hasNext()) {
+            final Indexed<SparseDoubleVector> a = src.read();
+            final int[] bandHashes = new int[bands];
+            // Vectors without features can not be similar to anything
+            if (signature(a.value(), bandHashes)) {
+                vectorsA.add(a);
+                signatures.add(bandHashes);
+            }
+        }
+        src.position(startA);
+
+        final int n = vectorsA.size();
+        tables = new long[bands][n];
+        for (int slot = 0; slot < n; slot++) {
+            final int[] bandHashes = signatures.get(slot);
+            for (int band = 0; band < bands; band++)
+                tables[band][slot] = pack(bandHashes[band], slot);
+        }
+        for (int band = 0; band < bands; band++)
+            Arrays.sort(tables[band]);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Hashed " + n + " vectors into " + bands + " bands of "
+                    + rows + " rows (scheme=" + scheme + ")");
+        }
+    }
+
+    /**
+     * Mark the slots of every vector from source A that collides with the
+     * given signature in at least one band.
+     */
+    private void findCandidates(int[] bandHashes,
+                                CompactInvertedIndex.Candidates candidates) {
+        candidates.clear();
+        for (int band = 0; band < bands; band++) {
+            final long[] table = tables[band];
+            final long key = pack(bandHashes[band], 0);
+            int p = Arrays.binarySearch(table, key);
+            if (p < 0)
+                p = -p - 1;
+            while (p < table.length && (int) (table[p] >>> 32) == bandHashes[band]) {
+                candidates.mark((int) table[p]);
+                ++p;
+            }
+        }
+    }
+
+    private static long pack(int hash, int slot) {
+        return ((long) hash << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Compute the hash of each band of the vector's signature.
+     *
+     * @return false if the vector has no (non-filtered) features, in which
+     *         case it has no signature
+     */
+    private boolean signature(SparseDoubleVector vec, int[] bandHashes) {
+        boolean hasFeatures = false;
+        for (int i = 0; i < vec.size && !hasFeatures; i++)
+            hasFeatures = !isFiltered(vec.keys[i]);
+        if (!hasFeatures)
+            return false;
+
+        for (int band = 0; band < bands; band++) {
+            long h = mix(seed ^ band);
+            for (int row = 0; row < rows; row++) {
+                final long hashSeed = hashSeeds[band * rows + row];
+                h = mix(h ^ (scheme == Scheme.SIMHASH
+                             ? simHash(vec, hashSeed)
+                             : minHash(vec, hashSeed)));
+            }
+            bandHashes[band] = (int) (h ^ (h >>> 32));
+        }
+        return true;
+    }
+
+    /**
+     * The sign of the projection of the vector onto a random hyperplane, whose
+     * components are +1 or -1.
+     */
+    private long simHash(SparseDoubleVector vec, long hashSeed) {
+        double dot = 0;
+        for (int i = 0; i < vec.size; i++) {
+            if (isFiltered(vec.keys[i]))
+                continue;
+            dot += mix(hashSeed ^ vec.keys[i]) < 0 ? -vec.values[i] : vec.values[i];
+        }
+        return dot >= 0 ? 1 : 0;
+    }
+
+    /**
+     * The minimum hash of the vector's features.
+     */
+    private long minHash(SparseDoubleVector vec, long hashSeed) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < vec.size; i++) {
+            if (isFiltered(vec.keys[i]))
+                continue;
+            final long h = mix(hashSeed ^ vec.keys[i]);
+            if (h < min)
+                min = h;
+        }
+        return min;
+    }
+
+    /**
+     * The 64 bit finalizer of MurmurHash3.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private CompactInvertedIndex buildExactIndex() {
+        final CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        for (Indexed<SparseDoubleVector> a : vectorsA)
+            builder.addAll(a);
+        return builder.build();
+    }
+
+    /**
+     * Find every pair that an exact search would have produced for b, and
+     * record how many of them were also candidates found by hashing.
+     */
+    private void estimateRecall(Indexed<SparseDoubleVector> b,
+                                CompactInvertedIndex.Candidates found,
+                                CompactInvertedIndex exactIndex,
+                                CompactInvertedIndex.Candidates exactCandidates) {
+        exactIndex.findCandidates(b.value().keys, b.value().size, exactCandidates);
+        long relevant = 0;
+        long recalled = 0;
+        for (int i = 0; i < exactCandidates.size(); i++) {
+            final int slot = exactCandidates.get(i);
+            final Indexed<SparseDoubleVector> a = exactIndex.getVector(slot);
+            if (!getProcessRecord().apply(a) || isMirroredComparison(a, b))
+                continue;
+            final double sim = getMeasure().combine(
+                    getMeasure().shared(a.value(), b.value()),
+                    getPrecalcA().get(a.key()),
+                    getPrecalcB().get(b.key()));
+            if (getProducatePair().apply(new Weighted<TokenPair>(
+                    new TokenPair(b.key(), a.key()), sim))) {
+                ++relevant;
+                // Slots are the same in both indices
+                if (found.contains(slot))
+                    ++recalled;
+            }
+        }
+        recallEstimate.add(relevant, recalled);
+    }
+
+    private boolean isFiltered(int featureId) {
+        return getMeasure() instanceof AbstractProximity
+                && ((AbstractProximity) getMeasure()).isFiltered(featureId);
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("bands", bands).
+                add("rows", rows).
+                add("seed", seed).
+                add("recallSampleRate", recallSampleRate).
+                add("recallEstimate", recallEstimate);
+    }
+
+    @Override
+    public String getName() {
+        return "lsh-allpairs";
+    }
+
+}
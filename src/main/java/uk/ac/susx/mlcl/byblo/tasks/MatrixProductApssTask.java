@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects.ToStringHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.DotProductProximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An all-pairs similarity search implementation that treats the search as a
+ * sparse matrix product. When the measure is a {@link DotProductProximity},
+ * the shared component of every pair is an element of the product of the
+ * matrix of source B vectors (weighted by their right factors) with the
+ * transpose of the matrix of source A vectors (weighted by their left
+ * factors).
+ *
+ * <p>Source A is held column-major, in blocks of vectors (see
+ * {@link ProductBlock}), with the most frequent features of each block in a
+ * dense tile. Source B is read row-major, in blocks of the same size, and
+ * each row block is multiplied by each column block in turn, one row at a
+ * time, so the column block stays in cache while the whole row block is
+ * multiplied by it.</p>
+ *
+ * <p>The accumulated products are exactly the shared components that would be
+ * calculated by the measure. Other measures are supported, but gain nothing:
+ * the blocks are used only to find candidate pairs, which are then compared
+ * in full, as by {@link InvertedApssTask}.</p>
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MatrixProductApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(MatrixProductApssTask.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    public static final double DEFAULT_DENSE_DENSITY = 0.125;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private double denseDensity = DEFAULT_DENSE_DENSITY;
+
+    /**
+     * Column blocks of source A.
+     */
+    private List<ProductBlock> blocks;
+
+    public MatrixProductApssTask() {
+    }
+
+    public final int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize maximum number of vectors in each block of source A,
+     *                  and of source B
+     */
+    public final void setBlockSize(int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize < 1");
+        this.blockSize = blockSize;
+    }
+
+    public final double getDenseDensity() {
+        return denseDensity;
+    }
+
+    /**
+     * @param denseDensity minimum proportion of the vectors in a block of
+     *                     source A that must contain a feature, for the
+     *                     feature to be stored densely
+     */
+    public final void setDenseDensity(double denseDensity) {
+        if (!(denseDensity > 0 && denseDensity <= 1))
+            throw new IllegalArgumentException(
+                    "denseDensity not in range (0,1]: " + denseDensity);
+        this.denseDensity = denseDensity;
+    }
+
+    @Override
+    void copySettingsTo(NaiveApssTask<?> other) {
+        if (other instanceof MatrixProductApssTask) {
+            final MatrixProductApssTask<?> that = (MatrixProductApssTask<?>) other;
+            that.setBlockSize(blockSize);
+            that.setDenseDensity(denseDensity);
+        }
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        buildBlocks();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        blocks = null;
+        super.finaliseTask();
+    }
+
+    @Override
+    protected void runTask() throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running matrix product all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final DotProductProximity dotProduct =
+                getMeasure() instanceof DotProductProximity
+                ? (DotProductProximity) getMeasure() : null;
+        final ProductBlock.Accumulator acc = ProductBlock.newAccumulator(blockSize);
+
+        final List<Indexed<SparseDoubleVector>> rows =
+                new ArrayList<Indexed<SparseDoubleVector>>(blockSize);
+        final List<double[]> rowFactors = new ArrayList<double[]>(blockSize);
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+            rows.add(b);
+            rowFactors.add(dotProduct == null ? null : rightFactors(b.value(), dotProduct));
+            if (rows.size() >= blockSize) {
+                multiplyRows(rows, rowFactors, dotProduct, acc, pairs);
+                rows.clear();
+                rowFactors.clear();
+            }
+        }
+        multiplyRows(rows, rowFactors, dotProduct, acc, pairs);
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    /**
+     * Multiply a block of rows from source B by every column block of source
+     * A, and produce the resultant pairs.
+     */
+    private void multiplyRows(List<Indexed<SparseDoubleVector>> rows,
+                              List<double[]> rowFactors,
+                              DotProductProximity dotProduct,
+                              ProductBlock.Accumulator acc,
+                              List<Weighted<TokenPair>> pairs)
+            throws IOException {
+        for (ProductBlock block : blocks) {
+            for (int r = 0; r < rows.size(); r++) {
+                final Indexed<SparseDoubleVector> b = rows.get(r);
+                block.multiply(b.value(), rowFactors.get(r), dotProduct, acc);
+
+                for (int i = 0; i < acc.size(); i++) {
+                    final Indexed<SparseDoubleVector> a = block.getVector(acc.get(i));
+                    if (isMirroredComparison(a, b))
+                        continue;
+                    getStats().incrementCandidatesCount();
+
+                    if (dotProduct != null) {
+                        producePairs(a, b, sim(a, b, acc.getValue(i)), pairs);
+                    } else {
+                        addToBatch(b, false, a, pairs);
+                    }
+                }
+                compareBatch(b, false, pairs);
+            }
+        }
+    }
+
+    private static double[] rightFactors(SparseDoubleVector vector,
+                                         DotProductProximity measure) {
+        final double[] factors = new double[vector.size];
+        for (int j = 0; j < vector.size; j++)
+            factors[j] = measure.rightFactor(vector, j);
+        return factors;
+    }
+
+    /**
+     * Read source A into memory, as column blocks.
+     */
+    private void buildBlocks() throws IOException {
+        final DotProductProximity dotProduct =
+                getMeasure() instanceof DotProductProximity
+                ? (DotProductProximity) getMeasure() : null;
+        final SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        final S startA = src.position();
+        blocks = new ArrayList<ProductBlock>();
+        final List<Indexed<SparseDoubleVector>> columns =
+                new ArrayList<Indexed<SparseDoubleVector>>(blockSize);
+        while (src.hasNext()) {
+            final Indexed<SparseDoubleVector> a = src.read();
+            if (!getProcessRecord().apply(a))
+                continue;
+            columns.add(a);
+            if (columns.size() >= blockSize) {
+                blocks.add(ProductBlock.build(columns, dotProduct, denseDensity));
+                columns.clear();
+            }
+        }
+        if (!columns.isEmpty())
+            blocks.add(ProductBlock.build(columns, dotProduct, denseDensity));
+        src.position(startA);
+
+        if (LOG.isDebugEnabled()) {
+            int denseFeatures = 0;
+            long sparsePostings = 0;
+            for (ProductBlock block : blocks) {
+                denseFeatures += block.getDenseFeatureCount();
+                sparsePostings += block.getSparsePostingCount();
+            }
+            LOG.debug("Built " + blocks.size() + " blocks with "
+                    + sparsePostings + " sparse postings, and "
+                    + denseFeatures + " dense features.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "matrix-product-allpairs";
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("blockSize", blockSize).
+                add("denseDensity", denseDensity);
+    }
+
+}
@@ -33,14 +33,15 @@ package uk.ac.susx.mlcl.byblo.tasks;
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.AsyncObjectSink;
+import uk.ac.susx.mlcl.byblo.io.NearestNeighboursSink;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.measures.Jaccard;
@@ -81,10 +82,35 @@ public class NaiveApssTask<P> extends AbstractTask
 
     private SeekableObjectSource<Indexed<SparseDoubleVector>, P> sourceB;
 
+    /**
+     * The sources as seen by the algorithm while it is running: decorated so
+     * that every vector read is prepared by the measure, unless the vectors
+     * have been prepared already.
+     */
+    private SeekableObjectSource<Indexed<SparseDoubleVector>, P> activeSourceA = null;
+
+    private SeekableObjectSource<Indexed<SparseDoubleVector>, P> activeSourceB = null;
+
+    /**
+     * Whether the vectors of both sources have already been passed through
+     * {@link Proximity#prepare(SparseDoubleVector) }, so must not be prepared
+     * again. Set when a task is given vectors that were prepared once and
+     * are shared with other tasks.
+     */
+    private boolean vectorsPrepared = false;
+
     private Proximity measure = DEFAULT_MEASURE;
 
     private ObjectSink<Weighted<TokenPair>> sink;
 
+    /**
+     * The sink cast to a nearest neighbours sink, when it is one, so pairs
+     * that can not make it into the neighbour lists are not produced.
+     */
+    private NearestNeighboursSink neighboursSink = null;
+
+    private AsyncObjectSink<Weighted<TokenPair>> asyncSink = null;
+
     /**
      * Filters that determine which feature vectors are considered.
      */
@@ -101,12 +127,34 @@ public class NaiveApssTask<P> extends AbstractTask
     // feature vectorx - can be precalculated to save time during the
     // quadratic part of the algorithm
 
-    private Int2DoubleMap precalcA = null;
+    private PrecalcArray precalcA = null;
     // Component of the similarity calculation that depends only on the sourceB
     // feature vectors - can be precalculated to save time during the
     // quadratic part of the algorithm
 
-    private Int2DoubleMap precalcB = null;
+    private PrecalcArray precalcB = null;
+
+    /**
+     * Whether or not sourceA and sourceB contain exactly the same vectors. When
+     * true, only one of each pair of mirrored comparisons is performed; i.e
+     * vectors a and b are only compared when a.key() &lt;= b.key().
+     */
+    private boolean sourcesIdentical = false;
+
+    /**
+     * Whether or not each produced pair should also be output with the entries
+     * reversed. This is only correct when the measure is symmetric, and is used
+     * to recover the pairs that are not visited when only half of the search
+     * space is considered.
+     */
+    private boolean outputReversedPairs = false;
+
+    /**
+     * The minimum similarity a pair must have to be produced. Pairs below this
+     * are expected to be rejected by the production filter anyway, but some
+     * algorithms can use the threshold to avoid comparing them at all.
+     */
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
 
     /**
      * Constructor of minimal parameterisation, taking arguments that must be
@@ -150,6 +198,41 @@ public class NaiveApssTask<P> extends AbstractTask
         this.processRecord = processRecord;
     }
 
+    public final boolean isSourcesIdentical() {
+        return sourcesIdentical;
+    }
+
+    public final void setSourcesIdentical(boolean sourcesIdentical) {
+        this.sourcesIdentical = sourcesIdentical;
+    }
+
+    public final boolean isOutputReversedPairs() {
+        return outputReversedPairs;
+    }
+
+    public final void setOutputReversedPairs(boolean outputReversedPairs) {
+        this.outputReversedPairs = outputReversedPairs;
+    }
+
+    public final boolean isVectorsPrepared() {
+        return vectorsPrepared;
+    }
+
+    public final void setVectorsPrepared(boolean vectorsPrepared) {
+        this.vectorsPrepared = vectorsPrepared;
+    }
+
+    public final double getMinSimilarity() {
+        return minSimilarity;
+    }
+
+    public final void setMinSimilarity(double minSimilarity) {
+        if (Double.isNaN(minSimilarity)) {
+            throw new IllegalArgumentException("minSimilarity is NaN");
+        }
+        this.minSimilarity = minSimilarity;
+    }
+
     public final ApssStats getStats() {
         return stats;
     }
@@ -181,12 +264,20 @@ public class NaiveApssTask<P> extends AbstractTask
         this.sourceB = B;
     }
 
+    /**
+     * @return source A; while the task is running, vectors read from it have
+     *         been prepared by the measure
+     */
     protected final SeekableObjectSource<Indexed<SparseDoubleVector>, P> getSourceA() {
-        return sourceA;
+        return activeSourceA != null ? activeSourceA : sourceA;
     }
 
+    /**
+     * @return source B; while the task is running, vectors read from it have
+     *         been prepared by the measure
+     */
     protected final SeekableObjectSource<Indexed<SparseDoubleVector>, P> getSourceB() {
-        return sourceB;
+        return activeSourceB != null ? activeSourceB : sourceB;
     }
 
     public final Proximity getMeasure() {
@@ -204,29 +295,85 @@ public class NaiveApssTask<P> extends AbstractTask
         return sink;
     }
 
+    @SuppressWarnings("unchecked")
     public final void setSink(ObjectSink<Weighted<TokenPair>> sink) {
         if (sink == null) {
             throw new NullPointerException("handler == null");
         }
         this.sink = sink;
+        this.neighboursSink = sink instanceof NearestNeighboursSink
+                              ? (NearestNeighboursSink) sink : null;
+        this.asyncSink = sink instanceof AsyncObjectSink
+                         ? (AsyncObjectSink<Weighted<TokenPair>>) sink : null;
     }
 
     @Override
     protected void initialiseTask() throws Exception {
         checkState();
+        if (vectorsPrepared) {
+            activeSourceA = sourceA;
+            activeSourceB = sourceB;
+        } else {
+            activeSourceA = prepare(sourceA);
+            activeSourceB = prepare(sourceB);
+        }
         buildPrecalcs();
     }
 
+    /**
+     * Wrap the given source so that every vector read from it has been
+     * prepared by the measure. Vectors are prepared as they are read, and the
+     * source is never held in memory; an algorithm that passes over source B
+     * repeatedly prepares its vectors on every pass, just as it reads them.
+     *
+     * @param source source to wrap
+     * @return source of prepared vectors
+     * @throws IOException if the source could not be read
+     */
+    protected SeekableObjectSource<Indexed<SparseDoubleVector>, P> prepare(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, P> source)
+            throws IOException {
+        return new PreparedObjectSource<P>(source, measure);
+    }
+
     protected final int PAIR_OUTPUT_BUFFER_SIZE = 100000;
 
+    /**
+     * Maximum number of vectors compared with a query vector in one call to
+     * {@link Proximity#sharedBatch }.
+     */
+    protected static final int BATCH_SIZE = 1024;
+
+    /**
+     * Relative slack applied to the upper bound on the similarity of a pair,
+     * so pairs that sit exactly on the bound are not lost to floating point
+     * rounding.
+     */
+    private static final double BOUND_EPSILON = 1E-9;
+
+    // Vectors waiting to be compared with the current query vector, and
+    // scratch space for the comparison; allocated on first use.
+    private final List<Indexed<SparseDoubleVector>> batch =
+            new ArrayList<Indexed<SparseDoubleVector>>();
+
+    private SparseDoubleVector[] batchVectors = null;
+
+    private double[] batchShared = null;
+
     protected void writeOutPairs(List<Weighted<TokenPair>> pairs) throws IOException {
         if (pairs.isEmpty())
             return;
         // Sorting the pairs reduces disk space usage due to compact format and
         // skip indexing.
         Collections.sort(pairs, Weighted.recordOrder(TokenPair.indexOrder()));
-        synchronized (getSink()) {
-            ObjectIO.copy(pairs, getSink());
+        if (asyncSink != null) {
+            // Hand the whole buffer over to the writer thread, rather than
+            // holding the sink lock while every pair is written.
+            asyncSink.writeAll(pairs);
+        } else {
+            synchronized (getSink()) {
+                ObjectIO.copy(pairs, getSink());
+            }
         }
         pairs.clear();
     }
@@ -251,28 +398,20 @@ public class NaiveApssTask<P> extends AbstractTask
             }
 
             // for every vector (b) in source B
-            if (sourceB.position() != restartB) {
-                sourceB.position(restartB);
+            if (getSourceB().position() != restartB) {
+                getSourceB().position(restartB);
             }
             while (getSourceB().hasNext()) {
                 stats.incrementCandidatesCount();
 
-                Indexed<SparseDoubleVector> b = sourceB.read();
-                if (!processRecord.apply(b)) {
+                Indexed<SparseDoubleVector> b = getSourceB().read();
+                if (!processRecord.apply(b) || isMirroredComparison(a, b)) {
                     continue;
                 }
 
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(b.key(), a.key()), sim);
-                if (pruducePair.apply(pair)) {
-                    pairBuffer.add(pair);
-                    stats.incrementProductionCount();
-                    if (pairBuffer.size() > PAIR_OUTPUT_BUFFER_SIZE) {
-                        writeOutPairs(pairBuffer);
-                    }
-                }
+                addToBatch(a, true, b, pairBuffer);
             }
+            compareBatch(a, true, pairBuffer);
         }
 
         writeOutPairs(pairBuffer);
@@ -288,6 +427,8 @@ public class NaiveApssTask<P> extends AbstractTask
     protected void finaliseTask() throws Exception {
         precalcA = null;
         precalcB = null;
+        activeSourceA = null;
+        activeSourceB = null;
     }
 
     /**
@@ -336,42 +477,247 @@ public class NaiveApssTask<P> extends AbstractTask
 
     }
 
-    protected Int2DoubleMap getPrecalcA() {
+    /**
+     * Build the index of source A used by this algorithm, so that it can be
+     * shared with other instances comparing the same source A, with the same
+     * measure and minimum similarity. This algorithm does not use an index.
+     *
+     * @return the index, or null if the algorithm does not use one
+     * @throws IOException
+     */
+    CompactInvertedIndex buildSharedIndex() throws IOException {
+        return null;
+    }
+
+    /**
+     * Use an index of source A built by {@link #buildSharedIndex() }, rather
+     * than building one when the task is run. The index will not be modified.
+     *
+     * @param index index of source A
+     */
+    void setSharedIndex(CompactInvertedIndex index) {
+        throw new UnsupportedOperationException(
+                getName() + " does not use an index.");
+    }
+
+    /**
+     * Copy any settings that are specific to this algorithm to another
+     * instance. Settings common to all algorithms, such as the measure and
+     * sink, are not copied. This algorithm has no specific settings.
+     *
+     * @param other instance to copy the settings to
+     */
+    void copySettingsTo(NaiveApssTask<?> other) {
+    }
+
+    /**
+     * Resolve those settings specific to this algorithm that depend on the
+     * whole of source B, from the given source, so that instances to which
+     * the settings are copied behave the same however little of source B they
+     * are given. The source is returned to where it started. This algorithm
+     * has no such settings.
+     *
+     * @param sourceB the whole of source B
+     * @throws Exception if the settings could not be resolved
+     */
+    <Q> void resolveSettings(
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, Q> sourceB)
+            throws Exception {
+    }
+
+    /**
+     * @param settings instance holding algorithm specific settings, or null
+     * @param sourceB  the whole of source B
+     * @return a new instance of the same algorithm, holding a copy of the
+     *         settings with those that depend on source B resolved; or null
+     *         if the settings are null
+     * @throws Exception if the settings could not be copied or resolved
+     */
+    static NaiveApssTask<?> resolvedCopy(
+            NaiveApssTask<?> settings,
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, ?> sourceB)
+            throws Exception {
+        if (settings == null)
+            return null;
+        final NaiveApssTask<?> copy = settings.getClass().newInstance();
+        settings.copySettingsTo(copy);
+        copy.resolveSettings(sourceB);
+        return copy;
+    }
+
+    PrecalcArray getPrecalcA() {
         return precalcA;
     }
 
-    protected Int2DoubleMap getPrecalcB() {
+    PrecalcArray getPrecalcB() {
         return precalcB;
     }
 
-    protected Int2DoubleMap buildPrecalcA() throws IOException {
-        final P startA = sourceA.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
-        while (sourceA.hasNext()) {
-            Indexed<SparseDoubleVector> p = sourceA.read();
-            result.put(p.key(), getMeasure().left(p.value()));
+    PrecalcArray buildPrecalcA() throws IOException {
+        return PrecalcArray.build(getSourceA(), getMeasure(), true);
+    }
+
+    PrecalcArray buildPrecalcB() throws IOException {
+        return PrecalcArray.build(getSourceB(), getMeasure(), false);
+    }
+
+    /**
+     * Whether or not the comparison of a and b is the mirror of another
+     * comparison that is performed, and so can be skipped.
+     */
+    protected final boolean isMirroredComparison(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        return sourcesIdentical && b.key() < a.key();
+    }
+
+    /**
+     * Filter the pair (or pairs, when reversed pairs are enabled) resulting
+     * from the comparison of a and b, and add those accepted to the buffer;
+     * writing the buffer out when it becomes full.
+     */
+    protected final void producePairs(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b,
+            final double sim,
+            final List<Weighted<TokenPair>> pairBuffer) throws IOException {
+        final Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                new TokenPair(b.key(), a.key()), sim);
+        if (pruducePair.apply(pair)) {
+            if (isCompetitive(b.key(), sim)) {
+                pairBuffer.add(pair);
+                stats.incrementProductionCount();
+            }
+
+            if (outputReversedPairs && a.key() != b.key()
+                    && isCompetitive(a.key(), sim)) {
+                pairBuffer.add(new Weighted<TokenPair>(
+                        new TokenPair(a.key(), b.key()), sim));
+                stats.incrementProductionCount();
+            }
+
+            if (pairBuffer.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                writeOutPairs(pairBuffer);
+            }
+        }
+    }
+
+    /**
+     * Queue a vector to be compared with the query vector, comparing the whole
+     * batch once it is full. Vectors that can not reach the threshold (see
+     * {@link #isReachable }) are not queued. Every batch must be finished with
+     * {@link #compareBatch } before the query vector changes.
+     *
+     * @param query      the query vector
+     * @param queryFromA whether the query was read from source A, and so the
+     *                   other vector from source B, or the other way around
+     * @param other      the vector to compare with the query
+     * @param pairBuffer buffer to receive the resultant pairs
+     */
+    protected final void addToBatch(
+            final Indexed<SparseDoubleVector> query, final boolean queryFromA,
+            final Indexed<SparseDoubleVector> other,
+            final List<Weighted<TokenPair>> pairBuffer) throws IOException {
+        if (queryFromA ? !isReachable(query, other) : !isReachable(other, query)) {
+            return;
+        }
+        batch.add(other);
+        if (batch.size() >= BATCH_SIZE) {
+            compareBatch(query, queryFromA, pairBuffer);
         }
-        sourceA.position(startA);
-        return result;
     }
 
-    protected Int2DoubleMap buildPrecalcB() throws IOException {
-        final P startB = sourceB.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
-        while (sourceB.hasNext()) {
-            Indexed<SparseDoubleVector> p = sourceB.read();
-            result.put(p.key(), getMeasure().right(p.value()));
+    /**
+     * Whether or not the pair of a and b could be produced, judging by the
+     * upper bound on its similarity given by the measure. The pair is
+     * unreachable when the bound is below the minimum similarity, or below the
+     * current threshold of every entry it could be retained for by a nearest
+     * neighbours sink; it can then be skipped before the vectors are
+     * intersected.
+     */
+    protected final boolean isReachable(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        if (minSimilarity == Double.NEGATIVE_INFINITY && neighboursSink == null) {
+            return true;
+        }
+        final double bound = measure.upperBound(
+                a.value(), b.value(),
+                precalcA.get(a.key()), precalcB.get(b.key()));
+        if (!(bound < Double.POSITIVE_INFINITY)) {
+            return true;
+        }
+        double threshold = minSimilarity;
+        if (neighboursSink != null) {
+            double competitive = neighboursSink.getThreshold(b.key());
+            if (outputReversedPairs && a.key() != b.key()) {
+                competitive = Math.min(competitive,
+                                       neighboursSink.getThreshold(a.key()));
+            }
+            threshold = Math.max(threshold, competitive);
         }
-        sourceB.position(startB);
-        return result;
+        return bound + BOUND_EPSILON * Math.abs(bound) >= threshold;
+    }
+
+    /**
+     * Compare the query vector with every vector in the batch, in one call to
+     * the measure, and produce the resultant pairs. The batch is emptied.
+     */
+    protected final void compareBatch(
+            final Indexed<SparseDoubleVector> query, final boolean queryFromA,
+            final List<Weighted<TokenPair>> pairBuffer) throws IOException {
+        final int n = batch.size();
+        if (n == 0) {
+            return;
+        }
+        if (batchVectors == null) {
+            batchVectors = new SparseDoubleVector[BATCH_SIZE];
+            batchShared = new double[BATCH_SIZE];
+        }
+        for (int k = 0; k < n; k++) {
+            batchVectors[k] = batch.get(k).value();
+        }
+        measure.sharedBatch(query.value(), queryFromA, batchVectors, n, batchShared);
+        for (int k = 0; k < n; k++) {
+            final Indexed<SparseDoubleVector> other = batch.get(k);
+            if (queryFromA) {
+                producePairs(query, other, sim(query, other, batchShared[k]), pairBuffer);
+            } else {
+                producePairs(other, query, sim(other, query, batchShared[k]), pairBuffer);
+            }
+        }
+        Arrays.fill(batchVectors, 0, n, null);
+        batch.clear();
+    }
+
+    /**
+     * Whether or not a pair with the given base entry and similarity could be
+     * retained by the sink. This is always true unless only the nearest
+     * neighbours are being kept, in which case pairs below the current
+     * k<sup>th</sup> best similarity of the entry are discarded early.
+     */
+    private boolean isCompetitive(int entryId, double sim) {
+        return neighboursSink == null
+                || sim >= neighboursSink.getThreshold(entryId);
     }
 
     protected final double sim(
             final Indexed<SparseDoubleVector> a,
             final Indexed<SparseDoubleVector> b) {
+        return sim(a, b, measure.shared(a.value(), b.value()));
+    }
+
+    /**
+     * Similarity of a and b, given the shared component of the measure, which
+     * has already been calculated.
+     */
+    protected final double sim(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b,
+            final double shared) {
         stats.incrementComparisonCount();
         return measure.combine(
-                measure.shared(a.value(), b.value()),
+                shared,
                 precalcA.get(a.key()),
                 precalcB.get(b.key()));
     }
@@ -425,6 +771,10 @@ public class NaiveApssTask<P> extends AbstractTask
                 add("sink", sink).
                 add("processRecord", processRecord).
                 add("pruducePair", pruducePair).
+                add("sourcesIdentical", sourcesIdentical).
+                add("outputReversedPairs", outputReversedPairs).
+                add("vectorsPrepared", vectorsPrepared).
+                add("minSimilarity", minSimilarity).
                 add("stats", stats);
     }
 
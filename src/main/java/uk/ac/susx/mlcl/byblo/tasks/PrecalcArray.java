@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.IOException;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Left or right hand component of a measure, for every vector of a source,
+ * stored in an array indexed by entry id (less the smallest id), so it can be
+ * looked up for every pair without hashing or boxing.
+ *
+ * <p>The ids of a source are not necessarily consecutive: a filtered source,
+ * or the unchanged entries of an incremental update, may skip most of them.
+ * When the ids are spread over more than {@link #MAX_SPREAD} times as many
+ * slots as there are vectors, the components are held in a hash map instead,
+ * so the memory used stays proportional to the source.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class PrecalcArray {
+
+    /**
+     * Largest ratio of the id range to the number of vectors for which the
+     * components are held in an array.
+     */
+    static final int MAX_SPREAD = 4;
+
+    private final int base;
+
+    private final double[] values;
+
+    /**
+     * Components keyed by id, when the ids are too sparse for an array;
+     * otherwise null.
+     */
+    private final Int2DoubleMap sparseValues;
+
+    private PrecalcArray(int base, double[] values) {
+        this.base = base;
+        this.values = values;
+        this.sparseValues = null;
+    }
+
+    private PrecalcArray(Int2DoubleMap sparseValues) {
+        this.base = 0;
+        this.values = null;
+        this.sparseValues = sparseValues;
+    }
+
+    /**
+     * Calculate the component for every remaining vector of the source,
+     * restoring the position of the source afterwards.
+     *
+     * @param source  vectors, already prepared by the measure
+     * @param measure measure to calculate the component of
+     * @param left    whether to calculate the left hand component, rather
+     *                than the right
+     * @return the components
+     * @throws IOException if the source could not be read
+     */
+    static <P> PrecalcArray build(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, P> source,
+            Proximity measure, boolean left) throws IOException {
+        final P start = source.position();
+        final IntArrayList keys = new IntArrayList();
+        final DoubleArrayList components = new DoubleArrayList();
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        while (source.hasNext()) {
+            final Indexed<SparseDoubleVector> v = source.read();
+            keys.add(v.key());
+            components.add(left
+                           ? measure.left(v.value())
+                           : measure.right(v.value()));
+            min = Math.min(min, v.key());
+            max = Math.max(max, v.key());
+        }
+        source.position(start);
+        if (keys.isEmpty())
+            return new PrecalcArray(0, new double[0]);
+
+        // Widened, since the range of ids may not fit in an int
+        final long range = (long) max - min + 1;
+        if (range > (long) MAX_SPREAD * keys.size()) {
+            final Int2DoubleMap sparse = new Int2DoubleOpenHashMap(keys.size());
+            for (int i = 0; i < keys.size(); i++)
+                sparse.put(keys.getInt(i), components.getDouble(i));
+            return new PrecalcArray(sparse);
+        }
+
+        final double[] values = new double[(int) range];
+        for (int i = 0; i < keys.size(); i++)
+            values[keys.getInt(i) - min] = components.getDouble(i);
+        return new PrecalcArray(min, values);
+    }
+
+    /**
+     * @param key id of an entry read from the source
+     * @return the component of the entry
+     */
+    double get(int key) {
+        return values != null
+               ? values[key - base]
+               : sparseValues.get(key);
+    }
+
+    /**
+     * @return whether the components are held in a hash map, because the ids
+     *         of the source are sparse
+     */
+    boolean isSparse() {
+        return sparseValues != null;
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.AbstractProximity;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Dice;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.byblo.measures.Tanimoto;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An all-pairs similarity search implementation that uses the minimum
+ * similarity threshold to prune the search space, using prefix and length
+ * filtering (as per Bayardo et al's "All-Pairs" and Xiao et al's "PPJoin").
+ *
+ * <p>Like {@link InvertedApssTask} a reverse index of source A is built, but
+ * each vector only indexes those features that could possibly be responsible
+ * for a similarity above the threshold. The remaining features, chosen to be
+ * the most frequent in the chunk, can not by themselves produce a similarity
+ * that meets the threshold, so a vector that shares none of the indexed
+ * features can be skipped. Candidates are further pruned using the upper bound
+ * on their similarity given by the measure (see
+ * {@link Proximity#upperBound }), before the full similarity is calculated
+ * exactly. The output
+ * is therefore identical to that of {@link InvertedApssTask} after the
+ * minimum similarity filter has been applied.</p>
+ *
+ * <p>Bounds are only known for {@link Cosine}, {@link Tanimoto},
+ * {@link Jaccard} and {@link Dice}; with any other measure, or when no minimum
+ * similarity is set, every feature is indexed.</p>
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PrefixFilterApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(PrefixFilterApssTask.class);
+
+    /**
+     * Relative slack applied to the thresholds, so pairs that sit exactly on
+     * the threshold are not lost to floating point rounding.
+     */
+    private static final double EPSILON = 1E-9;
+
+    /**
+     * The family of bounds used for the measure.
+     */
+    enum Bound {
+
+        /**
+         * No bound is known; all features are indexed.
+         */
+        NONE,
+        /**
+         * The measure is at least the cosine of the weight vectors.
+         */
+        COSINE,
+        /**
+         * The measure is bounded by the number of shared features.
+         */
+        OVERLAP
+    }
+
+    private CompactInvertedIndex index;
+
+    private Bound bound;
+
+    /**
+     * The threshold in terms of the bound: the minimum cosine for COSINE, or
+     * the minimum fraction of a vector's features that must be shared for
+     * OVERLAP.
+     */
+    private double boundThreshold;
+
+    public PrefixFilterApssTask() {
+        index = null;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        initialiseBound();
+        if (index == null) {
+            index = buildIndex();
+        }
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        index = null;
+        super.finaliseTask();
+    }
+
+    @Override
+    CompactInvertedIndex buildSharedIndex() throws IOException {
+        initialiseBound();
+        return buildIndex();
+    }
+
+    @Override
+    void setSharedIndex(CompactInvertedIndex index) {
+        Checks.checkNotNull("index", index);
+        this.index = index;
+    }
+
+    /**
+     * Derive the bounds from the measure and minimum similarity threshold.
+     */
+    private void initialiseBound() {
+        final double t = getMinSimilarity();
+        final Class<? extends Proximity> clazz = getMeasure().getClass();
+
+        bound = Bound.NONE;
+        boundThreshold = 0;
+
+        if (t <= 0 || Double.isInfinite(t)) {
+            // Nothing to be gained
+        } else if (clazz == Cosine.class) {
+            bound = Bound.COSINE;
+            boundThreshold = t;
+        } else if (clazz == Tanimoto.class) {
+            // s / (l + r - s) >= t implies s >= 2t/(1+t) sqrt(l r)
+            bound = Bound.COSINE;
+            boundThreshold = 2 * t / (1 + t);
+        } else if (clazz == Jaccard.class) {
+            // o / (|a| + |b| - o) >= t implies o >= t max(|a|, |b|)
+            bound = Bound.OVERLAP;
+            boundThreshold = t;
+        } else if (clazz == Dice.class) {
+            // 2o / (|a| + |b|) >= t implies o >= t |a| / (2 - t)
+            bound = Bound.OVERLAP;
+            boundThreshold = t / (2 - t);
+        } else if (LOG.isWarnEnabled()) {
+            LOG.warn("No prefix filtering bounds are known for measure "
+                    + getMeasure() + "; all features will be indexed.");
+        }
+
+        boundThreshold *= (1 - EPSILON);
+    }
+
+    @Override
+    protected void runTask()
+            throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running prefix filtering all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final CompactInvertedIndex.Candidates candidates = index.newCandidates();
+
+        while (getSourceB().hasNext()) {
+            Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            index.findCandidates(b.value().keys, b.value().size, candidates);
+
+            for (int i = 0; i < candidates.size(); i++) {
+                final Indexed<SparseDoubleVector> a =
+                        index.getVector(candidates.get(i));
+                if (!getProcessRecord().apply(a) || isMirroredComparison(a, b))
+                    continue;
+                getStats().incrementCandidatesCount();
+
+                addToBatch(b, false, a, pairs);
+            }
+            compareBatch(b, false, pairs);
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    protected CompactInvertedIndex buildIndex()
+            throws IOException {
+        SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        final S startA = src.position();
+
+        // Count the document frequency of each feature in the chunk, so the
+        // most frequent features can be left out of the index.
+        final Int2IntMap df = new Int2IntOpenHashMap();
+        while (src.hasNext()) {
+            for (int k : src.read().value().keys) {
+                df.put(k, df.get(k) + 1);
+            }
+        }
+        src.position(startA);
+
+        final CompactInvertedIndex.Builder builder =
+                new CompactInvertedIndex.Builder();
+        long nFeatures = 0;
+        long nIndexed = 0;
+        while (src.hasNext()) {
+            final Indexed<SparseDoubleVector> a = src.read();
+            final SparseDoubleVector vec = a.value();
+            final Integer[] order = frequentFirstOrder(vec, df);
+            final int prefixEnd = prefixLength(vec, order);
+            final int slot = builder.addVector(a);
+
+            for (int i = prefixEnd; i < order.length; i++) {
+                final int k = vec.keys[order[i]];
+                if (isFiltered(k))
+                    continue;
+                builder.addPosting(k, slot);
+                ++nIndexed;
+            }
+            nFeatures += vec.size;
+        }
+        src.position(startA);
+        final CompactInvertedIndex result = builder.build();
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Indexed " + nIndexed + " of " + nFeatures
+                    + " features (bound=" + bound + ", threshold="
+                    + boundThreshold + ")");
+        }
+        return result;
+    }
+
+    /**
+     * The length of the leading run of {@code order} that can be left out of
+     * the index, because those features alone can not bring any pair up to the
+     * threshold.
+     */
+    private int prefixLength(SparseDoubleVector vec, Integer[] order) {
+        if (bound == Bound.COSINE) {
+            double normSquared = 0;
+            for (int i = 0; i < vec.size; i++)
+                normSquared += vec.values[i] * vec.values[i];
+            final double limit = boundThreshold * boundThreshold * normSquared;
+
+            double prefixNormSquared = 0;
+            int i = 0;
+            while (i < order.length) {
+                final int j = order[i];
+                if (!isFiltered(vec.keys[j])) {
+                    prefixNormSquared += vec.values[j] * vec.values[j];
+                    if (prefixNormSquared >= limit)
+                        break;
+                }
+                ++i;
+            }
+            return i;
+        } else if (bound == Bound.OVERLAP) {
+            final double limit = boundThreshold * vec.size;
+
+            int prefixSize = 0;
+            int i = 0;
+            while (i < order.length) {
+                if (!isFiltered(vec.keys[order[i]])) {
+                    ++prefixSize;
+                    if (prefixSize >= limit)
+                        break;
+                }
+                ++i;
+            }
+            return i;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Order the offsets of the vector by descending document frequency, so the
+     * features with the longest postings lists are the ones left out.
+     */
+    private static Integer[] frequentFirstOrder(
+            final SparseDoubleVector vec, final Int2IntMap df) {
+        final Integer[] order = new Integer[vec.size];
+        for (int i = 0; i < vec.size; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer i, Integer j) {
+                final int dfi = df.get(vec.keys[i]);
+                final int dfj = df.get(vec.keys[j]);
+                return dfi != dfj ? (dfj < dfi ? -1 : 1) : i.compareTo(j);
+            }
+
+        });
+        return order;
+    }
+
+    private boolean isFiltered(int featureId) {
+        return getMeasure() instanceof AbstractProximity
+                && ((AbstractProximity) getMeasure()).isFiltered(featureId);
+    }
+
+    @Override
+    public String getName() {
+        return "prefix-filter-allpairs";
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Seekable source that holds every remaining vector of another source in
+ * memory, having passed each through
+ * {@link Proximity#prepare(SparseDoubleVector) } exactly once; so reading it
+ * any number of times never prepares, or allocates, a vector again. Only
+ * suitable for sources small enough to hold, such as the entries added to an
+ * {@link IncrementalApssTask}; larger sources are prepared as they are read,
+ * by a {@link PreparedObjectSource}.
+ *
+ * <p>Positions are those of the underlying source, so the two can be used
+ * interchangeably by an algorithm that records and restores positions. Only
+ * positions returned by this source can be restored.</p>
+ *
+ * @param <P> type of position in the underlying source
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class PreparedListSource<P>
+        implements SeekableObjectSource<Indexed<SparseDoubleVector>, P> {
+
+    private final List<Indexed<SparseDoubleVector>> vectors;
+
+    private final List<P> positions;
+
+    private final P end;
+
+    private final Map<P, Integer> offsets;
+
+    private int offset;
+
+    private PreparedListSource(List<Indexed<SparseDoubleVector>> vectors,
+                               List<P> positions, P end) {
+        this.vectors = vectors;
+        this.positions = positions;
+        this.end = end;
+        this.offsets = new HashMap<P, Integer>(positions.size() * 2);
+        for (int i = 0; i < positions.size(); i++)
+            offsets.put(positions.get(i), i);
+        this.offset = 0;
+    }
+
+    /**
+     * Read, and prepare, the remaining vectors of the given source.
+     *
+     * @param inner   source to read
+     * @param measure measure to prepare the vectors for
+     * @return source of the prepared vectors
+     * @throws IOException if the source could not be read
+     */
+    static <P> PreparedListSource<P> read(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, P> inner,
+            Proximity measure) throws IOException {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkNotNull("measure", measure);
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final List<P> positions = new ArrayList<P>();
+        while (inner.hasNext()) {
+            positions.add(inner.position());
+            final Indexed<SparseDoubleVector> v = inner.read();
+            final SparseDoubleVector prepared = measure.prepare(v.value());
+            vectors.add(prepared == v.value()
+                        ? v : new Indexed<SparseDoubleVector>(v.key(), prepared));
+        }
+        return new PreparedListSource<P>(vectors, positions, inner.position());
+    }
+
+    @Override
+    public Indexed<SparseDoubleVector> read() throws IOException {
+        return vectors.get(offset++);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return offset < vectors.size();
+    }
+
+    @Override
+    public P position() throws IOException {
+        return offset < positions.size() ? positions.get(offset) : end;
+    }
+
+    @Override
+    public void position(P position) throws IOException {
+        if (offset < positions.size() && positions.get(offset) == position)
+            return;
+        final Integer found = offsets.get(position);
+        if (found != null) {
+            offset = found;
+        } else if (position == end || (end != null && end.equals(position))) {
+            offset = vectors.size();
+        } else {
+            throw new IllegalArgumentException(
+                    "Position was not read from this source: " + position);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedList{size=" + vectors.size() + "}";
+    }
+
+}
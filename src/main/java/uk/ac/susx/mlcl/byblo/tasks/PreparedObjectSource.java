@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Seekable source decorator that passes every vector read through
+ * {@link Proximity#prepare(SparseDoubleVector) }, so the reader only sees
+ * vectors in the representation the measure consumes.
+ *
+ * <p>Vectors are prepared every time they are read, and nothing is held, so
+ * the memory used by a task does not grow with its sources.
+ * {@link ThreadedApssTask} reads each source through one of these as chunks
+ * are decoded, and the chunk cache holds the chunks prepared.</p>
+ *
+ * @param <P> type of position in the underlying source
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class PreparedObjectSource<P>
+        implements SeekableObjectSource<Indexed<SparseDoubleVector>, P> {
+
+    private final SeekableObjectSource<Indexed<SparseDoubleVector>, P> inner;
+
+    private final Proximity measure;
+
+    PreparedObjectSource(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, P> inner,
+            Proximity measure) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkNotNull("measure", measure);
+        this.inner = inner;
+        this.measure = measure;
+    }
+
+    @Override
+    public Indexed<SparseDoubleVector> read() throws IOException {
+        final Indexed<SparseDoubleVector> v = inner.read();
+        final SparseDoubleVector prepared = measure.prepare(v.value());
+        return prepared == v.value()
+               ? v : new Indexed<SparseDoubleVector>(v.key(), prepared);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return inner.hasNext();
+    }
+
+    @Override
+    public P position() throws IOException {
+        return inner.position();
+    }
+
+    @Override
+    public void position(P offset) throws IOException {
+        inner.position(offset);
+    }
+
+    @Override
+    public String toString() {
+        return "Prepared{" + inner + "}";
+    }
+
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.susx.mlcl.byblo.measures.DotProductProximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A block of feature vectors held as the columns of a sparse matrix, so that
+ * it can be multiplied by one row vector at a time (Gustavson's algorithm).
+ * Each vector is assigned an integer slot. The features are stored
+ * column-major: the postings of each feature hold the slots of the vectors
+ * that contain it, along with the vector's
+ * {@link DotProductProximity#leftFactor left factor} for the feature.
+ *
+ * <p>The most frequent features of the block, those that occur in a large
+ * proportion of its vectors, are stored instead as a dense tile; one column of
+ * factors over every slot, with zeros for the vectors that lack the feature.
+ * The product of a row with a dense column is a simple loop over consecutive
+ * elements, that the JIT can vectorise, rather than a scatter over postings.
+ * At most {@link #MAX_DENSE_FEATURES} are stored densely, so that the dense
+ * features of each vector can be held as a bit mask.</p>
+ *
+ * <p>Instances are immutable once built. Multiplication requires an
+ * {@link Accumulator}, which holds the per-thread working state.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ProductBlock {
+
+    /**
+     * Maximum number of features stored in the dense tile.
+     */
+    static final int MAX_DENSE_FEATURES = Long.SIZE;
+
+    private final Indexed<SparseDoubleVector>[] vectors;
+
+    /**
+     * Ids of the sparsely stored features, in ascending order. Postings of
+     * feature {@code sparseKeys[c]} are stored in {@code slots[offsets[c]]}
+     * up to (but not including) {@code slots[offsets[c + 1]]}.
+     */
+    private final int[] sparseKeys;
+
+    private final int[] offsets;
+
+    private final int[] slots;
+
+    private final double[] weights;
+
+    /**
+     * Ids of the densely stored features, in ascending order. The factor of
+     * dense feature d in slot s is {@code tile[d * vectors.length + s]}.
+     */
+    private final int[] denseKeys;
+
+    private final double[] tile;
+
+    /**
+     * Dense features of each slot; bit d is set when the vector contains
+     * feature {@code denseKeys[d]}.
+     */
+    private final long[] denseMasks;
+
+    private ProductBlock(Indexed<SparseDoubleVector>[] vectors,
+                         int[] sparseKeys, int[] offsets, int[] slots,
+                         double[] weights, int[] denseKeys, double[] tile,
+                         long[] denseMasks) {
+        this.vectors = vectors;
+        this.sparseKeys = sparseKeys;
+        this.offsets = offsets;
+        this.slots = slots;
+        this.weights = weights;
+        this.denseKeys = denseKeys;
+        this.tile = tile;
+        this.denseMasks = denseMasks;
+    }
+
+    /**
+     * Build a block from the given vectors, which have already been prepared
+     * by the measure.
+     *
+     * @param vectors      vectors to hold, in slot order
+     * @param measure      measure used to weight the postings, or null to
+     *                     record only which vectors contain each feature
+     * @param denseDensity minimum proportion of the vectors in which a feature
+     *                     must occur for it to be stored densely
+     * @return the new block
+     */
+    @SuppressWarnings("unchecked")
+    static ProductBlock build(List<Indexed<SparseDoubleVector>> vectors,
+                              DotProductProximity measure,
+                              double denseDensity) {
+        Checks.checkNotNull("vectors", vectors);
+        if (!(denseDensity > 0 && denseDensity <= 1))
+            throw new IllegalArgumentException(
+                    "denseDensity not in range (0,1]: " + denseDensity);
+
+        final Indexed<SparseDoubleVector>[] vectorArray =
+                (Indexed<SparseDoubleVector>[]) vectors.toArray(new Indexed<?>[vectors.size()]);
+        final int n = vectorArray.length;
+
+        // Find the distinct features, and the number of vectors containing each
+        int nPostings = 0;
+        for (Indexed<SparseDoubleVector> v : vectorArray)
+            nPostings += v.value().size;
+        final int[] allKeys = new int[nPostings];
+        int p = 0;
+        for (Indexed<SparseDoubleVector> v : vectorArray) {
+            System.arraycopy(v.value().keys, 0, allKeys, p, v.value().size);
+            p += v.value().size;
+        }
+        Arrays.sort(allKeys);
+        int nKeys = 0;
+        final int[] counts = new int[nPostings];
+        for (int i = 0; i < nPostings; i++) {
+            if (i == 0 || allKeys[i] != allKeys[i - 1])
+                allKeys[nKeys++] = allKeys[i];
+            ++counts[nKeys - 1];
+        }
+        final int[] keys = Arrays.copyOf(allKeys, nKeys);
+
+        // Choose the most frequent features above the density threshold
+        final int minDenseCount = Math.max(1, (int) Math.ceil(denseDensity * n));
+        final int[] byCount = new int[nKeys];
+        for (int c = 0; c < nKeys; c++)
+            byCount[c] = c;
+        IntArrays.quickSort(byCount, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int c1, int c2) {
+                return counts[c1] > counts[c2] ? -1
+                       : counts[c1] < counts[c2] ? 1
+                       : c1 - c2;
+            }
+
+        });
+        int nDense = 0;
+        while (nDense < Math.min(nKeys, MAX_DENSE_FEATURES)
+                && counts[byCount[nDense]] >= minDenseCount)
+            ++nDense;
+        final int[] denseKeys = new int[nDense];
+        for (int d = 0; d < nDense; d++)
+            denseKeys[d] = keys[byCount[d]];
+        Arrays.sort(denseKeys);
+
+        // Lay out the sparse columns with a counting sort
+        final int nSparse = nKeys - nDense;
+        final int[] sparseKeys = new int[nSparse];
+        final int[] offsets = new int[nSparse + 1];
+        for (int c = 0, s = 0; c < nKeys; c++) {
+            if (Arrays.binarySearch(denseKeys, keys[c]) < 0) {
+                sparseKeys[s] = keys[c];
+                offsets[s + 1] = offsets[s] + counts[c];
+                ++s;
+            }
+        }
+        final int[] next = Arrays.copyOf(offsets, nSparse);
+        final int[] slots = new int[offsets[nSparse]];
+        final double[] weights = new double[offsets[nSparse]];
+        final double[] tile = new double[nDense * n];
+        final long[] denseMasks = new long[n];
+
+        for (int slot = 0; slot < n; slot++) {
+            final SparseDoubleVector v = vectorArray[slot].value();
+            for (int i = 0; i < v.size; i++) {
+                final double weight = measure == null
+                                      ? 0 : measure.leftFactor(v, i);
+                final int d = nDense == 0
+                              ? -1 : Arrays.binarySearch(denseKeys, v.keys[i]);
+                if (d >= 0) {
+                    tile[d * n + slot] = weight;
+                    denseMasks[slot] |= 1L << d;
+                } else {
+                    final int c = Arrays.binarySearch(sparseKeys, v.keys[i]);
+                    final int q = next[c]++;
+                    slots[q] = slot;
+                    weights[q] = weight;
+                }
+            }
+        }
+
+        return new ProductBlock(vectorArray, sparseKeys, offsets, slots,
+                                weights, denseKeys, tile, denseMasks);
+    }
+
+    /**
+     * @return the number of vectors held by the block
+     */
+    int getVectorCount() {
+        return vectors.length;
+    }
+
+    /**
+     * @return the number of features stored in the dense tile
+     */
+    int getDenseFeatureCount() {
+        return denseKeys.length;
+    }
+
+    /**
+     * @return the number of postings held by the sparse columns
+     */
+    int getSparsePostingCount() {
+        return slots.length;
+    }
+
+    /**
+     * @param slot vector slot, as returned by {@link Accumulator#get(int) }
+     * @return the vector that was assigned the given slot
+     */
+    Indexed<SparseDoubleVector> getVector(int slot) {
+        return vectors[slot];
+    }
+
+    /**
+     * Instantiate a new accumulator, large enough for any block of up to the
+     * given number of vectors.
+     */
+    static Accumulator newAccumulator(int capacity) {
+        return new Accumulator(capacity);
+    }
+
+    /**
+     * Find the slots of every vector that shares at least one feature with the
+     * query, and accumulate the dot product of each with the query. The vectors
+     * of the block are taken as the first argument of the measure. Previous
+     * contents of the accumulator are discarded.
+     *
+     * <p>Terms are added in ascending order of feature id, so the accumulated
+     * values are exactly those returned by
+     * {@link DotProductProximity#shared(SparseDoubleVector, SparseDoubleVector) }.
+     * Features filtered by the measure find candidates, but add nothing.</p>
+     *
+     * @param query   the row vector
+     * @param factors {@link DotProductProximity#rightFactor right factor} of
+     *                each feature of the query; ignored if measure is null
+     * @param measure the measure the block was built with, or null to find
+     *                candidates only
+     * @param acc     accumulator to store the results in
+     */
+    void multiply(SparseDoubleVector query, double[] factors,
+                  DotProductProximity measure, Accumulator acc) {
+        final int n = vectors.length;
+
+        long queryMask = 0;
+        if (denseKeys.length > 0) {
+            for (int j = 0; j < query.size; j++) {
+                final int d = Arrays.binarySearch(denseKeys, query.keys[j]);
+                if (d >= 0)
+                    queryMask |= 1L << d;
+            }
+        }
+        acc.clear(n, queryMask != 0);
+
+        int c = 0;
+        for (int j = 0; j < query.size; j++) {
+            final int key = query.keys[j];
+            final boolean accumulate = measure != null && !measure.isFiltered(key);
+
+            if (queryMask != 0) {
+                final int d = Arrays.binarySearch(denseKeys, key);
+                if (d >= 0) {
+                    if (accumulate) {
+                        final double factor = factors[j];
+                        final double[] values = acc.values;
+                        final int base = d * n;
+                        for (int s = 0; s < n; s++)
+                            values[s] += tile[base + s] * factor;
+                    }
+                    continue;
+                }
+            }
+
+            c = Arrays.binarySearch(sparseKeys, c, sparseKeys.length, key);
+            if (c < 0) {
+                c = -c - 1;
+                continue;
+            }
+            final int end = offsets[c + 1];
+            if (accumulate) {
+                final double factor = factors[j];
+                for (int q = offsets[c]; q < end; q++)
+                    acc.add(slots[q], weights[q] * factor);
+            } else {
+                for (int q = offsets[c]; q < end; q++)
+                    acc.mark(slots[q]);
+            }
+        }
+
+        if (queryMask != 0) {
+            for (int s = 0; s < n; s++) {
+                if ((denseMasks[s] & queryMask) != 0)
+                    acc.mark(s);
+            }
+        }
+    }
+
+    /**
+     * Reusable storage for the result of a multiplication. The slots found are
+     * held in a {@link CompactInvertedIndex.Candidates} set, so clearing them
+     * costs nothing in the common case, and the values alongside. When the
+     * query has dense features every value is accumulated, so the values are
+     * all cleared instead.
+     */
+    static final class Accumulator {
+
+        private final CompactInvertedIndex.Candidates found;
+
+        private final double[] values;
+
+        private boolean cleared;
+
+        private Accumulator(int capacity) {
+            found = new CompactInvertedIndex.Candidates(capacity);
+            values = new double[capacity];
+            cleared = false;
+        }
+
+        private void clear(int n, boolean clearValues) {
+            if (n > values.length)
+                throw new IllegalArgumentException(
+                        "block of " + n + " vectors exceeds capacity "
+                        + values.length);
+            found.clear();
+            cleared = clearValues;
+            if (clearValues)
+                Arrays.fill(values, 0, n, 0);
+        }
+
+        private void mark(int slot) {
+            if (found.mark(slot) && !cleared)
+                values[slot] = 0;
+        }
+
+        private void add(int slot, double value) {
+            mark(slot);
+            values[slot] += value;
+        }
+
+        /**
+         * @return number of candidates found
+         */
+        int size() {
+            return found.size();
+        }
+
+        /**
+         * @param i offset of the candidate, from 0 to {@link #size()}
+         * @return slot of the i<sup>th</sup> candidate
+         */
+        int get(int i) {
+            return found.get(i);
+        }
+
+        /**
+         * @param i offset of the candidate, from 0 to {@link #size()}
+         * @return dot product accumulated for the i<sup>th</sup> candidate
+         */
+        double getValue(int i) {
+            return values[found.get(i)];
+        }
+
+    }
+
+}
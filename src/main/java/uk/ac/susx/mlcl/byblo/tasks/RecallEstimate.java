@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe tally of the pairs produced by an exact search of a sample of
+ * the query vectors, and of how many of those were found by an approximate
+ * search. Used by the approximate tasks ({@link LshApssTask}, and
+ * {@link InvertedApssTask} with a document frequency cutoff) to estimate the
+ * recall they lose.
+ *
+ * <p>Which entries are sampled is decided by {@link #isSampled}, from the id
+ * alone, so the decision is consistent between chunks and between the
+ * instances sharing an estimate.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class RecallEstimate {
+
+    private final AtomicLong relevant = new AtomicLong(0);
+
+    private final AtomicLong recalled = new AtomicLong(0);
+
+    /**
+     * Whether or not the entry is one of those sampled to estimate recall.
+     * The id is spread by multiplying with the golden ratio, so consecutive
+     * ids are sampled evenly and the sample stays close to the rate on small
+     * inputs.
+     *
+     * @param entryId id of the query entry
+     * @param seed    varies the sample between otherwise identical runs
+     * @param rate    proportion of entries sampled, in [0,1]
+     */
+    static boolean isSampled(int entryId, long seed, double rate) {
+        if (rate <= 0)
+            return false;
+        final long h = (~(long) entryId ^ seed) * 0x9E3779B97F4A7C15L;
+        return (h >>> 11) * 0x1.0p-53 < rate;
+    }
+
+    void add(long relevantDelta, long recalledDelta) {
+        relevant.addAndGet(relevantDelta);
+        recalled.addAndGet(recalledDelta);
+    }
+
+    /**
+     * @return number of pairs produced by the exact search of the sample
+     */
+    public long getRelevantCount() {
+        return relevant.get();
+    }
+
+    /**
+     * @return number of those pairs that were also found by the approximate
+     *         search
+     */
+    public long getRecalledCount() {
+        return recalled.get();
+    }
+
+    /**
+     * @return estimated proportion of pairs found, or NaN if no pairs
+     *         were sampled
+     */
+    public double getRecall() {
+        final long r = relevant.get();
+        return r == 0 ? Double.NaN : (double) recalled.get() / r;
+    }
+
+    @Override
+    public String toString() {
+        return "RecallEstimate{recall=" + getRecall()
+                + ", relevant=" + getRelevantCount()
+                + ", recalled=" + getRecalledCount() + "}";
+    }
+
+}
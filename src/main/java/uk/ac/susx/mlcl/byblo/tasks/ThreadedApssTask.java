@@ -34,29 +34,61 @@ import com.google.common.base.Objects.ToStringHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.VectorStats;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.Chunk;
-import uk.ac.susx.mlcl.lib.io.Chunker;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
-import uk.ac.susx.mlcl.lib.tasks.Task;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An all pairs similarity search implementation that parallelises another
  * implementation. This is achieved by breaking the work down into chunks that
  * are run concurrently.
  *
+ * <p>Every pair of chunks is submitted to a work-stealing
+ * {@link ForkJoinPool} as a task that reads its own chunks when it runs, so
+ * decoding is spread over the workers rather than done ahead of time by the
+ * calling thread. Tasks are submitted in the order they should run, and only
+ * a few more than there are workers are submitted at a time, so the pairs
+ * waiting in the pool do not hold chunks out of the cache. Chunks are bounded by
+ * their number of non-zero elements as well as their number of vectors, and
+ * the most expensive chunk pairs are submitted first. Since the cost of chunk
+ * pairs still varies widely, a pair that is still large when the other
+ * workers run out of work is split recursively, by halving the chunk from
+ * source B, so idle workers can steal the halves.</p>
+ *
+ * <p>Each chunk of source A, and its index when the inner algorithm indexes
+ * source A, is read once, by the first task of that row of the grid to run,
+ * and is shared read-only by every other task in the row. Both are released
+ * once the row's tasks have completed. Chunks of source B are read through
+ * the decoded chunk cache, so the chunks held at any time are those of the
+ * rows in progress, those being compared, and those in the cache. When both
+ * sources contain the same vectors (see {@link #setSameSources }), source A
+ * is not scanned separately; the chunks found in source B are used for both,
+ * and the chunks of source A are also read through the cache.</p>
+ *
+ * <p>When a checkpoint directory is set, the output of each chunk pair is
+ * recorded there as the pair completes, and only written to the sink once
+ * every pair is complete. An interrupted run can then be resumed, skipping
+ * the recorded pairs; the chunk limits of the original run are reused so
+ * the grid is identical.</p>
+ *
+ * <p>The grid can also be partitioned into shards, each processed by a
+ * separate task (typically in a separate process) with its own output.</p>
+ *
  * @param <S> Type of "tell" object used to seek into the data source.
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -64,17 +96,133 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     private static final Log LOG = LogFactory.getLog(ThreadedApssTask.class);
 
+    // Class literals are necessarily raw
+    @SuppressWarnings("rawtypes")
     private Class<? extends NaiveApssTask> innerAlgorithm = InvertedApssTask.class;
 
-    private static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors() + 1;
+    /**
+     * Instance of the inner algorithm from which algorithm specific settings
+     * are copied to every inner task, or null to use the defaults.
+     */
+    private NaiveApssTask<?> innerSettings = null;
 
-    private int nThreads = DEFAULT_NUM_THREADS;
+    /**
+     * Copy of the inner settings used by the current run, in which those
+     * settings that depend on the whole of source B have been resolved.
+     */
+    private NaiveApssTask<?> runSettings = null;
 
-    private ExecutorService executor = null;
+    private static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors() + 1;
 
-    private Queue<Future<? extends Task>> futureQueue = new ArrayDeque<Future<? extends Task>>();
+    private int nThreads = DEFAULT_NUM_THREADS;
 
-    private Semaphore throttle;
+    /**
+     * Chunk pairs are not split unless both halves would contain at least this
+     * many vectors from source A.
+     */
+    public static final int DEFAULT_MIN_SPLIT_SIZE = 64;
+
+    /**
+     * Chunk pairs are only split when the current worker has fewer than this
+     * many surplus tasks queued; i.e when other workers are likely to be idle.
+     */
+    private static final int MAX_SURPLUS_QUEUED_TASKS = 3;
+
+    private int minSplitSize = DEFAULT_MIN_SPLIT_SIZE;
+
+    /**
+     * Fraction of the free memory given over to the decoded chunk cache, when
+     * the size has not been set explicitly.
+     */
+    public static final double DEFAULT_CHUNK_CACHE_FRACTION = 0.25;
+
+    /**
+     * Maximum number of bytes of decoded source B chunks to retain between
+     * chunk pairs, or -1 to use a fraction of the free memory.
+     */
+    private long chunkCacheSize = -1;
+
+    private ChunkCache chunkCache = null;
+
+    /**
+     * Statistics of the source vectors, used to estimate the memory required
+     * by each chunk, or null if they are not known.
+     */
+    private VectorStats vectorStats = null;
+
+    /**
+     * Directory in which completed chunk pairs are recorded, so an interrupted
+     * run can be resumed, or null to disable checkpointing.
+     */
+    private File checkpointDir = null;
+
+    /**
+     * Identifies the input data, so a checkpoint is not resumed against
+     * different data. Required when checkpointing is enabled.
+     */
+    private String checkpointFingerprint = null;
+
+    /**
+     * Whether or not to skip the chunk pairs completed by a previous run,
+     * rather than discarding its checkpoint.
+     */
+    private boolean resumeEnabled = false;
+
+    private ApssCheckpoint checkpoint = null;
+
+    /**
+     * Number of vectors in each chunk, or -1 to estimate it from the memory
+     * available.
+     */
+    private int chunkSize = -1;
+
+    /**
+     * Index of the shard of the chunk-pair grid to be processed, in the range
+     * [0, shardCount).
+     */
+    private int shardIndex = 0;
+
+    /**
+     * Number of shards the chunk-pair grid is partitioned into.
+     */
+    private int shardCount = 1;
+
+    /**
+     * Maximum number of non-zero elements in each chunk, or -1 to derive it
+     * from the chunk size and the vector statistics.
+     */
+    private long chunkNonZeros = -1;
+
+    /**
+     * Chunks of source A and source B, found at the start of the run.
+     */
+    private ChunkTable<S> chunksA = null;
+
+    private ChunkTable<S> chunksB = null;
+
+    /**
+     * Held while reading either source, since they may share an underlying
+     * file, and tasks read chunks concurrently.
+     */
+    private final Object sourceLock = new Object();
+
+    private ForkJoinPool executor = null;
+
+    /**
+     * Whether or not only the upper half of the chunk-pair grid should be
+     * visited, when the measure is symmetric. Each unordered pair of vectors is
+     * then compared only once, and the resultant pairs are output in both
+     * directions. Only valid when both sources contain the same vectors.
+     */
+    private boolean halfGridEnabled = false;
+
+    /**
+     * Whether or not both sources contain the same vectors in the same order,
+     * as when both read the same file, whatever the measure. Source A is then
+     * not read to find its chunks, and its chunks are read through the cache
+     * of source B.
+     */
+    private boolean sameSources = false;
 
     public ThreadedApssTask(
             SeekableObjectSource<Indexed<SparseDoubleVector>, S> A,
@@ -93,29 +241,260 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         // do to it here.
     }
 
+    @SuppressWarnings("rawtypes")
     public Class<? extends NaiveApssTask> getInnerAlgorithm() {
         return innerAlgorithm;
     }
 
+    @SuppressWarnings("rawtypes")
     public void setInnerAlgorithm(Class<? extends NaiveApssTask> innerAlgorithm) {
         this.innerAlgorithm = innerAlgorithm;
     }
 
+    public NaiveApssTask<?> getInnerSettings() {
+        return innerSettings;
+    }
+
+    /**
+     * @param innerSettings instance of the inner algorithm, whose algorithm
+     *                      specific settings will be copied to each inner
+     *                      task; or null to use the defaults
+     */
+    public void setInnerSettings(NaiveApssTask<?> innerSettings) {
+        this.innerSettings = innerSettings;
+    }
+
+    /**
+     * Copy the threading and chunking settings, and the inner algorithm, to
+     * another instance. Checkpointing, sharding, the half grid, and whether
+     * the sources are the same, are specific to a run over particular
+     * sources, so are not copied.
+     */
     @Override
-    protected void initialiseTask() throws Exception {
-        super.initialiseTask();
-        executor = new ThreadPoolExecutor(
-                nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        futureQueue = new ArrayDeque<Future<? extends Task>>();
-        throttle = new Semaphore(getThrottleSize());
+    void copySettingsTo(NaiveApssTask<?> other) {
+        if (other instanceof ThreadedApssTask) {
+            final ThreadedApssTask<?> that = (ThreadedApssTask<?>) other;
+            that.setInnerAlgorithm(innerAlgorithm);
+            that.setInnerSettings(innerSettings);
+            that.setNumThreads(nThreads);
+            that.setMinSplitSize(minSplitSize);
+            that.setChunkCacheSize(chunkCacheSize);
+            that.setVectorStats(vectorStats);
+            that.setChunkSize(chunkSize);
+            that.setChunkNonZeros(chunkNonZeros);
+        }
+    }
+
+    /**
+     * Resolve the inner settings from the whole of source B, replacing them
+     * with a resolved copy.
+     */
+    @Override
+    <Q> void resolveSettings(
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, Q> sourceB)
+            throws Exception {
+        innerSettings = resolvedCopy(innerSettings, sourceB);
+    }
+
+    public final int getMinSplitSize() {
+        return minSplitSize;
+    }
+
+    public final void setMinSplitSize(int minSplitSize) {
+        if (minSplitSize < 1) {
+            throw new IllegalArgumentException("minSplitSize < 1");
+        }
+        this.minSplitSize = minSplitSize;
+    }
+
+    public final long getChunkCacheSize() {
+        return chunkCacheSize;
+    }
+
+    /**
+     * @param chunkCacheSize maximum number of bytes of decoded chunks to
+     *                       retain, or -1 to use a fraction of the free memory
+     */
+    public final void setChunkCacheSize(long chunkCacheSize) {
+        if (chunkCacheSize < -1) {
+            throw new IllegalArgumentException("chunkCacheSize < -1");
+        }
+        this.chunkCacheSize = chunkCacheSize;
+    }
+
+    public final VectorStats getVectorStats() {
+        return vectorStats;
+    }
+
+    /**
+     * @param vectorStats statistics of the source vectors, or null to fall
+     *                    back to a conservative guess at the chunk size
+     */
+    public final void setVectorStats(VectorStats vectorStats) {
+        this.vectorStats = vectorStats;
+    }
+
+    public final File getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    /**
+     * @param checkpointDir directory in which to record completed chunk
+     *                      pairs, or null to disable checkpointing
+     */
+    public final void setCheckpointDir(File checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    public final String getCheckpointFingerprint() {
+        return checkpointFingerprint;
+    }
+
+    /**
+     * @param checkpointFingerprint identifier of the input data; a checkpoint
+     *                              is only resumed by a run with the same
+     *                              fingerprint
+     */
+    public final void setCheckpointFingerprint(String checkpointFingerprint) {
+        this.checkpointFingerprint = checkpointFingerprint;
+    }
+
+    public final boolean isResumeEnabled() {
+        return resumeEnabled;
+    }
+
+    public final void setResumeEnabled(boolean resumeEnabled) {
+        this.resumeEnabled = resumeEnabled;
+    }
+
+    /**
+     * Delete the checkpoint directory. This should be called once the output
+     * of a completed run has been safely written.
+     *
+     * @throws IOException if the checkpoint could not be deleted
+     */
+    public void deleteCheckpoint() throws IOException {
+        if (checkpointDir != null) {
+            ApssCheckpoint.delete(checkpointDir);
+        }
+    }
+
+    public final int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize number of vectors in each chunk, or -1 to estimate it
+     *                  from the memory available
+     */
+    public final void setChunkSize(int chunkSize) {
+        if (chunkSize < 1 && chunkSize != -1) {
+            throw new IllegalArgumentException("chunkSize < 1 and not -1");
+        }
+        this.chunkSize = chunkSize;
     }
 
-    int nChunks = 0;
+    public final long getChunkNonZeros() {
+        return chunkNonZeros;
+    }
+
+    /**
+     * @param chunkNonZeros maximum number of non-zero elements in each chunk,
+     *                      or -1 to derive it from the chunk size and the
+     *                      vector statistics
+     */
+    public final void setChunkNonZeros(long chunkNonZeros) {
+        if (chunkNonZeros < 1 && chunkNonZeros != -1) {
+            throw new IllegalArgumentException("chunkNonZeros < 1 and not -1");
+        }
+        this.chunkNonZeros = chunkNonZeros;
+    }
+
+    public final int getShardIndex() {
+        return shardIndex;
+    }
+
+    public final int getShardCount() {
+        return shardCount;
+    }
 
-    int queuedCount = 0;
+    /**
+     * Process only one shard of the chunk-pair grid, so the work can be spread
+     * over several independent processes. Chunk pair (i, j) belongs to shard
+     * (i + j) mod shardCount. Every process must use the same chunk size, so
+     * that it partitions the grid identically.
+     *
+     * @param shardIndex index of the shard to process, from 0 to
+     *                   shardCount - 1
+     * @param shardCount number of shards
+     */
+    public final void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount < 1");
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException(
+                    "shardIndex not in range [0, shardCount): " + shardIndex);
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
 
-    int completedCount = 0;
+    private boolean isInShard(int i, int j) {
+        return (i + j) % shardCount == shardIndex;
+    }
+
+    public final boolean isHalfGridEnabled() {
+        return halfGridEnabled;
+    }
+
+    public final void setHalfGridEnabled(boolean halfGridEnabled) {
+        this.halfGridEnabled = halfGridEnabled;
+    }
+
+    public final boolean isSameSources() {
+        return sameSources;
+    }
+
+    /**
+     * @param sameSources whether both sources contain the same vectors in the
+     *                    same order, so that the chunks of source B can be
+     *                    used as the chunks of source A
+     */
+    public final void setSameSources(boolean sameSources) {
+        this.sameSources = sameSources;
+    }
+
+    /**
+     * @return true if only the upper half of the chunk-pair grid will be
+     *         visited during the current run
+     */
+    private boolean isHalfGrid() {
+        return halfGridEnabled && getMeasure().isSymmetric();
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        executor = new ForkJoinPool(nThreads);
+    }
+
+    /**
+     * Number of chunk pairs to be compared by this run.
+     */
+    long nPairs = 0;
+
+    /**
+     * Number of chunk pairs completed; updated by the workers.
+     */
+    private final AtomicLong completedCount = new AtomicLong(0);
+
+    /**
+     * Bounds the number of chunk pairs submitted to the pool and not yet
+     * complete; a permit is taken when a pair is submitted, and released by
+     * the pair when it has finished.
+     */
+    private Semaphore throttle;
 
     @Override
     protected void runTask() throws Exception {
@@ -125,72 +504,150 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         progress.setMessage("Reading threaded all-pairs.");
         progress.endAdjusting();
 
-        final int maxChunkSize = estimateChunkSize();
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Chunk-size estimated as: " + maxChunkSize + " vectors per work unit.");
+        final boolean halfGrid = isHalfGrid();
+        if (halfGrid && LOG.isInfoEnabled()) {
+            LOG.info("Measure is symmetric; only the upper half of the chunk-pair grid will be visited.");
         }
 
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Initialising chunker A.");
+        if (shardCount > 1 && chunkSize == -1) {
+            throw new IllegalStateException(
+                    "chunkSize must be set when sharding, so every shard partitions the grid identically");
         }
-        SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerA =
-                Chunker.newSeekableInstance(getSourceA(), maxChunkSize);
 
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Initialising chunker B.");
+        final int maxChunkSize;
+        final long maxChunkNonZeros;
+        if (checkpointDir != null) {
+            // The chunking of a resumed run must be the same as the original,
+            // so the grid is reproduced exactly.
+            checkpoint = openCheckpoint(halfGrid);
+            maxChunkSize = checkpoint.getChunkSize();
+            maxChunkNonZeros = checkpoint.getChunkNonZeros();
+        } else {
+            maxChunkSize = chunkSize != -1 ? chunkSize : estimateChunkSize();
+            maxChunkNonZeros = estimateChunkNonZeros(maxChunkSize);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Chunk-size estimated as: " + maxChunkSize + " vectors per work unit"
+                    + (maxChunkNonZeros == -1 ? "." : ", or " + maxChunkNonZeros + " non-zero elements."));
+            if (shardCount > 1) {
+                LOG.info(MessageFormat.format("Processing shard {0} of {1} of the chunk-pair grid.",
+                                              shardIndex + 1, shardCount));
+            }
         }
-        SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerB =
-                Chunker.newSeekableInstance(getSourceB(), maxChunkSize);
 
-        int i = 0;
-        while (chunkerA.hasNext()) {
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Reading chunk A" + i);
+        final long cacheBytes = chunkCacheSize >= 0
+                                ? chunkCacheSize
+                                : (long) (MiscUtil.freeMaxMemory() * DEFAULT_CHUNK_CACHE_FRACTION);
+        chunkCache = new ChunkCache(cacheBytes);
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format("Decoded chunk cache size: {0,number} bytes", cacheBytes));
+        }
+
+        // Settings of the inner algorithm that depend on the whole of source
+        // B, such as the features excluded by a document frequency cutoff,
+        // are resolved once, so every chunk pair uses the same.
+        runSettings = resolvedCopy(innerSettings, getSourceB());
+
+        // Find every chunk up front, so the cost of each chunk pair is known
+        // before any are scheduled. When both sources contain the same
+        // vectors, only source B is read, and its chunks are used for both.
+        progress.setMessage("Finding chunks.");
+        chunksB = ChunkTable.build(getSourceB(), maxChunkSize, maxChunkNonZeros, chunkCache);
+        chunksA = halfGrid || sameSources || isSourcesIdentical()
+                ? chunksB
+                : ChunkTable.build(getSourceA(), maxChunkSize, maxChunkNonZeros, null);
+
+        // Schedule the most expensive chunk pairs first, so the run does not
+        // end with a few workers busy on large pairs while the rest are idle.
+        // The cost of a pair is estimated as the product of the number of
+        // non-zero elements in each chunk. Rows of the grid are visited in
+        // descending order of cost, and within each row the chunks of B are
+        // visited in order of their size.
+        final int[] columns = orderByCost(chunksB, new double[chunksB.size()]);
+        final double[] rowCosts = new double[chunksA.size()];
+        nPairs = 0;
+        for (int i = 0; i < chunksA.size(); i++) {
+            for (int j = 0; j < chunksB.size(); j++) {
+                if (isPending(i, j, halfGrid)) {
+                    rowCosts[i] += chunksB.getNonZeroCount(j);
+                    ++nPairs;
+                }
             }
-            Chunk<Indexed<SparseDoubleVector>> chunkA = chunkerA.read();
-            i++;
-            chunkA.setName(Integer.toString(i));
-
-            int j = 0;
-            S restartPos = chunkerB.position();
-            while (chunkerB.hasNext()) {
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("Reading chunk B" + j);
+            rowCosts[i] *= chunksA.getNonZeroCount(i);
+        }
+        final int[] rows = orderByCost(chunksA, rowCosts);
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Found {0,number} and {1,number} chunks; {2,number} chunk pairs to compare.",
+                    chunksA.size(), chunksB.size(), nPairs));
+        }
+
+        // Create every task before any are run, since the checkpoint is only
+        // safe to query without a lock while no pair is in progress.
+        final List<ChunkPairTask> pairs = new ArrayList<ChunkPairTask>();
+        for (int r = 0; r < rows.length; r++) {
+            final int i = rows[r];
+            // Traverse alternate rows of the grid in opposite directions, so
+            // the chunks read at the end of one row are the first to be
+            // required by the next, and are likely to still be cached. The
+            // final row is traversed in descending order of cost.
+            final Row row = new Row(i, halfGrid);
+            final boolean descending = (rows.length - 1 - r) % 2 == 0;
+            for (int c = 0; c < columns.length; c++) {
+                final int j = columns[descending ? c : columns.length - 1 - c];
+                if (isPending(i, j, halfGrid)) {
+                    pairs.add(newChunkPairTask(row, j));
                 }
-                Chunk<Indexed<SparseDoubleVector>> chunkB = chunkerB.read();
-                j++;
-                chunkB.setName(Integer.toString(j));
-
-                progress.startAdjusting();
-                progress.setMessage(MessageFormat.format("Queueing chunk pair {0,number} and {1,number}", i, j));
-                updateProgress();
-                progress.endAdjusting();
-
-                @SuppressWarnings("unchecked")
-                NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
-                task.setSourceA(chunkA.clone());
-                task.setSourceB(chunkB);
-                task.setMeasure(getMeasure());
-                task.setProducatePair(getProducatePair());
-                task.setProcessRecord(getProcessRecord());
-                task.setSink(getSink());
-                task.setStats(getStats());
-                task.setProperty("chunkPair", MessageFormat.format("{0,number} and {1,number}", i, j));
-                queueTask(task);
-                ++queuedCount;
-
-                // retrieve the results
-                clearCompleted(false);
             }
+        }
 
-            nChunks = j;
-            chunkerB.position(restartPos);
+        // Only a few more pairs than there are workers are submitted at a
+        // time, so the pairs waiting in the pool are few, and the chunks held
+        // are those of the pairs in progress plus the cache's budget. Pairs
+        // that have finished are completed as the rest are submitted, so a
+        // failure is seen without waiting for the whole grid.
+        progress.setMessage("Comparing chunk pairs.");
+        completedCount.set(0);
+        throttle = new Semaphore(getMaxActivePairs());
+        int completed = 0;
+        for (int p = 0; p < pairs.size(); p++) {
+            while (completed < p && pairs.get(completed).isDone()) {
+                completePair(pairs.get(completed));
+                pairs.set(completed++, null);
+            }
+            throttle.acquire();
+            getExecutor().execute(pairs.get(p));
         }
+        while (completed < pairs.size()) {
+            completePair(pairs.get(completed));
+            pairs.set(completed++, null);
+        }
+        pairs.clear();
+        throttle = null;
         getExecutor().shutdown();
 
-        clearCompleted(true);
-
-        getExecutor().awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(MessageFormat.format(
+                    "Decoded chunk cache hits: {0,number}, misses: {1,number}",
+                    chunkCache.getHitCount(), chunkCache.getMissCount()));
+        }
+        chunkCache.clear();
+        chunkCache = null;
+        chunksA = null;
+        chunksB = null;
+        runSettings = null;
+
+        if (checkpoint != null) {
+            progress.setMessage("Writing checkpointed chunk pairs.");
+            final long count = checkpoint.replay(getSink());
+            if (LOG.isInfoEnabled()) {
+                LOG.info(MessageFormat.format(
+                        "Wrote {0,number} pairs from {1,number} checkpointed chunk pairs.",
+                        count, checkpoint.getCompletedCount()));
+            }
+            checkpoint.close();
+            checkpoint = null;
+        }
 
         progress.startAdjusting();
         progress.setState(State.COMPLETED);
@@ -199,59 +656,183 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         progress.endAdjusting();
     }
 
-    void updateProgress() {
-        if (nChunks != 0) {
-            double prog = (completedCount + queuedCount) / (double) (nChunks * nChunks * 2);
-            progress.setProgressPercent((int) (100 * prog));
+    /**
+     * Open the checkpoint; either resuming the existing one, after checking
+     * that it was produced from the same data, or starting a new one.
+     */
+    private ApssCheckpoint openCheckpoint(boolean halfGrid) throws IOException {
+        if (checkpointFingerprint == null) {
+            throw new IllegalStateException(
+                    "checkpointFingerprint must be set when checkpointing is enabled");
+        }
+        if (!resumeEnabled) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Recording completed chunk pairs in " + checkpointDir);
+            }
+            final int size = chunkSize != -1 ? chunkSize : estimateChunkSize();
+            return ApssCheckpoint.create(checkpointDir, checkpointFingerprint,
+                                         size, estimateChunkNonZeros(size), halfGrid);
         }
-    }
-
-    void clearCompleted(boolean block) throws InterruptedException, ExecutionException, Exception {
 
-        if (!block) {
+        final ApssCheckpoint resumed = ApssCheckpoint.resume(checkpointDir);
+        if (!resumed.getFingerprint().equals(checkpointFingerprint)
+                || resumed.isHalfGrid() != halfGrid) {
+            resumed.close();
+            throw new IllegalStateException(MessageFormat.format(
+                    "Checkpoint in {0} does not match this run; found fingerprint "
+                            + "{1} (half grid {2}) but expected {3} (half grid {4})",
+                    checkpointDir, resumed.getFingerprint(), resumed.isHalfGrid(),
+                    checkpointFingerprint, halfGrid));
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Resuming from {0}; skipping {1,number} completed chunk pairs.",
+                    checkpointDir, resumed.getCompletedCount()));
+        }
+        return resumed;
+    }
 
-            List<Future<? extends Task>> completed = null;
-            for (Future<? extends Task> future : getFutureQueue()) {
-                if (future.isDone()) {
-                    Task t = future.get();
-                    while (t.isExceptionTrapped()) {
-                        t.throwTrappedException();
-                    }
-                    ++completedCount;
+    /**
+     * Whether or not chunk A<sub>i</sub> is to be compared with chunk
+     * B<sub>j</sub> by this run; i.e. it is in the visited part of the grid,
+     * belongs to this shard, and was not completed by a previous run.
+     */
+    private boolean isPending(int i, int j, boolean halfGrid) {
+        return (!halfGrid || j >= i)
+                && isInShard(i, j)
+                && (checkpoint == null || !checkpoint.isCompleted(i, j));
+    }
 
-                    if (completed == null)
-                        completed = new ArrayList<Future<? extends Task>>();
-                    completed.add(future);
+    /**
+     * @return indices of the chunks of the given table, in descending order of
+     *         the given costs; or of their non-zero counts, where the costs
+     *         are equal
+     */
+    private static int[] orderByCost(final ChunkTable<?> chunks,
+                                     final double[] costs) {
+        final Integer[] order = new Integer[chunks.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
 
-                    progress.startAdjusting();
-                    progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
-                    updateProgress();
-                    progress.endAdjusting();
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(costs[b], costs[a]);
+                if (c == 0) {
+                    final long x = chunks.getNonZeroCount(a);
+                    final long y = chunks.getNonZeroCount(b);
+                    c = x > y ? -1 : x < y ? 1 : 0;
                 }
+                return c != 0 ? c : a.compareTo(b);
             }
-            if (completed != null && !completed.isEmpty())
-                getFutureQueue().removeAll(completed);
 
-        } else {
+        });
+        final int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
 
-            while (!getFutureQueue().isEmpty()) {
+    private ChunkPairTask newChunkPairTask(Row row, int j) {
+        final String name = MessageFormat.format("{0,number} and {1,number}",
+                                                 row.chunkId + 1, j + 1);
+        row.addTask();
+        return new ChunkPairTask(row, j, name);
+    }
 
-                Future<? extends Task> completed = getFutureQueue().poll();
-                Task t = completed.get();
-                while (t.isExceptionTrapped()) {
-                    t.throwTrappedException();
-                }
-                ++completedCount;
+    /**
+     * Open a checkpoint run to receive the output of the given chunk pair, or
+     * return null if checkpointing is disabled. Runs are opened by the pairs
+     * as they start, so only the pairs in progress hold a file open.
+     */
+    private ApssCheckpoint.Run openRun(int i, int j) throws IOException {
+        if (checkpoint == null)
+            return null;
+        synchronized (checkpoint) {
+            return checkpoint.openRun(i, j);
+        }
+    }
+
+    /**
+     * Get the vectors of the i<sup>th</sup> chunk of source A. When both
+     * sources contain the same vectors, the chunk is read from source B,
+     * through the cache.
+     */
+    private List<Indexed<SparseDoubleVector>> readChunkA(int i)
+            throws IOException {
+        if (chunksA == chunksB)
+            return readChunkB(i);
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Reading chunk A" + i);
+        }
+        synchronized (sourceLock) {
+            return chunksA.read(getSourceA(), i);
+        }
+    }
+
+    /**
+     * Get the vectors of the j<sup>th</sup> chunk of source B, either from the
+     * cache, or by seeking to the start of the chunk and decoding it.
+     */
+    private List<Indexed<SparseDoubleVector>> readChunkB(int j)
+            throws IOException {
+        List<Indexed<SparseDoubleVector>> vectors = chunkCache.get(j);
+        if (vectors != null)
+            return vectors;
+
+        synchronized (sourceLock) {
+            // Another task may have read the chunk while this one waited
+            vectors = chunkCache.peek(j);
+            if (vectors != null)
+                return vectors;
 
-                progress.startAdjusting();
-                progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
-                updateProgress();
-                progress.endAdjusting();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Reading chunk B" + j);
             }
+            vectors = chunksB.read(getSourceB(), j);
+        }
+        chunkCache.put(j, vectors);
+        return vectors;
+    }
 
+    void updateProgress() {
+        if (nPairs != 0) {
+            double prog = completedCount.get() / (double) nPairs;
+            progress.setProgressPercent((int) (100 * prog));
         }
+    }
 
+    /**
+     * Wait for the given chunk pair to complete, and re-throw any exception
+     * raised by it, or by the tasks it ran.
+     */
+    private void completePair(ChunkPairTask pair) throws Exception {
+        pair.get();
+        final Exception failure = pair.getFailure();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Record a chunk pair whose tasks all succeeded as complete. Called by
+     * the worker that finished the pair.
+     */
+    private void pairCompleted(ChunkPairTask pair) throws IOException {
+        if (pair.getRun() != null) {
+            synchronized (checkpoint) {
+                checkpoint.complete(pair.getRun());
+            }
+        }
+        completedCount.incrementAndGet();
 
+        progress.startAdjusting();
+        progress.setMessage("Completed chunk pair " + pair.getName());
+        updateProgress();
+        progress.endAdjusting();
     }
 
     @Override
@@ -259,57 +840,258 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         if (getExecutor() != null) {
             getExecutor().shutdownNow();
         }
+        if (checkpoint != null) {
+            checkpoint.close();
+            checkpoint = null;
+        }
         super.finaliseTask();
     }
 
-    protected <T extends Task> void queueTask(final T task) throws InterruptedException {
-        if (task == null) {
-            throw new NullPointerException("task is null");
+    /**
+     * Instantiate and parameterise an inner task to compare the given vectors.
+     */
+    private NaiveApssTask<Integer> newInnerTask(
+            List<Indexed<SparseDoubleVector>> vectorsA,
+            List<Indexed<SparseDoubleVector>> vectorsB,
+            String name, boolean halfGrid, boolean diagonal,
+            ObjectSink<Weighted<TokenPair>> sink)
+            throws InstantiationException, IllegalAccessException {
+        @SuppressWarnings("unchecked")
+        NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
+        task.setSourceA(new ListObjectSource<Indexed<SparseDoubleVector>>(vectorsA));
+        task.setSourceB(new ListObjectSource<Indexed<SparseDoubleVector>>(vectorsB));
+        task.setMeasure(getMeasure());
+        task.setProducatePair(getProducatePair());
+        task.setProcessRecord(getProcessRecord());
+        task.setMinSimilarity(getMinSimilarity());
+        task.setSink(sink);
+        task.setStats(getStats());
+        // The chunks were prepared by the measure when they were read.
+        task.setVectorsPrepared(true);
+        if (halfGrid) {
+            task.setSourcesIdentical(diagonal);
+            task.setOutputReversedPairs(true);
+        } else {
+            task.setSourcesIdentical(isSourcesIdentical());
+            task.setOutputReversedPairs(isOutputReversedPairs());
         }
+        if (runSettings != null) {
+            runSettings.copySettingsTo(task);
+        }
+        task.setProperty("chunkPair", name);
+        return task;
+    }
 
-        throttle.acquire();
-        final Runnable wrapper = new Runnable() {
+    /**
+     * A row of the chunk-pair grid. The chunk from source A, and its index,
+     * are built on demand by the first inner task that requires them, shared
+     * by the rest of the tasks comparing that chunk, and released once the
+     * last of them has completed.
+     */
+    private final class Row {
 
-            @Override
-            public void run() {
-                try {
-                    progress.startAdjusting();
-                    progress.setMessage("Starting chunk pair " + task.getProperty("chunkPair"));
-                    updateProgress();
-                    progress.endAdjusting();
-
-                    task.run();
-                } finally {
-                    throttle.release();
-                }
+        private final int chunkId;
+
+        private final boolean halfGrid;
+
+        /**
+         * Number of chunk pairs in the row that have not yet completed.
+         */
+        private int remaining = 0;
+
+        private List<Indexed<SparseDoubleVector>> vectors = null;
+
+        private boolean indexBuilt = false;
+
+        private CompactInvertedIndex index = null;
+
+        Row(int chunkId, boolean halfGrid) {
+            this.chunkId = chunkId;
+            this.halfGrid = halfGrid;
+        }
+
+        synchronized void addTask() {
+            ++remaining;
+        }
+
+        /**
+         * Get the vectors of the chunk, reading them if they have not yet been
+         * read.
+         */
+        synchronized List<Indexed<SparseDoubleVector>> getVectors()
+                throws IOException {
+            if (vectors == null) {
+                vectors = readChunkA(chunkId);
+            }
+            return vectors;
+        }
+
+        /**
+         * Get the shared index, building it with the given task if it has not
+         * yet been built. The task must be reading the whole chunk of source A.
+         *
+         * @return the index, or null if the inner algorithm does not use one
+         */
+        synchronized CompactInvertedIndex getIndex(NaiveApssTask<Integer> task)
+                throws IOException {
+            if (!indexBuilt) {
+                index = task.buildSharedIndex();
+                indexBuilt = true;
+            }
+            return index;
+        }
+
+        synchronized void taskCompleted() {
+            if (--remaining == 0) {
+                vectors = null;
+                index = null;
+            }
+        }
+
+    }
+
+    /**
+     * Fork/join task that compares every vector in a chunk of source A with a
+     * range of vectors from a chunk of source B. The top level task reads the
+     * chunks when it is run. If the range is large, and other workers are
+     * likely to be idle, it is split in half and the halves are run as
+     * sub-tasks.
+     */
+    private final class ChunkPairTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The top level task of the chunk pair, which holds state shared by all
+         * of its sub-tasks.
+         */
+        private final ChunkPairTask root;
+
+        private final Row row;
+
+        private final int chunkIdB;
+
+        /**
+         * Range of the chunk from source B compared by this task; only set on
+         * sub-tasks, since the top level task reads the whole chunk.
+         */
+        private final List<Indexed<SparseDoubleVector>> vectorsB;
+
+        private final String name;
+
+        /**
+         * Checkpoint run receiving the output of the pair, or null if the
+         * output is written directly to the sink. Only set on the top level
+         * task, once it has started.
+         */
+        private ApssCheckpoint.Run run = null;
+
+        /**
+         * Exceptions trapped by the inner tasks of the pair; only the
+         * exceptions are kept, so the tasks, and the chunks they reference,
+         * are released as soon as they complete.
+         */
+        private final List<Exception> failures;
+
+        ChunkPairTask(Row row, int chunkIdB, String name) {
+            this.root = this;
+            this.row = row;
+            this.chunkIdB = chunkIdB;
+            this.vectorsB = null;
+            this.name = name;
+            this.failures = Collections.synchronizedList(new ArrayList<Exception>());
+        }
+
+        private ChunkPairTask(ChunkPairTask root,
+                              List<Indexed<SparseDoubleVector>> vectorsB) {
+            this.root = root;
+            this.row = root.row;
+            this.chunkIdB = root.chunkIdB;
+            this.vectorsB = vectorsB;
+            this.name = root.name;
+            this.failures = null;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        ApssCheckpoint.Run getRun() {
+            return root.run;
+        }
+
+        /**
+         * @return the first exception trapped by an inner task of the pair, or
+         *         null if there were none
+         */
+        Exception getFailure() {
+            synchronized (root.failures) {
+                return root.failures.isEmpty() ? null : root.failures.get(0);
             }
+        }
 
-        };
+        @Override
+        protected void compute() {
+            try {
+                if (root == this) {
+                    try {
+                        run = openRun(row.chunkId, chunkIdB);
+                        compare(row.getVectors(), readChunkB(chunkIdB));
+                        if (getFailure() == null) {
+                            pairCompleted(this);
+                        }
+                    } finally {
+                        row.taskCompleted();
+                        throttle.release();
+                    }
+                } else {
+                    compare(row.getVectors(), vectorsB);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } catch (InstantiationException e) {
+                throw new IllegalStateException(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
 
-        try {
-            Future<T> future = getExecutor().submit(wrapper, task);
-            getFutureQueue().offer(future);
-        } catch (RejectedExecutionException e) {
-            throttle.release();
-            throw e;
-        } catch (RuntimeException e) {
-            throttle.release();
-            throw e;
+        private void compare(List<Indexed<SparseDoubleVector>> vectorsA,
+                             List<Indexed<SparseDoubleVector>> vectorsB)
+                throws IOException, InstantiationException, IllegalAccessException {
+            // Source B is split, rather than source A, so every sub-task
+            // can use the same index of source A.
+            final int size = vectorsB.size();
+            if (size >= 2 * getMinSplitSize()
+                    && getSurplusQueuedTaskCount() < MAX_SURPLUS_QUEUED_TASKS) {
+                final int mid = size / 2;
+                invokeAll(new ChunkPairTask(root, vectorsB.subList(0, mid)),
+                          new ChunkPairTask(root, vectorsB.subList(mid, size)));
+            } else {
+                final NaiveApssTask<Integer> task = newInnerTask(
+                        vectorsA, vectorsB, name, row.halfGrid,
+                        row.halfGrid && row.chunkId == chunkIdB,
+                        root.run != null ? root.run : getSink());
+                final CompactInvertedIndex index = row.getIndex(task);
+                if (index != null)
+                    task.setSharedIndex(index);
+                task.run();
+                while (task.isExceptionTrapped()) {
+                    root.failures.add(task.getTrappedException());
+                }
+            }
         }
+
     }
 
     public final int getNumThreads() {
         return nThreads;
     }
 
-    protected synchronized final ExecutorService getExecutor() {
+    protected synchronized final ForkJoinPool getExecutor() {
         return executor;
     }
 
-    protected synchronized final Queue<Future<? extends Task>> getFutureQueue() {
-        return futureQueue;
-    }
-
     public final void setNumThreads(int nThreads) {
         if (nThreads < 1) {
             throw new IllegalArgumentException("nThreads < 1");
@@ -317,36 +1099,65 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         this.nThreads = nThreads;
     }
 
-    private int getThrottleSize() {
+    /**
+     * @return the number of chunk pairs that may be in progress at one time:
+     *         one per worker, and one more whose row is being read
+     */
+    private int getMaxActivePairs() {
         return getNumThreads() + 1;
     }
 
 
-    private int estimateChunkSize() {
+    /**
+     * Bound the non-zero elements of each chunk to those of a chunk of
+     * vectors of mean size, so the estimate of the memory required by a chunk
+     * holds for every chunk, rather than just on average. Without statistics
+     * of the vectors, chunks are bounded only by the number of vectors.
+     *
+     * @return maximum number of non-zero elements in each chunk, or -1 for no
+     *         limit
+     */
+    private long estimateChunkNonZeros(int maxChunkSize) {
+        if (chunkNonZeros != -1) {
+            return chunkNonZeros;
+        }
+        if (vectorStats == null || vectorStats.getNonZeroCount() == 0) {
+            return -1;
+        }
+        return Math.max(1, (long) Math.ceil(maxChunkSize * vectorStats.getMeanVectorSize()));
+    }
 
-        // Maximum possible non-zero cardinality of any feature vector. In theory this is Integer.MAX_VALUE, through
-        // with real data that bound never occurs since feature vectors are typically very sparse, especially if
-        // filtering has been performed.
-        // TODO: filtering stage should record the largest non-zero cardinality, which should be used for nFeatures.
-        final double nFeatures = 10000;
+    private int estimateChunkSize() {
 
         // number of concurrent worker units that can exist at one time
-        final double nWorkUnits = getThrottleSize();
+        final double nWorkUnits = getMaxActivePairs();
 
         // each worker has 2 chunks, but most of the time at least one of the chunks is shared
         final double pairMultiplier = (nWorkUnits + 1) / nWorkUnits;
 
+        // Memory given over to the decoded chunk cache is not available to the
+        // chunks being worked on.
+        final double freeMemory = MiscUtil.freeMaxMemory();
+        final double availableMemory = chunkCacheSize >= 0
+                                       ? Math.max(freeMemory - chunkCacheSize, 0)
+                                       : freeMemory * (1 - DEFAULT_CHUNK_CACHE_FRACTION);
+
+        if (vectorStats != null) {
+            return estimateChunkSize(vectorStats, availableMemory,
+                                     nWorkUnits * pairMultiplier);
+        }
+
+        // Maximum possible non-zero cardinality of any feature vector. In theory this is Integer.MAX_VALUE, through
+        // with real data that bound never occurs since feature vectors are typically very sparse, especially if
+        // filtering has been performed.
+        final double nFeatures = 10000;
+
         // theoretical number of bytes per feature is: 1 x int32 + 1 x double
         // note that arrays should be packed even on 64 bit platforms
         final double bytesPerFeature = 4 + 8;
 
-        // It's a tad conservative to use free memory rather than total memory,
-        // but we can't be sure what else is going on
-        System.gc();
-        final double availableMemory = MiscUtil.freeMaxMemory();
-
         double chunkSize = availableMemory / (nFeatures * nWorkUnits * pairMultiplier * bytesPerFeature);
-        assert chunkSize > 0;
+        assert chunkSize >= 0;
 
         // It's possible that we don't even enough memory for a single
         if (chunkSize < 1)
@@ -359,6 +1170,30 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         return (int) Math.floor(chunkSize);
     }
 
+    /**
+     * Estimate the chunk size from the measured shape of the source vectors.
+     * Each vector costs its decoded size (as counted by the chunk cache) plus
+     * a posting of 2 x int32 per non-zero element in the inverted index that
+     * the inner task builds over the chunk.
+     *
+     * @param stats           statistics of the source vectors
+     * @param availableMemory number of bytes that the chunks may occupy
+     * @param nChunks         number of chunks that may be held at one time
+     * @return number of vectors per chunk
+     */
+    static int estimateChunkSize(VectorStats stats, double availableMemory,
+                                 double nChunks) {
+        final double bytesPerVector = ChunkCache.BYTES_PER_VECTOR
+                + stats.getMeanVectorSize() * (4 + 8 + 4 + 4);
+
+        double chunkSize = availableMemory / (nChunks * bytesPerVector);
+
+        // There is no benefit to a chunk larger than the source.
+        chunkSize = Math.min(chunkSize, stats.getVectorCount());
+
+        return (int) Math.max(1, Math.min(Math.floor(chunkSize), Integer.MAX_VALUE));
+    }
+
     public String getName() {
         return "threaded-allpairs";
     }
@@ -368,9 +1203,18 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         return super.toStringHelper().
                 add("innerAlgorithm", innerAlgorithm).
                 add("nThreads", nThreads).
-                add("executor", executor).
-                add("futureQueue", futureQueue).
-                add("throttle", throttle);
+                add("halfGridEnabled", halfGridEnabled).
+                add("sameSources", sameSources).
+                add("minSplitSize", minSplitSize).
+                add("chunkCacheSize", chunkCacheSize).
+                add("vectorStats", vectorStats).
+                add("checkpointDir", checkpointDir).
+                add("resumeEnabled", resumeEnabled).
+                add("chunkSize", chunkSize).
+                add("chunkNonZeros", chunkNonZeros).
+                add("shardIndex", shardIndex).
+                add("shardCount", shardCount).
+                add("executor", executor);
     }
 
 }
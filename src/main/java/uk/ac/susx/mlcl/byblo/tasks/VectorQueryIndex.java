@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+/**
+ * Read-only index of the feature vectors of every entry, that finds the
+ * nearest neighbours of an arbitrary query vector, and the similarity of any
+ * two indexed entries. Weights are exactly those an all-pairs search with the
+ * same measure would produce: the query takes the place of the base entry
+ * (source B), and each indexed vector that of the neighbour (source A).
+ *
+ * <p>The vectors are prepared by the measure once, when the index is built,
+ * and the left component of each is pre-calculated. Only indexed vectors that
+ * share at least one feature with the query are considered.</p>
+ *
+ * <p>Instances are immutable once built, and so may be queried by several
+ * threads at once; each thread holds its own working state.</p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class VectorQueryIndex {
+
+    /**
+     * Orders neighbours from the worst to the best: by ascending weight, and
+     * then descending id; so ties go to the lowest id, as they do in
+     * {@link uk.ac.susx.mlcl.byblo.io.NearestNeighboursSink}.
+     */
+    private static final Comparator<Weighted<Token>> WORST_FIRST =
+            new Comparator<Weighted<Token>>() {
+
+                @Override
+                public int compare(Weighted<Token> a, Weighted<Token> b) {
+                    final int c = Double.compare(a.weight(), b.weight());
+                    return c != 0 ? c : b.record().id() - a.record().id();
+                }
+
+            };
+
+    private final Proximity measure;
+
+    private final CompactInvertedIndex index;
+
+    /**
+     * Left component of the measure for the vector in each slot.
+     */
+    private final double[] lefts;
+
+    private final Int2IntMap slotsById;
+
+    private final int cardinality;
+
+    private final ThreadLocal<CompactInvertedIndex.Candidates> candidates =
+            new ThreadLocal<CompactInvertedIndex.Candidates>() {
+
+                @Override
+                protected CompactInvertedIndex.Candidates initialValue() {
+                    return index.newCandidates();
+                }
+
+            };
+
+    private VectorQueryIndex(Proximity measure, CompactInvertedIndex index,
+                             double[] lefts, Int2IntMap slotsById,
+                             int cardinality) {
+        this.measure = measure;
+        this.index = index;
+        this.lefts = lefts;
+        this.slotsById = slotsById;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Read, prepare and index all the vectors of the given source.
+     *
+     * @param source  unprepared feature vectors of every entry
+     * @param measure measure with which to score queries
+     * @return the index
+     * @throws IOException if the source could not be read
+     */
+    public static VectorQueryIndex build(
+            ObjectSource<Indexed<SparseDoubleVector>> source,
+            Proximity measure) throws IOException {
+        Checks.checkNotNull("source", source);
+        Checks.checkNotNull("measure", measure);
+
+        final CompactInvertedIndex.Builder builder =
+                new CompactInvertedIndex.Builder();
+        final Int2IntMap slotsById = new Int2IntOpenHashMap();
+        slotsById.defaultReturnValue(-1);
+        int cardinality = 0;
+        while (source.hasNext()) {
+            final Indexed<SparseDoubleVector> v = source.read();
+            final int slot = builder.addAll(new Indexed<SparseDoubleVector>(
+                    v.key(), measure.prepare(v.value())));
+            slotsById.put(v.key(), slot);
+            cardinality = Math.max(cardinality, v.value().cardinality);
+        }
+        final CompactInvertedIndex index = builder.build();
+
+        final double[] lefts = new double[index.getVectorCount()];
+        for (int slot = 0; slot < lefts.length; slot++) {
+            lefts[slot] = measure.left(index.getVector(slot).value());
+        }
+        return new VectorQueryIndex(measure, index, lefts, slotsById,
+                                    cardinality);
+    }
+
+    /**
+     * @return the number of vectors held by the index
+     */
+    public int getVectorCount() {
+        return index.getVectorCount();
+    }
+
+    /**
+     * @return the largest cardinality of the indexed vectors; which query
+     *         vectors should share
+     */
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @param entryId entry id
+     * @return whether the vector of the entry is held by the index
+     */
+    public boolean contains(int entryId) {
+        return slotsById.containsKey(entryId);
+    }
+
+    /**
+     * @param entryId id of the base entry
+     * @param otherId id of the neighbour
+     * @return the similarity of the other entry to the base entry, or NaN if
+     *         either is not indexed
+     */
+    public double getSimilarity(int entryId, int otherId) {
+        final int slot = slotsById.get(entryId);
+        final int otherSlot = slotsById.get(otherId);
+        if (slot == -1 || otherSlot == -1)
+            return Double.NaN;
+        final SparseDoubleVector base = index.getVector(slot).value();
+        return measure.combine(
+                measure.shared(index.getVector(otherSlot).value(), base),
+                lefts[otherSlot], measure.right(base));
+    }
+
+    /**
+     * Find the k indexed entries that are most similar to the given query
+     * vector.
+     *
+     * @param query unprepared feature vector, with the cardinality of the
+     *              indexed vectors
+     * @param k     maximum number of neighbours to return
+     * @return the neighbours, by descending weight
+     */
+    public List<Weighted<Token>> getNeighbours(SparseDoubleVector query, int k) {
+        Checks.checkNotNull("query", query);
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        if (k == 0)
+            return Collections.emptyList();
+
+        final SparseDoubleVector prepared = measure.prepare(query);
+        final double right = measure.right(prepared);
+        final CompactInvertedIndex.Candidates found = candidates.get();
+        // Accumulating the shared component from the postings is exact, as
+        // every feature is indexed.
+        final DecomposableProximity decomposable =
+                measure instanceof DecomposableProximity
+                ? (DecomposableProximity) measure : null;
+        if (decomposable != null) {
+            index.accumulate(prepared, decomposable, found);
+        } else {
+            index.findCandidates(prepared.keys, prepared.size, found);
+        }
+
+        final PriorityQueue<Weighted<Token>> heap =
+                new PriorityQueue<Weighted<Token>>(k + 1, WORST_FIRST);
+        for (int i = 0; i < found.size(); i++) {
+            final int slot = found.get(i);
+            final double shared = decomposable != null
+                                  ? found.getValue(i)
+                                  : measure.shared(index.getVector(slot).value(), prepared);
+            final double weight = measure.combine(shared, lefts[slot], right);
+            if (Double.isNaN(weight))
+                continue;
+            heap.add(new Weighted<Token>(
+                    new Token(index.getVector(slot).key()), weight));
+            if (heap.size() > k)
+                heap.poll();
+        }
+
+        final List<Weighted<Token>> neighbours =
+                new ArrayList<Weighted<Token>>(heap);
+        Collections.sort(neighbours, Collections.reverseOrder(WORST_FIRST));
+        return neighbours;
+    }
+
+    @Override
+    public String toString() {
+        return "VectorQueryIndex{measure=" + measure
+                + ", vectors=" + getVectorCount()
+                + ", postings=" + index.getPostingCount() + "}";
+    }
+
+}
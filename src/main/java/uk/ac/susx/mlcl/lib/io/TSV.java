@@ -111,6 +111,35 @@ public abstract class TSV {
                     new FileOutputStream(file), charset));
         }
 
+        /**
+         * Write to the given appendable, rather than opening the file. Used to
+         * format records in memory, for later output to the file with
+         * {@link #appendRecords(CharSequence) }.
+         *
+         * @param out     destination of the formatted values
+         * @param file    file the records are destined for
+         * @param charset character set of the file
+         */
+        public Sink(Appendable out, File file, Charset charset)
+                throws FileNotFoundException, IOException {
+            super(file, charset);
+            Checks.checkNotNull("out", out);
+            this.out = out;
+        }
+
+        /**
+         * Append whole records that have already been formatted, by a sink
+         * writing to memory.
+         *
+         * @param records formatted records, each ending in a record delimiter
+         * @throws IOException if the records can not be written
+         */
+        public void appendRecords(CharSequence records) throws IOException {
+            if (column != 0)
+                throw new IllegalStateException("record in progress");
+            out.append(records);
+        }
+
         @Override
         public void endOfRecord() throws IOException {
             writeRecordDelimiter();
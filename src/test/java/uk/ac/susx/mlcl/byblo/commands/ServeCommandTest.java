@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.susx.mlcl.TestConstants.DEFAULT_CHARSET;
+import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_EVENTS;
+import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_FEATURES;
+import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_SIMS_100NN;
+import static uk.ac.susx.mlcl.TestConstants.TEST_OUTPUT_DIR;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ServeCommandTest {
+
+    private ServeCommand server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServeCommand(
+                TEST_FRUIT_SIMS_100NN, TEST_FRUIT_EVENTS, DEFAULT_CHARSET,
+                new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null));
+        server.setFeaturesFile(TEST_FRUIT_FEATURES);
+        server.setMeasureName("Lin");
+        server.setPort(0);
+        server.setNumThreads(2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    private static final class Reply {
+
+        final int status;
+
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+    }
+
+    private Reply request(String path, String body) throws IOException {
+        final URL url = new URL("http", "localhost", server.getBoundPort(), path);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            final OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+        final int status = connection.getResponseCode();
+        final InputStream in = status < 400
+                               ? connection.getInputStream()
+                               : connection.getErrorStream();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, n);
+        in.close();
+        connection.disconnect();
+        return new Reply(status, new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    private Reply get(String path) throws IOException {
+        return request(path, null);
+    }
+
+    @Test
+    public void testNeighbours() throws Exception {
+        final Reply reply = get("/neighbours?entry=apple&k=3");
+        assertEquals(200, reply.status);
+        assertEquals("apple\tbanana\t0.119724\n"
+                + "apple\ttomato\t0.109928\n"
+                + "apple\torange\t0.106146\n", reply.body);
+
+        // Repeated requests are answered from the cache
+        assertEquals(reply.body, get("/neighbours?entry=apple&k=3").body);
+        assertTrue(get("/stats").body.contains("/neighbours\t2\t1\t0\t"));
+    }
+
+    @Test
+    public void testDefaultK() throws Exception {
+        server.stop();
+        server.setK(5);
+        server.start();
+        final Reply reply = get("/neighbours?entry=apple");
+        assertEquals(200, reply.status);
+        assertEquals(5, reply.body.split("\n").length);
+    }
+
+    @Test
+    public void testSimilarity() throws Exception {
+        final Reply reply = get("/similarity?entry=apple&other=banana");
+        assertEquals(200, reply.status);
+        assertEquals("apple\tbanana\t0.119724\n", reply.body);
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        final String feature = URLEncoder.encode("arg:1", "UTF-8");
+        final Reply reply = get("/query?k=4&feature=" + feature);
+        assertEquals(200, reply.status);
+        assertTrue(reply.body.split("\n").length <= 4);
+
+        final Reply posted = request("/query?k=4", "arg:1\t1\n");
+        assertEquals(200, posted.status);
+        assertEquals(reply.body, posted.body);
+    }
+
+    @Test
+    public void testBinaryThesaurus() throws Exception {
+        final File entryIndex = new File(TEST_OUTPUT_DIR,
+                TEST_FRUIT_SIMS_100NN.getName() + ".entry-index");
+        final File binary = new File(TEST_OUTPUT_DIR,
+                TEST_FRUIT_SIMS_100NN.getName() + ".bin");
+        entryIndex.delete();
+        binary.delete();
+
+        new PackNeighboursCommand(
+                TEST_FRUIT_SIMS_100NN, binary, DEFAULT_CHARSET,
+                new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, entryIndex, null)).
+                runCommand();
+        assertTrue(binary.exists());
+
+        server.stop();
+        server = new ServeCommand(
+                binary, null, DEFAULT_CHARSET,
+                new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, entryIndex, null));
+        server.setPort(0);
+        server.start();
+
+        // Weights are quantised, so are only compared to a few places
+        final String[] lines = get("/neighbours?entry=apple&k=3").body.split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("apple\tbanana\t0.1197"));
+        assertTrue(lines[1].startsWith("apple\ttomato\t0.1099"));
+        assertTrue(lines[2].startsWith("apple\torange\t0.1061"));
+        assertEquals(404, get("/neighbours?entry=no-such-entry").status);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        assertEquals(404, get("/neighbours?entry=no-such-entry").status);
+        assertEquals(404, get("/similarity?entry=apple&other=no-such-entry").status);
+        assertEquals(400, get("/neighbours").status);
+        assertEquals(400, get("/neighbours?entry=apple&k=0").status);
+        assertEquals(400, get("/neighbours?entry=apple&k=ten").status);
+        assertEquals(400, request("/query", "arg:1\tone\n").status);
+
+        final String stats = get("/stats").body;
+        assertTrue(stats.contains("/neighbours\t4\t0\t4\t"));
+        assertTrue(stats.contains("/similarity\t1\t0\t1\t"));
+        assertTrue(stats.contains("/query\t1\t0\t1\t"));
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AsyncObjectSinkTest {
+
+    /**
+     * Sink that records the objects written to it, and fails if it is written
+     * to concurrently.
+     */
+    private static final class ListSink implements ObjectSink<Integer> {
+
+        final List<Integer> list = new ArrayList<Integer>();
+
+        boolean writing = false;
+
+        @Override
+        public void write(Integer o) throws IOException {
+            if (writing)
+                throw new IllegalStateException("concurrent write");
+            writing = true;
+            list.add(o);
+            writing = false;
+        }
+
+    }
+
+    @Test
+    public void testWritePreservesOrder() throws IOException {
+        ListSink inner = new ListSink();
+        AsyncObjectSink<Integer> sink = new AsyncObjectSink<Integer>(inner, 7, 2);
+        for (int i = 0; i < 1000; i++)
+            sink.write(i);
+        sink.flush();
+        assertEquals(1000, inner.list.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, inner.list.get(i).intValue());
+        sink.close();
+    }
+
+    @Test
+    public void testConcurrentWriteAll() throws Exception {
+        final int nThreads = 8;
+        final int nBatches = 50;
+        final int batchSize = 100;
+        final ListSink inner = new ListSink();
+        final AsyncObjectSink<Integer> sink = new AsyncObjectSink<Integer>(inner, 10, 2);
+
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int offset = t * nBatches * batchSize;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    List<Integer> batch = new ArrayList<Integer>();
+                    try {
+                        for (int b = 0; b < nBatches; b++) {
+                            for (int i = 0; i < batchSize; i++)
+                                batch.add(offset + b * batchSize + i);
+                            sink.writeAll(batch);
+                            batch.clear();
+                        }
+                    } catch (IOException ex) {
+                        throw new AssertionError(ex);
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        sink.close();
+
+        List<Integer> actual = new ArrayList<Integer>(inner.list);
+        Collections.sort(actual);
+        assertEquals(nThreads * nBatches * batchSize, actual.size());
+        for (int i = 0; i < actual.size(); i++)
+            assertEquals(i, actual.get(i).intValue());
+    }
+
+    @Test
+    public void testFailureIsRethrown() throws IOException {
+        ObjectSink<Integer> inner = new ObjectSink<Integer>() {
+
+            @Override
+            public void write(Integer o) throws IOException {
+                throw new IOException("failed");
+            }
+
+        };
+        AsyncObjectSink<Integer> sink = new AsyncObjectSink<Integer>(inner, 1, 1);
+        sink.write(1);
+        try {
+            sink.flush();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+    }
+
+    /**
+     * Formats each integer on its own line, recording whether the writer
+     * thread ever formatted a batch.
+     */
+    private static final class LineFormatter
+            implements AsyncObjectSink.BatchFormatter<Integer> {
+
+        final StringBuilder text = new StringBuilder();
+
+        volatile boolean formattedByWriter = false;
+
+        @Override
+        public CharSequence format(List<? extends Integer> batch) {
+            if (Thread.currentThread().getName().equals("AsyncObjectSink-writer"))
+                formattedByWriter = true;
+            StringBuilder out = new StringBuilder();
+            for (Integer i : batch)
+                out.append(i).append('\n');
+            return out;
+        }
+
+        @Override
+        public void writeFormatted(CharSequence formatted) {
+            text.append(formatted);
+        }
+
+        @Override
+        public void write(Integer o) {
+            throw new UnsupportedOperationException("batches are formatted");
+        }
+
+    }
+
+    @Test
+    public void testBatchesFormattedByProducers() throws IOException {
+        LineFormatter inner = new LineFormatter();
+        AsyncObjectSink<Integer> sink = new AsyncObjectSink<Integer>(inner, 7, 2);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sink.write(i);
+            expected.append(i).append('\n');
+        }
+        sink.flush();
+        sink.writeAll(Arrays.asList(100, 101));
+        expected.append("100\n101\n");
+        sink.close();
+        assertEquals(expected.toString(), inner.text.toString());
+        assertFalse(inner.formattedByWriter);
+    }
+
+    @Test
+    public void testFormattedPairsMatchSerialOutput() throws IOException {
+        final Charset charset = Charset.forName("UTF-8");
+        final DoubleEnumeratingDelegate idx = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null);
+        final Random rand = new Random(0);
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 1000; i++) {
+            pairs.add(new Weighted<TokenPair>(
+                    new TokenPair(i / 10, rand.nextInt(100)), rand.nextDouble()));
+        }
+
+        File serial = File.createTempFile(getClass().getName(), ".serial");
+        File async = File.createTempFile(getClass().getName(), ".async");
+        serial.deleteOnExit();
+        async.deleteOnExit();
+
+        WeightedTokenPairSink serialSink = WeightedTokenPairSink.open(
+                serial, charset, idx, false, false, false);
+        for (Weighted<TokenPair> pair : pairs)
+            serialSink.write(pair);
+        serialSink.close();
+
+        AsyncObjectSink<Weighted<TokenPair>> asyncSink =
+                new AsyncObjectSink<Weighted<TokenPair>>(WeightedTokenPairSink.open(
+                        async, charset, idx, false, false, false), 64, 2);
+        for (int i = 0; i < pairs.size(); i += 100)
+            asyncSink.writeAll(pairs.subList(i, i + 100));
+        asyncSink.close();
+
+        assertEquals(Files.toString(serial, charset), Files.toString(async, charset));
+    }
+
+}
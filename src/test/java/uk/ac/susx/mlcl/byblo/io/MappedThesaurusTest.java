@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedThesaurusTest {
+
+    private static ObjectSource<Weighted<TokenPair>> listSource(
+            final List<Weighted<TokenPair>> list) {
+        final Iterator<Weighted<TokenPair>> it = list.iterator();
+        return new ObjectSource<Weighted<TokenPair>>() {
+
+            @Override
+            public Weighted<TokenPair> read() throws IOException {
+                return it.next();
+            }
+
+            @Override
+            public boolean hasNext() throws IOException {
+                return it.hasNext();
+            }
+
+        };
+    }
+
+    private static Weighted<TokenPair> pair(int id1, int id2, double weight) {
+        return new Weighted<TokenPair>(new TokenPair(id1, id2), weight);
+    }
+
+    private static File tempFile() throws IOException {
+        final File file = File.createTempFile(
+                MappedThesaurusTest.class.getSimpleName(), ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Check the mapped thesaurus holds the same neighbours as the table, in
+     * the same order, with weights no further apart than the quantisation
+     * allows.
+     */
+    private static void assertSameNeighbours(NeighboursTable expected,
+                                             MappedThesaurus actual) {
+        assertEquals(expected.getEntryCount(), actual.getEntryCount());
+        assertEquals(expected.getNeighbourCount(), actual.getNeighbourCount());
+        for (int e = -1; e <= expected.getIdLimit(); e++) {
+            assertEquals(expected.contains(e), actual.contains(e));
+            assertEquals(expected.getNeighbourCount(e), actual.getNeighbourCount(e));
+            final List<Weighted<Token>> exp =
+                    expected.getNeighbours(e, Integer.MAX_VALUE);
+            final List<Weighted<Token>> act =
+                    actual.getNeighbours(e, Integer.MAX_VALUE);
+            assertEquals(exp, act);
+            final double tolerance = actual.getWeightResolution(e) / 2 + 1E-12;
+            for (int i = 0; i < exp.size(); i++) {
+                assertEquals(exp.get(i).weight(), act.get(i).weight(), tolerance);
+                final int id = exp.get(i).record().id();
+                assertEquals(expected.getSimilarity(e, id),
+                             actual.getSimilarity(e, id),
+                             tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // Groups out of id order, with an entry (2) that has no neighbours
+        NeighboursTable table = NeighboursTable.read(listSource(Arrays.asList(
+                pair(3, 0, 0.9), pair(3, 1, 0.5),
+                pair(0, 3, 0.9), pair(0, 1, 0.7), pair(0, 4, 0.1),
+                pair(1, 0, 0.7))));
+        File file = tempFile();
+        MappedThesaurus.write(table, file);
+        assertTrue(MappedThesaurus.isBinaryThesaurus(file));
+
+        MappedThesaurus thesaurus = MappedThesaurus.open(file);
+        try {
+            assertSameNeighbours(table, thesaurus);
+            assertEquals(2, thesaurus.getNeighbours(0, 2).size());
+            assertEquals(0, thesaurus.getNeighbours(2, 10).size());
+            assertTrue(Double.isNaN(thesaurus.getSimilarity(0, 2)));
+            assertTrue(Double.isNaN(thesaurus.getSimilarity(2, 0)));
+            assertTrue(Double.isNaN(thesaurus.getSimilarity(99, 0)));
+            // The extremes of the range are stored exactly
+            assertEquals(0.9, thesaurus.getSimilarity(3, 0), 1E-12);
+            assertEquals(0.1, thesaurus.getSimilarity(0, 4), 1E-12);
+        } finally {
+            thesaurus.close();
+        }
+    }
+
+    @Test
+    public void testRandomRoundTrip() throws IOException {
+        Random rand = new Random(0);
+        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        for (int e = 0; e < 500; e++) {
+            if (rand.nextInt(4) == 0)
+                continue;
+            double weight = rand.nextDouble();
+            int count = rand.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                pairs.add(pair(e, rand.nextInt(500), weight));
+                weight *= rand.nextDouble();
+            }
+        }
+        NeighboursTable table = NeighboursTable.read(listSource(pairs));
+        File file = tempFile();
+        MappedThesaurus.write(table, file);
+
+        MappedThesaurus thesaurus = MappedThesaurus.open(file);
+        try {
+            assertSameNeighbours(table, thesaurus);
+        } finally {
+            thesaurus.close();
+        }
+    }
+
+    @Test
+    public void testInfiniteAndTiedWeights() throws IOException {
+        // Distinct entries with identical features are infinitely similar
+        // under some measures (such as Lp)
+        NeighboursTable table = NeighboursTable.read(listSource(Arrays.asList(
+                pair(0, 1, Double.POSITIVE_INFINITY), pair(0, 2, 0.5),
+                pair(0, 3, 0.5), pair(0, 4, 0.25), pair(0, 5, Double.NaN),
+                pair(0, 6, Double.NEGATIVE_INFINITY),
+                pair(1, 0, Double.POSITIVE_INFINITY),
+                pair(2, 0, 1E300), pair(2, 3, 0.3), pair(2, 4, 0.2),
+                pair(3, 4, 0.7), pair(3, 5, 0.7))));
+        File file = tempFile();
+        MappedThesaurus.write(table, file);
+
+        MappedThesaurus thesaurus = MappedThesaurus.open(file);
+        try {
+            assertSameNeighbours(table, thesaurus);
+            assertEquals(Double.POSITIVE_INFINITY, thesaurus.getSimilarity(0, 1), 0);
+            assertEquals(Double.NEGATIVE_INFINITY, thesaurus.getSimilarity(0, 6), 0);
+            assertTrue(Double.isNaN(thesaurus.getSimilarity(0, 5)));
+            assertEquals(Double.POSITIVE_INFINITY, thesaurus.getSimilarity(1, 0), 0);
+            // Ties stay tied, and the infinite weight does not coarsen the rest
+            assertEquals(thesaurus.getSimilarity(0, 2), thesaurus.getSimilarity(0, 3), 0);
+            assertEquals(0.5, thesaurus.getSimilarity(0, 2), 1E-12);
+            assertEquals(0.25, thesaurus.getSimilarity(0, 4), 1E-12);
+            assertEquals(0.7, thesaurus.getSimilarity(3, 4), 1E-12);
+            assertEquals(0, thesaurus.getWeightResolution(3), 0);
+            // A huge finite weight only coarsens its own entry
+            assertEquals(1E300, thesaurus.getSimilarity(2, 0), 1E290);
+            assertTrue(thesaurus.getWeightResolution(2) > 1E290);
+            assertTrue(thesaurus.getWeightResolution(0) < 1E-5);
+        } finally {
+            thesaurus.close();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        NeighboursTable table = NeighboursTable.read(
+                listSource(new ArrayList<Weighted<TokenPair>>()));
+        File file = tempFile();
+        MappedThesaurus.write(table, file);
+
+        MappedThesaurus thesaurus = MappedThesaurus.open(file);
+        try {
+            assertEquals(0, thesaurus.getEntryCount());
+            assertEquals(0, thesaurus.getNeighbourCount());
+            assertFalse(thesaurus.contains(0));
+            assertEquals(0, thesaurus.getNeighbours(0, 10).size());
+        } finally {
+            thesaurus.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotBinary() throws IOException {
+        File file = tempFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeBytes("apple\tbanana\t0.119724\napple\tcherry\t0.1\n");
+        } finally {
+            out.close();
+        }
+        assertFalse(MappedThesaurus.isBinaryThesaurus(file));
+        MappedThesaurus.open(file);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class NearestNeighboursSinkTest {
+
+    private static ObjectSink<Weighted<TokenPair>> listSink(
+            final List<Weighted<TokenPair>> list) {
+        return new ObjectSink<Weighted<TokenPair>>() {
+
+            @Override
+            public void write(Weighted<TokenPair> o) throws IOException {
+                list.add(o);
+            }
+
+        };
+    }
+
+    /**
+     * Order by base entry, then descending weight, then neighbour id.
+     */
+    private static final Comparator<Weighted<TokenPair>> NEIGHBOUR_ORDER =
+            new Comparator<Weighted<TokenPair>>() {
+
+                @Override
+                public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                    if (a.record().id1() != b.record().id1())
+                        return a.record().id1() < b.record().id1() ? -1 : 1;
+                    if (a.weight() != b.weight())
+                        return a.weight() > b.weight() ? -1 : 1;
+                    if (a.record().id2() != b.record().id2())
+                        return a.record().id2() < b.record().id2() ? -1 : 1;
+                    return 0;
+                }
+
+            };
+
+    private static List<Weighted<TokenPair>> randomPairs(
+            int entryCount, int k, Random rand) {
+        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        for (int id1 = 0; id1 < entryCount; id1++) {
+            final int n = rand.nextInt(3 * k);
+            for (int id2 = 0; id2 < n; id2++) {
+                // Coarse weights, so there are plenty of ties
+                pairs.add(new Weighted<TokenPair>(new TokenPair(id1, id2),
+                                                  rand.nextInt(4) / 4.0));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * The k nearest neighbours of each entry, found by sorting every pair.
+     */
+    private static List<Weighted<TokenPair>> sortAndTruncate(
+            List<Weighted<TokenPair>> pairs, int k) {
+        pairs = new ArrayList<Weighted<TokenPair>>(pairs);
+        List<Weighted<TokenPair>> expected = new ArrayList<Weighted<TokenPair>>();
+        Collections.sort(pairs, NEIGHBOUR_ORDER);
+        int count = 0;
+        for (int i = 0; i < pairs.size(); i++) {
+            if (i > 0 && pairs.get(i).record().id1() != pairs.get(i - 1).record().id1())
+                count = 0;
+            if (count++ < k)
+                expected.add(pairs.get(i));
+        }
+        return expected;
+    }
+
+    @Test
+    public void testMatchesSortAndTruncate() throws IOException {
+        final int k = 5;
+        final Random rand = new Random(0);
+
+        List<Weighted<TokenPair>> pairs = randomPairs(50, k, rand);
+        List<Weighted<TokenPair>> expected = sortAndTruncate(pairs, k);
+
+        Collections.shuffle(pairs, rand);
+        List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+        NearestNeighboursSink sink = new NearestNeighboursSink(listSink(actual), k);
+        for (Weighted<TokenPair> pair : pairs)
+            sink.write(pair);
+        sink.close();
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testThreshold() throws IOException {
+        NearestNeighboursSink sink = new NearestNeighboursSink(
+                listSink(new ArrayList<Weighted<TokenPair>>()), 2);
+
+        assertEquals(Double.NEGATIVE_INFINITY, sink.getThreshold(1), 0);
+        sink.write(new Weighted<TokenPair>(new TokenPair(1, 2), 0.5));
+        assertEquals(Double.NEGATIVE_INFINITY, sink.getThreshold(1), 0);
+        sink.write(new Weighted<TokenPair>(new TokenPair(1, 3), 0.3));
+        assertEquals(0.3, sink.getThreshold(1), 0);
+        sink.write(new Weighted<TokenPair>(new TokenPair(1, 4), 0.9));
+        assertEquals(0.5, sink.getThreshold(1), 0);
+        sink.write(new Weighted<TokenPair>(new TokenPair(1, 5), 0.1));
+        assertEquals(0.5, sink.getThreshold(1), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, sink.getThreshold(2), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, sink.getThreshold(1000), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, sink.getThreshold(-1), 0);
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final int k = 5;
+        final int nThreads = 4;
+        final Random rand = new Random(1);
+
+        final List<Weighted<TokenPair>> pairs = randomPairs(500, k, rand);
+        List<Weighted<TokenPair>> expected = sortAndTruncate(pairs, k);
+        Collections.shuffle(pairs, rand);
+
+        List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+        final NearestNeighboursSink sink =
+                new NearestNeighboursSink(listSink(actual), k);
+        final List<Throwable> failures =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < pairs.size(); i += nThreads) {
+                            final Weighted<TokenPair> pair = pairs.get(i);
+                            if (pair.weight() >= sink.getThreshold(pair.record().id1()))
+                                sink.write(pair);
+                        }
+                    } catch (Throwable ex) {
+                        failures.add(ex);
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        sink.close();
+
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+        assertEquals(expected, actual);
+    }
+
+}
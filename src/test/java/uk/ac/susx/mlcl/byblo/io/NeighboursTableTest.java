@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class NeighboursTableTest {
+
+    private static ObjectSource<Weighted<TokenPair>> listSource(
+            final List<Weighted<TokenPair>> list) {
+        final Iterator<Weighted<TokenPair>> it = list.iterator();
+        return new ObjectSource<Weighted<TokenPair>>() {
+
+            @Override
+            public Weighted<TokenPair> read() throws IOException {
+                return it.next();
+            }
+
+            @Override
+            public boolean hasNext() throws IOException {
+                return it.hasNext();
+            }
+
+        };
+    }
+
+    private static Weighted<TokenPair> pair(int id1, int id2, double weight) {
+        return new Weighted<TokenPair>(new TokenPair(id1, id2), weight);
+    }
+
+    private static Weighted<Token> neighbour(int id, double weight) {
+        return new Weighted<Token>(new Token(id), weight);
+    }
+
+    /**
+     * Weighted objects are equal when their records are, so the weights are
+     * compared separately.
+     */
+    private static void assertNeighbours(List<Weighted<Token>> expected,
+                                         List<Weighted<Token>> actual) {
+        assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).weight(), actual.get(i).weight(), 0);
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        // Groups out of id order, with an entry (2) that has no neighbours
+        NeighboursTable table = NeighboursTable.read(listSource(Arrays.asList(
+                pair(3, 0, 0.9), pair(3, 1, 0.5),
+                pair(0, 3, 0.9), pair(0, 1, 0.7), pair(0, 4, 0.1),
+                pair(1, 0, 0.7))));
+
+        assertEquals(3, table.getEntryCount());
+        assertEquals(6, table.getNeighbourCount());
+        assertEquals(3, table.getNeighbourCount(0));
+        assertEquals(1, table.getNeighbourCount(1));
+        assertEquals(0, table.getNeighbourCount(2));
+        assertEquals(2, table.getNeighbourCount(3));
+        assertFalse(table.contains(2));
+        assertFalse(table.contains(4));
+        assertFalse(table.contains(-1));
+
+        assertNeighbours(Arrays.asList(neighbour(3, 0.9), neighbour(1, 0.7),
+                                       neighbour(4, 0.1)),
+                         table.getNeighbours(0, 10));
+        assertNeighbours(Arrays.asList(neighbour(0, 0.9), neighbour(1, 0.5)),
+                         table.getNeighbours(3, 2));
+        assertNeighbours(Arrays.asList(neighbour(0, 0.9)), table.getNeighbours(3, 1));
+        assertTrue(table.getNeighbours(2, 10).isEmpty());
+        assertTrue(table.getNeighbours(100, 10).isEmpty());
+    }
+
+    @Test
+    public void testGetSimilarity() throws IOException {
+        NeighboursTable table = NeighboursTable.read(listSource(Arrays.asList(
+                pair(0, 1, 0.7), pair(0, 2, 0.3), pair(2, 0, 0.25))));
+
+        assertEquals(0.7, table.getSimilarity(0, 1), 0);
+        assertEquals(0.3, table.getSimilarity(0, 2), 0);
+        assertEquals(0.25, table.getSimilarity(2, 0), 0);
+        assertTrue(Double.isNaN(table.getSimilarity(1, 0)));
+        assertTrue(Double.isNaN(table.getSimilarity(2, 1)));
+        assertTrue(Double.isNaN(table.getSimilarity(5, 0)));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        NeighboursTable table = NeighboursTable.read(listSource(
+                new ArrayList<Weighted<TokenPair>>()));
+        assertEquals(0, table.getEntryCount());
+        assertEquals(0, table.getNeighbourCount());
+        assertFalse(table.contains(0));
+        assertTrue(table.getNeighbours(0, 5).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUngrouped() throws IOException {
+        NeighboursTable.read(listSource(Arrays.asList(
+                pair(0, 1, 0.7), pair(1, 0, 0.7), pair(0, 2, 0.3))));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class VectorStatsTest {
+
+    private static SparseDoubleVector vector(int... keys) {
+        final double[] values = new double[keys.length];
+        java.util.Arrays.fill(values, 1);
+        return new SparseDoubleVector(keys, values, 100, keys.length);
+    }
+
+    private static VectorStats sample() {
+        final VectorStats.Builder builder = new VectorStats.Builder();
+        builder.add(vector(1, 2, 3));
+        builder.add(vector(2));
+        builder.add(vector(2, 3, 7, 9));
+        builder.add(vector());
+        return builder.build();
+    }
+
+    @Test
+    public void testBuilder() {
+        final VectorStats stats = sample();
+        assertEquals(4, stats.getVectorCount());
+        assertEquals(8, stats.getNonZeroCount());
+        assertEquals(2.0, stats.getMeanVectorSize(), 0);
+        assertEquals(4, stats.getMaxVectorSize());
+        assertEquals(1, stats.getMedianVectorSize());
+        assertEquals(4, stats.getVectorSizeP99());
+        assertEquals(5, stats.getFeatureCount());
+        assertEquals(9, stats.getMaxFeatureId());
+        assertEquals(3, stats.getMaxDocumentFrequency());
+        assertEquals(1, stats.getMedianDocumentFrequency());
+        assertEquals(3, stats.getDocumentFrequencyP90());
+        assertEquals(0, stats.getDocumentFrequency(0));
+        assertEquals(3, stats.getDocumentFrequency(2));
+        assertEquals(2, stats.getDocumentFrequency(3));
+        assertEquals(1, stats.getDocumentFrequency(9));
+        assertEquals(0, stats.getDocumentFrequency(10));
+        assertEquals(0, stats.getDocumentFrequency(-1));
+    }
+
+    @Test
+    public void testEmpty() {
+        final VectorStats stats = new VectorStats.Builder().build();
+        assertEquals(0, stats.getVectorCount());
+        assertEquals(0.0, stats.getMeanVectorSize(), 0);
+        assertEquals(0, stats.getMaxVectorSize());
+        assertEquals(-1, stats.getMaxFeatureId());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        final VectorStats expected = sample();
+        final File file = File.createTempFile(getClass().getName(), VectorStats.SIDECAR_SUFFIX);
+        file.deleteOnExit();
+        VectorStats.documentFrequenciesFor(file).deleteOnExit();
+        expected.write(file);
+        final VectorStats actual = VectorStats.read(file);
+        assertEquals(expected, actual);
+        assertEquals(3, actual.getDocumentFrequency(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMissingDocumentFrequencies() throws IOException {
+        final File file = File.createTempFile(getClass().getName(), VectorStats.SIDECAR_SUFFIX);
+        file.deleteOnExit();
+        sample().write(file);
+        VectorStats.documentFrequenciesFor(file).delete();
+        VectorStats.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMissingStatistic() throws IOException {
+        final File file = File.createTempFile(getClass().getName(), VectorStats.SIDECAR_SUFFIX);
+        file.deleteOnExit();
+        com.google.common.io.Files.write("vectorCount=3\n", file,
+                                         java.nio.charset.Charset.forName("ISO-8859-1"));
+        VectorStats.read(file);
+    }
+
+    @Test
+    public void testSidecarFor() {
+        assertEquals(new File("/tmp/events.filtered.stats"),
+                     VectorStats.sidecarFor(new File("/tmp/events.filtered")));
+    }
+
+}
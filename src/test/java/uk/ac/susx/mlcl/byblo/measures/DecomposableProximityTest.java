@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Check that the shared component of every decomposable measure is exactly
+ * the sum of its terms.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class DecomposableProximityTest {
+
+    private static final int FEATURE_COUNT = 50;
+
+    private static SparseDoubleVector randomVector(Random rand) {
+        SparseDoubleVector v = new SparseDoubleVector(FEATURE_COUNT);
+        for (int k = 0; k < FEATURE_COUNT; k++) {
+            if (rand.nextInt(3) == 0)
+                v.set(k, 1 + rand.nextInt(10));
+        }
+        return v;
+    }
+
+    private static double sumOfTerms(DecomposableProximity measure,
+                                     SparseDoubleVector A, SparseDoubleVector B) {
+        double sum = 0;
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                j++;
+            } else {
+                if (!measure.isFiltered(A.keys[i]))
+                    sum += measure.sharedTerm(A, i, B, j);
+                i++;
+                j++;
+            }
+        }
+        return sum;
+    }
+
+    private static void testDecomposition(DecomposableProximity measure) {
+        Random rand = new Random(0);
+        measure.setFilteredFeatureId(7);
+        for (int n = 0; n < 200; n++) {
+            SparseDoubleVector A = measure.prepare(randomVector(rand));
+            SparseDoubleVector B = measure.prepare(randomVector(rand));
+            assertEquals(measure.toString(),
+                         measure.shared(A, B), sumOfTerms(measure, A, B), 0);
+        }
+    }
+
+    private static <T extends AbstractMIProximity> T withFeatures(T measure) {
+        Random rand = new Random(1);
+        double[] freqs = new double[FEATURE_COUNT];
+        double sum = 0;
+        for (int k = 0; k < FEATURE_COUNT; k++) {
+            freqs[k] = 1 + rand.nextInt(100);
+            sum += freqs[k];
+        }
+        measure.setFeatureFrequencies(freqs);
+        measure.setFeatureFrequencySum(sum);
+        measure.setOccurringFeatureCount(FEATURE_COUNT);
+        return measure;
+    }
+
+    @Test
+    public void testCosine() {
+        testDecomposition(new Cosine());
+        testDecomposition(new Tanimoto());
+    }
+
+    @Test
+    public void testJaccard() {
+        testDecomposition(new Jaccard());
+        testDecomposition(new Dice());
+        testDecomposition(new Overlap());
+    }
+
+    @Test
+    public void testMI() {
+        testDecomposition(withFeatures(new Lin()));
+        testDecomposition(withFeatures(new CosineMi()));
+        testDecomposition(withFeatures(new DiceMi()));
+        testDecomposition(withFeatures(new JaccardMi()));
+        testDecomposition(withFeatures(new RecallMi()));
+        testDecomposition(withFeatures(new Hindle()));
+    }
+
+}
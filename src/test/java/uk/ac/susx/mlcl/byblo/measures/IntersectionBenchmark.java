@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Micro-benchmark of the two strategies available to {@link Intersection}: a
+ * linear merge, and galloping search of the longer vector. For a fixed long
+ * vector, the length of the short vector is varied, and the mean time of each
+ * strategy reported, so the crossover ratio can be read off the output. This
+ * is the basis of {@link Intersection#GALLOP_RATIO}.
+ *
+ * <p>Not a unit test; run it by hand with
+ * {@code java -cp ... uk.ac.susx.mlcl.byblo.measures.IntersectionBenchmark [longSize [featureCount]]}.
+ * </p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class IntersectionBenchmark {
+
+    private static final int VECTORS = 64;
+
+    private static final int ROUNDS = 5;
+
+    private IntersectionBenchmark() {
+    }
+
+    private static SparseDoubleVector randomVector(Random rand, int size,
+                                                   int featureCount) {
+        SparseDoubleVector v = new SparseDoubleVector(featureCount);
+        while (v.size < size)
+            v.set(rand.nextInt(featureCount), 1);
+        return v;
+    }
+
+    private static long merge(SparseDoubleVector A, SparseDoubleVector B) {
+        long shared = 0;
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                j++;
+            } else {
+                shared += i ^ j;
+                i++;
+                j++;
+            }
+        }
+        return shared;
+    }
+
+    private static long gallop(SparseDoubleVector S, SparseDoubleVector L) {
+        long shared = 0;
+        int j = 0;
+        for (int i = 0; i < S.size && j < L.size; i++) {
+            j = Intersection.gallop(L.keys, j, L.size, S.keys[i]);
+            if (j < L.size && L.keys[j] == S.keys[i]) {
+                shared += i ^ j;
+                j++;
+            }
+        }
+        return shared;
+    }
+
+    private static long intersection(SparseDoubleVector A, SparseDoubleVector B) {
+        long shared = 0;
+        final Intersection x = new Intersection(A, B, -1);
+        while (x.next())
+            shared += x.left() ^ x.right();
+        return shared;
+    }
+
+    public static void main(String[] args) {
+        final int longSize = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final int featureCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final Random rand = new Random(0);
+        final SparseDoubleVector L = randomVector(rand, longSize, featureCount);
+
+        System.out.println("long vector size: " + longSize
+                + ", feature count: " + featureCount);
+        System.out.println(String.format("%8s %8s %12s %12s %12s",
+                                         "short", "ratio", "merge ns",
+                                         "gallop ns", "cursor ns"));
+        long check = 0;
+        for (int shortSize = longSize; shortSize >= 1; shortSize /= 2) {
+            final SparseDoubleVector[] S = new SparseDoubleVector[VECTORS];
+            for (int k = 0; k < VECTORS; k++)
+                S[k] = randomVector(rand, shortSize, featureCount);
+
+            long bestMerge = Long.MAX_VALUE;
+            long bestGallop = Long.MAX_VALUE;
+            long bestCursor = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (SparseDoubleVector s : S)
+                    check += merge(s, L);
+                bestMerge = Math.min(bestMerge, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (SparseDoubleVector s : S)
+                    check -= gallop(s, L);
+                bestGallop = Math.min(bestGallop, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (SparseDoubleVector s : S)
+                    check += intersection(s, L);
+                bestCursor = Math.min(bestCursor, System.nanoTime() - start);
+            }
+            System.out.println(String.format(
+                    "%8d %8.1f %12d %12d %12d", shortSize,
+                    (double) longSize / shortSize, bestMerge / VECTORS,
+                    bestGallop / VECTORS, bestCursor / VECTORS));
+        }
+        // Printed so the work can not be eliminated as dead code.
+        System.out.println("checksum: " + check);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Check the intersection cursor against a plain merge, for vectors of similar
+ * and very different lengths.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class IntersectionTest {
+
+    private static final int FEATURE_COUNT = 2000;
+
+    private static SparseDoubleVector randomVector(Random rand, int size) {
+        SparseDoubleVector v = new SparseDoubleVector(FEATURE_COUNT);
+        for (int k = 0; k < size; k++)
+            v.set(rand.nextInt(FEATURE_COUNT), 1 + rand.nextInt(10));
+        return v;
+    }
+
+    private static List<int[]> merge(SparseDoubleVector A, SparseDoubleVector B,
+                                     int filteredFeatureId) {
+        List<int[]> out = new ArrayList<int[]>();
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                j++;
+            } else {
+                if (A.keys[i] != filteredFeatureId)
+                    out.add(new int[]{i, j});
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    private static List<int[]> intersect(SparseDoubleVector A,
+                                         SparseDoubleVector B,
+                                         int filteredFeatureId) {
+        List<int[]> out = new ArrayList<int[]>();
+        Intersection x = new Intersection(A, B, filteredFeatureId);
+        while (x.next())
+            out.add(new int[]{x.left(), x.right()});
+        assertFalse(x.next());
+        return out;
+    }
+
+    private static void check(SparseDoubleVector A, SparseDoubleVector B,
+                              int filteredFeatureId) {
+        List<int[]> expected = merge(A, B, filteredFeatureId);
+        List<int[]> actual = intersect(A, B, filteredFeatureId);
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k++)
+            assertArrayEquals(expected.get(k), actual.get(k));
+    }
+
+    @Test
+    public void testRandom() {
+        Random rand = new Random(0);
+        int[] sizes = {0, 1, 2, 5, 20, 100, 1000, 5000};
+        for (int a : sizes) {
+            for (int b : sizes) {
+                for (int rep = 0; rep < 5; rep++) {
+                    SparseDoubleVector A = randomVector(rand, a);
+                    SparseDoubleVector B = randomVector(rand, b);
+                    check(A, B, -1);
+                    if (A.size > 0)
+                        check(A, B, A.keys[rand.nextInt(A.size)]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSelf() {
+        SparseDoubleVector A = randomVector(new Random(1), 500);
+        check(A, A, -1);
+        assertEquals(A.size, intersect(A, A, -1).size());
+    }
+
+    @Test
+    public void testGallop() {
+        int[] keys = {1, 3, 5, 7, 9, 11, 13, 15, 17, 19, 21};
+        for (int from = 0; from <= keys.length; from++) {
+            for (int key = 0; key <= 23; key++) {
+                int expected = from;
+                while (expected < keys.length && keys[expected] < key)
+                    expected++;
+                assertEquals(expected,
+                             Intersection.gallop(keys, from, keys.length, key));
+            }
+        }
+        assertEquals(4, Intersection.gallop(keys, 0, 4, 100));
+    }
+}
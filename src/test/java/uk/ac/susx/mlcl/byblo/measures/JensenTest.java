@@ -143,7 +143,8 @@ public class JensenTest {
         for(Indexed<SparseDoubleVector> a : x) {
             for(Indexed<SparseDoubleVector> b : x) {
                 final double expected = referenceImplementaiton(a.value(), b.value());
-                final double actual = instance.shared(a.value(), b.value());
+                final double actual = instance.shared(
+                        instance.prepare(a.value()), instance.prepare(b.value()));
 //                System.out.printf("%2d %2d: %5.3f %5.3f %s%n", a.key(), b.key(), expected, actual, Math.abs(expected-actual) <= 0.000001 ? "Equal" : "");
                 Assert.assertEquals(expected, actual,  0.000001);
             }
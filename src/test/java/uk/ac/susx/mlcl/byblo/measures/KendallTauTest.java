@@ -31,11 +31,13 @@
 package uk.ac.susx.mlcl.byblo.measures;
 
 import java.io.File;
+import java.util.Random;
 import static org.junit.Assert.*;
 import org.junit.Ignore;
 import org.junit.Test;
 import static uk.ac.susx.mlcl.TestConstants.*;
 import uk.ac.susx.mlcl.byblo.Tools;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.*;
 
 /**
@@ -44,6 +46,64 @@ import static uk.ac.susx.mlcl.lib.test.ExitTrapper.*;
  */
 public class KendallTauTest {
 
+    /**
+     * Kendall's tau straight from the definition, comparing every pair of
+     * features in the dense vectors.
+     */
+    private static double naiveTau(SparseDoubleVector A, SparseDoubleVector B,
+                                   int numFeatures) {
+        double[] a = new double[numFeatures];
+        double[] b = new double[numFeatures];
+        for (int i = 0; i < A.size; i++)
+            a[A.keys[i]] = A.values[i];
+        for (int i = 0; i < B.size; i++)
+            b[B.keys[i]] = B.values[i];
+        long sum = 0;
+        for (int i = 0; i < numFeatures; i++)
+            for (int j = 0; j < numFeatures; j++)
+                sum += (long) Math.signum((a[i] - a[j]) * (b[i] - b[j]));
+        return (double) sum / ((double) numFeatures * (numFeatures - 1));
+    }
+
+    private static SparseDoubleVector randomVector(Random rand, int numFeatures,
+                                                   int maxValue) {
+        SparseDoubleVector v = new SparseDoubleVector(numFeatures);
+        int size = rand.nextInt(numFeatures + 1);
+        for (int k = 0; k < size; k++)
+            v.set(rand.nextInt(numFeatures), 1 + rand.nextInt(maxValue));
+        return v;
+    }
+
+    @Test
+    public void testKendallTauRandom() {
+        System.out.println("Testing KendallTau against naive definition.");
+        Random rand = new Random(0);
+        for (int n = 0; n < 500; n++) {
+            int numFeatures = 2 + rand.nextInt(50);
+            // small maximum values produce lots of ties
+            int maxValue = 1 + rand.nextInt(n % 2 == 0 ? 3 : 100);
+            SparseDoubleVector A = randomVector(rand, numFeatures, maxValue);
+            SparseDoubleVector B = randomVector(rand, numFeatures, maxValue);
+
+            KendallTau tau = new KendallTau();
+            tau.setNumFeatures(numFeatures);
+            double expected = naiveTau(A, B, numFeatures);
+            assertEquals(expected, tau.shared(A, B), 1E-12);
+            assertEquals(expected, tau.shared(B, A), 1E-12);
+        }
+    }
+
+    @Test
+    public void testKendallTauIdentity() {
+        Random rand = new Random(1);
+        SparseDoubleVector A = new SparseDoubleVector(1000);
+        for (int k = 0; k < 1000; k++)
+            A.set(k, rand.nextDouble() + 1);
+        KendallTau tau = new KendallTau();
+        tau.setNumFeatures(1000);
+        assertEquals(1, tau.shared(A, A), 1E-12);
+    }
+
     @Test
     public void testKendallTauCLI() throws Exception {
         System.out.println("Testing KentalTau from main method.");
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Check that the batch entry point of every measure gives exactly the same
+ * shared components as comparing each pair in turn.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SharedBatchTest {
+
+    private static final int FEATURE_COUNT = 200;
+
+    private static SparseDoubleVector randomVector(Random rand, int size,
+                                                   int offset) {
+        SparseDoubleVector v = new SparseDoubleVector(offset + FEATURE_COUNT);
+        for (int k = 0; k < size; k++)
+            v.set(offset + rand.nextInt(FEATURE_COUNT), 1 + rand.nextInt(10));
+        return v;
+    }
+
+    private static void testBatch(Proximity measure, int offset) {
+        Random rand = new Random(0);
+        measure.setFilteredFeatureId(offset + 7);
+        for (int n = 0; n < 20; n++) {
+            SparseDoubleVector query = measure.prepare(
+                    randomVector(rand, 1 + rand.nextInt(30), offset));
+            // some others are long enough to be intersected, not scanned
+            SparseDoubleVector[] others = new SparseDoubleVector[50];
+            for (int k = 0; k < others.length; k++) {
+                others[k] = measure.prepare(randomVector(
+                        rand, 1 + rand.nextInt(k % 5 == 0 ? 400 : 30), offset));
+            }
+            double[] out = new double[others.length];
+
+            measure.sharedBatch(query, true, others, others.length, out);
+            for (int k = 0; k < others.length; k++)
+                assertEquals(measure.toString(),
+                             measure.shared(query, others[k]), out[k], 0);
+
+            measure.sharedBatch(query, false, others, others.length, out);
+            for (int k = 0; k < others.length; k++)
+                assertEquals(measure.toString(),
+                             measure.shared(others[k], query), out[k], 0);
+        }
+    }
+
+    private static <T extends AbstractMIProximity> T withFeatures(T measure) {
+        Random rand = new Random(1);
+        double[] freqs = new double[FEATURE_COUNT];
+        double sum = 0;
+        for (int k = 0; k < FEATURE_COUNT; k++) {
+            freqs[k] = 1 + rand.nextInt(100);
+            sum += freqs[k];
+        }
+        measure.setFeatureFrequencies(freqs);
+        measure.setFeatureFrequencySum(sum);
+        measure.setOccurringFeatureCount(FEATURE_COUNT);
+        return measure;
+    }
+
+    @Test
+    public void testNativeMeasures() {
+        testBatch(new Cosine(), 0);
+        testBatch(new Tanimoto(), 0);
+        testBatch(new Jaccard(), 0);
+        testBatch(new Dice(), 0);
+        testBatch(new Overlap(), 0);
+        testBatch(withFeatures(new Lin()), 0);
+    }
+
+    @Test
+    public void testDecomposableMeasures() {
+        testBatch(withFeatures(new CosineMi()), 0);
+        testBatch(withFeatures(new JaccardMi()), 0);
+        testBatch(withFeatures(new DiceMi()), 0);
+        testBatch(withFeatures(new RecallMi()), 0);
+        testBatch(withFeatures(new Hindle()), 0);
+    }
+
+    @Test
+    public void testOtherMeasures() {
+        testBatch(new Jensen(), 0);
+        testBatch(new Lp(), 0);
+        testBatch(new Lee(), 0);
+        testBatch(withFeatures(new CrMi()), 0);
+        testBatch(new ReversedProximity(withFeatures(new RecallMi())), 0);
+    }
+
+    @Test
+    public void testLargeFeatureIds() {
+        testBatch(new Cosine(), ScatterTable.DENSE_LIMIT - FEATURE_COUNT / 2);
+        testBatch(new Jaccard(), ScatterTable.DENSE_LIMIT);
+    }
+}
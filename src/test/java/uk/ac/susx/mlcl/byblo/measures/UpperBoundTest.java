@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Check that the upper bound given by every measure is never below the
+ * similarity actually calculated.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class UpperBoundTest {
+
+    private static final int FEATURE_COUNT = 200;
+
+    private static SparseDoubleVector randomVector(Random rand, int size) {
+        SparseDoubleVector v = new SparseDoubleVector(FEATURE_COUNT);
+        for (int k = 0; k < size; k++)
+            v.set(rand.nextInt(FEATURE_COUNT), 1 + rand.nextInt(10));
+        return v;
+    }
+
+    private static double sim(Proximity measure, SparseDoubleVector A,
+                              SparseDoubleVector B) {
+        return measure.combine(measure.shared(A, B),
+                               measure.left(A), measure.right(B));
+    }
+
+    private static double bound(Proximity measure, SparseDoubleVector A,
+                                SparseDoubleVector B) {
+        return measure.upperBound(A, B, measure.left(A), measure.right(B));
+    }
+
+    private static void testBound(Proximity measure) {
+        Random rand = new Random(0);
+        measure.setFilteredFeatureId(7);
+        for (int n = 0; n < 2000; n++) {
+            SparseDoubleVector A = measure.prepare(
+                    randomVector(rand, 1 + rand.nextInt(n % 3 == 0 ? 100 : 10)));
+            // some pairs are identical, where most bounds are tight
+            SparseDoubleVector B = n % 10 == 0 ? A : measure.prepare(
+                    randomVector(rand, 1 + rand.nextInt(n % 5 == 0 ? 100 : 10)));
+            double sim = sim(measure, A, B);
+            double bound = bound(measure, A, B);
+            if (!Double.isNaN(sim)) {
+                assertTrue(measure + ": " + sim + " > " + bound,
+                           sim <= bound + 1E-9 * Math.abs(bound));
+            }
+        }
+    }
+
+    private static <T extends AbstractMIProximity> T withFeatures(T measure) {
+        Random rand = new Random(1);
+        double[] freqs = new double[FEATURE_COUNT];
+        double sum = 0;
+        for (int k = 0; k < FEATURE_COUNT; k++) {
+            freqs[k] = 1 + rand.nextInt(100);
+            sum += freqs[k];
+        }
+        measure.setFeatureFrequencies(freqs);
+        measure.setFeatureFrequencySum(sum);
+        measure.setOccurringFeatureCount(FEATURE_COUNT);
+        return measure;
+    }
+
+    private static Lp lp(double p) {
+        Lp measure = new Lp();
+        measure.setP(p);
+        return measure;
+    }
+
+    @Test
+    public void testBoundedMeasures() {
+        testBound(new Cosine());
+        testBound(new Tanimoto());
+        testBound(new Jaccard());
+        testBound(new Dice());
+        testBound(new Overlap());
+        testBound(withFeatures(new JaccardMi()));
+        testBound(withFeatures(new DiceMi()));
+        testBound(lp(0));
+        testBound(lp(1));
+        testBound(lp(2));
+        testBound(lp(3));
+        testBound(new ReversedProximity(new Dice()));
+    }
+
+    @Test
+    public void testUnboundedMeasures() {
+        testBound(new Jensen());
+        testBound(new Lee());
+        testBound(withFeatures(new Lin()));
+        testBound(withFeatures(new RecallMi()));
+        testBound(withFeatures(new CrMi()));
+        testBound(lp(0.5));
+        testBound(lp(Double.POSITIVE_INFINITY));
+        assertEquals(Double.POSITIVE_INFINITY,
+                     bound(new Jensen(), randomVector(new Random(0), 5),
+                           randomVector(new Random(1), 5)), 0);
+    }
+
+    @Test
+    public void testSizeBounds() {
+        SparseDoubleVector A = new SparseDoubleVector(
+                new int[]{1, 2}, new double[]{1, 1}, 10, 2);
+        SparseDoubleVector B = new SparseDoubleVector(
+                new int[]{1, 2, 3, 4, 5, 6, 7, 8},
+                new double[]{1, 1, 1, 1, 1, 1, 1, 1}, 10, 8);
+        assertEquals(2d / 8, bound(new Jaccard(), A, B), 0);
+        assertEquals(2d / 8, bound(new Jaccard(), B, A), 0);
+        assertEquals(4d / 10, bound(new Dice(), A, B), 0);
+        assertEquals(1d / 6, bound(lp(0), A, B), 0);
+        assertEquals(1d, bound(new Jaccard(), B, B), 0);
+    }
+
+    @Test
+    public void testNormBounds() {
+        Proximity tanimoto = new Tanimoto();
+        SparseDoubleVector A = tanimoto.prepare(new SparseDoubleVector(
+                new int[]{1}, new double[]{1}, 10, 1));
+        SparseDoubleVector B = tanimoto.prepare(new SparseDoubleVector(
+                new int[]{1, 2, 3, 4}, new double[]{1, 1, 1, 1}, 10, 4));
+        // norms are 1 and 1/2, so the bound is (1/2) / (1 + 1/4 - 1/2)
+        assertEquals(2d / 3, bound(tanimoto, A, B), 1E-12);
+        assertEquals(sim(tanimoto, A, B), 1d / 4 / (1 + 1d / 4 - 1d / 4), 1E-12);
+        assertEquals(1d, bound(new Cosine(), A, B), 1E-12);
+    }
+}
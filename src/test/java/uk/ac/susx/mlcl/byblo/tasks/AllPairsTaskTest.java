@@ -35,8 +35,13 @@ import uk.ac.susx.mlcl.TestConstants;
 import uk.ac.susx.mlcl.byblo.Tools;
 import uk.ac.susx.mlcl.lib.test.ExitTrapper;
 
+import com.google.common.io.Files;
+
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -75,6 +80,46 @@ public class AllPairsTaskTest {
         }
     }
 
+    @Test
+    public void testMainRun_Sharded() throws Exception {
+        final File unsharded = new File(TestConstants.TEST_OUTPUT_DIR, "bnc-gramrels-fruit.unsharded.sims");
+        final File shard1 = new File(TestConstants.TEST_OUTPUT_DIR, "bnc-gramrels-fruit.shard1.sims");
+        final File shard2 = new File(TestConstants.TEST_OUTPUT_DIR, "bnc-gramrels-fruit.shard2.sims");
+        final File merged = new File(TestConstants.TEST_OUTPUT_DIR, "bnc-gramrels-fruit.merged.sims");
+        try {
+            ExitTrapper.enableExistTrapping();
+            Tools.main(new String[]{"allpairs",
+                    "-i", TestConstants.TEST_FRUIT_EVENTS.toString(),
+                    "-if", TestConstants.TEST_FRUIT_FEATURES.toString(),
+                    "-o", unsharded.toString()});
+            Tools.main(new String[]{"allpairs",
+                    "-i", TestConstants.TEST_FRUIT_EVENTS.toString(),
+                    "-if", TestConstants.TEST_FRUIT_FEATURES.toString(),
+                    "-o", shard1.toString(),
+                    "--chunk-size", "10",
+                    "--shard", "1/2"});
+            Tools.main(new String[]{"allpairs",
+                    "-i", TestConstants.TEST_FRUIT_EVENTS.toString(),
+                    "-if", TestConstants.TEST_FRUIT_FEATURES.toString(),
+                    "-o", shard2.toString(),
+                    "--chunk-size", "10",
+                    "--shard", "2/2"});
+            Tools.main(new String[]{"merge-shards",
+                    "-i", shard1.toString(),
+                    "-i", shard2.toString(),
+                    "-o", merged.toString()});
+        } finally {
+            ExitTrapper.disableExitTrapping();
+        }
+
+        assertTrue("Shard output is empty.", shard1.length() > 0 && shard2.length() > 0);
+        final List<String> expected = Files.readLines(unsharded, TestConstants.DEFAULT_CHARSET);
+        final List<String> actual = Files.readLines(merged, TestConstants.DEFAULT_CHARSET);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
     @Test
     public void testExitStatus() throws Exception {
         try {
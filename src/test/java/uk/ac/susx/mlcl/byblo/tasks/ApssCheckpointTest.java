@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ApssCheckpointTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ApssCheckpoint.delete(dir);
+    }
+
+    private static Weighted<TokenPair> pair(int id1, int id2, double weight) {
+        return new Weighted<TokenPair>(new TokenPair(id1, id2), weight);
+    }
+
+    @Test
+    public void testCompleteResumeReplay() throws IOException {
+        ApssCheckpoint checkpoint = ApssCheckpoint.create(dir, "abc", 100, 5000, true);
+        ApssCheckpoint.Run run01 = checkpoint.openRun(0, 1);
+        ApssCheckpoint.Run run00 = checkpoint.openRun(0, 0);
+        ApssCheckpoint.Run run11 = checkpoint.openRun(1, 1);
+        run01.write(pair(1, 5, 0.5));
+        run01.write(pair(5, 1, 0.5));
+        run00.write(pair(1, 2, 0.25));
+        checkpoint.complete(run01);
+        checkpoint.complete(run00);
+        checkpoint.close();
+        run11.close();
+
+        checkpoint = ApssCheckpoint.resume(dir);
+        assertEquals("abc", checkpoint.getFingerprint());
+        assertEquals(100, checkpoint.getChunkSize());
+        assertEquals(5000, checkpoint.getChunkNonZeros());
+        assertTrue(checkpoint.isHalfGrid());
+        assertEquals(2, checkpoint.getCompletedCount());
+        assertTrue(checkpoint.isCompleted(0, 0));
+        assertTrue(checkpoint.isCompleted(0, 1));
+        assertFalse(checkpoint.isCompleted(1, 1));
+
+        run11 = checkpoint.openRun(1, 1);
+        run11.write(pair(7, 7, 1));
+        checkpoint.complete(run11);
+
+        List<Weighted<TokenPair>> out = new ArrayList<Weighted<TokenPair>>();
+        assertEquals(4, checkpoint.replay(ObjectIO.asSink(out)));
+        checkpoint.close();
+        assertEquals(Arrays.asList(pair(1, 2, 0.25), pair(1, 5, 0.5),
+                                   pair(5, 1, 0.5), pair(7, 7, 1)), out);
+    }
+
+    @Test
+    public void testResumeIgnoresPartialLine() throws IOException {
+        ApssCheckpoint checkpoint = ApssCheckpoint.create(dir, "abc", 10, -1, false);
+        checkpoint.complete(checkpoint.openRun(2, 3));
+        checkpoint.close();
+        Files.append("pair 4", new File(dir, ApssCheckpoint.MANIFEST_NAME),
+                     Charset.forName("UTF-8"));
+
+        checkpoint = ApssCheckpoint.resume(dir);
+        assertEquals(1, checkpoint.getCompletedCount());
+        assertTrue(checkpoint.isCompleted(2, 3));
+        checkpoint.complete(checkpoint.openRun(4, 0));
+        checkpoint.close();
+
+        checkpoint = ApssCheckpoint.resume(dir);
+        assertEquals(2, checkpoint.getCompletedCount());
+        assertTrue(checkpoint.isCompleted(4, 0));
+        checkpoint.close();
+    }
+
+    @Test
+    public void testCreateDiscardsPrevious() throws IOException {
+        ApssCheckpoint checkpoint = ApssCheckpoint.create(dir, "abc", 10, -1, false);
+        checkpoint.complete(checkpoint.openRun(0, 0));
+        checkpoint.close();
+
+        checkpoint = ApssCheckpoint.create(dir, "def", 20, -1, false);
+        checkpoint.close();
+        checkpoint = ApssCheckpoint.resume(dir);
+        assertEquals("def", checkpoint.getFingerprint());
+        assertEquals(0, checkpoint.getCompletedCount());
+        checkpoint.close();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testResumeWithoutManifest() throws IOException {
+        ApssCheckpoint.resume(dir);
+    }
+
+}
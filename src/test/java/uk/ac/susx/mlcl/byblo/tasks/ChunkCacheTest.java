@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkCacheTest {
+
+    private static List<Indexed<SparseDoubleVector>> chunk(int nVectors) {
+        List<Indexed<SparseDoubleVector>> chunk =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int i = 0; i < nVectors; i++) {
+            chunk.add(new Indexed<SparseDoubleVector>(i, new SparseDoubleVector(
+                    new int[]{1, 2}, new double[]{1, 1}, 10, 2)));
+        }
+        return chunk;
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        List<Indexed<SparseDoubleVector>> a = chunk(10);
+        List<Indexed<SparseDoubleVector>> b = chunk(10);
+        List<Indexed<SparseDoubleVector>> c = chunk(10);
+        long chunkBytes = ChunkCache.estimateBytes(a);
+
+        ChunkCache cache = new ChunkCache(2 * chunkBytes);
+        cache.put(0, a);
+        cache.put(1, b);
+        assertSame(a, cache.get(0));
+
+        // chunk 1 is now the least recently used
+        cache.put(2, c);
+        assertNull(cache.get(1));
+        assertSame(a, cache.get(0));
+        assertSame(c, cache.get(2));
+        assertEquals(2 * chunkBytes, cache.getBytes());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testOversizedChunkNotCached() {
+        List<Indexed<SparseDoubleVector>> small = chunk(1);
+        List<Indexed<SparseDoubleVector>> large = chunk(100);
+
+        ChunkCache cache = new ChunkCache(ChunkCache.estimateBytes(small));
+        cache.put(0, small);
+        cache.put(1, large);
+        assertNull(cache.get(1));
+        assertSame(small, cache.get(0));
+    }
+
+    @Test
+    public void testZeroBudget() {
+        ChunkCache cache = new ChunkCache(0);
+        cache.put(0, chunk(1));
+        assertNull(cache.get(0));
+        assertEquals(0, cache.getBytes());
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkTableTest {
+
+    private static List<Indexed<SparseDoubleVector>> vectors(int... sizes) {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int i = 0; i < sizes.length; i++) {
+            int[] keys = new int[sizes[i]];
+            double[] values = new double[sizes[i]];
+            for (int k = 0; k < sizes[i]; k++) {
+                keys[k] = k;
+                values[k] = 1;
+            }
+            vectors.add(new Indexed<SparseDoubleVector>(i, new SparseDoubleVector(
+                    keys, values, 100, keys.length)));
+        }
+        return vectors;
+    }
+
+    private static ListObjectSource<Indexed<SparseDoubleVector>> source(
+            List<Indexed<SparseDoubleVector>> vectors) {
+        return new ListObjectSource<Indexed<SparseDoubleVector>>(vectors);
+    }
+
+    @Test
+    public void testBoundedByVectorCount() throws IOException {
+        ChunkTable<Integer> table = ChunkTable.build(
+                source(vectors(1, 1, 1, 1, 1, 1, 1)), 3, -1, null);
+        assertEquals(3, table.size());
+        assertEquals(3, table.getVectorCount(0));
+        assertEquals(3, table.getVectorCount(1));
+        assertEquals(1, table.getVectorCount(2));
+        assertEquals(3, table.getNonZeroCount(0));
+    }
+
+    @Test
+    public void testBoundedByNonZeros() throws IOException {
+        // the dense head vector gets a chunk of its own, the sparse tail is
+        // gathered into fewer, larger chunks
+        ChunkTable<Integer> table = ChunkTable.build(
+                source(vectors(50, 30, 10, 5, 20, 2, 1)), 100, 40, null);
+        assertEquals(3, table.size());
+        assertEquals(1, table.getVectorCount(0));
+        assertEquals(50, table.getNonZeroCount(0));
+        assertEquals(2, table.getVectorCount(1));
+        assertEquals(40, table.getNonZeroCount(1));
+        assertEquals(4, table.getVectorCount(2));
+        assertEquals(28, table.getNonZeroCount(2));
+    }
+
+    @Test
+    public void testReadAndCache() throws IOException {
+        List<Indexed<SparseDoubleVector>> vectors = vectors(4, 4, 4, 4, 4);
+        ListObjectSource<Indexed<SparseDoubleVector>> source = source(vectors);
+        ChunkCache cache = new ChunkCache(Long.MAX_VALUE);
+        ChunkTable<Integer> table = ChunkTable.build(source, 2, 8, cache);
+        assertEquals(3, table.size());
+
+        for (int j = table.size() - 1; j >= 0; j--) {
+            List<Indexed<SparseDoubleVector>> chunk = table.read(source, j);
+            assertEquals(cache.get(j), chunk);
+            for (int i = 0; i < chunk.size(); i++)
+                assertSame(vectors.get(2 * j + i), chunk.get(i));
+        }
+    }
+
+    @Test
+    public void testEmptySource() throws IOException {
+        ChunkTable<Integer> table = ChunkTable.build(
+                source(vectors()), 10, -1, null);
+        assertEquals(0, table.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaxVectors() throws IOException {
+        ChunkTable.build(source(vectors(1)), 0, -1, null);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class CompactInvertedIndexTest {
+
+    private static Indexed<SparseDoubleVector> vector(int id, int... keys) {
+        double[] values = new double[keys.length];
+        Arrays.fill(values, 1);
+        return new Indexed<SparseDoubleVector>(id, new SparseDoubleVector(
+                keys, values, 100, keys.length));
+    }
+
+    private static int[] find(CompactInvertedIndex index,
+                              CompactInvertedIndex.Candidates candidates,
+                              int... keys) {
+        index.findCandidates(keys, candidates);
+        int[] result = new int[candidates.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = candidates.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testFindCandidates() {
+        CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        Indexed<SparseDoubleVector> a = vector(0, 3, 5, 7);
+        Indexed<SparseDoubleVector> b = vector(1, 5, 9);
+        Indexed<SparseDoubleVector> c = vector(2, 11);
+        builder.addAll(a);
+        builder.addAll(b);
+        builder.addAll(c);
+        CompactInvertedIndex index = builder.build();
+
+        assertEquals(3, index.getVectorCount());
+        assertEquals(6, index.getPostingCount());
+        assertSame(b, index.getVector(1));
+
+        CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        assertArrayEquals(new int[]{0, 1}, find(index, candidates, 5, 7));
+        assertArrayEquals(new int[]{0, 1, 2}, find(index, candidates, 3, 9, 11));
+        assertArrayEquals(new int[]{}, find(index, candidates, 1, 4, 50));
+        assertArrayEquals(new int[]{2}, find(index, candidates, 11, 11));
+    }
+
+    @Test
+    public void testPartialPostings() {
+        CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        int slotA = builder.addVector(vector(0, 3, 5));
+        int slotB = builder.addVector(vector(1, 5));
+        builder.addPosting(5, slotA);
+        CompactInvertedIndex index = builder.build();
+
+        CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        assertArrayEquals(new int[]{}, find(index, candidates, 3));
+        assertArrayEquals(new int[]{slotA}, find(index, candidates, 5));
+        assertEquals(2, index.getVectorCount());
+        assertEquals(1, slotB);
+    }
+
+    @Test
+    public void testAccumulate() {
+        CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        Indexed<SparseDoubleVector> a = vector(0, 3, 5, 7);
+        Indexed<SparseDoubleVector> b = vector(1, 5, 9);
+        Indexed<SparseDoubleVector> c = vector(2, 11);
+        builder.addAll(a);
+        builder.addAll(b);
+        builder.addAll(c);
+        CompactInvertedIndex index = builder.build();
+
+        Jaccard measure = new Jaccard();
+        measure.setFilteredFeatureId(7);
+        Indexed<SparseDoubleVector> query = vector(3, 5, 7, 9, 13);
+        CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        index.accumulate(query.value(), measure, candidates);
+
+        assertEquals(2, candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            Indexed<SparseDoubleVector> v = index.getVector(candidates.get(i));
+            assertEquals(measure.shared(v.value(), query.value()),
+                         candidates.getValue(i), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPostingOfMissingFeature() {
+        CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        int slot = builder.addVector(vector(0, 3, 5));
+        builder.addPosting(4, slot);
+    }
+
+    @Test
+    public void testExcludedFeatures() {
+        CompactInvertedIndex.Builder builder = new CompactInvertedIndex.Builder();
+        builder.excludeFeatures(new IntOpenHashSet(new int[]{5, 11}));
+        builder.addAll(vector(0, 3, 5, 7));
+        builder.addAll(vector(1, 5, 9));
+        CompactInvertedIndex index = builder.build();
+
+        assertTrue(index.hasExcludedFeatures());
+        assertEquals(1, index.getExcludedFeatureCount());
+        assertEquals(3, index.getPostingCount());
+        assertEquals(0, index.getPostingCount(5));
+        assertEquals(1, index.getPostingCount(9));
+        assertEquals(2, index.getExcludedPostingCount(5));
+        assertEquals(0, index.getExcludedPostingCount(9));
+
+        CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        assertArrayEquals(new int[]{}, find(index, candidates, 5));
+        assertArrayEquals(new int[]{1}, find(index, candidates, 5, 9));
+        assertTrue(candidates.contains(1));
+        assertFalse(candidates.contains(0));
+    }
+
+    @Test
+    public void testEmpty() {
+        CompactInvertedIndex index = new CompactInvertedIndex.Builder().build();
+        CompactInvertedIndex.Candidates candidates = index.newCandidates();
+        assertArrayEquals(new int[]{}, find(index, candidates, 1, 2, 3));
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.NearestNeighboursSink;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Lee;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that updating the output of a search with added entries produces
+ * the same output as searching over every entry again.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class IncrementalApssTaskTest {
+
+    private static final int PREVIOUS_COUNT = 150;
+
+    private static final int NEW_COUNT = 20;
+
+    private static final int FEATURE_COUNT = 60;
+
+    /**
+     * Previous entries that are changed by the update.
+     */
+    private static final int[] CHANGED_IDS = {3, 17, 40, 41, 99, 149};
+
+    private final List<Indexed<SparseDoubleVector>> previous;
+
+    private final List<Indexed<SparseDoubleVector>> added;
+
+    private final List<Indexed<SparseDoubleVector>> current;
+
+    public IncrementalApssTaskTest() {
+        final Random random = new Random(7);
+        previous = new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id = 0; id < PREVIOUS_COUNT; id++)
+            previous.add(RandomVectors.skewed(id, FEATURE_COUNT, random));
+
+        added = new ArrayList<Indexed<SparseDoubleVector>>();
+        current = new ArrayList<Indexed<SparseDoubleVector>>(previous);
+        for (int id : CHANGED_IDS) {
+            final Indexed<SparseDoubleVector> v = RandomVectors.skewed(id, FEATURE_COUNT, random);
+            added.add(v);
+            current.set(id, v);
+        }
+        for (int id = PREVIOUS_COUNT; id < PREVIOUS_COUNT + NEW_COUNT; id++) {
+            final Indexed<SparseDoubleVector> v = RandomVectors.skewed(id, FEATURE_COUNT, random);
+            added.add(v);
+            current.add(v);
+        }
+    }
+
+    private static ListObjectSource<Indexed<SparseDoubleVector>> source(
+            List<Indexed<SparseDoubleVector>> vectors) {
+        return new ListObjectSource<Indexed<SparseDoubleVector>>(vectors);
+    }
+
+    private static ObjectSink<Weighted<TokenPair>> sink(
+            List<Weighted<TokenPair>> pairs, int k) {
+        return k > 0
+               ? new NearestNeighboursSink(ObjectIO.asSink(pairs), k)
+               : ObjectIO.asSink(pairs);
+    }
+
+    private static void parameterise(
+            NaiveApssTask<Integer> task, Proximity measure, double minSimilarity) {
+        task.setMeasure(measure);
+        task.setMinSimilarity(minSimilarity);
+        task.setProducatePair(minSimilarity == Double.NEGATIVE_INFINITY
+                              ? Predicates.<Weighted<TokenPair>>alwaysTrue()
+                              : Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+    }
+
+    private static void run(NaiveApssTask<Integer> task,
+                            ObjectSink<Weighted<TokenPair>> sink) throws Exception {
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+        if (sink instanceof NearestNeighboursSink)
+            ((NearestNeighboursSink) sink).close();
+    }
+
+    private static List<Weighted<TokenPair>> search(
+            List<Indexed<SparseDoubleVector>> vectors, Proximity measure,
+            double minSimilarity, int k) throws Exception {
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final ObjectSink<Weighted<TokenPair>> sink = sink(pairs, k);
+        // The same algorithm as the default inner algorithm of the update
+        final InvertedApssTask<Integer> task = new InvertedApssTask<Integer>();
+        task.setSourceA(source(vectors));
+        task.setSourceB(source(vectors));
+        task.setSink(sink);
+        parameterise(task, measure, minSimilarity);
+        run(task, sink);
+        return pairs;
+    }
+
+    private List<Weighted<TokenPair>> update(
+            List<Weighted<TokenPair>> previousPairs, Proximity measure,
+            double minSimilarity, int k, boolean halfGrid,
+            NaiveApssTask<?> innerSettings) throws Exception {
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final ObjectSink<Weighted<TokenPair>> sink = sink(pairs, k);
+        final IncrementalApssTask<Integer> task = new IncrementalApssTask<Integer>();
+        task.setSourceA(source(previous));
+        task.setSourceB(source(previous));
+        task.setAddedSources(source(added), source(added));
+        task.setPreviousPairs(new ListObjectSource<Weighted<TokenPair>>(previousPairs));
+        task.setSink(sink);
+        task.setHalfGridEnabled(halfGrid);
+        if (innerSettings != null) {
+            task.setInnerAlgorithm(innerSettings.getClass());
+            task.setInnerSettings(innerSettings);
+        }
+        parameterise(task, measure, minSimilarity);
+        run(task, sink);
+        return pairs;
+    }
+
+    private void assertUpdateExact(Proximity measure, double minSimilarity,
+                                   int k, boolean halfGrid,
+                                   NaiveApssTask<?> innerSettings) throws Exception {
+        final List<Weighted<TokenPair>> expected =
+                search(current, measure, minSimilarity, k);
+        final List<Weighted<TokenPair>> actual = update(
+                search(previous, measure, minSimilarity, k),
+                measure, minSimilarity, k, halfGrid, innerSettings);
+        assertFalse(expected.isEmpty());
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).record(), actual.get(i).record());
+            assertEquals(expected.get(i).weight(), actual.get(i).weight(), 1E-10);
+        }
+    }
+
+    @Test
+    public void testSims() throws Exception {
+        assertUpdateExact(new Jaccard(), 0.1, 0, false, null);
+    }
+
+    @Test
+    public void testSimsHalfGrid() throws Exception {
+        assertUpdateExact(new Cosine(), 0.2, 0, true, null);
+    }
+
+    @Test
+    public void testSimsAsymmetric() throws Exception {
+        assertUpdateExact(new Lee(), Double.NEGATIVE_INFINITY, 0, true, null);
+    }
+
+    @Test
+    public void testNeighbours() throws Exception {
+        assertUpdateExact(new Jaccard(), Double.NEGATIVE_INFINITY, 5, false, null);
+    }
+
+    @Test
+    public void testNeighboursHalfGrid() throws Exception {
+        assertUpdateExact(new Cosine(), 0.1, 3, true, null);
+    }
+
+    @Test
+    public void testNeighboursAsymmetric() throws Exception {
+        assertUpdateExact(new Lee(), Double.NEGATIVE_INFINITY, 4, true, null);
+    }
+
+    @Test
+    public void testThreadedInner() throws Exception {
+        final ThreadedApssTask<Integer> threaded = new ThreadedApssTask<Integer>();
+        threaded.setInnerAlgorithm(InvertedApssTask.class);
+        threaded.setNumThreads(3);
+        threaded.setChunkSize(16);
+        assertUpdateExact(new Jaccard(), 0.05, 5, true, threaded);
+        assertUpdateExact(new Jaccard(), 0.05, 0, false, threaded);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUngroupedNeighbours() throws Exception {
+        final List<Weighted<TokenPair>> previousPairs =
+                search(previous, new Jaccard(), Double.NEGATIVE_INFINITY, 5);
+        previousPairs.add(previousPairs.get(0));
+        update(previousPairs, new Jaccard(), Double.NEGATIVE_INFINITY, 5, false, null);
+    }
+
+}
@@ -30,8 +30,33 @@
  */
 package uk.ac.susx.mlcl.byblo.tasks;
 
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.susx.mlcl.TestConstants.DEFAULT_CHARSET;
+import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_EVENTS;
+
 /**
- * Tests inherited from superclass.
+ * Most tests are inherited from the abstract super-class. The remainder check
+ * the document frequency cutoff: that it only loses pairs, never changing
+ * their weights, and that its report is correct when every entry is sampled.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -42,4 +67,82 @@ public class InvertedApssTaskTest extends AbstractAllPairsTaskTest<InvertedApssT
         return InvertedApssTask.class;
     }
 
+    @Test
+    public void testNoCutoff() throws Exception {
+        InvertedApssTask<Tell> inverted = new InvertedApssTask<Tell>();
+        inverted.setMaxDocumentFrequency(1);
+        List<Weighted<TokenPair>> expected =
+                runAllPairs(new InvertedApssTask<Tell>(), new Cosine(), 0.1);
+        List<Weighted<TokenPair>> actual = runAllPairs(inverted, new Cosine(), 0.1);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertEquals(0, inverted.getCutoffReport().getSkippedPostingCount());
+    }
+
+    @Test
+    public void testDocumentFrequencyCutoff() throws Exception {
+        List<Weighted<TokenPair>> expected =
+                runAllPairs(new InvertedApssTask<Tell>(), new Cosine(), 0.1);
+
+        InvertedApssTask<Tell> inverted = new InvertedApssTask<Tell>();
+        inverted.setMaxDocumentFrequency(0.5);
+        inverted.setRecallSampleRate(1);
+        List<Weighted<TokenPair>> actual = runAllPairs(inverted, new Cosine(), 0.1);
+
+        assertTrue(!expected.isEmpty());
+        assertTrue(!actual.isEmpty());
+
+        Map<TokenPair, Double> exact = new HashMap<TokenPair, Double>();
+        for (Weighted<TokenPair> pair : expected)
+            exact.put(pair.record(), pair.weight());
+
+        // Every pair found must be an exact pair, with the exact weight
+        for (Weighted<TokenPair> pair : actual) {
+            assertTrue(pair.toString(), exact.containsKey(pair.record()));
+            assertEquals(exact.get(pair.record()), pair.weight(), 1E-10);
+        }
+
+        InvertedApssTask.CutoffReport report = inverted.getCutoffReport();
+        assertTrue(report.toString(), report.getExcludedFeatureCount() > 0);
+        assertTrue(report.toString(), report.getSkippedPostingCount() > 0);
+
+        // When every entry is sampled, the estimate is the true recall
+        RecallEstimate estimate = inverted.getRecallEstimate();
+        assertEquals(expected.size(), estimate.getRelevantCount());
+        assertEquals(actual.size(), estimate.getRecalledCount());
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure, double minSimilarity)
+            throws Exception {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.setMinSimilarity(minSimilarity);
+        instance.setProducatePair(
+                Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
 }
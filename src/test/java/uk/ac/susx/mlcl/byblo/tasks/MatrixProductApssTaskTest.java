@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.*;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.susx.mlcl.TestConstants.DEFAULT_CHARSET;
+import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_EVENTS;
+
+/**
+ * Most tests are inherited from the abstract super-class. The remainder check
+ * that the matrix product produces exactly the same pairs as the inverted
+ * index, with blocks small enough that the search is divided between many of
+ * them.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MatrixProductApssTaskTest extends AbstractAllPairsTaskTest<MatrixProductApssTask> {
+
+    @Override
+    public Class<? extends MatrixProductApssTask> getImplementation() {
+        return MatrixProductApssTask.class;
+    }
+
+    @Test
+    public void testJaccardMatchesInverted() throws Exception {
+        compareWithInverted(new Jaccard(), 0.1);
+    }
+
+    @Test
+    public void testDiceMatchesInverted() throws Exception {
+        compareWithInverted(new Dice(), 0.2);
+    }
+
+    @Test
+    public void testCosineMatchesInverted() throws Exception {
+        compareWithInverted(new Cosine(), 0.2);
+    }
+
+    @Test
+    public void testTanimotoMatchesInverted() throws Exception {
+        compareWithInverted(new Tanimoto(), 0.1);
+    }
+
+    @Test
+    public void testUnsupportedMeasureMatchesInverted() throws Exception {
+        compareWithInverted(new Lee(), 0.1);
+    }
+
+    private static void compareWithInverted(Proximity measure, double minSimilarity)
+            throws Exception {
+        List<Weighted<TokenPair>> expected =
+                runAllPairs(new InvertedApssTask<Tell>(), measure, minSimilarity);
+
+        for (double denseDensity : new double[]{1, 0.125, 0.01}) {
+            MatrixProductApssTask<Tell> product = new MatrixProductApssTask<Tell>();
+            product.setBlockSize(10);
+            product.setDenseDensity(denseDensity);
+            List<Weighted<TokenPair>> actual =
+                    runAllPairs(product, measure, minSimilarity);
+
+            assertTrue(!expected.isEmpty());
+            assertEquals(expected.size(), actual.size());
+
+            Collections.sort(expected);
+            Collections.sort(actual);
+
+            assertEquals(expected, actual);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).weight(), actual.get(i).weight(), 0);
+            }
+        }
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure, double minSimilarity)
+            throws Exception {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.setMinSimilarity(minSimilarity);
+        instance.setProducatePair(
+                Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+}
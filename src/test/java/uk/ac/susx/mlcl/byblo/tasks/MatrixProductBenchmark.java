@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+/**
+ * Benchmark of {@link MatrixProductApssTask} against {@link InvertedApssTask},
+ * on randomly generated vectors whose features follow a Zipfian distribution,
+ * as they do in real corpora. The matrix product is run with several dense
+ * densities, so the effect of the dense tile can be read off the output. This
+ * is the basis of {@link MatrixProductApssTask#DEFAULT_DENSE_DENSITY}.
+ *
+ * <p>Not a unit test; run it by hand with
+ * {@code java -cp ... uk.ac.susx.mlcl.byblo.tasks.MatrixProductBenchmark [entryCount [featureCount]]}.
+ * </p>
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MatrixProductBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final double MIN_SIMILARITY = 0.1;
+
+    private MatrixProductBenchmark() {
+    }
+
+    private static List<Indexed<SparseDoubleVector>> zipfianVectors(
+            Random rand, int entryCount, int featureCount) {
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            final SparseDoubleVector v = new SparseDoubleVector(featureCount);
+            final int size = 1 + (int) (200 * Math.pow(rand.nextDouble(), 3));
+            for (int k = 0; k < size; k++) {
+                // feature id distributed approximately as 1/rank
+                final int f = (int) Math.pow(featureCount, rand.nextDouble()) - 1;
+                v.set(f, 1 + rand.nextInt(10));
+            }
+            vectors.add(new Indexed<SparseDoubleVector>(i, v));
+        }
+        return vectors;
+    }
+
+    private static long time(NaiveApssTask<Integer> task,
+                             List<Indexed<SparseDoubleVector>> vectors,
+                             Proximity measure) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            task.setSourceA(new ListObjectSource<Indexed<SparseDoubleVector>>(vectors));
+            task.setSourceB(new ListObjectSource<Indexed<SparseDoubleVector>>(vectors));
+            task.setSink(ObjectIO.<Weighted<TokenPair>>nullSink());
+            task.setMeasure(measure);
+            task.setMinSimilarity(MIN_SIMILARITY);
+            task.setProducatePair(
+                    Weighted.<TokenPair>greaterThanOrEqualTo(MIN_SIMILARITY));
+            task.setStats(new ApssStats());
+            final long start = System.nanoTime();
+            task.run();
+            while (task.isExceptionTrapped())
+                task.throwTrappedException();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int entryCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int featureCount = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        final List<Indexed<SparseDoubleVector>> vectors =
+                zipfianVectors(new Random(0), entryCount, featureCount);
+        final Proximity measure = new Cosine();
+
+        System.out.println("entry count: " + entryCount
+                + ", feature count: " + featureCount);
+        System.out.println(String.format("%-24s %12s", "algorithm", "ms"));
+
+        final long inverted = time(new InvertedApssTask<Integer>(), vectors, measure);
+        System.out.println(String.format("%-24s %12d", "inverted", inverted / 1000000));
+
+        for (double denseDensity : new double[]{1, 0.5, 0.25, 0.125, 0.0625, 0.03125}) {
+            final MatrixProductApssTask<Integer> product =
+                    new MatrixProductApssTask<Integer>();
+            product.setDenseDensity(denseDensity);
+            final long t = time(product, vectors, measure);
+            System.out.println(String.format(
+                    "%-24s %12d", "product dense=" + denseDensity, t / 1000000));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PrecalcArrayTest {
+
+    private static List<Indexed<SparseDoubleVector>> vectors(int... ids) {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id : ids) {
+            vectors.add(new Indexed<SparseDoubleVector>(id, new SparseDoubleVector(
+                    new int[]{0, 1}, new double[]{1, 1 + id % 7}, 10, 2)));
+        }
+        return vectors;
+    }
+
+    private static void assertComponents(
+            List<Indexed<SparseDoubleVector>> vectors, Proximity measure,
+            PrecalcArray precalc, boolean left) {
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            assertEquals(left ? measure.left(v.value()) : measure.right(v.value()),
+                         precalc.get(v.key()), 0);
+        }
+    }
+
+    @Test
+    public void testConsecutiveIds() throws IOException {
+        Proximity measure = new Cosine();
+        List<Indexed<SparseDoubleVector>> vectors = vectors(5, 6, 7, 8, 9);
+        ListObjectSource<Indexed<SparseDoubleVector>> source =
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors);
+        PrecalcArray precalc = PrecalcArray.build(source, measure, true);
+
+        assertFalse(precalc.isSparse());
+        assertComponents(vectors, measure, precalc, true);
+        assertTrue(source.hasNext());
+    }
+
+    /**
+     * Filtered sources skip most ids; the components must not be held in an
+     * array spanning the whole range.
+     */
+    @Test
+    public void testSparseIds() throws IOException {
+        Proximity measure = new Cosine();
+        List<Indexed<SparseDoubleVector>> vectors =
+                vectors(3, 1000, 250000, Integer.MAX_VALUE - 1);
+        PrecalcArray precalc = PrecalcArray.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors),
+                measure, false);
+
+        assertTrue(precalc.isSparse());
+        assertComponents(vectors, measure, precalc, false);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        PrecalcArray precalc = PrecalcArray.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors()),
+                new Cosine(), true);
+        assertFalse(precalc.isSparse());
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PreparedListSourceTest {
+
+    /**
+     * Cosine measure that counts the vectors it prepares.
+     */
+    private static final class CountingCosine extends Cosine {
+
+        int prepared = 0;
+
+        @Override
+        public SparseDoubleVector prepare(SparseDoubleVector vector) {
+            ++prepared;
+            return super.prepare(vector);
+        }
+
+    }
+
+    private static List<Indexed<SparseDoubleVector>> vectors(int count) {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id = 0; id < count; id++) {
+            vectors.add(new Indexed<SparseDoubleVector>(id, new SparseDoubleVector(
+                    new int[]{id % 3, 3 + id % 2}, new double[]{1, 1 + id}, 10, 2)));
+        }
+        return vectors;
+    }
+
+    @Test
+    public void testPositions() throws IOException {
+        CountingCosine measure = new CountingCosine();
+        ListObjectSource<Indexed<SparseDoubleVector>> inner =
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors(3));
+        inner.read();
+        PreparedListSource<Integer> source = PreparedListSource.read(inner, measure);
+        assertEquals(2, measure.prepared);
+
+        final Integer start = source.position();
+        assertEquals(Integer.valueOf(1), start);
+        final Indexed<SparseDoubleVector> first = source.read();
+        assertEquals(1, first.key());
+        assertEquals(1d / 3, first.value().values[0], 1E-12);
+        final Integer second = source.position();
+        assertEquals(2, source.read().key());
+        final Integer end = source.position();
+        assertFalse(source.hasNext());
+
+        source.position(second);
+        assertEquals(2, source.read().key());
+        source.position(start);
+        assertSame(first, source.read());
+        source.position(end);
+        assertFalse(source.hasNext());
+        assertEquals(2, measure.prepared);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPosition() throws IOException {
+        PreparedListSource<Integer> source = PreparedListSource.read(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors(3)),
+                new Cosine());
+        source.position(Integer.valueOf(7));
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PreparedObjectSourceTest {
+
+    private static List<Indexed<SparseDoubleVector>> vectors() {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        vectors.add(new Indexed<SparseDoubleVector>(3, new SparseDoubleVector(
+                new int[]{1, 4}, new double[]{1, 3}, 10, 2)));
+        vectors.add(new Indexed<SparseDoubleVector>(5, new SparseDoubleVector(
+                new int[]{2}, new double[]{2}, 10, 1)));
+        return vectors;
+    }
+
+    @Test
+    public void testPrepared() throws IOException {
+        List<Indexed<SparseDoubleVector>> vectors = vectors();
+        PreparedObjectSource<Integer> source = new PreparedObjectSource<Integer>(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors),
+                new Cosine());
+
+        Indexed<SparseDoubleVector> v = source.read();
+        assertEquals(3, v.key());
+        assertSame(vectors.get(0).value().keys, v.value().keys);
+        assertEquals(0.25, v.value().values[0], 0);
+        assertEquals(0.75, v.value().values[1], 0);
+        assertEquals(4, v.value().sum, 0);
+        // the original is untouched
+        assertEquals(1, vectors.get(0).value().values[0], 0);
+
+        final Integer end = source.position();
+        source.read();
+        source.position(end);
+        assertEquals(5, source.read().key());
+    }
+
+    @Test
+    public void testUnprepared() throws IOException {
+        List<Indexed<SparseDoubleVector>> vectors = vectors();
+        PreparedObjectSource<Integer> source = new PreparedObjectSource<Integer>(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors),
+                new Jaccard());
+        assertSame(vectors.get(0), source.read());
+        assertSame(vectors.get(1), source.read());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.DotProductProximity;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ProductBlockTest {
+
+    private static final int FEATURE_COUNT = 100;
+
+    private static List<Indexed<SparseDoubleVector>> randomVectors(
+            Random rand, int count) {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int i = 0; i < count; i++) {
+            SparseDoubleVector v = new SparseDoubleVector(FEATURE_COUNT);
+            int size = rand.nextInt(20);
+            for (int k = 0; k < size; k++) {
+                // skewed, so that some features are dense
+                int f = (int) (FEATURE_COUNT * Math.pow(rand.nextDouble(), 3));
+                v.set(f, 1 + rand.nextInt(5));
+            }
+            vectors.add(new Indexed<SparseDoubleVector>(i, v));
+        }
+        return vectors;
+    }
+
+    private static boolean sharesFeature(SparseDoubleVector a,
+                                         SparseDoubleVector b) {
+        for (int i = 0; i < a.size; i++)
+            if (Arrays.binarySearch(b.keys, 0, b.size, a.keys[i]) >= 0)
+                return true;
+        return false;
+    }
+
+    private static void testMultiply(DotProductProximity measure,
+                                     double denseDensity) {
+        Random rand = new Random(0);
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (Indexed<SparseDoubleVector> v : randomVectors(rand, 200))
+            vectors.add(new Indexed<SparseDoubleVector>(
+                    v.key(), measure.prepare(v.value())));
+
+        ProductBlock block = ProductBlock.build(vectors, measure, denseDensity);
+        assertEquals(vectors.size(), block.getVectorCount());
+        assertTrue(block.getDenseFeatureCount() <= ProductBlock.MAX_DENSE_FEATURES);
+
+        ProductBlock.Accumulator acc = ProductBlock.newAccumulator(vectors.size());
+        for (Indexed<SparseDoubleVector> query : randomVectors(rand, 50)) {
+            SparseDoubleVector q = measure.prepare(query.value());
+            double[] factors = new double[q.size];
+            for (int j = 0; j < q.size; j++)
+                factors[j] = measure.rightFactor(q, j);
+            block.multiply(q, factors, measure, acc);
+
+            boolean[] found = new boolean[vectors.size()];
+            for (int i = 0; i < acc.size(); i++) {
+                int slot = acc.get(i);
+                SparseDoubleVector a = block.getVector(slot).value();
+                assertTrue(!found[slot]);
+                found[slot] = true;
+                assertEquals(measure.shared(a, q), acc.getValue(i), 0);
+            }
+            for (int slot = 0; slot < vectors.size(); slot++) {
+                assertEquals(sharesFeature(vectors.get(slot).value(), q),
+                             found[slot]);
+            }
+        }
+    }
+
+    @Test
+    public void testMultiplySparse() {
+        testMultiply(new Cosine(), 1);
+        testMultiply(new Jaccard(), 1);
+    }
+
+    @Test
+    public void testMultiplyDense() {
+        testMultiply(new Cosine(), 0.1);
+        testMultiply(new Jaccard(), 0.01);
+    }
+
+    @Test
+    public void testMultiplyFiltered() {
+        Cosine measure = new Cosine();
+        measure.setFilteredFeatureId(0);
+        testMultiply(measure, 1);
+        testMultiply(measure, 0.1);
+    }
+
+    @Test
+    public void testDenseFeatures() {
+        List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int i = 0; i < 10; i++) {
+            SparseDoubleVector v = new SparseDoubleVector(FEATURE_COUNT);
+            v.set(1, 1);
+            v.set(2 + i % 2, 1);
+            v.set(10 + i, 1);
+            vectors.add(new Indexed<SparseDoubleVector>(i, v));
+        }
+        // feature 1 is in every vector, 2 and 3 in half, the rest in one
+        assertEquals(1, ProductBlock.build(vectors, new Jaccard(), 1).getDenseFeatureCount());
+        assertEquals(3, ProductBlock.build(vectors, new Jaccard(), 0.5).getDenseFeatureCount());
+        assertEquals(13, ProductBlock.build(vectors, new Jaccard(), 0.1).getDenseFeatureCount());
+        assertEquals(20, ProductBlock.build(vectors, new Jaccard(), 1).getSparsePostingCount());
+        assertEquals(0, ProductBlock.build(vectors, new Jaccard(), 0.1).getSparsePostingCount());
+
+        ProductBlock block = ProductBlock.build(vectors, null, 0.5);
+        ProductBlock.Accumulator acc = ProductBlock.newAccumulator(10);
+        SparseDoubleVector query = new SparseDoubleVector(FEATURE_COUNT);
+        query.set(3, 1);
+        query.set(12, 1);
+        block.multiply(query, null, null, acc);
+        int[] found = new int[acc.size()];
+        for (int i = 0; i < found.length; i++)
+            found[i] = acc.get(i);
+        Arrays.sort(found);
+        assertArrayEquals(new int[]{1, 2, 3, 5, 7, 9}, found);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Random feature vectors for the all-pairs tests.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class RandomVectors {
+
+    private RandomVectors() {
+    }
+
+    /**
+     * Generate a vector of between 1 and 12 features, each with a small
+     * integer weight. The features are skewed towards low ids, so that some
+     * are shared by many vectors.
+     *
+     * @param id           id of the vector
+     * @param featureCount cardinality of the vector
+     * @param random       source of randomness
+     * @return the vector
+     */
+    static Indexed<SparseDoubleVector> skewed(int id, int featureCount,
+                                              Random random) {
+        final TreeMap<Integer, Double> features = new TreeMap<Integer, Double>();
+        final int size = 1 + random.nextInt(12);
+        for (int i = 0; i < size; i++) {
+            final double u = random.nextDouble();
+            features.put((int) (featureCount * u * u), 1.0 + random.nextInt(4));
+        }
+        final int[] keys = new int[features.size()];
+        final double[] values = new double[features.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Double> e : features.entrySet()) {
+            keys[i] = e.getKey();
+            values[i] = e.getValue();
+            ++i;
+        }
+        return new Indexed<SparseDoubleVector>(id, new SparseDoubleVector(
+                keys, values, featureCount, keys.length));
+    }
+
+}
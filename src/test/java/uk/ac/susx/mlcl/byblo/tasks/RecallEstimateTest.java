@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class RecallEstimateTest {
+
+    @Test
+    public void testSampleRate() {
+        for (double rate : new double[]{0.01, 0.1, 0.5}) {
+            for (long seed = 0; seed < 3; seed++) {
+                int sampled = 0;
+                for (int id = 0; id < 10000; id++) {
+                    if (RecallEstimate.isSampled(id, seed, rate))
+                        ++sampled;
+                }
+                assertEquals(rate * 10000, sampled, 10000 * 0.005);
+            }
+        }
+    }
+
+    @Test
+    public void testSampleBounds() {
+        for (int id = -100; id < 100; id++) {
+            assertFalse(RecallEstimate.isSampled(id, 0, 0));
+            assertTrue(RecallEstimate.isSampled(id, 0, 1));
+        }
+    }
+
+    @Test
+    public void testRecall() {
+        RecallEstimate estimate = new RecallEstimate();
+        assertTrue(Double.isNaN(estimate.getRecall()));
+        estimate.add(4, 3);
+        estimate.add(4, 3);
+        assertEquals(8, estimate.getRelevantCount());
+        assertEquals(6, estimate.getRecalledCount());
+        assertEquals(0.75, estimate.getRecall(), 0);
+    }
+
+}
@@ -36,11 +36,13 @@ import uk.ac.susx.mlcl.byblo.Tools;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.VectorStats;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
 import uk.ac.susx.mlcl.byblo.measures.Jaccard;
 import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.Tell;
@@ -394,4 +396,210 @@ public class ThreadedApssTaskTest extends AbstractAllPairsTaskTest<ThreadedApssT
         assertEquals(threadedResults, nonThreadedResults);
     }
 
+    @Test
+    public void compareHalfGrid_vs_FullGrid() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare half-grid vs full-grid");
+
+        List<Weighted<TokenPair>> halfGridResults = runThreadedInverted(
+                true, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE);
+        List<Weighted<TokenPair>> fullGridResults = runThreadedInverted(
+                false, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE);
+
+        assertTrue(!fullGridResults.isEmpty());
+        assertEquals(fullGridResults.size(), halfGridResults.size());
+
+        Collections.sort(halfGridResults);
+        Collections.sort(fullGridResults);
+
+        assertEquals(fullGridResults, halfGridResults);
+        for (int i = 0; i < fullGridResults.size(); i++) {
+            assertEquals(fullGridResults.get(i).weight(),
+                         halfGridResults.get(i).weight(), 1E-10);
+        }
+    }
+
+    @Test
+    public void compareSplit_vs_Unsplit() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare split vs unsplit chunk pairs");
+
+        List<Weighted<TokenPair>> splitResults = runThreadedInverted(false, 1);
+        List<Weighted<TokenPair>> unsplitResults = runThreadedInverted(
+                false, Integer.MAX_VALUE / 2);
+
+        assertTrue(!unsplitResults.isEmpty());
+        assertEquals(unsplitResults.size(), splitResults.size());
+
+        Collections.sort(splitResults);
+        Collections.sort(unsplitResults);
+
+        assertEquals(unsplitResults, splitResults);
+        for (int i = 0; i < unsplitResults.size(); i++) {
+            assertEquals(unsplitResults.get(i).weight(),
+                         splitResults.get(i).weight(), 1E-10);
+        }
+    }
+
+    @Test
+    public void compareSharded_vs_Unsharded() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare sharded vs unsharded grid");
+
+        for (boolean halfGrid : new boolean[]{false, true}) {
+            List<Weighted<TokenPair>> unshardedResults = runThreadedInverted(
+                    halfGrid, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE);
+
+            List<Weighted<TokenPair>> shardedResults = new ArrayList<Weighted<TokenPair>>();
+            final int shardCount = 3;
+            for (int shard = 0; shard < shardCount; shard++) {
+                shardedResults.addAll(runThreadedInverted(
+                        halfGrid, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE,
+                        10, shard, shardCount));
+            }
+
+            assertTrue(!unshardedResults.isEmpty());
+            Collections.sort(unshardedResults);
+            Collections.sort(shardedResults);
+            assertEquals(unshardedResults, shardedResults);
+        }
+    }
+
+    @Test
+    public void compareDocumentFrequencyCutoff_vs_ChunkSize() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare document frequency cutoff over chunk sizes");
+
+        // The features excluded by the cutoff are found from the whole of
+        // source B, so they, and the pairs found, must not depend on how the
+        // sources are chunked.
+        for (boolean halfGrid : new boolean[]{false, true}) {
+            InvertedApssTask<Tell> settings = new InvertedApssTask<Tell>();
+            settings.setMaxDocumentFrequency(0.2);
+            List<Weighted<TokenPair>> wholeResults = runThreadedInverted(
+                    halfGrid, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE,
+                    1000, 0, 1, settings);
+            assertTrue(!wholeResults.isEmpty());
+            assertTrue(settings.getCutoffReport().getExcludedFeatureCount() > 0);
+            Collections.sort(wholeResults);
+
+            for (int chunkSize : new int[]{3, 10, 50}) {
+                List<Weighted<TokenPair>> chunkedResults = runThreadedInverted(
+                        halfGrid, ThreadedApssTask.DEFAULT_MIN_SPLIT_SIZE,
+                        chunkSize, 0, 1, settings);
+                Collections.sort(chunkedResults);
+                assertEquals("chunkSize=" + chunkSize, wholeResults, chunkedResults);
+            }
+        }
+    }
+
+    @Test
+    public void compareSameSources_vs_Separate() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare chunks of source B reused for source A");
+
+        List<List<Weighted<TokenPair>>> results = new ArrayList<List<Weighted<TokenPair>>>();
+        for (boolean sameSources : new boolean[]{false, true}) {
+            DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                    Enumerating.DEFAULT_TYPE, false, false, null, null);
+            WeightedTokenPairVectorSource vsa =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+            WeightedTokenPairVectorSource vsb =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+            ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                    vsa, vsb, ObjectIO.asSink(result));
+            instance.setInnerAlgorithm(InvertedApssTask.class);
+            instance.setMeasure(MEASURE);
+            instance.setProducatePair(PAIR_FILTER);
+            instance.setChunkSize(10);
+            instance.setSameSources(sameSources);
+
+            instance.run();
+            while (instance.isExceptionTrapped()) {
+                instance.throwTrappedException();
+            }
+            Collections.sort(result);
+            results.add(result);
+        }
+
+        assertTrue(!results.get(0).isEmpty());
+        assertEquals(results.get(0), results.get(1));
+    }
+
+    private static List<Weighted<TokenPair>> runThreadedInverted(
+            boolean halfGrid, int minSplitSize)
+            throws Exception {
+        return runThreadedInverted(halfGrid, minSplitSize, -1, 0, 1);
+    }
+
+    private static List<Weighted<TokenPair>> runThreadedInverted(
+            boolean halfGrid, int minSplitSize,
+            int chunkSize, int shardIndex, int shardCount)
+            throws Exception {
+        return runThreadedInverted(halfGrid, minSplitSize, chunkSize,
+                                   shardIndex, shardCount, null);
+    }
+
+    private static List<Weighted<TokenPair>> runThreadedInverted(
+            boolean halfGrid, int minSplitSize,
+            int chunkSize, int shardIndex, int shardCount,
+            InvertedApssTask<?> innerSettings)
+            throws Exception {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        ObjectSink<Weighted<TokenPair>> sink = ObjectIO.asSink(result);
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                vsa, vsb, sink);
+
+        instance.setInnerAlgorithm(InvertedApssTask.class);
+        instance.setMeasure(MEASURE);
+        instance.setProducatePair(PAIR_FILTER);
+        instance.setHalfGridEnabled(halfGrid);
+        instance.setMinSplitSize(minSplitSize);
+        instance.setChunkSize(chunkSize);
+        instance.setShard(shardIndex, shardCount);
+        instance.setInnerSettings(innerSettings);
+
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+    @Test
+    public void testEstimateChunkSizeFromStats() {
+        VectorStats.Builder builder = new VectorStats.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(new SparseDoubleVector(
+                    new int[]{1, 2, 3, 4}, new double[]{1, 1, 1, 1}, 5, 4));
+        }
+        VectorStats stats = builder.build();
+
+        // Each vector is estimated at 96 + 4 * 20 = 176 bytes
+        assertEquals(100, ThreadedApssTask.estimateChunkSize(stats, 176 * 200, 2));
+
+        // Chunks are never larger than the source, nor smaller than a vector
+        assertEquals(1000, ThreadedApssTask.estimateChunkSize(stats, 1e12, 2));
+        assertEquals(1, ThreadedApssTask.estimateChunkSize(stats, 0, 2));
+    }
+
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Lee;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the answers of the index against a brute force comparison of the
+ * query with every vector.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class VectorQueryIndexTest {
+
+    private static final int VECTOR_COUNT = 200;
+
+    private static final int FEATURE_COUNT = 80;
+
+    private static final double EPSILON = 1E-9;
+
+    private final List<Indexed<SparseDoubleVector>> vectors;
+
+    public VectorQueryIndexTest() {
+        final Random random = new Random(3);
+        vectors = new ArrayList<Indexed<SparseDoubleVector>>();
+        // Leave a gap in the ids, which must not be found
+        for (int id = 0; id < VECTOR_COUNT; id++)
+            vectors.add(RandomVectors.skewed(id < 50 ? id : id + 10, FEATURE_COUNT, random));
+    }
+
+    private static boolean shareFeature(SparseDoubleVector a, SparseDoubleVector b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j])
+                ++i;
+            else if (a.keys[i] > b.keys[j])
+                ++j;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Weight of every vector that shares a feature with the query, keyed by
+     * id; with the query as the base entry (source B) of each comparison.
+     */
+    private TreeMap<Integer, Double> bruteForce(SparseDoubleVector query,
+                                                Proximity measure) {
+        final SparseDoubleVector q = measure.prepare(query);
+        final TreeMap<Integer, Double> weights = new TreeMap<Integer, Double>();
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            final SparseDoubleVector a = measure.prepare(v.value());
+            if (!shareFeature(a, q))
+                continue;
+            weights.put(v.key(), measure.combine(
+                    measure.shared(a, q), measure.left(a), measure.right(q)));
+        }
+        return weights;
+    }
+
+    private void assertNearest(TreeMap<Integer, Double> expectedWeights,
+                               List<Weighted<Token>> actual, int k) {
+        final List<Double> expected = new ArrayList<Double>(expectedWeights.values());
+        Collections.sort(expected, Collections.reverseOrder());
+        assertEquals(Math.min(k, expected.size()), actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            final Weighted<Token> neighbour = actual.get(i);
+            assertEquals(expected.get(i), neighbour.weight(), EPSILON);
+            assertEquals(expectedWeights.get(neighbour.record().id()),
+                         neighbour.weight(), EPSILON);
+            if (i > 0)
+                assertTrue(actual.get(i - 1).weight() >= neighbour.weight());
+        }
+    }
+
+    private void testGetNeighbours(Proximity measure) throws IOException {
+        final VectorQueryIndex index = VectorQueryIndex.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors), measure);
+        assertEquals(VECTOR_COUNT, index.getVectorCount());
+        assertEquals(FEATURE_COUNT, index.getCardinality());
+
+        final Random random = new Random(11);
+        for (int q = 0; q < 20; q++) {
+            final SparseDoubleVector query = q < 10
+                    ? vectors.get(q * 17).value()
+                    : RandomVectors.skewed(-1, FEATURE_COUNT, random).value();
+            for (int k : new int[]{1, 5, 1000}) {
+                assertNearest(bruteForce(query, measure),
+                              index.getNeighbours(query, k), k);
+            }
+        }
+    }
+
+    @Test
+    public void testGetNeighboursJaccard() throws IOException {
+        testGetNeighbours(new Jaccard());
+    }
+
+    @Test
+    public void testGetNeighboursCosine() throws IOException {
+        testGetNeighbours(new Cosine());
+    }
+
+    @Test
+    public void testGetNeighboursLee() throws IOException {
+        testGetNeighbours(new Lee());
+    }
+
+    @Test
+    public void testGetNeighboursTies() throws IOException {
+        // Identical vectors tie, and the lowest ids must win
+        final VectorQueryIndex index = VectorQueryIndex.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors), new Jaccard());
+        final SparseDoubleVector query = new SparseDoubleVector(
+                new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+                new double[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, FEATURE_COUNT, 10);
+        final List<Weighted<Token>> all = index.getNeighbours(query, VECTOR_COUNT);
+        final List<Weighted<Token>> sorted = new ArrayList<Weighted<Token>>(all);
+        Collections.sort(sorted, new Comparator<Weighted<Token>>() {
+
+            @Override
+            public int compare(Weighted<Token> a, Weighted<Token> b) {
+                if (a.weight() != b.weight())
+                    return a.weight() > b.weight() ? -1 : 1;
+                return a.record().id() - b.record().id();
+            }
+
+        });
+        assertEquals(sorted, all);
+        assertEquals(sorted.subList(0, 7), index.getNeighbours(query, 7));
+    }
+
+    @Test
+    public void testGetSimilarity() throws IOException {
+        final Proximity measure = new Lee();
+        final VectorQueryIndex index = VectorQueryIndex.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors), measure);
+        for (int i = 0; i < VECTOR_COUNT; i += 13) {
+            final Indexed<SparseDoubleVector> base = vectors.get(i);
+            final TreeMap<Integer, Double> expected = bruteForce(base.value(), measure);
+            for (int j = 0; j < VECTOR_COUNT; j += 7) {
+                final int other = vectors.get(j).key();
+                if (expected.containsKey(other))
+                    assertEquals(expected.get(other),
+                                 index.getSimilarity(base.key(), other), EPSILON);
+            }
+        }
+        assertTrue(index.contains(0));
+        assertFalse(index.contains(55));
+        assertTrue(Double.isNaN(index.getSimilarity(0, 55)));
+        assertTrue(Double.isNaN(index.getSimilarity(55, 0)));
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        final Proximity measure = new Cosine();
+        final VectorQueryIndex index = VectorQueryIndex.build(
+                new ListObjectSource<Indexed<SparseDoubleVector>>(vectors), measure);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int q = 0; q < 40; q++) {
+                final SparseDoubleVector query = vectors.get(q * 5).value();
+                final TreeMap<Integer, Double> expected = bruteForce(query, measure);
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                        assertNearest(expected, index.getNeighbours(query, 10), 10);
+                        return true;
+                    }
+
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}